@@ -58,6 +58,20 @@ public class BluetoothManager {
         return ConnectionManagerHolder.INSTANCE;
     }
 
+    /**
+     * Initializes the manager with the given Bluetooth operations instead of the ones of the device, such as a
+     * TransportWrapper reaching stand-in robots
+     *
+     * @param operations Bluetooth operations to use
+     * @return
+     */
+    public BluetoothManager initialize(BluetoothOperations operations) {
+        if (!mInitialized) {
+            mBluetooth = operations;
+        }
+        return ConnectionManagerHolder.INSTANCE;
+    }
+
     private boolean androidVersionIsPreEclair() {
         return (Build.VERSION.SDK_INT < Build.VERSION_CODES.ECLAIR);
 
@@ -167,6 +181,10 @@ public class BluetoothManager {
         return mBluetooth.connect(btAddresses);
     }
 
+    public IndexedMap connect(String[] btAddresses, ConnectListener listener) {
+        return mBluetooth.connect(btAddresses, listener);
+    }
+
     public IndexedMap disconnect(String[] btAddresses) {
         return mBluetooth.disconnect(btAddresses);
     }
@@ -175,6 +193,14 @@ public class BluetoothManager {
         return mBluetooth.discoverDevices();
     }
 
+    public IndexedMap discoverDevices(DiscoveryListener listener) throws BluetoothException {
+        return mBluetooth.discoverDevices(listener);
+    }
+
+    public IndexedMap getKnownDevices() {
+        return mBluetooth.getKnownDevices();
+    }
+
     public boolean isConnected() {
         return mBluetooth.isConnected();
     }
@@ -37,6 +37,15 @@ public interface BluetoothOperations {
      */
     public IndexedMap connect(String[] btAddresses);
 
+    /**
+     * Connects to a set of Bluetooth MAC addresses concurrently, reporting every result as soon as it is known
+     *
+     * @param btAddresses Array of MAC addresses to connect to in String format
+     * @param listener    Listener of the result of every connection. May be null
+     * @return IndexedMap with the same entries as connect(String[])
+     */
+    public IndexedMap connect(String[] btAddresses, ConnectListener listener);
+
     /**
      * Disconnects from a set of Bluetooth MAC addresses
      *
@@ -56,6 +65,24 @@ public interface BluetoothOperations {
      */
     public IndexedMap discoverDevices() throws BluetoothException;
 
+    /**
+     * Initiates the Bluetooth discovery procedure, reporting every robot as soon as it is found
+     *
+     * @param listener Listener of the robots found. May be null
+     * @return IndexedMap with the entries of the discovered devices, as discoverDevices() does
+     * @throws BluetoothException
+     */
+    public IndexedMap discoverDevices(DiscoveryListener listener) throws BluetoothException;
+
+    /**
+     * Returns the robots which can be connected without running a discovery: the ones connected before, and the
+     * ones bonded with the phone
+     *
+     * @return IndexedMap with the entries of the known devices, the most recently connected first
+     * * key: Device name, value: Device MAC address
+     */
+    public IndexedMap getKnownDevices();
+
 
     public boolean isConnected();
 }
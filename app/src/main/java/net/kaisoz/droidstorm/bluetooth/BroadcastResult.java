@@ -0,0 +1,234 @@
+package net.kaisoz.droidstorm.bluetooth;
+
+import net.kaisoz.droidstorm.bluetooth.exception.BluetoothException;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Outcome of a command broadcast to every connected robot.
+ * Holds, for each robot, the time its command was written, its reply (if one was requested) or the reason it failed.
+ * Robots which didn't finish before the deadline are reported as timed out, and any reply they send afterwards is
+ * released to the frame pool.
+ * Reply frames belong to this result until they are taken with takeReply(). Once read, release() gives back every
+ * reply which was not taken.
+ */
+public class BroadcastResult {
+
+    private final String[] mAddresses;
+    private final ByteBuffer[] mReplies;
+    private final BluetoothException[] mErrors;
+    private final long[] mSentAt;
+    private final boolean[] mDone;
+    private final FramePool mPool;
+    private long mStart = 0;
+    private boolean mClosed = false;
+
+    /**
+     * Creates an empty result for the given robots
+     *
+     * @param addresses Bluetooth addresses of the robots the command is sent to
+     * @param pool      Pool which reply frames belong to
+     */
+    public BroadcastResult(String[] addresses, FramePool pool) {
+        this.mAddresses = addresses;
+        this.mReplies = new ByteBuffer[addresses.length];
+        this.mErrors = new BluetoothException[addresses.length];
+        this.mSentAt = new long[addresses.length];
+        this.mDone = new boolean[addresses.length];
+        this.mPool = pool;
+    }
+
+    /**
+     * Marks the moment the broadcast starts. Send times are measured from here
+     */
+    public synchronized void start() {
+        mStart = System.nanoTime();
+    }
+
+    /**
+     * Records that the command has been written to the given robot. Writes ending once the result is closed are not
+     * recorded, so its send times don't change under the caller
+     *
+     * @param index Robot index
+     */
+    public synchronized void sent(int index) {
+        if (!mClosed) {
+            mSentAt[index] = System.nanoTime();
+        }
+    }
+
+    /**
+     * Records the reply of the given robot, or the end of its write if no reply was requested
+     *
+     * @param index Robot index
+     * @param reply Reply frame, or null
+     */
+    public synchronized void completed(int index, ByteBuffer reply) {
+        if (mClosed) {
+            mPool.release(reply);
+            return;
+        }
+        mReplies[index] = reply;
+        mDone[index] = true;
+    }
+
+    /**
+     * Records that the command failed for the given robot
+     *
+     * @param index Robot index
+     * @param error Failure reason
+     */
+    public synchronized void failed(int index, BluetoothException error) {
+        if (!mClosed) {
+            mErrors[index] = error;
+            mDone[index] = true;
+        }
+    }
+
+    /**
+     * Stops accepting replies. Robots which are not done yet are reported as timed out
+     */
+    public synchronized void close() {
+        mClosed = true;
+    }
+
+    /**
+     * Returns the number of robots the command was sent to
+     *
+     * @return
+     */
+    public int size() {
+        return mAddresses.length;
+    }
+
+    /**
+     * Returns the Bluetooth address of the robot at the given index
+     *
+     * @param index Robot index
+     * @return
+     */
+    public String getAddress(int index) {
+        return mAddresses[index];
+    }
+
+    /**
+     * Returns the index of the robot with the given address, or -1 if the command was not sent to it
+     *
+     * @param btAddr Bluetooth address
+     * @return
+     */
+    public int indexOf(String btAddr) {
+        for (int i = 0; i < mAddresses.length; i++) {
+            if (mAddresses[i].equals(btAddr)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns true if the command was written (and replied, if requested) to the given robot before the deadline
+     *
+     * @param index Robot index
+     * @return
+     */
+    public synchronized boolean isSuccess(int index) {
+        return mDone[index] && mErrors[index] == null;
+    }
+
+    /**
+     * Returns true if the given robot didn't finish before the deadline
+     *
+     * @param index Robot index
+     * @return
+     */
+    public synchronized boolean isTimedOut(int index) {
+        return !mDone[index];
+    }
+
+    /**
+     * Returns the reason the command failed for the given robot, or null
+     *
+     * @param index Robot index
+     * @return
+     */
+    public synchronized BluetoothException getError(int index) {
+        return mErrors[index];
+    }
+
+    /**
+     * Returns the reply of the given robot, which still belongs to this result
+     *
+     * @param index Robot index
+     * @return Reply frame, or null if no reply was requested or received
+     */
+    public synchronized ByteBuffer getReply(int index) {
+        return mReplies[index];
+    }
+
+    /**
+     * Returns the reply of the given robot and hands its ownership to the caller
+     *
+     * @param index Robot index
+     * @return Reply frame, or null if no reply was requested or received. It should be released to the frame pool
+     */
+    public synchronized ByteBuffer takeReply(int index) {
+        ByteBuffer reply = mReplies[index];
+        mReplies[index] = null;
+        return reply;
+    }
+
+    /**
+     * Returns how long it took to write the command to the given robot since the broadcast started
+     *
+     * @param index Robot index
+     * @return Time in nanoseconds, or -1 if the command was not written
+     */
+    public synchronized long getSendDelay(int index) {
+        return (mSentAt[index] != 0) ? mSentAt[index] - mStart : -1;
+    }
+
+    /**
+     * Returns the time between the first and the last robot receiving the command.
+     * This is how far apart the robots started executing it
+     *
+     * @return Time in nanoseconds. Robots the command was not written to are not taken into account
+     */
+    public synchronized long getSkew() {
+        long first = Long.MAX_VALUE;
+        long last = Long.MIN_VALUE;
+        for (int i = 0; i < mSentAt.length; i++) {
+            if (mSentAt[i] != 0) {
+                first = Math.min(first, mSentAt[i]);
+                last = Math.max(last, mSentAt[i]);
+            }
+        }
+        return (last >= first) ? last - first : 0;
+    }
+
+    /**
+     * Throws the first failure, if any robot failed or timed out
+     *
+     * @throws BluetoothException if the command didn't succeed for every robot
+     */
+    public synchronized void checkAllSucceeded() throws BluetoothException {
+        for (int i = 0; i < mAddresses.length; i++) {
+            if (mErrors[i] != null) {
+                throw mErrors[i];
+            }
+            if (!mDone[i]) {
+                throw new BluetoothException("Timed out broadcasting to " + mAddresses[i]);
+            }
+        }
+    }
+
+    /**
+     * Releases every reply which was not taken
+     */
+    public synchronized void release() {
+        for (int i = 0; i < mReplies.length; i++) {
+            mPool.release(mReplies[i]);
+            mReplies[i] = null;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package net.kaisoz.droidstorm.bluetooth;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Group of frames which are sent to the robot in a single write.
+ * Frames are copied back to back into a contiguous buffer as they are added, so the whole batch travels in one
+ * Bluetooth packet instead of one packet per command.
+ * Replies are not read for batched frames, so only frames which don't request a response can be added.
+ * A batch carries the priority its frames are queued with (see OutboundQueue), normal unless set otherwise.
+ * A batch can be reused once sent by calling clear(). It is not thread safe.
+ */
+public class CommandBatch {
+
+    // Bit of the telegram type byte which tells the robot not to reply
+    private static final int NO_REPLY_FLAG = 0x80;
+    private static final int DEFAULT_MAX_FRAMES = 8;
+
+    private final byte[] mData;
+    private final ByteBuffer mBuffer;
+    private final int[] mOffsets;
+    private int mCount = 0;
+    private int mSize = 0;
+    private int mPriority = OutboundQueue.PRIORITY_NORMAL;
+
+    public CommandBatch() {
+        this(DEFAULT_MAX_FRAMES);
+    }
+
+    /**
+     * Creates a batch able to hold the given number of frames
+     *
+     * @param maxFrames Maximum number of frames of the batch
+     */
+    public CommandBatch(int maxFrames) {
+        mData = new byte[maxFrames * FramePool.MAX_FRAME_SIZE];
+        mBuffer = ByteBuffer.wrap(mData).order(ByteOrder.LITTLE_ENDIAN);
+        mOffsets = new int[maxFrames];
+    }
+
+    /**
+     * Returns true if the given frame fits in this batch
+     *
+     * @param frame Length-prefixed frame
+     * @return
+     */
+    public boolean canAdd(ByteBuffer frame) {
+        return mCount < mOffsets.length && mSize + frame.remaining() <= mData.length;
+    }
+
+    /**
+     * Copies a frame at the end of the batch. The frame is not consumed, so it can be released or reused right away
+     *
+     * @param frame Length-prefixed frame which doesn't request a response
+     * @throws IllegalArgumentException if the frame requests a response
+     * @throws IllegalStateException    if the batch is full
+     */
+    public void add(ByteBuffer frame) {
+        if (!isBatchable(frame)) {
+            throw new IllegalArgumentException("Only frames without response can be batched");
+        }
+        int position = frame.position();
+        int length = frame.remaining();
+        if (!canAdd(frame)) {
+            throw new IllegalStateException("Command batch is full");
+        }
+        if (frame.hasArray()) {
+            System.arraycopy(frame.array(), frame.arrayOffset() + position, mData, mSize, length);
+        } else {
+            frame.duplicate().get(mData, mSize, length);
+        }
+        mOffsets[mCount++] = mSize;
+        mSize += length;
+    }
+
+    /**
+     * Sets the priority the frames of this batch are queued with. It is kept when the batch is cleared
+     *
+     * @param priority OutboundQueue.PRIORITY_HIGH, PRIORITY_NORMAL or PRIORITY_LOW
+     */
+    public void setPriority(int priority) {
+        mPriority = priority;
+    }
+
+    /**
+     * Returns the priority the frames of this batch are queued with
+     *
+     * @return
+     */
+    public int getPriority() {
+        return mPriority;
+    }
+
+    /**
+     * Returns the number of frames in this batch
+     *
+     * @return
+     */
+    public int getFrameCount() {
+        return mCount;
+    }
+
+    /**
+     * Returns true if no frame has been added since the batch was created or cleared
+     *
+     * @return
+     */
+    public boolean isEmpty() {
+        return mCount == 0;
+    }
+
+    /**
+     * Returns a view of the frame at the given index, for transports which can only send a frame at a time
+     *
+     * @param index Frame index, in the order the frames were added
+     * @return Length-prefixed frame. It is backed by this batch
+     */
+    public ByteBuffer getFrame(int index) {
+        int offset = getFrameOffset(index);
+        ByteBuffer frame = mBuffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        frame.limit(offset + getFrameLength(index));
+        frame.position(offset);
+        return frame;
+    }
+
+    /**
+     * Returns the offset of the frame at the given index inside the array returned by getArray()
+     *
+     * @param index Frame index, in the order the frames were added
+     * @return
+     */
+    public int getFrameOffset(int index) {
+        if (index < 0 || index >= mCount) {
+            throw new IndexOutOfBoundsException("Frame " + index + " of " + mCount);
+        }
+        return mOffsets[index];
+    }
+
+    /**
+     * Returns the size of the frame at the given index, length prefix included
+     *
+     * @param index Frame index, in the order the frames were added
+     * @return
+     */
+    public int getFrameLength(int index) {
+        int end = (index + 1 < mCount) ? mOffsets[index + 1] : mSize;
+        return end - getFrameOffset(index);
+    }
+
+    /**
+     * Returns the array which backs this batch
+     *
+     * @return
+     */
+    public byte[] getArray() {
+        return mData;
+    }
+
+    /**
+     * Returns the whole batch as a single buffer, ready to be written at once
+     *
+     * @return Buffer holding every frame back to back. It is backed by this batch
+     */
+    public ByteBuffer getBuffer() {
+        mBuffer.clear();
+        mBuffer.limit(mSize);
+        return mBuffer;
+    }
+
+    /**
+     * Returns true if the given frame doesn't request a response, so it can be part of a batch
+     *
+     * @param frame Length-prefixed frame
+     * @return
+     */
+    public static boolean isBatchable(ByteBuffer frame) {
+        return frame.remaining() > FramePool.HEADER_SIZE
+                && (frame.get(frame.position() + FramePool.HEADER_SIZE) & NO_REPLY_FLAG) != 0;
+    }
+
+    /**
+     * Empties the batch so it can be filled again
+     */
+    public void clear() {
+        mCount = 0;
+        mSize = 0;
+    }
+}
@@ -0,0 +1,68 @@
+package net.kaisoz.droidstorm.bluetooth;
+
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Keeps a command executor per robot.
+ * Every executor runs a single thread, so the commands submitted for a robot are sent in the same order they were
+ * submitted, while a slow robot never delays the commands of the others nor the thread which submitted them.
+ * Commands broadcast to all robots run on their own executor.
+ */
+public class CommandExecutors {
+
+    public static final String BROADCAST = "broadcast";
+
+    private final HashMap<String, ExecutorService> mExecutors = new HashMap<String, ExecutorService>();
+
+    private CommandExecutors() {
+    }
+
+    /**
+     * SingletonHolder is loaded on the first execution of Singleton.getInstance()
+     * or the first access to SingletonHolder.INSTANCE, not before.
+     */
+    private static class ExecutorsHolder {
+        public static final CommandExecutors INSTANCE = new CommandExecutors();
+    }
+
+    public static CommandExecutors getInstance() {
+        return ExecutorsHolder.INSTANCE;
+    }
+
+    /**
+     * Returns the executor for the given robot, creating it if needed
+     *
+     * @param btAddr Bluetooth address of the robot, or BROADCAST
+     * @return
+     */
+    public synchronized ExecutorService get(final String btAddr) {
+        ExecutorService executor = mExecutors.get(btAddr);
+        if (executor == null) {
+            executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "NXTCommands-" + btAddr);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            mExecutors.put(btAddr, executor);
+        }
+        return executor;
+    }
+
+    /**
+     * Stops the executor of the given robot once its pending commands have run.
+     * A new executor will be created if the robot is used again
+     *
+     * @param btAddr Bluetooth address of the robot, or BROADCAST
+     */
+    public synchronized void shutdown(String btAddr) {
+        ExecutorService executor = mExecutors.remove(btAddr);
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package net.kaisoz.droidstorm.bluetooth;
+
+/**
+ * Receives the result of every connection attempt as soon as it is known, while the others are still in progress.
+ * Attempts run concurrently, so it is called from several threads at once
+ */
+public interface ConnectListener {
+
+    /**
+     * Called once the robot is connected and ready to receive commands
+     *
+     * @param btAddress Robot address
+     */
+    public void onConnected(String btAddress);
+
+    /**
+     * Called when the robot couldn't be connected, or didn't answer in time
+     *
+     * @param btAddress Robot address
+     */
+    public void onFailed(String btAddress);
+}
@@ -2,7 +2,14 @@ package net.kaisoz.droidstorm.bluetooth;
 
 import net.kaisoz.droidstorm.bluetooth.exception.BluetoothException;
 
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
 /**
+ * Connection to a robot, or to every connected robot. The robot a connection is bound to never changes, so
+ * connections to different robots can be used from different threads at once
+ *
  * @author Tomás Tormo Franco
  */
 
@@ -10,9 +17,7 @@ public interface Connection {
 
     public char[] initBTListener() throws BluetoothException;
 
-    public void setSingleModeToAddress(String btAdress);
-
-    public void setBroadcastMode();
+    public char[] initBTListener(long timeout) throws BluetoothException;
 
     public char[] sendCommand(char[] values, boolean response) throws BluetoothException;
 
@@ -21,4 +26,44 @@ public interface Connection {
     public char[] broadcastCommand(char[] values, boolean response) throws BluetoothException;
 
     public char[] waitForMessage(String btAddr) throws BluetoothException;
+
+    public char[] waitForMessage(String btAddr, long timeout) throws BluetoothException;
+
+    public int waitForMessages(String[] btAddrs, char[][] messages, long timeout) throws BluetoothException;
+
+    public FramePool getFramePool();
+
+    public ByteBuffer sendFrame(ByteBuffer frame, boolean response) throws BluetoothException;
+
+    public ByteBuffer sendFrame(ByteBuffer frame, boolean response, int priority) throws BluetoothException;
+
+    public ByteBuffer sendSingleFrame(String btAddr, ByteBuffer frame, boolean response) throws BluetoothException;
+
+    public ByteBuffer broadcastFrame(ByteBuffer frame, boolean response) throws BluetoothException;
+
+    public BroadcastResult scatterFrame(ByteBuffer frame, boolean response, long timeout) throws BluetoothException;
+
+    public BroadcastResult scatterBatch(CommandBatch batch, long timeout) throws BluetoothException;
+
+    public Future<ByteBuffer> sendFrameAsync(ByteBuffer frame, boolean response);
+
+    public ExecutorService getCommandExecutor();
+
+    public void sendFrames(ByteBuffer[] frames, ByteBuffer[] responses, int count) throws BluetoothException;
+
+    public void sendFrames(ByteBuffer[] frames, ByteBuffer[] responses, int count, int priority) throws BluetoothException;
+
+    public void sendSingleFrames(String btAddr, ByteBuffer[] frames, ByteBuffer[] responses, int count) throws BluetoothException;
+
+    public void broadcastFrames(ByteBuffer[] frames, ByteBuffer[] responses, int count) throws BluetoothException;
+
+    public int sendFramesTo(String[] btAddrs, ByteBuffer[] frames, ByteBuffer[] responses, int count) throws BluetoothException;
+
+    public void sendBatch(CommandBatch batch) throws BluetoothException;
+
+    public void sendSingleBatch(String btAddr, CommandBatch batch) throws BluetoothException;
+
+    public void broadcastBatch(CommandBatch batch) throws BluetoothException;
+
+    public LinkStatus getLinkStatus(String btAddr);
 }
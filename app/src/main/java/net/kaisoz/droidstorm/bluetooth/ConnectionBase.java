@@ -1,8 +1,12 @@
 package net.kaisoz.droidstorm.bluetooth;
 
-import net.kaisoz.droidstorm.bluetooth.base.BluetoothWrapper;
 import net.kaisoz.droidstorm.bluetooth.exception.BluetoothException;
 
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
 /**
  * Wrapper for ConnectionLegacy.c file. Sends and retrieves messages to/from the robots and listens to follower
  * messages.
@@ -14,22 +18,39 @@ public abstract class ConnectionBase implements Connection {
 
     protected static final int MODE_SINGLE = 0;
     protected static final int MODE_BROADCAST = 1;
-    protected int mode = MODE_SINGLE;
-    protected String mBtAddr;
+    // Wait given to every robot in turn by connections which can't wait for several robots at once
+    private static final long MESSAGE_SLICE = 50;
+    // A connection is bound to its robot, or to all of them, for its whole life
+    protected final int mode;
+    protected final String mBtAddr;
+    protected final FramePool mFramePool;
 
     /**
      * // Broadcast command constructor
      */
     protected ConnectionBase() {
         mode = MODE_BROADCAST;
+        mBtAddr = null;
+        mFramePool = new FramePool();
     }
 
     /**
      * Send singe command constructor
      */
     protected ConnectionBase(String btAddr) {
+        this(btAddr, new FramePool());
+    }
+
+    /**
+     * Send single command constructor for connections sharing the frames of another one
+     *
+     * @param btAddr    Robot address
+     * @param framePool Pool the frames sent and received are taken from
+     */
+    protected ConnectionBase(String btAddr, FramePool framePool) {
         mode = MODE_SINGLE;
         this.mBtAddr = btAddr;
+        this.mFramePool = framePool;
     }
 
 
@@ -51,6 +72,152 @@ public abstract class ConnectionBase implements Connection {
         return robotResponse;
     }
 
+    /**
+     * Sends an already encoded frame to the robot associated to this connection.
+     * The frame is not consumed, so its position and limit are the same once sent.
+     * Implementations may queue frames which don't request a response and write them later, replacing a queued
+     * motor command by a newer one for the same port
+     *
+     * @param frame    Length-prefixed frame to be sent to the robot
+     * @param response If true, a response is required. In other case, false
+     * @return Response frame from the robot (if requested). It belongs to getFramePool() and should be released there
+     * @throws BluetoothException if the operation fails
+     */
+    public ByteBuffer sendFrame(ByteBuffer frame, boolean response) throws BluetoothException {
+        return sendFrame(frame, response, OutboundQueue.PRIORITY_NORMAL);
+    }
+
+    /**
+     * Sends an already encoded frame with the given priority.
+     * High priority frames overtake any queued frame of lower priority, and low priority ones may be shed while the
+     * link is congested
+     *
+     * @param frame    Length-prefixed frame to be sent to the robot
+     * @param response If true, a response is required. In other case, false
+     * @param priority OutboundQueue.PRIORITY_HIGH, PRIORITY_NORMAL or PRIORITY_LOW
+     * @return Response frame from the robot (if requested). It belongs to getFramePool() and should be released there
+     * @throws BluetoothException if the operation fails
+     */
+    public ByteBuffer sendFrame(ByteBuffer frame, boolean response, int priority) throws BluetoothException {
+        ByteBuffer robotResponse;
+        if (mode == MODE_BROADCAST) {
+            robotResponse = broadcastFrame(frame, response, priority);
+        } else {
+            robotResponse = sendSingleFrame(mBtAddr, frame, response, priority);
+        }
+        return robotResponse;
+    }
+
+    /**
+     * Sends an already encoded frame on the command executor of the robot associated to this connection, so the
+     * calling thread never waits for the Bluetooth link.
+     * The frame is copied, so it can be released or reused as soon as this method returns
+     *
+     * @param frame    Length-prefixed frame to be sent to the robot
+     * @param response If true, a response is required. In other case, false
+     * @return Future holding the response frame (if requested). It belongs to getFramePool() and should be released there
+     */
+    public Future<ByteBuffer> sendFrameAsync(ByteBuffer frame, final boolean response) {
+        final ByteBuffer copy = mFramePool.acquire();
+        copy.put(frame.duplicate());
+        copy.flip();
+        return getCommandExecutor().submit(new Callable<ByteBuffer>() {
+            public ByteBuffer call() throws BluetoothException {
+                try {
+                    if (mode == MODE_BROADCAST) {
+                        return broadcastFrame(copy, response);
+                    } else {
+                        return sendSingleFrame(mBtAddr, copy, response);
+                    }
+                } finally {
+                    mFramePool.release(copy);
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the executor which runs the commands of the robot associated to this connection, or the broadcast
+     * executor in broadcast mode
+     *
+     * @return
+     */
+    public ExecutorService getCommandExecutor() {
+        if (mode == MODE_BROADCAST) {
+            return CommandExecutors.getInstance().get(CommandExecutors.BROADCAST);
+        } else {
+            return CommandExecutors.getInstance().get(mBtAddr);
+        }
+    }
+
+    /**
+     * Sends several frames which request a response without waiting for each reply before sending the next one.
+     * Replies are matched to their requests in order, so responses[i] holds the reply to frames[i].
+     *
+     * @param frames    Length-prefixed frames to be sent. They are not consumed
+     * @param responses Array which the reply frames will be stored in. They belong to getFramePool() and should be
+     *                  released there. In broadcast mode no reply is read and every entry is set to null
+     * @param count     Number of frames to send
+     * @throws BluetoothException if the operation fails. No reply is returned in that case
+     */
+    public void sendFrames(ByteBuffer[] frames, ByteBuffer[] responses, int count) throws BluetoothException {
+        sendFrames(frames, responses, count, OutboundQueue.PRIORITY_NORMAL);
+    }
+
+    /**
+     * Sends several frames which request a response with the given priority, as sendFrames() does
+     *
+     * @param frames    Length-prefixed frames to be sent. They are not consumed
+     * @param responses Array which the reply frames will be stored in
+     * @param count     Number of frames to send
+     * @param priority  OutboundQueue.PRIORITY_HIGH, PRIORITY_NORMAL or PRIORITY_LOW
+     * @throws BluetoothException if the operation fails, or the frames were shed. No reply is returned in that case
+     */
+    public void sendFrames(ByteBuffer[] frames, ByteBuffer[] responses, int count, int priority) throws BluetoothException {
+        if (mode == MODE_BROADCAST) {
+            broadcastFrames(frames, responses, count);
+        } else {
+            sendSingleFrames(mBtAddr, frames, responses, count, priority);
+        }
+    }
+
+    /**
+     * Sends every frame of the given batch to the robot associated to this connection in a single write.
+     *
+     * @param batch Frames to be sent. The batch is not cleared
+     * @throws BluetoothException if the operation fails
+     */
+    public void sendBatch(CommandBatch batch) throws BluetoothException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        if (mode == MODE_BROADCAST) {
+            broadcastBatch(batch);
+        } else {
+            sendSingleBatch(mBtAddr, batch);
+        }
+    }
+
+    /**
+     * Returns the pool which frames sent through this connection should be taken from
+     *
+     * @return Frame pool of this connection
+     */
+    public FramePool getFramePool() {
+        return mFramePool;
+    }
+
+    /**
+     * Returns the health of the link to the given robot: idle time, round trip time, send rate and battery level.
+     * Connections which don't monitor their links return null
+     *
+     * @param btAddr Robot address
+     * @return
+     */
+    public LinkStatus getLinkStatus(String btAddr) {
+        return null;
+    }
+
     /**
      * Starts a listerner to the robot associated to this connection
      *
@@ -61,15 +228,15 @@ public abstract class ConnectionBase implements Connection {
         return waitForMessage(this.mBtAddr);
     }
 
-    @Override
-    public void setBroadcastMode() {
-        this.mode = MODE_BROADCAST;
-    }
-
-    @Override
-    public void setSingleModeToAddress(String btAdress) {
-        this.mode = MODE_SINGLE;
-        this.mBtAddr = btAdress;
+    /**
+     * Waits for a message from the robot associated to this connection, up to the given timeout
+     *
+     * @param timeout Maximum wait in milliseconds. 0 waits forever
+     * @return Robot message, or null if none arrived in time
+     * @throws BluetoothException if the operation fails
+     */
+    public char[] initBTListener(long timeout) throws BluetoothException {
+        return waitForMessage(this.mBtAddr, timeout);
     }
 
     public abstract char[] sendSingleCommand(String btAddr, char[] values, boolean response) throws BluetoothException;
@@ -77,4 +244,125 @@ public abstract class ConnectionBase implements Connection {
     public abstract char[] broadcastCommand(char[] values, boolean response) throws BluetoothException;
 
     public abstract char[] waitForMessage(String btAddr) throws BluetoothException;
+
+    /**
+     * Waits for the next message sent by the given robot on its own, up to the given timeout.
+     * Connections which can't time out their reads wait until a message arrives
+     *
+     * @param btAddr  Robot address
+     * @param timeout Maximum wait in milliseconds. 0 waits forever
+     * @return Message, or null if none arrived in time
+     * @throws BluetoothException if the message couldn't be read
+     */
+    public char[] waitForMessage(String btAddr, long timeout) throws BluetoothException {
+        return waitForMessage(btAddr);
+    }
+
+    /**
+     * Waits until any of the given robots sends a message on its own, up to the given timeout, and collects one
+     * message from every robot which has sent one.
+     * Connections which can't wait for several robots at once wait for each of them in turn, a slice at a time
+     *
+     * @param btAddrs  Robots to wait for
+     * @param messages Array which the message of every robot will be stored in, null for the robots which sent none
+     * @param timeout  Maximum wait in milliseconds. 0 waits forever
+     * @return Number of messages collected, 0 if none arrived in time
+     * @throws BluetoothException if the messages couldn't be read, or the calling thread is interrupted
+     */
+    public int waitForMessages(String[] btAddrs, char[][] messages, long timeout) throws BluetoothException {
+        long deadline = (timeout > 0) ? System.currentTimeMillis() + timeout : 0;
+        long slice = (btAddrs.length == 1) ? timeout : MESSAGE_SLICE;
+        while (true) {
+            int received = 0;
+            for (int i = 0; i < btAddrs.length; i++) {
+                messages[i] = waitForMessage(btAddrs[i], slice);
+                if (messages[i] != null)
+                    received++;
+            }
+            if (received > 0 || (deadline > 0 && System.currentTimeMillis() >= deadline))
+                return received;
+        }
+    }
+
+    public abstract ByteBuffer sendSingleFrame(String btAddr, ByteBuffer frame, boolean response) throws BluetoothException;
+
+    /**
+     * Sends a frame to the given robot with the given priority.
+     * Transports without priority lanes send it as any other frame
+     */
+    public ByteBuffer sendSingleFrame(String btAddr, ByteBuffer frame, boolean response, int priority) throws BluetoothException {
+        return sendSingleFrame(btAddr, frame, response);
+    }
+
+    public abstract ByteBuffer broadcastFrame(ByteBuffer frame, boolean response) throws BluetoothException;
+
+    /**
+     * Sends a frame to every robot with the given priority.
+     * Transports without priority lanes send it as any other frame
+     */
+    public ByteBuffer broadcastFrame(ByteBuffer frame, boolean response, int priority) throws BluetoothException {
+        return broadcastFrame(frame, response);
+    }
+
+    public abstract void sendSingleFrames(String btAddr, ByteBuffer[] frames, ByteBuffer[] responses, int count) throws BluetoothException;
+
+    /**
+     * Sends several frames to the given robot with the given priority.
+     * Transports without priority lanes send them as any other frames
+     */
+    public void sendSingleFrames(String btAddr, ByteBuffer[] frames, ByteBuffer[] responses, int count, int priority) throws BluetoothException {
+        sendSingleFrames(btAddr, frames, responses, count);
+    }
+
+    public abstract void broadcastFrames(ByteBuffer[] frames, ByteBuffer[] responses, int count) throws BluetoothException;
+
+    /**
+     * Sends several frames which request a response, each one to its own robot, and collects their replies.
+     * A robot which fails doesn't stop the others: its slots are just left without reply.
+     * Connections which can't pipeline requests send them one by one
+     *
+     * @param btAddrs   Robot every frame is sent to
+     * @param frames    Length-prefixed frames to be sent. They are not consumed
+     * @param responses Array which the reply frames will be stored in, null for the frames not answered. They belong
+     *                  to getFramePool() and should be released there
+     * @param count     Number of frames to send
+     * @return Number of frames answered
+     * @throws BluetoothException if the calling thread is interrupted
+     */
+    public int sendFramesTo(String[] btAddrs, ByteBuffer[] frames, ByteBuffer[] responses, int count) throws BluetoothException {
+        int answered = 0;
+        for (int i = 0; i < count; i++) {
+            try {
+                responses[i] = sendSingleFrame(btAddrs[i], frames[i], true);
+            } catch (BluetoothException e) {
+                responses[i] = null;
+                if (Thread.currentThread().isInterrupted()) {
+                    releaseAll(responses, i);
+                    throw e;
+                }
+            }
+            if (responses[i] != null) {
+                answered++;
+            }
+        }
+        return answered;
+    }
+
+    /**
+     * Releases the first count frames of the given array, and clears their slots
+     */
+    protected void releaseAll(ByteBuffer[] frames, int count) {
+        for (int i = 0; i < count; i++) {
+            mFramePool.release(frames[i]);
+            frames[i] = null;
+        }
+    }
+
+    public abstract BroadcastResult scatterFrame(ByteBuffer frame, boolean response, long timeout) throws BluetoothException;
+
+    public abstract BroadcastResult scatterBatch(CommandBatch batch, long timeout) throws BluetoothException;
+
+    public abstract void sendSingleBatch(String btAddr, CommandBatch batch) throws BluetoothException;
+
+    public abstract void broadcastBatch(CommandBatch batch) throws BluetoothException;
 }
@@ -0,0 +1,15 @@
+package net.kaisoz.droidstorm.bluetooth;
+
+/**
+ * Receives every robot found by a discovery as soon as it is found, while the inquiry is still running
+ */
+public interface DiscoveryListener {
+
+    /**
+     * Called once per discovery for every robot found. It must not block
+     *
+     * @param name      Robot name
+     * @param btAddress Robot address
+     */
+    public void onDeviceFound(String name, String btAddress);
+}
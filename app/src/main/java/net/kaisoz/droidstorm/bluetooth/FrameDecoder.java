@@ -0,0 +1,186 @@
+package net.kaisoz.droidstorm.bluetooth;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Incremental decoder for the length-prefixed frames received from a robot.
+ * Incoming bytes are accumulated in a ring buffer, so a frame split across several reads is reassembled and
+ * several frames received in a single read are handed out one by one.
+ * Decoded frames are copied into buffers taken from a FramePool. They keep their length prefix (as the frames
+ * produced by CommandEncoder) and must be released to the pool once consumed.
+ * A decoder is not thread safe. It should be fed and drained by one reader at a time.
+ */
+public class FrameDecoder {
+
+    // Must be a power of two
+    private static final int DEFAULT_CAPACITY = 1024;
+
+    private final FramePool mPool;
+    private final byte[] mRing;
+    private final int mMask;
+    // Absolute read and write counters. Their difference is the number of buffered bytes
+    private int mHead = 0;
+    private int mTail = 0;
+
+    public FrameDecoder(FramePool pool) {
+        this(pool, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a decoder with the given ring buffer size
+     *
+     * @param pool     Pool which decoded frames will be copied into
+     * @param capacity Ring buffer size. It must be a power of two bigger than the maximum frame size
+     */
+    public FrameDecoder(FramePool pool, int capacity) {
+        if (Integer.bitCount(capacity) != 1 || capacity < FramePool.MAX_FRAME_SIZE) {
+            throw new IllegalArgumentException("Capacity must be a power of two of at least " + FramePool.MAX_FRAME_SIZE);
+        }
+        this.mPool = pool;
+        this.mRing = new byte[capacity];
+        this.mMask = capacity - 1;
+    }
+
+    /**
+     * Performs a single read from the given stream, appending whatever arrives to the ring buffer.
+     * Blocks as the stream does when there is no data available
+     *
+     * @param in Stream to read from
+     * @return Number of bytes read, or -1 if the end of the stream has been reached
+     * @throws IOException if the read fails or the buffered data is not a valid frame sequence
+     */
+    public int fill(InputStream in) throws IOException {
+        if (free() == 0) {
+            // A full ring without a complete frame can only be a corrupted stream
+            throw new IOException("Frame decoder overflow");
+        }
+        int start = mTail & mMask;
+        int length = Math.min(free(), mRing.length - start);
+        int read = in.read(mRing, start, length);
+        if (read > 0) {
+            mTail += read;
+        }
+        return read;
+    }
+
+    /**
+     * Appends the given bytes to the ring buffer
+     *
+     * @param src    Source array
+     * @param offset Offset of the first byte to append
+     * @param length Number of bytes to append
+     * @throws IOException if there is not enough room for the given bytes
+     */
+    public void feed(byte[] src, int offset, int length) throws IOException {
+        if (length > free()) {
+            throw new IOException("Frame decoder overflow");
+        }
+        int start = mTail & mMask;
+        int first = Math.min(length, mRing.length - start);
+        System.arraycopy(src, offset, mRing, start, first);
+        System.arraycopy(src, offset + first, mRing, 0, length - first);
+        mTail += length;
+    }
+
+    /**
+     * Returns true if a whole frame has been buffered
+     *
+     * @return
+     * @throws IOException if the buffered frame header is not valid
+     */
+    public boolean hasFrame() throws IOException {
+        int available = mTail - mHead;
+        if (available < FramePool.HEADER_SIZE) {
+            return false;
+        }
+        return available >= FramePool.HEADER_SIZE + peekLength();
+    }
+
+    /**
+     * Removes the next whole frame from the ring buffer
+     *
+     * @return Pooled buffer holding the frame (length prefix included), or null if no whole frame is buffered
+     * @throws IOException if the buffered frame header is not valid
+     */
+    public ByteBuffer nextFrame() throws IOException {
+        if (!hasFrame()) {
+            return null;
+        }
+        int frameLength = FramePool.HEADER_SIZE + peekLength();
+        ByteBuffer frame = mPool.acquire();
+        byte[] dst = frame.array();
+        int dstOffset = frame.arrayOffset();
+        int start = mHead & mMask;
+        int first = Math.min(frameLength, mRing.length - start);
+        System.arraycopy(mRing, start, dst, dstOffset, first);
+        System.arraycopy(mRing, 0, dst, dstOffset + first, frameLength - first);
+        mHead += frameLength;
+        frame.limit(frameLength);
+        return frame;
+    }
+
+    /**
+     * Discards all buffered bytes
+     */
+    public void reset() {
+        mHead = 0;
+        mTail = 0;
+    }
+
+    /**
+     * Translates a frame to the char array format used by the original connection API:
+     * the length prefix is dropped and every two telegram bytes are packed in a char, first byte in the upper half
+     *
+     * @param frame Length-prefixed frame. It is not consumed
+     * @return Telegram values. Odd-sized telegrams are padded with a zero byte
+     */
+    public static char[] toValues(ByteBuffer frame) {
+        int start = frame.position() + FramePool.HEADER_SIZE;
+        int length = frame.limit() - start;
+        char[] values = new char[(length + 1) / 2];
+        for (int i = 0; i < length; i++) {
+            int value = frame.get(start + i) & 0xFF;
+            if (i % 2 == 0) {
+                values[i / 2] = (char) (value << 8);
+            } else {
+                values[i / 2] = (char) (values[i / 2] | value);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Translates telegram values in the original char array format back to a frame.
+     * Since values carry no length information, the telegram size is always even
+     *
+     * @param values Telegram values, first byte in the upper half of each char
+     * @param pool   Pool which the frame will be taken from
+     * @return Length-prefixed frame
+     */
+    public static ByteBuffer fromValues(char[] values, FramePool pool) {
+        ByteBuffer frame = pool.acquire();
+        int length = Math.min(values.length * 2, FramePool.MAX_FRAME_SIZE - FramePool.HEADER_SIZE);
+        frame.put(0, (byte) length);
+        frame.put(1, (byte) (length >> 8));
+        for (int i = 0; i < length; i++) {
+            char value = values[i / 2];
+            frame.put(FramePool.HEADER_SIZE + i, (byte) ((i % 2 == 0) ? (value >> 8) : value));
+        }
+        frame.limit(FramePool.HEADER_SIZE + length);
+        return frame;
+    }
+
+    private int free() {
+        return mRing.length - (mTail - mHead);
+    }
+
+    private int peekLength() throws IOException {
+        int length = (mRing[mHead & mMask] & 0xFF) | ((mRing[(mHead + 1) & mMask] & 0xFF) << 8);
+        if (length == 0 || length > FramePool.MAX_FRAME_SIZE - FramePool.HEADER_SIZE) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+        return length;
+    }
+}
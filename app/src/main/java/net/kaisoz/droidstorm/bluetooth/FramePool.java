@@ -0,0 +1,68 @@
+package net.kaisoz.droidstorm.bluetooth;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Pool of reusable frame buffers.
+ * A frame is a little-endian, length-prefixed NXT telegram as it travels through the Bluetooth link: two bytes
+ * holding the telegram size followed by the telegram itself. Buffers handed out by this pool are big enough
+ * to hold the biggest telegram the NXT accepts, so they can be used for any command or reply.
+ * Once a frame has been sent (or a reply consumed) it should be given back through release() so the next
+ * command reuses it instead of allocating a new one.
+ */
+public class FramePool {
+
+    // Size of the length prefix which precedes every telegram
+    public static final int HEADER_SIZE = 2;
+    // Maximum telegram size accepted by the NXT plus the length prefix
+    public static final int MAX_FRAME_SIZE = 64 + HEADER_SIZE;
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private final ByteBuffer[] mFree;
+    private int mCount = 0;
+
+    public FramePool() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a pool which will keep, at most, the given number of idle buffers
+     *
+     * @param capacity Maximum number of idle buffers kept by the pool
+     */
+    public FramePool(int capacity) {
+        mFree = new ByteBuffer[capacity];
+    }
+
+    /**
+     * Returns an empty little-endian frame buffer
+     *
+     * @return Cleared buffer ready to be written
+     */
+    public synchronized ByteBuffer acquire() {
+        ByteBuffer frame;
+        if (mCount > 0) {
+            frame = mFree[--mCount];
+            mFree[mCount] = null;
+            frame.clear();
+        } else {
+            frame = ByteBuffer.allocate(MAX_FRAME_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        return frame;
+    }
+
+    /**
+     * Gives a buffer back to the pool. Buffers which were not created by a pool are ignored
+     *
+     * @param frame Buffer to release. It must not be used once released
+     */
+    public synchronized void release(ByteBuffer frame) {
+        if (frame == null || frame.capacity() != MAX_FRAME_SIZE || frame.isDirect()) {
+            return;
+        }
+        if (mCount < mFree.length) {
+            mFree[mCount++] = frame;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package net.kaisoz.droidstorm.bluetooth;
+
+/**
+ * Robot the phone has been connected to, or is bonded with
+ */
+public class KnownRobot {
+
+    public static final int UNKNOWN_CHANNEL = -1;
+
+    private final String mName;
+    private final String mAddress;
+    private final int mChannel;
+    private final long mLastSeen;
+    private final boolean mBonded;
+
+    /**
+     * Creates a known robot
+     *
+     * @param name     Robot name
+     * @param address  Robot Bluetooth address
+     * @param channel  RFCOMM channel the last connection used, or UNKNOWN_CHANNEL
+     * @param lastSeen Time of the last connection, in milliseconds since the epoch. 0 if it was never connected
+     * @param bonded   True if the robot is bonded with the phone
+     */
+    public KnownRobot(String name, String address, int channel, long lastSeen, boolean bonded) {
+        this.mName = name;
+        this.mAddress = address;
+        this.mChannel = channel;
+        this.mLastSeen = lastSeen;
+        this.mBonded = bonded;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public int getChannel() {
+        return mChannel;
+    }
+
+    public long getLastSeen() {
+        return mLastSeen;
+    }
+
+    public boolean isBonded() {
+        return mBonded;
+    }
+}
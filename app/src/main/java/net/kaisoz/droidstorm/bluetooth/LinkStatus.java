@@ -0,0 +1,94 @@
+package net.kaisoz.droidstorm.bluetooth;
+
+/**
+ * Health of the link to a robot: how long the robot has been silent, its reply round trip time and send rate, and the
+ * battery level of the robot.
+ * It is kept up to date by the peer and the link prober, and can be read from any thread, such as the UI one
+ */
+public class LinkStatus {
+
+    public static final int UNKNOWN = -1;
+
+    private final SendScheduler mScheduler;
+    private volatile long mLastActivity = System.nanoTime();
+    private volatile int mBatteryLevel = UNKNOWN;
+    private volatile int mLostProbes = 0;
+
+    /**
+     * Creates the status of a link paced by the given scheduler
+     *
+     * @param scheduler Scheduler which smooths the round trip times of the link
+     */
+    public LinkStatus(SendScheduler scheduler) {
+        this.mScheduler = scheduler;
+    }
+
+    /**
+     * Records that a frame has just been received from the robot. Writes don't count: they succeed on a link the
+     * robot no longer answers
+     */
+    public void onActivity() {
+        mLastActivity = System.nanoTime();
+    }
+
+    /**
+     * Returns the time since the last frame was received from the robot
+     *
+     * @return Time in nanoseconds
+     */
+    public long getIdleTime() {
+        return System.nanoTime() - mLastActivity;
+    }
+
+    /**
+     * Returns the smoothed reply round trip time
+     *
+     * @return Time in nanoseconds, or 0 if no reply has been received yet
+     */
+    public long getRtt() {
+        return mScheduler.getSmoothedRtt();
+    }
+
+    /**
+     * Returns the current send rate of the link
+     *
+     * @return Frames per second
+     */
+    public double getSendRate() {
+        return mScheduler.getRate();
+    }
+
+    /**
+     * Returns the last battery level read from the robot
+     *
+     * @return Voltage in millivolts, or UNKNOWN if it has not been read yet
+     */
+    public int getBatteryLevel() {
+        return mBatteryLevel;
+    }
+
+    /**
+     * Records a battery level read from the robot
+     *
+     * @param millivolts Voltage in millivolts
+     */
+    public void setBatteryLevel(int millivolts) {
+        mBatteryLevel = millivolts;
+    }
+
+    /**
+     * Returns the number of probes the robot has not answered in time
+     *
+     * @return
+     */
+    public int getLostProbes() {
+        return mLostProbes;
+    }
+
+    /**
+     * Records a probe the robot has not answered in time
+     */
+    public synchronized void onProbeLost() {
+        mLostProbes++;
+    }
+}
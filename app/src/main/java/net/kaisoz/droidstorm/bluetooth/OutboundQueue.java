@@ -0,0 +1,318 @@
+package net.kaisoz.droidstorm.bluetooth;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Frames waiting to be written to a robot.
+ * Motor commands which don't request a response are conflated: a new SETOUTPUTSTATE or RESETMOTORPOSITION for a
+ * motor port replaces, in place, the one for the same port which is still waiting to be written. Only the latest
+ * value for each port is ever sent, so a backed up link delays motor commands by one write at most instead of
+ * making the robot replay every stale one. A frame for every port (MOTOR_ALL) replaces all the queued ones of its
+ * command instead, and is queued at the end of its lane, so it never overwrites a port frame sent after it. For the
+ * same reason a port frame never overtakes a queued MOTOR_ALL one of its command: that frame joins the lane of the
+ * port frame, right before it.
+ * Any other frame is queued as it is, in order.
+ * Frames are kept in three priority lanes which are written high first. A frame replacing one of another lane is
+ * moved to its own lane, so a high priority brake overtakes the drive command it replaces. Low priority frames are
+ * shed when the queue is deep, and the oldest of them is dropped to make room for a frame of a higher lane.
+ */
+public class OutboundQueue {
+
+    public static final int NO_KEY = -1;
+    public static final int PRIORITY_HIGH = 0;
+    public static final int PRIORITY_NORMAL = 1;
+    public static final int PRIORITY_LOW = 2;
+    private static final int DEFAULT_CAPACITY = 16;
+
+    // Telegram bytes used to build conflation keys
+    private static final int NO_REPLY_FLAG = 0x80;
+    private static final int SETOUTPUTSTATE = 0x04;
+    private static final int RESETMOTORPOSITION = 0x0A;
+    private static final int ALL_PORTS = 0xFF;
+
+    private final FramePool mPool;
+    private final ByteBuffer[] mFrames;
+    private final int[] mKeys;
+    private final int[] mPriorities;
+    private final int mShedDepth;
+    private int mCount = 0;
+    private boolean mDrainScheduled = false;
+
+    public OutboundQueue(FramePool pool) {
+        this(pool, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a queue which holds, at most, the given number of frames
+     *
+     * @param pool     Pool which queued frames are copied into
+     * @param capacity Maximum number of queued frames
+     */
+    public OutboundQueue(FramePool pool, int capacity) {
+        this.mPool = pool;
+        this.mFrames = new ByteBuffer[capacity];
+        this.mKeys = new int[capacity];
+        this.mPriorities = new int[capacity];
+        this.mShedDepth = capacity / 2;
+    }
+
+    /**
+     * Returns the maximum number of queued frames
+     *
+     * @return
+     */
+    public int getCapacity() {
+        return mFrames.length;
+    }
+
+    /**
+     * Returns the number of queued frames
+     *
+     * @return
+     */
+    public synchronized int size() {
+        return mCount;
+    }
+
+    /**
+     * Returns true if the queue is deep enough for low priority frames to be shed
+     *
+     * @return
+     */
+    public synchronized boolean isCongested() {
+        return mCount >= mShedDepth;
+    }
+
+    /**
+     * Queues a copy of the given frame with normal priority, replacing the queued one for the same motor port if any
+     *
+     * @param data   Array holding the frame
+     * @param offset Offset of the frame length prefix
+     * @param length Frame size, length prefix included
+     * @return true if the frame has been queued, false if the queue is full and should be drained first
+     */
+    public boolean offer(byte[] data, int offset, int length) {
+        return offer(data, offset, length, PRIORITY_NORMAL);
+    }
+
+    /**
+     * Queues a copy of the given frame at the end of its priority lane, replacing the queued one for the same motor
+     * port if any
+     *
+     * @param data     Array holding the frame
+     * @param offset   Offset of the frame length prefix
+     * @param length   Frame size, length prefix included
+     * @param priority PRIORITY_HIGH, PRIORITY_NORMAL or PRIORITY_LOW
+     * @return true if the frame has been queued or shed, false if the queue is full and should be drained first
+     */
+    public synchronized boolean offer(byte[] data, int offset, int length, int priority) {
+        int key = conflationKey(data, offset, length);
+        boolean allPorts = key != NO_KEY && (key & 0xFF) == ALL_PORTS;
+        int replaced = (key != NO_KEY && !allPorts) ? indexOf(key) : -1;
+        ByteBuffer frame;
+        if (replaced >= 0 && mPriorities[replaced] == priority) {
+            frame = mFrames[replaced];
+        } else {
+            if (priority == PRIORITY_LOW && mCount >= mShedDepth) {
+                return true;
+            }
+            if (replaced >= 0) {
+                remove(replaced);
+            } else if (allPorts) {
+                removeCommand(key >> 8);
+            }
+            if (mCount == mFrames.length && (priority == PRIORITY_LOW || !shedOldestLow())) {
+                return false;
+            }
+            if (key != NO_KEY && !allPorts) {
+                int all = indexOf((key & ~0xFF) | ALL_PORTS);
+                if (all >= laneEnd(priority)) {
+                    ByteBuffer allFrame = mFrames[all];
+                    int allKey = mKeys[all];
+                    take(all);
+                    insert(laneEnd(priority), allFrame, allKey, priority);
+                }
+            }
+            frame = mPool.acquire();
+            insert(laneEnd(priority), frame, key, priority);
+        }
+        frame.clear();
+        frame.put(data, offset, length);
+        frame.flip();
+        return true;
+    }
+
+    /**
+     * Queues a copy of the given frame with normal priority, replacing the queued one for the same motor port if any
+     *
+     * @param frame Length-prefixed frame. It is not consumed
+     * @return true if the frame has been queued, false if the queue is full and should be drained first
+     */
+    public boolean offer(ByteBuffer frame) {
+        return offer(frame, PRIORITY_NORMAL);
+    }
+
+    /**
+     * Queues a copy of the given frame at the end of its priority lane, replacing the queued one for the same motor
+     * port if any
+     *
+     * @param frame    Length-prefixed frame. It is not consumed
+     * @param priority PRIORITY_HIGH, PRIORITY_NORMAL or PRIORITY_LOW
+     * @return true if the frame has been queued or shed, false if the queue is full and should be drained first
+     */
+    public boolean offer(ByteBuffer frame, int priority) {
+        if (frame.hasArray()) {
+            return offer(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining(), priority);
+        }
+        byte[] copy = new byte[frame.remaining()];
+        frame.duplicate().get(copy);
+        return offer(copy, 0, copy.length, priority);
+    }
+
+    /**
+     * Flags that a drain is going to be scheduled
+     *
+     * @return true if the caller should schedule it, false if one is already pending
+     */
+    public synchronized boolean scheduleDrain() {
+        if (mDrainScheduled || mCount == 0) {
+            return false;
+        }
+        mDrainScheduled = true;
+        return true;
+    }
+
+    /**
+     * Moves every queued frame, oldest first, into the given batch. Frames which don't fit stay queued
+     *
+     * @param batch Batch to fill. It is not cleared
+     * @return Number of frames moved
+     */
+    public synchronized int drainTo(CommandBatch batch) {
+        mDrainScheduled = false;
+        int moved = 0;
+        while (moved < mCount && batch.canAdd(mFrames[moved])) {
+            batch.add(mFrames[moved]);
+            mPool.release(mFrames[moved]);
+            moved++;
+        }
+        System.arraycopy(mFrames, moved, mFrames, 0, mCount - moved);
+        System.arraycopy(mKeys, moved, mKeys, 0, mCount - moved);
+        System.arraycopy(mPriorities, moved, mPriorities, 0, mCount - moved);
+        for (int i = mCount - moved; i < mCount; i++) {
+            mFrames[i] = null;
+        }
+        mCount -= moved;
+        return moved;
+    }
+
+    /**
+     * Returns true if no frame is waiting to be written
+     *
+     * @return
+     */
+    public synchronized boolean isEmpty() {
+        return mCount == 0;
+    }
+
+    /**
+     * Drops every queued frame
+     */
+    public synchronized void clear() {
+        for (int i = 0; i < mCount; i++) {
+            mPool.release(mFrames[i]);
+            mFrames[i] = null;
+        }
+        mCount = 0;
+        mDrainScheduled = false;
+    }
+
+    /**
+     * Drops the oldest low priority frame, if any
+     *
+     * @return true if a frame has been dropped
+     */
+    private boolean shedOldestLow() {
+        for (int i = 0; i < mCount; i++) {
+            if (mPriorities[i] == PRIORITY_LOW) {
+                remove(i);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Drops every queued frame of the given conflated command, whatever its port
+     */
+    private void removeCommand(int command) {
+        for (int i = mCount - 1; i >= 0; i--) {
+            if (mKeys[i] != NO_KEY && (mKeys[i] >> 8) == command) {
+                remove(i);
+            }
+        }
+    }
+
+    private int indexOf(int key) {
+        for (int i = 0; i < mCount; i++) {
+            if (mKeys[i] == key) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the index following the last frame of the given lane
+     */
+    private int laneEnd(int priority) {
+        int index = mCount;
+        while (index > 0 && mPriorities[index - 1] > priority) {
+            index--;
+        }
+        return index;
+    }
+
+    private void insert(int index, ByteBuffer frame, int key, int priority) {
+        System.arraycopy(mFrames, index, mFrames, index + 1, mCount - index);
+        System.arraycopy(mKeys, index, mKeys, index + 1, mCount - index);
+        System.arraycopy(mPriorities, index, mPriorities, index + 1, mCount - index);
+        mFrames[index] = frame;
+        mKeys[index] = key;
+        mPriorities[index] = priority;
+        mCount++;
+    }
+
+    private void remove(int index) {
+        mPool.release(mFrames[index]);
+        take(index);
+    }
+
+    /**
+     * Takes a frame out of the queue without releasing it
+     */
+    private void take(int index) {
+        System.arraycopy(mFrames, index + 1, mFrames, index, mCount - index - 1);
+        System.arraycopy(mKeys, index + 1, mKeys, index, mCount - index - 1);
+        System.arraycopy(mPriorities, index + 1, mPriorities, index, mCount - index - 1);
+        mCount--;
+        mFrames[mCount] = null;
+    }
+
+    /**
+     * Returns the key which frames replacing each other share: command byte and motor port for motor commands
+     * which don't request a response, or NO_KEY for any other frame
+     */
+    private static int conflationKey(byte[] data, int offset, int length) {
+        if (length < FramePool.HEADER_SIZE + 3) {
+            return NO_KEY;
+        }
+        int type = data[offset + FramePool.HEADER_SIZE] & 0xFF;
+        int command = data[offset + FramePool.HEADER_SIZE + 1] & 0xFF;
+        int port = data[offset + FramePool.HEADER_SIZE + 2] & 0xFF;
+        if ((type & NO_REPLY_FLAG) == 0 || (command != SETOUTPUTSTATE && command != RESETMOTORPOSITION)) {
+            return NO_KEY;
+        }
+        return (command << 8) | port;
+    }
+}
@@ -0,0 +1,216 @@
+package net.kaisoz.droidstorm.bluetooth;
+
+import net.kaisoz.droidstorm.bluetooth.exception.BluetoothException;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reply expected for a command already sent to a robot.
+ * The robot answers commands in the order they were received, so pending replies are kept in a FIFO queue by the
+ * peer and every received reply is handed to the oldest one. The command byte echoed by the reply (the one
+ * GenericResponse.getFromCommand returns) is checked against the request to detect lost replies, and so is the port
+ * echoed by the replies of port queries (GETOUTPUTSTATE, GETINPUTVALUES).
+ * A request whose caller gave up waiting is cancelled, but it stays in the queue until a newer request gets its
+ * reply, so a late reply is dropped instead of being handed to a request of another command or port. A lost one
+ * doesn't hold back the requests sent after it: a newer request for the same command and port takes the next reply,
+ * as replies carry nothing else to tell them apart. LSGETSTATUS replies don't echo their port, so a request of that
+ * command takes the next one of its replies even if it was cancelled: a reply meant for another port is never
+ * handed to it, at the price of the requests behind a lost reply failing too.
+ */
+public class PendingReply {
+
+    // Offset of the command byte inside a frame, both in requests and replies
+    private static final int COMMAND = FramePool.HEADER_SIZE + 1;
+    // Offset of the port byte in port queries, and in their replies, which have the status byte before it
+    private static final int REQUEST_PORT = FramePool.HEADER_SIZE + 2;
+    private static final int REPLY_PORT = FramePool.HEADER_SIZE + 3;
+    private static final int NO_PORT = -1;
+
+    // Port queries
+    private static final int GETOUTPUTSTATE = 0x06;
+    private static final int GETINPUTVALUES = 0x07;
+    private static final int LSGETSTATUS = 0x0E;
+
+    private final int mCommand;
+    private final int mPort;
+    private ByteBuffer mReply = null;
+    private BluetoothException mError = null;
+    private boolean mDone = false;
+    private boolean mCancelled = false;
+    private volatile long mSentAt = 0;
+
+    /**
+     * Creates the pending reply for the given request
+     *
+     * @param request Length-prefixed frame of the command which has been sent
+     */
+    public PendingReply(ByteBuffer request) {
+        this.mCommand = commandOf(request);
+        boolean echoesPort = (mCommand == GETOUTPUTSTATE || mCommand == GETINPUTVALUES);
+        this.mPort = (echoesPort && request.remaining() > REQUEST_PORT)
+                ? request.get(request.position() + REQUEST_PORT) & 0xFF : NO_PORT;
+    }
+
+    /**
+     * Returns the command byte this reply is expected to echo
+     *
+     * @return
+     */
+    public int getCommand() {
+        return mCommand;
+    }
+
+    /**
+     * Records the moment the request is written, so the round trip time of its reply can be measured
+     */
+    public void markSent() {
+        mSentAt = System.nanoTime();
+    }
+
+    /**
+     * Returns the time since the request was written
+     *
+     * @return Time in nanoseconds
+     */
+    public long getElapsed() {
+        return System.nanoTime() - mSentAt;
+    }
+
+    /**
+     * Returns true if the given reply frame answers the command of this request, and its port for port queries.
+     * Error replies too short to echo the port match any port
+     *
+     * @param reply Length-prefixed reply frame
+     * @return
+     */
+    public boolean matches(ByteBuffer reply) {
+        if (reply.remaining() <= COMMAND || commandOf(reply) != mCommand) {
+            return false;
+        }
+        return mPort == NO_PORT || reply.remaining() <= REPLY_PORT
+                || (reply.get(reply.position() + REPLY_PORT) & 0xFF) == mPort;
+    }
+
+    /**
+     * Returns true if the replies to this command can't tell which request they answer, so the oldest request takes
+     * the next one even if it was cancelled
+     *
+     * @return
+     */
+    public boolean isStrictlyOrdered() {
+        return mCommand == LSGETSTATUS;
+    }
+
+    /**
+     * Completes this request with the frame received from the robot
+     *
+     * @param reply Pooled reply frame
+     * @return false if the request was cancelled. The frame is not taken then, and must be released by the caller
+     */
+    public synchronized boolean complete(ByteBuffer reply) {
+        if (mDone) {
+            return false;
+        }
+        mReply = reply;
+        mDone = true;
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Completes this request with an error, unless it is already completed
+     *
+     * @param error Reason why no reply will be received
+     */
+    public synchronized void fail(BluetoothException error) {
+        if (mDone) {
+            return;
+        }
+        mError = error;
+        mDone = true;
+        notifyAll();
+    }
+
+    /**
+     * Gives up waiting for the reply. Threads waiting for it are woken up with the given error
+     *
+     * @param error Error reported to the waiting threads
+     * @return false if the reply had already been received. It must then be collected and released as usual
+     */
+    public synchronized boolean cancel(BluetoothException error) {
+        if (mDone) {
+            return false;
+        }
+        mCancelled = true;
+        fail(error);
+        return true;
+    }
+
+    /**
+     * Returns true if the request has been cancelled
+     *
+     * @return
+     */
+    public synchronized boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * Returns true once a reply, or an error, has been received
+     *
+     * @return
+     */
+    public synchronized boolean isDone() {
+        return mDone;
+    }
+
+    /**
+     * Waits until a reply, or an error, has been received by another thread
+     *
+     * @throws BluetoothException if the calling thread is interrupted while waiting
+     */
+    public synchronized void await() throws BluetoothException {
+        await(0);
+    }
+
+    /**
+     * Waits until a reply, or an error, has been received by another thread, or the timeout expires
+     *
+     * @param timeout Maximum wait in milliseconds. 0 waits forever
+     * @return false if the timeout expired first
+     * @throws BluetoothException if the calling thread is interrupted while waiting
+     */
+    public synchronized boolean await(long timeout) throws BluetoothException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (!mDone) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (timeout > 0 && remaining <= 0) {
+                return false;
+            }
+            try {
+                wait((timeout > 0) ? remaining : 0);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new BluetoothException("Interrupted while waiting for the reply to command " + mCommand);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the received reply
+     *
+     * @return Pooled reply frame, owned by the caller from now on
+     * @throws BluetoothException if the request failed
+     */
+    public synchronized ByteBuffer getReply() throws BluetoothException {
+        if (mError != null) {
+            throw mError;
+        }
+        return mReply;
+    }
+
+    private static int commandOf(ByteBuffer frame) {
+        return frame.get(frame.position() + COMMAND) & 0xFF;
+    }
+}
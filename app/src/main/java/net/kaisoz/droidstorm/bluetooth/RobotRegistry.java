@@ -0,0 +1,184 @@
+package net.kaisoz.droidstorm.bluetooth;
+
+import net.kaisoz.droidstorm.util.IndexedMap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Robots the phone has connected to before, so they can be offered, and connected, without running an inquiry.
+ * Every robot is kept with the RFCOMM channel its last connection used and the time it was last connected, and robots
+ * not connected for longer than the time to live are forgotten. Robots bonded with the phone can be merged in: they
+ * are never forgotten, but they are only persisted once connected
+ */
+public class RobotRegistry {
+
+    public static final long DEFAULT_TTL = 30L * 24 * 60 * 60 * 1000; // 30 days
+
+    /**
+     * Persistent storage of the registry, usually a database
+     */
+    public interface Store {
+
+        /**
+         * Returns every stored robot
+         *
+         * @return
+         */
+        ArrayList<KnownRobot> loadRobots();
+
+        /**
+         * Stores a robot, replacing the one with the same address if any
+         *
+         * @param robot Robot to store
+         */
+        void saveRobot(KnownRobot robot);
+
+        /**
+         * Deletes the robot with the given address
+         *
+         * @param btAddress Robot address
+         */
+        void deleteRobot(String btAddress);
+    }
+
+    private final Store mStore;
+    private final long mTtl;
+    private final HashMap<String, KnownRobot> mRobots = new HashMap<String, KnownRobot>();
+    private boolean mLoaded = false;
+
+    public RobotRegistry(Store store) {
+        this(store, DEFAULT_TTL);
+    }
+
+    /**
+     * Creates a registry kept in the given store
+     *
+     * @param store Persistent storage
+     * @param ttl   Time, in milliseconds, after which a robot not connected again is forgotten
+     */
+    public RobotRegistry(Store store, long ttl) {
+        this.mStore = store;
+        this.mTtl = ttl;
+    }
+
+    /**
+     * Loads the stored robots on first use
+     */
+    private void load() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        ArrayList<KnownRobot> robots = mStore.loadRobots();
+        for (int i = 0; i < robots.size(); i++) {
+            KnownRobot robot = robots.get(i);
+            mRobots.put(robot.getAddress(), robot);
+        }
+        evictExpired(System.currentTimeMillis());
+    }
+
+    private void evictExpired(long now) {
+        Iterator<KnownRobot> robots = mRobots.values().iterator();
+        while (robots.hasNext()) {
+            KnownRobot robot = robots.next();
+            if (!robot.isBonded() && now - robot.getLastSeen() > mTtl) {
+                robots.remove();
+                mStore.deleteRobot(robot.getAddress());
+            }
+        }
+    }
+
+    /**
+     * Merges a robot bonded with the phone. Robots already known keep their data
+     *
+     * @param name      Robot name
+     * @param btAddress Robot address
+     */
+    public synchronized void addBonded(String name, String btAddress) {
+        load();
+        KnownRobot known = mRobots.get(btAddress);
+        if (name == null) {
+            name = btAddress;
+        }
+        if (known == null) {
+            mRobots.put(btAddress, new KnownRobot(name, btAddress, KnownRobot.UNKNOWN_CHANNEL, 0, true));
+        } else if (!known.isBonded()) {
+            mRobots.put(btAddress, new KnownRobot(known.getName(), btAddress, known.getChannel(), known.getLastSeen(),
+                    true));
+        }
+    }
+
+    /**
+     * Records a successful connection to a robot
+     *
+     * @param name      Robot name, or null to keep the known one
+     * @param btAddress Robot address
+     * @param channel   RFCOMM channel the connection used, or KnownRobot.UNKNOWN_CHANNEL to keep the known one
+     */
+    public synchronized void onConnected(String name, String btAddress, int channel) {
+        load();
+        KnownRobot known = mRobots.get(btAddress);
+        if (name == null) {
+            name = (known != null) ? known.getName() : btAddress;
+        }
+        if (channel == KnownRobot.UNKNOWN_CHANNEL && known != null) {
+            channel = known.getChannel();
+        }
+        KnownRobot robot = new KnownRobot(name, btAddress, channel, System.currentTimeMillis(),
+                known != null && known.isBonded());
+        mRobots.put(btAddress, robot);
+        mStore.saveRobot(robot);
+    }
+
+    /**
+     * Returns the RFCOMM channel the last connection to the robot used
+     *
+     * @param btAddress Robot address
+     * @return Channel, or KnownRobot.UNKNOWN_CHANNEL
+     */
+    public synchronized int getChannel(String btAddress) {
+        load();
+        KnownRobot robot = mRobots.get(btAddress);
+        return (robot != null) ? robot.getChannel() : KnownRobot.UNKNOWN_CHANNEL;
+    }
+
+    /**
+     * Forgets a robot
+     *
+     * @param btAddress Robot address
+     */
+    public synchronized void forget(String btAddress) {
+        load();
+        mRobots.remove(btAddress);
+        mStore.deleteRobot(btAddress);
+    }
+
+    /**
+     * Returns the known robots, the most recently connected first
+     *
+     * @return IndexedMap with an entry per robot
+     * * key: Robot name, value: Robot address
+     */
+    public synchronized IndexedMap getRobots() {
+        load();
+        evictExpired(System.currentTimeMillis());
+        ArrayList<KnownRobot> robots = new ArrayList<KnownRobot>(mRobots.values());
+        Collections.sort(robots, new Comparator<KnownRobot>() {
+            public int compare(KnownRobot first, KnownRobot second) {
+                if (first.getLastSeen() == second.getLastSeen()) {
+                    return 0;
+                }
+                return (first.getLastSeen() > second.getLastSeen()) ? -1 : 1;
+            }
+        });
+        IndexedMap found = new IndexedMap();
+        for (int i = 0; i < robots.size(); i++) {
+            found.put(robots.get(i).getName(), robots.get(i).getAddress());
+        }
+        return found;
+    }
+}
@@ -0,0 +1,107 @@
+package net.kaisoz.droidstorm.bluetooth;
+
+/**
+ * Paces the frames written to a robot.
+ * The NXT Bluetooth stack drops or delays telegrams when it is overrun, so frames are spaced according to a send
+ * rate which adapts to the link: every reply received in a reasonable time, and every write which doesn't block,
+ * raises the rate by a fixed step (additive increase), while a slow reply, a lost reply, a blocked write or a write
+ * failure halves it (multiplicative decrease). Blocked writes matter because most drive commands request no reply:
+ * the socket only blocks a write when its buffer is full of telegrams the robot has not taken yet.
+ * Reply round trip times are smoothed the same way TCP does.
+ */
+public class SendScheduler {
+
+    // Frames per second
+    private static final double MIN_RATE = 5;
+    private static final double MAX_RATE = 200;
+    private static final double INITIAL_RATE = 40;
+    private static final double RATE_STEP = 2;
+    private static final double DECREASE_FACTOR = 0.5;
+    // A reply slower than this many times the best round trip seen is taken as congestion
+    private static final int CONGESTION_FACTOR = 3;
+    // Round trips below this are never taken as congestion, whatever the best round trip is
+    private static final long MIN_CONGESTION_RTT = 50 * 1000000L;
+    // A write blocked for longer than this means the socket buffer is full
+    private static final long BLOCKED_WRITE = 20 * 1000000L;
+
+    private double mRate = INITIAL_RATE;
+    private long mNextSend = 0;
+    private long mSmoothedRtt = 0;
+    private long mMinRtt = Long.MAX_VALUE;
+
+    /**
+     * Returns how long the next write should wait to keep to the send rate
+     *
+     * @return Time in nanoseconds, 0 if the next write can go right away
+     */
+    public synchronized long getDelay() {
+        return Math.max(0, mNextSend - System.nanoTime());
+    }
+
+    /**
+     * Takes written frames into account, pushing the next send slot back by the time they take at the current rate
+     *
+     * @param frames Number of frames just written
+     */
+    public synchronized void onSent(int frames) {
+        long start = Math.max(System.nanoTime(), mNextSend);
+        mNextSend = start + (long) (frames * 1000000000L / mRate);
+    }
+
+    /**
+     * Takes a reply round trip time into account
+     *
+     * @param rtt Time between the request write and its reply, in nanoseconds
+     */
+    public synchronized void onReply(long rtt) {
+        mSmoothedRtt = (mSmoothedRtt == 0) ? rtt : (7 * mSmoothedRtt + rtt) / 8;
+        mMinRtt = Math.min(mMinRtt, rtt);
+        if (rtt > MIN_CONGESTION_RTT && rtt > CONGESTION_FACTOR * mMinRtt) {
+            decrease();
+        } else {
+            mRate = Math.min(MAX_RATE, mRate + RATE_STEP);
+        }
+    }
+
+    /**
+     * Takes the time a write took into account
+     *
+     * @param duration Time the write blocked for, in nanoseconds
+     */
+    public synchronized void onWrite(long duration) {
+        if (duration > BLOCKED_WRITE) {
+            decrease();
+        } else {
+            mRate = Math.min(MAX_RATE, mRate + RATE_STEP);
+        }
+    }
+
+    /**
+     * Takes a lost reply or a failed write into account
+     */
+    public synchronized void onCongestion() {
+        decrease();
+    }
+
+    /**
+     * Returns the current send rate
+     *
+     * @return Frames per second
+     */
+    public synchronized double getRate() {
+        return mRate;
+    }
+
+    /**
+     * Returns the smoothed reply round trip time
+     *
+     * @return Time in nanoseconds, or 0 if no reply has been received yet
+     */
+    public synchronized long getSmoothedRtt() {
+        return mSmoothedRtt;
+    }
+
+    private void decrease() {
+        mRate = Math.max(MIN_RATE, mRate * DECREASE_FACTOR);
+    }
+}
@@ -1,48 +1,330 @@
 package net.kaisoz.droidstorm.bluetooth.base;
 
-import android.annotation.TargetApi;
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
-import android.util.Log;
-
+import net.kaisoz.droidstorm.bluetooth.CommandBatch;
+import net.kaisoz.droidstorm.bluetooth.CommandExecutors;
+import net.kaisoz.droidstorm.bluetooth.FrameDecoder;
+import net.kaisoz.droidstorm.bluetooth.FramePool;
+import net.kaisoz.droidstorm.bluetooth.LinkStatus;
+import net.kaisoz.droidstorm.bluetooth.OutboundQueue;
+import net.kaisoz.droidstorm.bluetooth.PendingReply;
+import net.kaisoz.droidstorm.bluetooth.SendScheduler;
 import net.kaisoz.droidstorm.bluetooth.exception.BluetoothException;
+import net.kaisoz.droidstorm.bluetooth.reactor.IoReactor;
+import net.kaisoz.droidstorm.bluetooth.reactor.Registration;
+import net.kaisoz.droidstorm.bluetooth.transport.Transport;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.UUID;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
+ * Connected robot. Frames are exchanged over a transport, usually an RFCOMM socket.
+ * Peers don't depend on the platform, so they can also run off the device against simulated robots.
+ * A peer reads the robot inline, from the thread waiting for a reply, until it is handed over to the I/O reactor.
+ * The link can't be read with a deadline, so a wait with a timeout hands it over to a reader thread of its own.
+ * From then on every frame is read as soon as it arrives. Either way every frame is routed the same: replies complete
+ * their pending requests, replies nobody waits for are dropped, and any other frame (the messages robots send on
+ * their own) is kept for receiveFrame(). Writers never wait for reads, and waits for replies and messages can time
+ * out or be cancelled.
+ * The last output state set on every motor port is remembered, so it can be replayed to the robot if the link has to
+ * be opened again
+ *
  * @author Tomás Tormo Franco
  */
 
-
-@TargetApi(5)
 public class BluetoothPeer {
 
-    private BluetoothDevice mDevice;
-    private BluetoothSocket mSocket;
+    // Frames received from the robot, not answering any request, which are kept until someone reads them
+    private static final int RECEIVED_CAPACITY = 16;
+    private static final long DEFAULT_REPLY_TIMEOUT = 5000;
+    // Telegram type of replies
+    private static final int REPLY = 0x02;
+    // Queued once the link is closed, so every thread waiting for a received frame wakes up
+    private static final ByteBuffer CLOSED = ByteBuffer.allocate(0);
+    // Telegram bytes and offsets, length prefix included, of the output states which are remembered
+    private static final int NO_REPLY = 0x80;
+    private static final int SETOUTPUTSTATE = 0x04;
+    private static final int SETOUTPUTSTATE_SIZE = FramePool.HEADER_SIZE + 12;
+    private static final int TYPE = FramePool.HEADER_SIZE;
+    private static final int PORT = FramePool.HEADER_SIZE + 2;
+    private static final int TACHO_LIMIT = FramePool.HEADER_SIZE + 8;
+    private static final int OUTPUT_PORTS = 3;
+    private static final int ALL_PORTS = 0xFF;
+
+    private final Transport mTransport;
     private InputStream mInputStream;
-    private OutputStream mOutputStream;
-    private UUID mUUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
-    private String TAG = "BluetoothPeer";
+    private volatile OutputStream mOutputStream;
+    private final FramePool mFramePool;
+    private final FrameDecoder mDecoder;
+    private final Object mReadLock = new Object();
+    private final Object mWriteLock = new Object();
+    // Requests sent to the robot whose reply has not been received yet, oldest first
+    private final LinkedList<PendingReply> mInFlight = new LinkedList<PendingReply>();
+    // Frames written later, from the command executor of this peer, paced by the scheduler
+    private final OutboundQueue mOutbound;
+    private final CommandBatch mDrainBatch;
+    private final SendScheduler mScheduler = new SendScheduler();
+    private final LinkStatus mLinkStatus = new LinkStatus(mScheduler);
+    private volatile BluetoothException mDrainError = null;
+    // Replies received while no request was waiting for them
+    private volatile int mDiscardedReplies = 0;
+    private volatile long mReplyTimeout = DEFAULT_REPLY_TIMEOUT;
+    // Set while the peer is served by the I/O reactor
+    private volatile Registration mRegistration = null;
+    private volatile BluetoothException mReadError = null;
+    private final LinkedBlockingQueue<ByteBuffer> mReceived = new LinkedBlockingQueue<ByteBuffer>(RECEIVED_CAPACITY);
+    // Last output state set on every port, as a frame which doesn't request a response, and whether it is known
+    private final byte[][] mOutputStates = new byte[OUTPUT_PORTS][SETOUTPUTSTATE_SIZE];
+    private final boolean[] mOutputStateKnown = new boolean[OUTPUT_PORTS];
+    private volatile Listener mListener = null;
+    private volatile MessageListener mMessageListener = null;
+    private final AtomicBoolean mLinkLost = new AtomicBoolean(false);
+    // Set once the link is being closed on purpose, so its failures are not reported as a lost link
+    private volatile boolean mClosing = false;
+    private final IoReactor.Listener mReadListener = new IoReactor.Listener() {
+        public void onData(byte[] data, int offset, int length) {
+            onReceived(data, offset, length);
+        }
+
+        public void onClosed(IOException cause) {
+            BluetoothException error = new BluetoothException("Connection closed by " + getAddress());
+            onLinkClosed(error);
+            linkLost(error);
+        }
+    };
+    private final Runnable mDrainTask = new Runnable() {
+        public void run() {
+            try {
+                pace();
+                flush();
+            } catch (BluetoothException e) {
+                // Nobody is waiting for this write. Report it to the next sender
+                mDrainError = e;
+            }
+        }
+    };
+
+    /**
+     * Notified when the link to the robot is lost
+     */
+    public interface Listener {
+
+        /**
+         * Called once, from the thread which found the link broken. It must not block
+         *
+         * @param peer  Peer whose link has been lost
+         * @param cause Failure which revealed it
+         */
+        void onLinkLost(BluetoothPeer peer, BluetoothException cause);
+    }
+
+    /**
+     * Notified when the robot sends a frame on its own
+     */
+    public interface MessageListener {
+
+        /**
+         * Called from the thread which received the frame, once it can be taken with pollFrame(). Also called when
+         * the link is closed. It must not block
+         *
+         * @param peer Peer which received the frame
+         */
+        void onMessage(BluetoothPeer peer);
+    }
+
+    public BluetoothPeer(Transport transport) {
+        this(transport, new FramePool());
+    }
+
+    /**
+     * Creates a peer which exchanges frames over the given transport
+     *
+     * @param transport Link to the robot. It is connected by connect()
+     * @param pool      Pool shared with the connection this peer belongs to
+     */
+    public BluetoothPeer(Transport transport, FramePool pool) {
+        this.mTransport = transport;
+        this.mFramePool = pool;
+        this.mDecoder = new FrameDecoder(pool);
+        this.mOutbound = new OutboundQueue(pool);
+        this.mDrainBatch = new CommandBatch(mOutbound.getCapacity());
+    }
+
+    /**
+     * Returns the pool which received frames are taken from
+     *
+     * @return
+     */
+    public FramePool getFramePool() {
+        return mFramePool;
+    }
 
-    public BluetoothPeer(BluetoothDevice device) {
-        this.mDevice = device;
+    /**
+     * Returns the scheduler which paces the writes to this peer
+     *
+     * @return
+     */
+    public SendScheduler getScheduler() {
+        return mScheduler;
+    }
+
+    /**
+     * Returns the health of the link to this peer
+     *
+     * @return
+     */
+    public LinkStatus getLinkStatus() {
+        return mLinkStatus;
+    }
+
+    /**
+     * Returns the number of replies received while no request was waiting for them
+     *
+     * @return
+     */
+    public int getDiscardedReplies() {
+        return mDiscardedReplies;
+    }
+
+    /**
+     * Sets how long awaitReply() waits for a reply before giving up on it
+     *
+     * @param timeout Maximum wait in milliseconds. 0 waits forever
+     */
+    public void setReplyTimeout(long timeout) {
+        this.mReplyTimeout = timeout;
+    }
+
+    /**
+     * Returns the link to the robot
+     *
+     * @return
+     */
+    public Transport getTransport() {
+        return mTransport;
     }
 
     public String getAddress() {
-        return this.mDevice.getAddress();
+        return this.mTransport.getAddress();
+    }
+
+    /**
+     * Sets the listener notified when the link is lost
+     *
+     * @param listener Listener, or null
+     */
+    public void setListener(Listener listener) {
+        this.mListener = listener;
+    }
+
+    /**
+     * Sets the listener notified when the robot sends a frame on its own
+     *
+     * @param listener Listener, or null
+     */
+    public void setMessageListener(MessageListener listener) {
+        this.mMessageListener = listener;
+    }
+
+    /**
+     * Returns true once the link has been found broken. The peer can't be used anymore
+     *
+     * @return
+     */
+    public boolean isLinkLost() {
+        return mLinkLost.get();
+    }
+
+    /**
+     * Flags the link as lost and notifies the listener, unless it is being closed on purpose
+     *
+     * @param cause Failure which revealed it
+     */
+    void linkLost(BluetoothException cause) {
+        if (mClosing || !mLinkLost.compareAndSet(false, true)) {
+            return;
+        }
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onLinkLost(this, cause);
+        }
     }
 
     public void connect() throws java.io.IOException {
-        this.mSocket = this.mDevice.createRfcommSocketToServiceRecord(this.mUUID);
-        this.mSocket.connect();
-        this.mInputStream = this.mSocket.getInputStream();
-        this.mOutputStream = this.mSocket.getOutputStream();
+        this.mTransport.connect();
+        this.mInputStream = this.mTransport.getInputStream();
+        this.mOutputStream = this.mTransport.getOutputStream();
     }
 
     public void disconnect() throws java.io.IOException {
-        this.mSocket.close();
+        mClosing = true;
+        stopReading();
+        mOutbound.clear();
+        this.mTransport.close();
+    }
+
+    /**
+     * Hands the reads of this peer over to the given reactor, so no caller blocks reading the robot.
+     * Writes go through the reactor as well from now on
+     *
+     * @param reactor Reactor which will serve the link
+     * @throws IOException if the link can't be served by the reactor
+     */
+    public void startReading(IoReactor reactor) throws IOException {
+        synchronized (mWriteLock) {
+            synchronized (mReadLock) {
+                if (mRegistration != null) {
+                    return;
+                }
+                mReadError = null;
+                ByteBuffer stale = mReceived.poll();
+                while (stale != null) {
+                    if (stale != CLOSED) {
+                        mFramePool.release(stale);
+                    }
+                    stale = mReceived.poll();
+                }
+                mRegistration = reactor.register(mTransport, mReadListener);
+                mOutputStream = mRegistration.getOutputStream();
+            }
+        }
+    }
+
+    /**
+     * Stops serving this peer from the reactor. Requests still waiting for their reply fail
+     */
+    public void stopReading() {
+        synchronized (mWriteLock) {
+            synchronized (mReadLock) {
+                if (mRegistration == null) {
+                    return;
+                }
+                mRegistration.cancel();
+                mRegistration = null;
+                try {
+                    mOutputStream = mTransport.getOutputStream();
+                } catch (IOException e) {
+                    // The link is gone. Next writes will fail on the reactor stream
+                }
+            }
+        }
+        onLinkClosed(new BluetoothException("Stopped reading from " + this.getAddress()));
+    }
+
+    /**
+     * Returns true while the peer is served by the reactor
+     *
+     * @return
+     */
+    public boolean isReading() {
+        return mRegistration != null;
     }
 
 
@@ -59,54 +341,608 @@ public class BluetoothPeer {
         return msg;
     }
 
-    private char[] processResponse(byte[] rsp_buffer) {
-        char[] rsp;
-        int rsp_len = (int) (rsp_buffer[1] << 8 | rsp_buffer[0]);
+    public void send(char[] values) throws BluetoothException {
+        byte[] msg = this.prepareMessage(values);
+        rememberOutputState(msg, 0, msg.length);
 
-        if ((rsp_len % 2) == 0) {
-            rsp = new char[rsp_len];
+        synchronized (mWriteLock) {
+            flush();
+            write(msg, 0, msg.length, 1);
+        }
+    }
+
+    /**
+     * Writes an already encoded frame to the socket, after any frame still queued.
+     * The frame is written as it is, without any translation or logging, and it is not consumed
+     *
+     * @param frame Length-prefixed frame
+     * @throws BluetoothException if the frame couldn't be written
+     */
+    public void send(ByteBuffer frame) throws BluetoothException {
+        byte[] data;
+        int offset;
+        if (frame.hasArray()) {
+            data = frame.array();
+            offset = frame.arrayOffset() + frame.position();
         } else {
-            rsp = new char[rsp_len + 1];
+            data = new byte[frame.remaining()];
+            offset = 0;
+            frame.duplicate().get(data);
         }
+        rememberOutputState(data, offset, frame.remaining());
+        synchronized (mWriteLock) {
+            flush();
+            write(data, offset, frame.remaining(), 1);
+        }
+    }
 
-        for (int i = 0, j = 0; i < rsp_len; i++, j += 2) {
-            rsp[i] = (char) ((rsp_buffer[j] & 0xFF) << 8);
-            if (j != rsp_len - 1)
-                rsp[i] |= (char) (rsp_buffer[j + 1] & 0xFF);
+    /**
+     * Writes to the socket, feeding the scheduler with the time the write blocked for
+     */
+    private void write(byte[] data, int offset, int length, int frames) throws BluetoothException {
+        long start = System.nanoTime();
+        try {
+            this.mOutputStream.write(data, offset, length);
+        } catch (Exception e) {
+            mScheduler.onCongestion();
+            BluetoothException error = new BluetoothException("Error writing to " + this.getAddress() + ": "
+                    + e.getMessage());
+            linkLost(error);
+            throw error;
         }
-        return rsp;
+        mScheduler.onWrite(System.nanoTime() - start);
+        mScheduler.onSent(frames);
     }
 
-    private void LogMessage(byte[] msg) {
-        Log.d(TAG, "Sending message to address: " + this.getAddress());
-        for (int i = 0; i < msg.length; i++) {
-            Log.d(TAG, "B[" + i + "]: " + String.format("0x%02X", msg[i]));
+    /**
+     * Waits for the next send slot of the scheduler. Locks are not held meanwhile
+     */
+    private void pace() throws BluetoothException {
+        long delay = mScheduler.getDelay();
+        if (delay <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(delay / 1000000L, (int) (delay % 1000000L));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BluetoothException("Interrupted while pacing writes to " + this.getAddress());
         }
-        Log.d(TAG, "-----------");
     }
 
+    /**
+     * Queues a frame which doesn't request a response, to be written from the command executor of this peer.
+     * A queued motor command for the same port which has not been written yet is replaced by this one
+     *
+     * @param frame Length-prefixed frame. It is copied, so it can be reused as soon as this method returns
+     * @throws BluetoothException if a previous queued write failed
+     */
+    public void enqueue(ByteBuffer frame) throws BluetoothException {
+        enqueue(frame, OutboundQueue.PRIORITY_NORMAL);
+    }
 
-    public void send(char[] values) throws BluetoothException {
-        byte[] msg = this.prepareMessage(values);
-        LogMessage(msg);
+    /**
+     * Queues a frame which doesn't request a response with the given priority.
+     * High priority frames are written right away by the calling thread, ahead of any queued frame and without
+     * waiting for the scheduler
+     *
+     * @param frame    Length-prefixed frame. It is copied, so it can be reused as soon as this method returns
+     * @param priority OutboundQueue.PRIORITY_HIGH, PRIORITY_NORMAL or PRIORITY_LOW
+     * @throws BluetoothException if the frame, or a previous queued write, failed
+     */
+    public void enqueue(ByteBuffer frame, int priority) throws BluetoothException {
+        if (frame.hasArray()) {
+            rememberOutputState(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+            offer(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining(), priority);
+        } else {
+            byte[] copy = new byte[frame.remaining()];
+            frame.duplicate().get(copy);
+            rememberOutputState(copy, 0, copy.length);
+            offer(copy, 0, copy.length, priority);
+        }
+        scheduleDrain(priority);
+    }
+
+    /**
+     * Queues every frame of a batch with the batch priority, as enqueue(ByteBuffer, int) does with each one
+     *
+     * @param batch Frames to queue. The batch can be reused as soon as this method returns
+     * @throws BluetoothException if the frames, or a previous queued write, failed
+     */
+    public void enqueue(CommandBatch batch) throws BluetoothException {
+        for (int i = 0; i < batch.getFrameCount(); i++) {
+            rememberOutputState(batch.getArray(), batch.getFrameOffset(i), batch.getFrameLength(i));
+            offer(batch.getArray(), batch.getFrameOffset(i), batch.getFrameLength(i), batch.getPriority());
+        }
+        scheduleDrain(batch.getPriority());
+    }
+
+    private void offer(byte[] data, int offset, int length, int priority) throws BluetoothException {
+        BluetoothException error = mDrainError;
+        if (error != null) {
+            mDrainError = null;
+            throw error;
+        }
+        while (!mOutbound.offer(data, offset, length, priority)) {
+            // Writes are not keeping up. The caller waits for the queue to drain
+            flush();
+        }
+    }
+
+    /**
+     * Remembers the output state set by the given frame, if it is a SETOUTPUTSTATE.
+     * Only states which hold until they are changed are remembered: a state with a tacho limit ends by itself, and
+     * replaying it would move the motor again, so it just forgets the previous state of its port
+     */
+    private void rememberOutputState(byte[] data, int offset, int length) {
+        if (length != SETOUTPUTSTATE_SIZE || (data[offset + TYPE + 1] & 0xFF) != SETOUTPUTSTATE) {
+            return;
+        }
+        int port = data[offset + PORT] & 0xFF;
+        boolean limited = data[offset + TACHO_LIMIT] != 0 || data[offset + TACHO_LIMIT + 1] != 0
+                || data[offset + TACHO_LIMIT + 2] != 0 || data[offset + TACHO_LIMIT + 3] != 0;
+        synchronized (mOutputStates) {
+            for (int i = 0; i < OUTPUT_PORTS; i++) {
+                if (port != i && port != ALL_PORTS) {
+                    continue;
+                }
+                mOutputStateKnown[i] = !limited;
+                if (limited) {
+                    continue;
+                }
+                byte[] state = mOutputStates[i];
+                System.arraycopy(data, offset, state, 0, length);
+                state[TYPE] = (byte) NO_REPLY;
+                state[PORT] = (byte) i;
+            }
+        }
+    }
+
+    /**
+     * Returns the last output state set on every motor port, as frames which don't request a response.
+     * Sending them to the robot restores its motors, and the IR emitter of followers, as this peer left them
+     *
+     * @return Length-prefixed frames, one per port whose state is known
+     */
+    public ByteBuffer[] getOutputStates() {
+        ArrayList<ByteBuffer> states = new ArrayList<ByteBuffer>();
+        synchronized (mOutputStates) {
+            for (int i = 0; i < OUTPUT_PORTS; i++) {
+                if (mOutputStateKnown[i]) {
+                    states.add(ByteBuffer.wrap(mOutputStates[i].clone()));
+                }
+            }
+        }
+        return states.toArray(new ByteBuffer[states.size()]);
+    }
+
+    private void scheduleDrain(int priority) throws BluetoothException {
+        if (priority == OutboundQueue.PRIORITY_HIGH) {
+            flush();
+        } else if (mOutbound.scheduleDrain()) {
+            try {
+                CommandExecutors.getInstance().get(this.getAddress()).execute(mDrainTask);
+            } catch (RejectedExecutionException e) {
+                flush();
+            }
+        }
+    }
+
+    /**
+     * Writes every queued frame right away, in a single write when they fit
+     *
+     * @throws BluetoothException if the frames couldn't be written
+     */
+    public void flush() throws BluetoothException {
+        synchronized (mWriteLock) {
+            while (!mOutbound.isEmpty()) {
+                mDrainBatch.clear();
+                int frames = mOutbound.drainTo(mDrainBatch);
+                ByteBuffer buffer = mDrainBatch.getBuffer();
+                write(buffer.array(), buffer.arrayOffset(), buffer.remaining(), frames);
+            }
+        }
+    }
+
+    /**
+     * Sends a command which requests a response without waiting for it.
+     * Several requests can be in flight at once. Their replies are collected, in order, through awaitReply()
+     *
+     * @param frame Length-prefixed frame of a command which requests a response
+     * @return Pending reply to be passed to awaitReply()
+     * @throws BluetoothException if the frame couldn't be written
+     */
+    public PendingReply request(ByteBuffer frame) throws BluetoothException {
+        return request(frame, OutboundQueue.PRIORITY_NORMAL);
+    }
+
+    /**
+     * Sends a command which requests a response with the given priority, without waiting for it.
+     * Requests wait for the next send slot of the scheduler unless they have high priority. Low priority requests
+     * are refused while the outbound queue is deep
+     *
+     * @param frame    Length-prefixed frame of a command which requests a response
+     * @param priority OutboundQueue.PRIORITY_HIGH, PRIORITY_NORMAL or PRIORITY_LOW
+     * @return Pending reply to be passed to awaitReply()
+     * @throws BluetoothException if the frame couldn't be written, or it was shed
+     */
+    public PendingReply request(ByteBuffer frame, int priority) throws BluetoothException {
+        BluetoothException readError = mReadError;
+        if (readError != null) {
+            throw readError;
+        }
+        if (priority == OutboundQueue.PRIORITY_LOW && mOutbound.isCongested()) {
+            throw new BluetoothException("Link to " + this.getAddress() + " is congested, low priority request shed");
+        }
+        if (priority != OutboundQueue.PRIORITY_HIGH) {
+            pace();
+        }
+        PendingReply reply = new PendingReply(frame);
+        synchronized (mWriteLock) {
+            flush();
+            // Queued before writing so the queue order is always the order the robot receives the requests
+            synchronized (mInFlight) {
+                mInFlight.addLast(reply);
+            }
+            try {
+                reply.markSent();
+                send(frame);
+            } catch (BluetoothException e) {
+                synchronized (mInFlight) {
+                    mInFlight.remove(reply);
+                }
+                throw e;
+            }
+        }
+        return reply;
+    }
+
+    /**
+     * Waits for the reply of a request sent through request(), up to the reply timeout.
+     * Replies received meanwhile for older requests are handed to them, so they are ready when their own callers
+     * ask for them
+     *
+     * @param reply Pending reply returned by request()
+     * @return Pooled reply frame. It should be released to getFramePool() once consumed
+     * @throws BluetoothException if the reply couldn't be read, the robot didn't reply to this request, or it didn't
+     *                            reply in time
+     */
+    public ByteBuffer awaitReply(PendingReply reply) throws BluetoothException {
+        return awaitReply(reply, mReplyTimeout);
+    }
+
+    /**
+     * Waits for the reply of a request sent through request(), up to the given timeout.
+     * The request is cancelled once the timeout expires, so its reply is dropped if it arrives later
+     *
+     * @param reply   Pending reply returned by request()
+     * @param timeout Maximum wait in milliseconds. 0 waits forever
+     * @return Pooled reply frame. It should be released to getFramePool() once consumed
+     * @throws BluetoothException if the reply couldn't be read, the robot didn't reply to this request, or it didn't
+     *                            reply in time
+     */
+    public ByteBuffer awaitReply(PendingReply reply, long timeout) throws BluetoothException {
+        if (timeout > 0) {
+            readFromThread();
+        }
+        if (mRegistration != null) {
+            // The reactor completes it
+            if (!reply.await(timeout)) {
+                giveUp(reply, timeout);
+            }
+            return reply.getReply();
+        }
+        synchronized (mReadLock) {
+            while (!reply.isDone()) {
+                try {
+                    route(readFrame());
+                } catch (BluetoothException e) {
+                    failInFlight(e);
+                    throw e;
+                }
+            }
+        }
+        return reply.getReply();
+    }
+
+    /**
+     * Cancels a request whose reply didn't arrive in time, unless it has just been completed
+     */
+    private void giveUp(PendingReply reply, long timeout) throws BluetoothException {
+        BluetoothException error;
+        if (Thread.currentThread().isInterrupted()) {
+            error = new BluetoothException("Interrupted while waiting for the reply to command " + reply.getCommand());
+        } else {
+            error = new BluetoothException("No reply received from " + this.getAddress() + " for command "
+                    + reply.getCommand() + " in " + timeout + " ms");
+        }
+        if (reply.cancel(error)) {
+            mScheduler.onCongestion();
+            throw error;
+        }
+    }
+
+    /**
+     * Hands a received frame to whoever expects it: a reply to its pending request, and any other frame to the
+     * readers of receiveFrame(). Replies nobody waits for are dropped
+     */
+    private void route(ByteBuffer frame) {
+        if (!isReply(frame)) {
+            keepReceived(frame);
+        } else if (!dispatchReply(frame)) {
+            mDiscardedReplies++;
+            mFramePool.release(frame);
+        }
+    }
+
+    /**
+     * Hands a received reply to the oldest pending request which expects it, that is, of the same command and, for
+     * port queries, of the same port.
+     * Cancelled requests only take the replies no live request expects: those are the late replies they were
+     * cancelled for. Requests whose replies can't tell them apart take them in order, cancelled or not. Once a newer request gets a reply, the robot has answered every older one, so the older requests
+     * still in the queue have lost their reply and are removed
+     *
+     * @return false if no pending request expects the reply
+     */
+    private boolean dispatchReply(ByteBuffer frame) {
+        synchronized (mInFlight) {
+            PendingReply target = null;
+            for (PendingReply pending : mInFlight) {
+                if (!pending.matches(frame)) {
+                    continue;
+                }
+                if (!pending.isCancelled() || pending.isStrictlyOrdered()) {
+                    target = pending;
+                    break;
+                }
+                if (target == null) {
+                    target = pending;
+                }
+            }
+            if (target == null) {
+                // Stray reply, of a request this peer didn't send
+                return false;
+            }
+            PendingReply head = mInFlight.removeFirst();
+            while (head != target) {
+                if (!head.isCancelled()) {
+                    mScheduler.onCongestion();
+                    head.fail(new BluetoothException("No reply received from " + this.getAddress() + " for command "
+                            + head.getCommand()));
+                }
+                head = mInFlight.removeFirst();
+            }
+            if (target.complete(frame)) {
+                mScheduler.onReply(target.getElapsed());
+            } else {
+                // Its caller gave up on it
+                mFramePool.release(frame);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Decodes the bytes read by the reactor, and routes every whole frame
+     */
+    private void onReceived(byte[] data, int offset, int length) {
+        mLinkStatus.onActivity();
+        synchronized (mReadLock) {
+            try {
+                mDecoder.feed(data, offset, length);
+                while (mDecoder.hasFrame()) {
+                    route(mDecoder.nextFrame());
+                }
+            } catch (IOException e) {
+                // Corrupted stream. Decoding starts again from the next bytes
+                mDecoder.reset();
+            }
+        }
+    }
 
+    /**
+     * Keeps a frame for receiveFrame(), dropping the oldest kept one if nobody is reading them
+     */
+    private void keepReceived(ByteBuffer frame) {
+        while (!mReceived.offer(frame)) {
+            ByteBuffer oldest = mReceived.poll();
+            if (oldest != null && oldest != CLOSED) {
+                mFramePool.release(oldest);
+            }
+        }
+        MessageListener listener = mMessageListener;
+        if (listener != null) {
+            listener.onMessage(this);
+        }
+    }
+
+    private void onLinkClosed(BluetoothException error) {
+        mReadError = error;
+        failInFlight(error);
+        keepReceived(CLOSED);
+    }
+
+    private static boolean isReply(ByteBuffer frame) {
+        return frame.remaining() > FramePool.HEADER_SIZE
+                && (frame.get(frame.position() + FramePool.HEADER_SIZE) & 0xFF) == REPLY;
+    }
+
+    private void failInFlight(BluetoothException error) {
+        synchronized (mInFlight) {
+            while (!mInFlight.isEmpty()) {
+                mInFlight.removeFirst().fail(error);
+            }
+        }
+    }
+
+    /**
+     * Waits for the next whole frame sent by the robot on its own.
+     * Partial reads are accumulated until the frame is complete, and any extra bytes are kept for the next call.
+     * Replies to requests are never returned here
+     *
+     * @return Pooled frame (length prefix included). It should be released to getFramePool() once consumed
+     * @throws BluetoothException if the frame couldn't be read
+     */
+    public ByteBuffer receiveFrame() throws BluetoothException {
+        return receiveFrame(0);
+    }
+
+    /**
+     * Waits for the next whole frame sent by the robot on its own, up to the given timeout
+     *
+     * @param timeout Maximum wait in milliseconds. 0 waits forever
+     * @return Pooled frame (length prefix included), or null if none arrived in time. It should be released to
+     * getFramePool() once consumed
+     * @throws BluetoothException if the frame couldn't be read, or the calling thread is interrupted
+     */
+    public ByteBuffer receiveFrame(long timeout) throws BluetoothException {
+        if (timeout > 0) {
+            readFromThread();
+        }
+        if (mRegistration != null) {
+            return takeReceived(timeout);
+        }
+        synchronized (mReadLock) {
+            ByteBuffer frame = mReceived.poll();
+            while (frame == null) {
+                try {
+                    route(readFrame());
+                } catch (BluetoothException e) {
+                    failInFlight(e);
+                    throw e;
+                }
+                frame = mReceived.poll();
+            }
+            return checkReceived(frame);
+        }
+    }
+
+    /**
+     * Takes the next frame sent by the robot on its own, if one has already been received. It never waits nor reads
+     * the link, so only peers served by the reactor receive frames between calls
+     *
+     * @return Pooled frame (length prefix included), or null if none has been received. It should be released to
+     * getFramePool() once consumed
+     * @throws BluetoothException if the link has been closed
+     */
+    public ByteBuffer pollFrame() throws BluetoothException {
+        if (mReceived.peek() == CLOSED) {
+            // Left for the next reader
+            BluetoothException error = mReadError;
+            throw (error != null) ? error : new BluetoothException("Connection closed by " + this.getAddress());
+        }
+        ByteBuffer frame = mReceived.poll();
+        return (frame != null) ? checkReceived(frame) : null;
+    }
+
+    /**
+     * Waits for the next frame kept by the reactor
+     */
+    private ByteBuffer takeReceived(long timeout) throws BluetoothException {
+        ByteBuffer frame;
         try {
-            this.mOutputStream.write(msg);
-        } catch (Exception e) {
-            throw new BluetoothException();
+            if (timeout > 0) {
+                frame = mReceived.poll(timeout, TimeUnit.MILLISECONDS);
+                if (frame == null) {
+                    return null;
+                }
+            } else {
+                frame = mReceived.take();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BluetoothException("Interrupted while waiting for a frame from " + this.getAddress());
+        }
+        return checkReceived(frame);
+    }
+
+    /**
+     * Returns the given kept frame, or throws the error which closed the link
+     */
+    private ByteBuffer checkReceived(ByteBuffer frame) throws BluetoothException {
+        if (frame == CLOSED) {
+            // Left for the next reader
+            keepReceived(CLOSED);
+            BluetoothException error = mReadError;
+            throw (error != null) ? error : new BluetoothException("Connection closed by " + this.getAddress());
+        }
+        return frame;
+    }
+
+    /**
+     * Hands the link of a peer read inline over to a thread of its own, blocked reading it, so waits with a timeout
+     * wait for the frames it routes instead of reading the link themselves. Frames already kept, and partial frames
+     * read so far, are kept as well
+     *
+     * @throws BluetoothException if the link can't be read from a thread
+     */
+    private void readFromThread() throws BluetoothException {
+        if (mRegistration != null) {
+            return;
+        }
+        synchronized (mWriteLock) {
+            synchronized (mReadLock) {
+                if (mRegistration != null) {
+                    return;
+                }
+                try {
+                    mRegistration = IoReactor.getInstance().registerStream(mTransport, mReadListener);
+                } catch (IOException e) {
+                    BluetoothException error = new BluetoothException("Unable to read from " + this.getAddress());
+                    error.initCause(e);
+                    throw error;
+                }
+                mOutputStream = mRegistration.getOutputStream();
+            }
+        }
+    }
+
+    /**
+     * Reads the next whole frame from the link, blocking until it arrives
+     *
+     * @return Frame
+     */
+    private ByteBuffer readFrame() throws BluetoothException {
+        synchronized (mReadLock) {
+            try {
+                while (!mDecoder.hasFrame()) {
+                    if (mDecoder.fill(this.mInputStream) < 0) {
+                        BluetoothException error = new BluetoothException("Connection closed by " + this.getAddress());
+                        linkLost(error);
+                        throw error;
+                    }
+                }
+                mLinkStatus.onActivity();
+                return mDecoder.nextFrame();
+            } catch (IOException e) {
+                mDecoder.reset();
+                BluetoothException error = new BluetoothException();
+                linkLost(error);
+                throw error;
+            }
         }
     }
 
     public char[] receive() throws BluetoothException {
-        char[] rsp = null;
+        return receive(0);
+    }
+
+    /**
+     * Waits for the next message sent by the robot on its own, up to the given timeout
+     *
+     * @param timeout Maximum wait in milliseconds. 0 waits forever
+     * @return Message, or null if none arrived in time
+     * @throws BluetoothException if the message couldn't be read
+     */
+    public char[] receive(long timeout) throws BluetoothException {
+        ByteBuffer frame = receiveFrame(timeout);
+        if (frame == null) {
+            return null;
+        }
         try {
-            byte[] rsp_buffer = new byte[1024];
-            this.mInputStream.read(rsp_buffer);
-            rsp = this.processResponse(rsp_buffer);
-        } catch (Exception e) {
-            throw new BluetoothException();
+            return FrameDecoder.toValues(frame);
+        } finally {
+            mFramePool.release(frame);
         }
-
-        return rsp;
     }
 }
@@ -2,6 +2,8 @@ package net.kaisoz.droidstorm.bluetooth.base;
 
 import android.annotation.TargetApi;
 import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothClass;
+import android.bluetooth.BluetoothDevice;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
@@ -9,12 +11,22 @@ import android.content.IntentFilter;
 import android.util.Log;
 
 import net.kaisoz.droidstorm.bluetooth.BluetoothOperations;
+import net.kaisoz.droidstorm.bluetooth.ConnectListener;
 import net.kaisoz.droidstorm.bluetooth.Connection;
+import net.kaisoz.droidstorm.bluetooth.DiscoveryListener;
+import net.kaisoz.droidstorm.bluetooth.KnownRobot;
+import net.kaisoz.droidstorm.bluetooth.RobotRegistry;
 import net.kaisoz.droidstorm.bluetooth.exception.BluetoothException;
+import net.kaisoz.droidstorm.bluetooth.transport.RfcommTransport;
+import net.kaisoz.droidstorm.bluetooth.transport.Transport;
+import net.kaisoz.droidstorm.bluetooth.transport.TransportFactory;
 import net.kaisoz.droidstorm.util.IndexedMap;
+import net.kaisoz.droidstorm.util.RobotDatabaseHelper;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -35,15 +47,32 @@ public class BluetoothWrapper implements BluetoothOperations {
     private final Lock mLock = new ReentrantLock();
     private final Condition mConditionVariable = mLock.newCondition();
     private boolean mDiscoveryHasFinished = false;
+    // Listener of the running discovery, and addresses already reported to it
+    private DiscoveryListener mDiscoveryListener = null;
+    private final HashSet<String> mReportedDevices = new HashSet<String>();
     private boolean mBluetoothStateChanged = false;
 
     private ConnectionDefault mConnection;
+    // Robots connected before, which can be connected again without running an inquiry
+    private final RobotRegistry mKnownRobots;
+    // RFCOMM links to the robots, opened when connecting and when reconnecting a lost link
+    private final TransportFactory mTransportFactory = new TransportFactory() {
+        public Transport create(String address) throws IOException {
+            try {
+                return new RfcommTransport(mBluetoothAdapter.getRemoteDevice(address), mKnownRobots.getChannel(address));
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Invalid Bluetooth address: " + address);
+            }
+        }
+    };
 
     public BluetoothWrapper(Context context) {
         mContext = context;
         mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
         mFoundDevices = new IndexedMap();
+        mKnownRobots = new RobotRegistry(new RobotDatabaseHelper(context));
         mConnection = new ConnectionDefault();
+        mConnection.setReconnector(new PeerReconnector(mTransportFactory, mConnection));
 
         prepareBluetoothStateBroadcastReceiver();
         prepareDeviceDiscoveryBroadcastReceiver();
@@ -78,12 +107,23 @@ public class BluetoothWrapper implements BluetoothOperations {
         BroadcastReceiver deviceFoundReceiver = new BroadcastReceiver() {
             public void onReceive(Context context, Intent intent) {
                 String action = intent.getAction();
+                android.bluetooth.BluetoothDevice device = null;
+                DiscoveryListener listener = null;
                 mLock.lock();
                 try {
                     if (android.bluetooth.BluetoothDevice.ACTION_FOUND.equals(action)) {
-                        android.bluetooth.BluetoothDevice device = intent.getParcelableExtra(android.bluetooth.BluetoothDevice.EXTRA_DEVICE);
+                        device = intent.getParcelableExtra(android.bluetooth.BluetoothDevice.EXTRA_DEVICE);
+                        BluetoothClass deviceClass = intent.getParcelableExtra(android.bluetooth.BluetoothDevice.EXTRA_CLASS);
+                        if (!isRobot(deviceClass)) {
+                            Log.d(TAG, "Ignored device: " + device.getName());
+                            return;
+                        }
                         mFoundDevices.put(device.getName(), device.getAddress());
                         Log.d(TAG, "Found new device: " + device.getName());
+                        // Inquiries report a device several times
+                        if (mReportedDevices.add(device.getAddress())) {
+                            listener = mDiscoveryListener;
+                        }
                     } else if (BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals(action)) {
                         mDiscoveryHasFinished = true;
                         mConditionVariable.signal();
@@ -91,6 +131,9 @@ public class BluetoothWrapper implements BluetoothOperations {
                 } finally {
                     mLock.unlock();
                 }
+                if (listener != null) {
+                    listener.onDeviceFound(device.getName(), device.getAddress());
+                }
             }
         };
 
@@ -122,6 +165,14 @@ public class BluetoothWrapper implements BluetoothOperations {
         return rtn;
     }
 
+    /**
+     * Returns true if the class of device is the one NXT bricks report (toy, robot).
+     * Devices which don't report their class are accepted
+     */
+    private static boolean isRobot(BluetoothClass deviceClass) {
+        return deviceClass == null || deviceClass.getDeviceClass() == BluetoothClass.Device.TOY_ROBOT;
+    }
+
     private void launchBluetoothEnableActivity() {
         Intent enableBtIntent = new Intent(BluetoothAdapter.ACTION_REQUEST_ENABLE);
         mContext.startActivity(enableBtIntent);
@@ -134,27 +185,59 @@ public class BluetoothWrapper implements BluetoothOperations {
 
     @Override
     public IndexedMap connect(String[] btAddresses) {
-        IndexedMap connectionResult = new IndexedMap();
-        ArrayList<String> success = new ArrayList<String>();
-        ArrayList<String> error = new ArrayList<String>();
+        return connect(btAddresses, null);
+    }
 
-        for (int i = 0; i < btAddresses.length; i++) {
-            try {
-                BluetoothPeer peer = new BluetoothPeer(mBluetoothAdapter.getRemoteDevice(btAddresses[i]));
-                peer.connect();
-                success.add(btAddresses[i]);
-                mConnection.addConnectedPeer(peer);
-                Log.d(TAG, "Added: " + btAddresses[i]);
-            } catch (IOException e) {
-                e.printStackTrace();
-                Log.d(TAG, "Failed: " + btAddresses[i]);
-                error.add(btAddresses[i]);
+    @Override
+    public IndexedMap connect(String[] btAddresses, final ConnectListener listener) {
+        // Inquiries slow down connections a lot. Robots found so far are already reported
+        if (mBluetoothAdapter.isDiscovering()) {
+            mBluetoothAdapter.cancelDiscovery();
+        }
+        return new PeerConnector(mTransportFactory, mConnection).connect(btAddresses, new ConnectListener() {
+            public void onConnected(String btAddress) {
+                Log.d(TAG, "Added: " + btAddress);
+                rememberRobot(btAddress);
+                if (listener != null) {
+                    listener.onConnected(btAddress);
+                }
             }
+
+            public void onFailed(String btAddress) {
+                Log.d(TAG, "Failed: " + btAddress);
+                if (listener != null) {
+                    listener.onFailed(btAddress);
+                }
+            }
+        });
+    }
+
+    /**
+     * Records a connected robot, with the channel its connection used, in the known robots
+     */
+    private void rememberRobot(String btAddress) {
+        int channel = KnownRobot.UNKNOWN_CHANNEL;
+        BluetoothPeer peer = mConnection.getBluetoothPeer(btAddress);
+        if (peer != null && peer.getTransport() instanceof RfcommTransport) {
+            channel = ((RfcommTransport) peer.getTransport()).getChannel();
         }
+        mKnownRobots.onConnected(mBluetoothAdapter.getRemoteDevice(btAddress).getName(), btAddress, channel);
+    }
 
-        connectionResult.put("success", success.toArray(new String[success.size()]));
-        connectionResult.put("error", error.toArray(new String[error.size()]));
-        return connectionResult;
+    /**
+     * Returns the robots connected before, merged with the robots bonded with the phone
+     */
+    @Override
+    public IndexedMap getKnownDevices() {
+        Set<BluetoothDevice> bonded = mBluetoothAdapter.getBondedDevices();
+        if (bonded != null) {
+            for (BluetoothDevice device : bonded) {
+                if (isRobot(device.getBluetoothClass())) {
+                    mKnownRobots.addBonded(device.getName(), device.getAddress());
+                }
+            }
+        }
+        return mKnownRobots.getRobots();
     }
 
     @Override
@@ -185,10 +268,22 @@ public class BluetoothWrapper implements BluetoothOperations {
 
     @Override
     public IndexedMap discoverDevices() throws BluetoothException {
+        return discoverDevices(null);
+    }
+
+    /**
+     * Runs an inquiry, reporting every robot to the listener as soon as it is found.
+     * Only devices whose class is the one of NXT bricks are reported. The inquiry ends early if a connection is
+     * started meanwhile
+     */
+    @Override
+    public IndexedMap discoverDevices(DiscoveryListener listener) throws BluetoothException {
         //mBluetoothAdapter.cancelDiscovery();
         mLock.lock();
         try {
             mDiscoveryHasFinished = false;
+            mDiscoveryListener = listener;
+            mReportedDevices.clear();
             if (mBluetoothAdapter.startDiscovery() == true) {
                 while (!mDiscoveryHasFinished)
                     mConditionVariable.await();
@@ -197,6 +292,7 @@ public class BluetoothWrapper implements BluetoothOperations {
             }
         } catch (InterruptedException e) {
         } finally {
+            mDiscoveryListener = null;
             mLock.unlock();
         }
         return mFoundDevices;
@@ -208,12 +304,10 @@ public class BluetoothWrapper implements BluetoothOperations {
     }
 
     public Connection getConnection() {
-        mConnection.setBroadcastMode();
         return mConnection;
     }
 
     public Connection getConnection(String btAddress) {
-        mConnection.setSingleModeToAddress(btAddress);
-        return mConnection;
+        return mConnection.getPeerConnection(btAddress);
     }
 }
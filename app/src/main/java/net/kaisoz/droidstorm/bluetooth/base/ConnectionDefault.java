@@ -1,62 +1,714 @@
 package net.kaisoz.droidstorm.bluetooth.base;
 
+import net.kaisoz.droidstorm.bluetooth.BroadcastResult;
+import net.kaisoz.droidstorm.bluetooth.CommandBatch;
+import net.kaisoz.droidstorm.bluetooth.CommandExecutors;
+import net.kaisoz.droidstorm.bluetooth.Connection;
 import net.kaisoz.droidstorm.bluetooth.ConnectionBase;
+import net.kaisoz.droidstorm.bluetooth.FrameDecoder;
+import net.kaisoz.droidstorm.bluetooth.FramePool;
+import net.kaisoz.droidstorm.bluetooth.LinkStatus;
+import net.kaisoz.droidstorm.bluetooth.OutboundQueue;
+import net.kaisoz.droidstorm.bluetooth.PendingReply;
 import net.kaisoz.droidstorm.bluetooth.exception.BluetoothException;
+import net.kaisoz.droidstorm.bluetooth.reactor.IoReactor;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 /**
+ * Broadcast connection, holding the peers connected to every robot. Connections bound to a single robot are handed
+ * out by getPeerConnection(), and route their commands through this one.
+ * Peers are looked up without locking, so robots can be driven from different threads at once.
+ * Once a reconnector is set, the connection heals itself: a peer whose link is lost is replaced in the background,
+ * and commands for that robot wait for the new peer, up to the stall timeout, instead of failing. Broadcasts skip it
+ * meanwhile. Only once the reconnector gives up are the commands for the robot failed again.
+ * Failed commands are only sent again to the new peer if running them twice is harmless: the robot may have run them
+ * before the link was lost. Any other command fails, while the peer is still replaced for the next ones
+ *
  * @author Tomás Tormo Franco
  */
 
 public class ConnectionDefault extends ConnectionBase {
 
-    private HashMap<String, BluetoothPeer> mConnectedDevices = new HashMap<String, BluetoothPeer>();
+    private static final long DEFAULT_STALL_TIMEOUT = 10000;
+    // Telegram bytes of the commands retried on a new peer: output states and motor position resets without reply
+    private static final int NO_REPLY = 0x80;
+    private static final int SETOUTPUTSTATE = 0x04;
+    private static final int RESETMOTORPOSITION = 0x0A;
 
-    public void addConnectedPeer(BluetoothPeer server) {
-        mConnectedDevices.put(server.getAddress(), server);
+    // Written under the lock of this connection, read without it
+    private final ConcurrentHashMap<String, BluetoothPeer> mConnectedDevices =
+            new ConcurrentHashMap<String, BluetoothPeer>();
+    private final ConcurrentHashMap<String, PeerConnection> mHandles = new ConcurrentHashMap<String, PeerConnection>();
+    // Snapshot of the connected peers used to broadcast without iterating (and locking) the map
+    private volatile BluetoothPeer[] mPeers = new BluetoothPeer[0];
+    // Lost peers being reconnected, by address. Its lock is never held while taking any other
+    private final HashMap<String, BluetoothPeer> mHealing = new HashMap<String, BluetoothPeer>();
+    private volatile PeerReconnector mReconnector = null;
+    private volatile long mStallTimeout = DEFAULT_STALL_TIMEOUT;
+    private final BluetoothPeer.Listener mLinkListener = new BluetoothPeer.Listener() {
+        public void onLinkLost(BluetoothPeer peer, BluetoothException cause) {
+            onPeerLost(peer);
+        }
+    };
+    // Counts the frames sent by any robot on its own, so a single thread can wait for many robots
+    private final Object mMessageSignal = new Object();
+    private long mMessageCount = 0;
+    private final BluetoothPeer.MessageListener mMessageListener = new BluetoothPeer.MessageListener() {
+        public void onMessage(BluetoothPeer peer) {
+            synchronized (mMessageSignal) {
+                mMessageCount++;
+                mMessageSignal.notifyAll();
+            }
+        }
+    };
+
+    /**
+     * Returns the connection bound to the given robot
+     *
+     * @param btAddr Robot address
+     * @return
+     */
+    public Connection getPeerConnection(String btAddr) {
+        PeerConnection handle = mHandles.get(btAddr);
+        if (handle == null) {
+            PeerConnection created = new PeerConnection(this, btAddr);
+            handle = mHandles.putIfAbsent(btAddr, created);
+            if (handle == null) {
+                handle = created;
+            }
+        }
+        return handle;
+    }
+
+    /**
+     * Sets the reconnector which replaces the peers whose link is lost
+     *
+     * @param reconnector Reconnector, or null to fail the commands of lost peers right away
+     */
+    public void setReconnector(PeerReconnector reconnector) {
+        this.mReconnector = reconnector;
+    }
+
+    /**
+     * Sets how long commands for a robot being reconnected wait for it
+     *
+     * @param timeout Maximum wait in milliseconds
+     */
+    public void setStallTimeout(long timeout) {
+        this.mStallTimeout = timeout;
+    }
+
+    /**
+     * Adds a connected peer. Its link is served from then on by the I/O reactor, so no caller blocks reading it
+     *
+     * @param server Connected peer
+     */
+    public synchronized void addConnectedPeer(BluetoothPeer server) {
+        BluetoothPeer previous = mConnectedDevices.put(server.getAddress(), server);
+        if (previous != null && previous != server) {
+            LinkProber.getInstance().remove(previous);
+            previous.stopReading();
+        }
+        mPeers = mConnectedDevices.values().toArray(new BluetoothPeer[mConnectedDevices.size()]);
+        server.setListener(mLinkListener);
+        server.setMessageListener(mMessageListener);
+        try {
+            server.startReading(IoReactor.getInstance());
+        } catch (IOException e) {
+            // The peer keeps reading inline, from the threads waiting for its replies
+        }
+        LinkProber.getInstance().add(server);
+        endHealing(server.getAddress());
+    }
+
+    public synchronized void removeConnectedPeer(BluetoothPeer server) {
+        LinkProber.getInstance().remove(server);
+        server.stopReading();
+        if (mConnectedDevices.get(server.getAddress()) == server) {
+            mConnectedDevices.remove(server.getAddress());
+            CommandExecutors.getInstance().shutdown(server.getAddress());
+            endHealing(server.getAddress());
+        }
+        mPeers = mConnectedDevices.values().toArray(new BluetoothPeer[mConnectedDevices.size()]);
+    }
+
+    /**
+     * Returns true if the given peer is the one connected to its robot
+     *
+     * @param server Peer
+     * @return
+     */
+    public boolean isConnectedPeer(BluetoothPeer server) {
+        return mConnectedDevices.get(server.getAddress()) == server;
+    }
+
+    /**
+     * Replaces a lost peer with a new one connected to the same robot
+     *
+     * @param lost        Lost peer
+     * @param replacement Connected peer
+     * @return false if the lost peer has been disconnected meanwhile. The replacement is not added then
+     */
+    public synchronized boolean replacePeer(BluetoothPeer lost, BluetoothPeer replacement) {
+        if (!isConnectedPeer(lost)) {
+            return false;
+        }
+        addConnectedPeer(replacement);
+        return true;
+    }
+
+    /**
+     * Removes a lost peer which couldn't be reconnected. Commands waiting for it fail
+     *
+     * @param lost Lost peer
+     */
+    public synchronized void giveUpPeer(BluetoothPeer lost) {
+        if (isConnectedPeer(lost)) {
+            removeConnectedPeer(lost);
+        }
+    }
+
+    /**
+     * Starts healing a peer whose link has been lost. Called from the thread which found it broken, which may hold
+     * the locks of the peer, so only the healing lock is taken here
+     */
+    private void onPeerLost(BluetoothPeer peer) {
+        PeerReconnector reconnector = mReconnector;
+        if (reconnector == null || !isBroadcastPeer(peer)) {
+            return;
+        }
+        synchronized (mHealing) {
+            if (mHealing.containsKey(peer.getAddress())) {
+                return;
+            }
+            mHealing.put(peer.getAddress(), peer);
+        }
+        reconnector.reconnect(peer);
+    }
+
+    private boolean isBroadcastPeer(BluetoothPeer peer) {
+        BluetoothPeer[] peers = mPeers;
+        for (int i = 0; i < peers.length; i++) {
+            if (peers[i] == peer) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void endHealing(String btAddr) {
+        synchronized (mHealing) {
+            if (mHealing.remove(btAddr) != null) {
+                mHealing.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Returns true if the given peer failed because its link was lost, and it is being replaced
+     */
+    private boolean isHealing(BluetoothPeer peer) {
+        return mReconnector != null && peer.isLinkLost();
+    }
+
+    /**
+     * Returns the peer connected to the given robot, waiting for it while the robot is being reconnected
+     *
+     * @param btAddr Robot address
+     * @return
+     * @throws BluetoothException if the robot is not connected, or it wasn't reconnected in time
+     */
+    private BluetoothPeer acquirePeer(String btAddr) throws BluetoothException {
+        synchronized (mHealing) {
+            long deadline = System.currentTimeMillis() + mStallTimeout;
+            while (mHealing.containsKey(btAddr)) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new BluetoothException(btAddr + " is still reconnecting");
+                }
+                try {
+                    mHealing.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new BluetoothException("Interrupted while waiting for " + btAddr + " to reconnect");
+                }
+            }
+        }
+        BluetoothPeer server = getBluetoothPeer(btAddr);
+        if (server == null)
+            throw new BluetoothException();
+        return server;
+    }
+
+    /**
+     * Returns the peer a failed command should be retried with: the one replacing the failed peer if its link was
+     * lost. Commands are retried once, and the replacement already has the output states replayed
+     *
+     * @param replayable True if the failed command can safely run twice
+     * @throws BluetoothException the given error, if the command can't be retried
+     */
+    private BluetoothPeer recoverPeer(BluetoothPeer failed, BluetoothException error, boolean replayable)
+            throws BluetoothException {
+        if (!replayable || !isHealing(failed)) {
+            throw error;
+        }
+        BluetoothPeer server = acquirePeer(failed.getAddress());
+        if (server == failed) {
+            throw error;
+        }
+        return server;
+    }
+
+    private static boolean isReplayable(int type, int command) {
+        return type == NO_REPLY && (command == SETOUTPUTSTATE || command == RESETMOTORPOSITION);
     }
 
-    public void removeConnectedPeer(BluetoothPeer server) {
-        mConnectedDevices.remove(server.getAddress());
+    private static boolean isReplayable(char[] values) {
+        return values.length > 0 && isReplayable(values[0] >> 8, values[0] & 0xFF);
+    }
+
+    private static boolean isReplayable(ByteBuffer frame) {
+        int type = frame.position() + FramePool.HEADER_SIZE;
+        return frame.limit() > type + 1 && isReplayable(frame.get(type) & 0xFF, frame.get(type + 1) & 0xFF);
+    }
+
+    private static boolean isReplayable(ByteBuffer[] frames, int count) {
+        for (int i = 0; i < count; i++) {
+            if (!isReplayable(frames[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isReplayable(CommandBatch batch) {
+        for (int i = 0; i < batch.getFrameCount(); i++) {
+            if (!isReplayable(batch.getFrame(i))) {
+                return false;
+            }
+        }
+        return true;
     }
 
     public BluetoothPeer getBluetoothPeer(String btAddress) {
         return mConnectedDevices.get(btAddress);
     }
 
+    @Override
+    public LinkStatus getLinkStatus(String btAddr) {
+        BluetoothPeer peer = getBluetoothPeer(btAddr);
+        return (peer != null) ? peer.getLinkStatus() : null;
+    }
+
+    /**
+     * Returns the number of connected peers
+     *
+     * @return
+     */
+    public int getConnectedCount() {
+        return mPeers.length;
+    }
+
     public char[] sendSingleCommand(String btAddr, char[] values, boolean response) throws BluetoothException {
-        char[] rsp = null;
-        BluetoothPeer server = mConnectedDevices.get(btAddr);
+        BluetoothPeer server = acquirePeer(btAddr);
+        try {
+            return sendCommand(server, values, response);
+        } catch (BluetoothException e) {
+            return sendCommand(recoverPeer(server, e, isReplayable(values)), values, response);
+        }
+    }
 
-        if (server == null)
-            throw new BluetoothException();
+    /**
+     * Sends a command. Its reply, if requested, is matched to it as any other request, so it is never mistaken for a
+     * message sent by the robot on its own
+     */
+    private char[] sendCommand(BluetoothPeer server, char[] values, boolean response) throws BluetoothException {
+        if (!response) {
+            server.send(values);
+            return null;
+        }
+        ByteBuffer frame = FrameDecoder.fromValues(values, getFramePool());
+        try {
+            ByteBuffer rsp = server.awaitReply(server.request(frame));
+            try {
+                return FrameDecoder.toValues(rsp);
+            } finally {
+                getFramePool().release(rsp);
+            }
+        } finally {
+            getFramePool().release(frame);
+        }
+    }
+
+    /**
+     * Sends a command to every connected robot. If a response is requested, the command is scattered to all of them
+     * at once and every robot must answer
+     *
+     * @return Reply of the first robot, or null if no response was requested or no robot is connected
+     * @throws BluetoothException if the command couldn't be sent, or a robot didn't answer it
+     */
+    public char[] broadcastCommand(char[] values, boolean response) throws BluetoothException {
+        ByteBuffer frame = FrameDecoder.fromValues(values, getFramePool());
+        try {
+            if (!response) {
+                broadcastFrame(frame, false);
+                return null;
+            }
+            BroadcastResult result = scatter(frame, true, 0);
+            try {
+                result.checkAllSucceeded();
+                return (result.size() > 0) ? FrameDecoder.toValues(result.getReply(0)) : null;
+            } finally {
+                result.release();
+            }
+        } finally {
+            getFramePool().release(frame);
+        }
+    }
+
+    public ByteBuffer sendSingleFrame(String btAddr, ByteBuffer frame, boolean response) throws BluetoothException {
+        return sendSingleFrame(btAddr, frame, response, OutboundQueue.PRIORITY_NORMAL);
+    }
+
+    @Override
+    public ByteBuffer sendSingleFrame(String btAddr, ByteBuffer frame, boolean response, int priority) throws BluetoothException {
+        BluetoothPeer server = acquirePeer(btAddr);
+        try {
+            return sendFrame(server, frame, response, priority);
+        } catch (BluetoothException e) {
+            return sendFrame(recoverPeer(server, e, isReplayable(frame)), frame, response, priority);
+        }
+    }
+
+    private ByteBuffer sendFrame(BluetoothPeer server, ByteBuffer frame, boolean response, int priority) throws BluetoothException {
+        ByteBuffer rsp = null;
 
-        server.send(values);
         if (response)
-            rsp = server.receive();
+            rsp = server.awaitReply(server.request(frame, priority));
+        else
+            server.enqueue(frame, priority);
 
         return rsp;
     }
 
+    public void sendSingleFrames(String btAddr, ByteBuffer[] frames, ByteBuffer[] responses, int count) throws BluetoothException {
+        sendSingleFrames(btAddr, frames, responses, count, OutboundQueue.PRIORITY_NORMAL);
+    }
 
-    public char[] broadcastCommand(char[] values, boolean response) throws BluetoothException {
-        Iterator it = mConnectedDevices.entrySet().iterator();
-        while (it.hasNext()) {
-            Map.Entry pair = (Map.Entry) it.next();
-            BluetoothPeer peer = (BluetoothPeer) pair.getValue();
-            peer.send(values);
+    @Override
+    public void sendSingleFrames(String btAddr, ByteBuffer[] frames, ByteBuffer[] responses, int count, int priority) throws BluetoothException {
+        BluetoothPeer server = acquirePeer(btAddr);
+        try {
+            sendFrames(server, frames, responses, count, priority);
+        } catch (BluetoothException e) {
+            sendFrames(recoverPeer(server, e, isReplayable(frames, count)), frames, responses, count, priority);
         }
+    }
+
+    private void sendFrames(BluetoothPeer server, ByteBuffer[] frames, ByteBuffer[] responses, int count, int priority) throws BluetoothException {
+        PendingReply[] pending = new PendingReply[count];
+        BluetoothException error = null;
+        for (int i = 0; i < count && error == null; i++) {
+            try {
+                pending[i] = server.request(frames[i], priority);
+            } catch (BluetoothException e) {
+                error = e;
+            }
+        }
+        // Every request already sent is waited for, even after a failure, so no reply is left in the stream
+        for (int i = 0; i < count; i++) {
+            responses[i] = null;
+            if (pending[i] == null)
+                continue;
+            try {
+                ByteBuffer rsp = server.awaitReply(pending[i]);
+                if (error == null)
+                    responses[i] = rsp;
+                else
+                    getFramePool().release(rsp);
+            } catch (BluetoothException e) {
+                if (error == null)
+                    error = e;
+            }
+        }
+        if (error != null) {
+            for (int i = 0; i < count; i++) {
+                getFramePool().release(responses[i]);
+                responses[i] = null;
+            }
+            throw error;
+        }
+    }
+
+    /**
+     * Every request is written before any reply is waited for, so the robots answer in parallel, and a single
+     * thread polls all of them. Robots being reconnected are skipped rather than waited for
+     */
+    @Override
+    public int sendFramesTo(String[] btAddrs, ByteBuffer[] frames, ByteBuffer[] responses, int count) throws BluetoothException {
+        BluetoothPeer[] servers = new BluetoothPeer[count];
+        PendingReply[] pending = new PendingReply[count];
+        for (int i = 0; i < count; i++) {
+            servers[i] = getBluetoothPeer(btAddrs[i]);
+            if (servers[i] == null || servers[i].isLinkLost()) {
+                continue;
+            }
+            try {
+                pending[i] = servers[i].request(frames[i]);
+            } catch (BluetoothException e) {
+                // Left without reply
+            }
+        }
+        int answered = 0;
+        BluetoothException interrupted = null;
+        for (int i = 0; i < count; i++) {
+            responses[i] = null;
+            if (pending[i] == null) {
+                continue;
+            }
+            if (interrupted != null) {
+                pending[i].cancel(interrupted);
+                continue;
+            }
+            try {
+                responses[i] = servers[i].awaitReply(pending[i]);
+                answered++;
+            } catch (BluetoothException e) {
+                if (Thread.currentThread().isInterrupted()) {
+                    interrupted = e;
+                }
+            }
+        }
+        if (interrupted != null) {
+            releaseAll(responses, count);
+            throw interrupted;
+        }
+        return answered;
+    }
+
+    public void broadcastFrames(ByteBuffer[] frames, ByteBuffer[] responses, int count) throws BluetoothException {
+        for (int i = 0; i < count; i++) {
+            broadcastFrame(frames[i], false);
+            responses[i] = null;
+        }
+    }
+
+    public ByteBuffer broadcastFrame(ByteBuffer frame, boolean response) throws BluetoothException {
+        return broadcastFrame(frame, response, OutboundQueue.PRIORITY_NORMAL);
+    }
+
+    @Override
+    public ByteBuffer broadcastFrame(ByteBuffer frame, boolean response, int priority) throws BluetoothException {
+        BluetoothException error = null;
+        BluetoothPeer[] peers = mPeers;
+        for (int i = 0; i < peers.length; i++) {
+            try {
+                peers[i].enqueue(frame, priority);
+            } catch (BluetoothException e) {
+                if (error == null && !isHealing(peers[i]))
+                    error = e;
+            }
+        }
+        if (error != null)
+            throw error;
         return null;
     }
 
+    public BroadcastResult scatterFrame(ByteBuffer frame, boolean response, long timeout) throws BluetoothException {
+        return scatter(frame, response, timeout);
+    }
+
+    public BroadcastResult scatterBatch(CommandBatch batch, long timeout) throws BluetoothException {
+        return scatter(batch.getBuffer(), false, timeout);
+    }
+
+    /**
+     * Writes the given data to every connected peer at once, each one from its own command executor.
+     * Writes are held until every executor is ready, so all robots receive the data as close together as possible
+     *
+     * @param data     Frames to write. They are not consumed
+     * @param response If true, a reply is read from every peer
+     * @param timeout  Maximum time to wait for every peer in milliseconds. 0 waits for all of them
+     * @return Per peer result
+     * @throws BluetoothException if the calling thread is interrupted while waiting
+     */
+    private BroadcastResult scatter(ByteBuffer data, final boolean response, long timeout) throws BluetoothException {
+        final BluetoothPeer[] peers = mPeers;
+        String[] addresses = new String[peers.length];
+        for (int i = 0; i < peers.length; i++) {
+            addresses[i] = peers[i].getAddress();
+        }
+        final BroadcastResult result = new BroadcastResult(addresses, getFramePool());
+        // Tasks may outlive a deadline, so they must not use the caller buffer once this method returns
+        final ByteBuffer shared = (timeout > 0) ? snapshot(data) : data;
+        final CountDownLatch ready = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(peers.length);
+
+        for (int i = 0; i < peers.length; i++) {
+            final int index = i;
+            final BluetoothPeer peer = peers[i];
+            Runnable task = new Runnable() {
+                public void run() {
+                    try {
+                        ready.await();
+                        ByteBuffer frame = shared.duplicate();
+                        if (response) {
+                            PendingReply reply = peer.request(frame);
+                            result.sent(index);
+                            result.completed(index, peer.awaitReply(reply));
+                        } else {
+                            peer.send(frame);
+                            result.sent(index);
+                            result.completed(index, null);
+                        }
+                    } catch (BluetoothException e) {
+                        result.failed(index, e);
+                    } catch (InterruptedException e) {
+                        result.failed(index, new BluetoothException("Interrupted"));
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            };
+            try {
+                CommandExecutors.getInstance().get(addresses[i]).execute(task);
+            } catch (RejectedExecutionException e) {
+                result.failed(index, new BluetoothException(addresses[i] + " is disconnecting"));
+                done.countDown();
+            }
+        }
+
+        result.start();
+        ready.countDown();
+        try {
+            if (timeout > 0) {
+                done.await(timeout, TimeUnit.MILLISECONDS);
+            } else {
+                done.await();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BluetoothException("Interrupted while broadcasting");
+        } finally {
+            result.close();
+        }
+        return result;
+    }
+
+    private static ByteBuffer snapshot(ByteBuffer data) {
+        byte[] copy = new byte[data.remaining()];
+        data.duplicate().get(copy);
+        return ByteBuffer.wrap(copy);
+    }
+
+    public void sendSingleBatch(String btAddr, CommandBatch batch) throws BluetoothException {
+        BluetoothPeer server = acquirePeer(btAddr);
+        try {
+            server.enqueue(batch);
+        } catch (BluetoothException e) {
+            recoverPeer(server, e, isReplayable(batch)).enqueue(batch);
+        }
+    }
+
+    public void broadcastBatch(CommandBatch batch) throws BluetoothException {
+        BluetoothException error = null;
+        BluetoothPeer[] peers = mPeers;
+        for (int i = 0; i < peers.length; i++) {
+            try {
+                peers[i].enqueue(batch);
+            } catch (BluetoothException e) {
+                if (error == null && !isHealing(peers[i]))
+                    error = e;
+            }
+        }
+        if (error != null)
+            throw error;
+    }
+
     public char[] waitForMessage(String btAddr) throws BluetoothException {
-        BluetoothPeer peer = mConnectedDevices.get(btAddr);
-        if (peer == null)
-            throw new BluetoothException();
+        return waitForMessage(btAddr, 0);
+    }
 
-        return peer.receive();
+    @Override
+    public char[] waitForMessage(String btAddr, long timeout) throws BluetoothException {
+        BluetoothPeer peer = acquirePeer(btAddr);
+        try {
+            return peer.receive(timeout);
+        } catch (BluetoothException e) {
+            return recoverPeer(peer, e, true).receive(timeout);
+        }
+    }
+
+    /**
+     * A single thread waits for all the robots: every peer signals the frames it receives, so silent robots are not
+     * polled. Robots which are not connected, or are being reconnected, are skipped rather than waited for
+     */
+    @Override
+    public int waitForMessages(String[] btAddrs, char[][] messages, long timeout) throws BluetoothException {
+        long deadline = (timeout > 0) ? System.currentTimeMillis() + timeout : 0;
+        while (true) {
+            long seen;
+            synchronized (mMessageSignal) {
+                seen = mMessageCount;
+            }
+            int received = collectMessages(btAddrs, messages);
+            if (received > 0)
+                return received;
+            synchronized (mMessageSignal) {
+                while (mMessageCount == seen) {
+                    long remaining = 0;
+                    if (deadline > 0) {
+                        remaining = deadline - System.currentTimeMillis();
+                        if (remaining <= 0)
+                            return 0;
+                    }
+                    try {
+                        mMessageSignal.wait(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new BluetoothException("Interrupted while waiting for a message");
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Takes the message already received from every given robot, if any
+     *
+     * @return Number of messages taken
+     */
+    private int collectMessages(String[] btAddrs, char[][] messages) {
+        int received = 0;
+        for (int i = 0; i < btAddrs.length; i++) {
+            messages[i] = null;
+            BluetoothPeer server = getBluetoothPeer(btAddrs[i]);
+            if (server == null || server.isLinkLost()) {
+                continue;
+            }
+            ByteBuffer frame;
+            try {
+                frame = server.pollFrame();
+            } catch (BluetoothException e) {
+                // Closed link, about to be replaced or removed
+                continue;
+            }
+            if (frame != null) {
+                try {
+                    messages[i] = FrameDecoder.toValues(frame);
+                    received++;
+                } finally {
+                    server.getFramePool().release(frame);
+                }
+            }
+        }
+        return received;
     }
 }
@@ -0,0 +1,190 @@
+package net.kaisoz.droidstorm.bluetooth.base;
+
+import net.kaisoz.droidstorm.bluetooth.FramePool;
+import net.kaisoz.droidstorm.bluetooth.LinkStatus;
+import net.kaisoz.droidstorm.bluetooth.OutboundQueue;
+import net.kaisoz.droidstorm.bluetooth.PendingReply;
+import net.kaisoz.droidstorm.bluetooth.exception.BluetoothException;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps idle robot links alive and measures them.
+ * Once a robot has sent nothing for a while a KEEPALIVE is sent, which resets the sleep timer of the brick, and whose
+ * round trip feeds the send scheduler as any other reply does. Robots which reply or send messages are not probed,
+ * since that traffic already proves them alive: commands written without reply prove nothing. The battery level of every robot is read now and then with GETBATTERYLEVEL.
+ * Probes are low priority requests, so they are shed while the link is busy. Their replies are collected on the next
+ * tick instead of being waited for, so a single thread probes every robot. Only peers served by the I/O reactor are
+ * probed, since nobody would read the replies of the others.
+ * A link which stays silent for several probes in a row is reported as lost, since a robot out of range doesn't
+ * always close its socket
+ */
+public class LinkProber {
+
+    private static final long TICK = 1000;
+    private static final long IDLE_TIME = TimeUnit.SECONDS.toNanos(5);
+    private static final long BATTERY_INTERVAL = TimeUnit.SECONDS.toNanos(60);
+    private static final long PROBE_TIMEOUT = TimeUnit.SECONDS.toNanos(2);
+    private static final int MAX_LOST_PROBES = 3;
+
+    // Direct commands requesting a reply, length prefix included
+    private static final byte[] KEEPALIVE = {0x02, 0x00, 0x00, 0x0D};
+    private static final byte[] GETBATTERYLEVEL = {0x02, 0x00, 0x00, 0x0B};
+    private static final int GETBATTERYLEVEL_COMMAND = 0x0B;
+    // Reply offsets, length prefix included
+    private static final int REPLY_COMMAND = FramePool.HEADER_SIZE + 1;
+    private static final int REPLY_STATUS = FramePool.HEADER_SIZE + 2;
+    private static final int REPLY_DATA = FramePool.HEADER_SIZE + 3;
+
+    private final CopyOnWriteArrayList<Probe> mProbes = new CopyOnWriteArrayList<Probe>();
+    private final ByteBuffer mKeepAlive = ByteBuffer.wrap(KEEPALIVE);
+    private final ByteBuffer mGetBatteryLevel = ByteBuffer.wrap(GETBATTERYLEVEL);
+    private ScheduledExecutorService mTimer = null;
+
+    private final Runnable mTick = new Runnable() {
+        public void run() {
+            long now = System.nanoTime();
+            for (Probe probe : mProbes) {
+                probe(probe, now);
+            }
+        }
+    };
+
+    private LinkProber() {
+    }
+
+    /**
+     * SingletonHolder is loaded on the first execution of Singleton.getInstance()
+     * or the first access to SingletonHolder.INSTANCE, not before.
+     */
+    private static class ProberHolder {
+        public static final LinkProber INSTANCE = new LinkProber();
+    }
+
+    public static LinkProber getInstance() {
+        return ProberHolder.INSTANCE;
+    }
+
+    /**
+     * Starts probing the link to the given peer
+     *
+     * @param peer Connected peer
+     */
+    public synchronized void add(BluetoothPeer peer) {
+        mProbes.add(new Probe(peer));
+        if (mTimer == null) {
+            mTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "LinkProber");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            mTimer.scheduleWithFixedDelay(mTick, TICK, TICK, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stops probing the link to the given peer
+     *
+     * @param peer Peer being disconnected
+     */
+    public void remove(BluetoothPeer peer) {
+        for (Probe probe : mProbes) {
+            if (probe.mPeer == peer) {
+                mProbes.remove(probe);
+            }
+        }
+    }
+
+    private void probe(Probe probe, long now) {
+        BluetoothPeer peer = probe.mPeer;
+        LinkStatus status = peer.getLinkStatus();
+        if (probe.mPending != null) {
+            if (probe.mPending.isDone()) {
+                collect(probe);
+            } else if (now - probe.mSentAt > PROBE_TIMEOUT) {
+                if (probe.mPending.cancel(new BluetoothException("Probe to " + peer.getAddress() + " timed out"))) {
+                    onProbeLost(probe);
+                } else {
+                    // Answered just in time
+                    collect(probe);
+                }
+            } else {
+                return;
+            }
+            probe.mPending = null;
+        }
+        if (!peer.isReading()) {
+            return;
+        }
+        try {
+            if (now - probe.mLastBattery >= BATTERY_INTERVAL) {
+                probe.mLastBattery = now;
+                send(probe, mGetBatteryLevel);
+            } else if (status.getIdleTime() >= IDLE_TIME) {
+                send(probe, mKeepAlive);
+            }
+        } catch (BluetoothException e) {
+            // Shed because the link is busy, or failed. Failures are reported to the next caller of the peer
+        }
+    }
+
+    private void send(Probe probe, ByteBuffer frame) throws BluetoothException {
+        probe.mSentAt = System.nanoTime();
+        probe.mPending = probe.mPeer.request(frame, OutboundQueue.PRIORITY_LOW);
+    }
+
+    private void collect(Probe probe) {
+        BluetoothPeer peer = probe.mPeer;
+        ByteBuffer reply;
+        try {
+            reply = probe.mPending.getReply();
+        } catch (BluetoothException e) {
+            onProbeLost(probe);
+            return;
+        }
+        probe.mLostInRow = 0;
+        try {
+            int start = reply.position();
+            if ((reply.get(start + REPLY_COMMAND) & 0xFF) == GETBATTERYLEVEL_COMMAND
+                    && reply.get(start + REPLY_STATUS) == 0 && reply.remaining() >= REPLY_DATA + 2) {
+                int millivolts = (reply.get(start + REPLY_DATA) & 0xFF)
+                        | ((reply.get(start + REPLY_DATA + 1) & 0xFF) << 8);
+                peer.getLinkStatus().setBatteryLevel(millivolts);
+            }
+        } finally {
+            peer.getFramePool().release(reply);
+        }
+    }
+
+    private void onProbeLost(Probe probe) {
+        probe.mPeer.getLinkStatus().onProbeLost();
+        if (++probe.mLostInRow >= MAX_LOST_PROBES) {
+            probe.mPeer.linkLost(new BluetoothException(probe.mPeer.getAddress() + " didn't answer "
+                    + MAX_LOST_PROBES + " probes"));
+        }
+    }
+
+    /**
+     * Probing state of a peer. Only used from the prober thread
+     */
+    private static class Probe {
+
+        final BluetoothPeer mPeer;
+        PendingReply mPending = null;
+        long mSentAt = 0;
+        int mLostInRow = 0;
+        // The battery level is read on the first tick
+        long mLastBattery = System.nanoTime() - BATTERY_INTERVAL;
+
+        Probe(BluetoothPeer peer) {
+            this.mPeer = peer;
+        }
+    }
+}
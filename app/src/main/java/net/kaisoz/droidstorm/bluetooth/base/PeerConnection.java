@@ -0,0 +1,103 @@
+package net.kaisoz.droidstorm.bluetooth.base;
+
+import net.kaisoz.droidstorm.bluetooth.BroadcastResult;
+import net.kaisoz.droidstorm.bluetooth.CommandBatch;
+import net.kaisoz.droidstorm.bluetooth.ConnectionBase;
+import net.kaisoz.droidstorm.bluetooth.LinkStatus;
+import net.kaisoz.droidstorm.bluetooth.exception.BluetoothException;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Connection bound to a single robot. It holds no peer of its own: every command is routed by address through the
+ * connection holding the connected peers, so it keeps working while the robot is reconnected.
+ * Handles are cheap, and the robot they are bound to never changes
+ */
+class PeerConnection extends ConnectionBase {
+
+    private final ConnectionDefault mPeers;
+
+    PeerConnection(ConnectionDefault peers, String btAddr) {
+        super(btAddr, peers.getFramePool());
+        this.mPeers = peers;
+    }
+
+    public char[] sendSingleCommand(String btAddr, char[] values, boolean response) throws BluetoothException {
+        return mPeers.sendSingleCommand(btAddr, values, response);
+    }
+
+    public char[] broadcastCommand(char[] values, boolean response) throws BluetoothException {
+        return mPeers.broadcastCommand(values, response);
+    }
+
+    public char[] waitForMessage(String btAddr) throws BluetoothException {
+        return mPeers.waitForMessage(btAddr);
+    }
+
+    @Override
+    public char[] waitForMessage(String btAddr, long timeout) throws BluetoothException {
+        return mPeers.waitForMessage(btAddr, timeout);
+    }
+
+    @Override
+    public int waitForMessages(String[] btAddrs, char[][] messages, long timeout) throws BluetoothException {
+        return mPeers.waitForMessages(btAddrs, messages, timeout);
+    }
+
+    public ByteBuffer sendSingleFrame(String btAddr, ByteBuffer frame, boolean response) throws BluetoothException {
+        return mPeers.sendSingleFrame(btAddr, frame, response);
+    }
+
+    @Override
+    public ByteBuffer sendSingleFrame(String btAddr, ByteBuffer frame, boolean response, int priority) throws BluetoothException {
+        return mPeers.sendSingleFrame(btAddr, frame, response, priority);
+    }
+
+    public ByteBuffer broadcastFrame(ByteBuffer frame, boolean response) throws BluetoothException {
+        return mPeers.broadcastFrame(frame, response);
+    }
+
+    @Override
+    public ByteBuffer broadcastFrame(ByteBuffer frame, boolean response, int priority) throws BluetoothException {
+        return mPeers.broadcastFrame(frame, response, priority);
+    }
+
+    public void sendSingleFrames(String btAddr, ByteBuffer[] frames, ByteBuffer[] responses, int count) throws BluetoothException {
+        mPeers.sendSingleFrames(btAddr, frames, responses, count);
+    }
+
+    @Override
+    public void sendSingleFrames(String btAddr, ByteBuffer[] frames, ByteBuffer[] responses, int count, int priority) throws BluetoothException {
+        mPeers.sendSingleFrames(btAddr, frames, responses, count, priority);
+    }
+
+    public void broadcastFrames(ByteBuffer[] frames, ByteBuffer[] responses, int count) throws BluetoothException {
+        mPeers.broadcastFrames(frames, responses, count);
+    }
+
+    @Override
+    public int sendFramesTo(String[] btAddrs, ByteBuffer[] frames, ByteBuffer[] responses, int count) throws BluetoothException {
+        return mPeers.sendFramesTo(btAddrs, frames, responses, count);
+    }
+
+    public BroadcastResult scatterFrame(ByteBuffer frame, boolean response, long timeout) throws BluetoothException {
+        return mPeers.scatterFrame(frame, response, timeout);
+    }
+
+    public BroadcastResult scatterBatch(CommandBatch batch, long timeout) throws BluetoothException {
+        return mPeers.scatterBatch(batch, timeout);
+    }
+
+    public void sendSingleBatch(String btAddr, CommandBatch batch) throws BluetoothException {
+        mPeers.sendSingleBatch(btAddr, batch);
+    }
+
+    public void broadcastBatch(CommandBatch batch) throws BluetoothException {
+        mPeers.broadcastBatch(batch);
+    }
+
+    @Override
+    public LinkStatus getLinkStatus(String btAddr) {
+        return mPeers.getLinkStatus(btAddr);
+    }
+}
@@ -0,0 +1,201 @@
+package net.kaisoz.droidstorm.bluetooth.base;
+
+import net.kaisoz.droidstorm.bluetooth.ConnectListener;
+import net.kaisoz.droidstorm.bluetooth.transport.Transport;
+import net.kaisoz.droidstorm.bluetooth.transport.TransportFactory;
+import net.kaisoz.droidstorm.util.IndexedMap;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Connects a set of robots concurrently.
+ * Connections are opened by a bounded number of threads, so a slow or unreachable robot doesn't delay the others.
+ * Blocking connects (such as RFCOMM ones) can't time out on their own, so every attempt is watched: once it takes
+ * longer than the timeout its transport is closed, which aborts the connect.
+ * Connected peers are added to the connection as soon as they are ready
+ */
+public class PeerConnector {
+
+    private static final int DEFAULT_PARALLELISM = 4;
+    private static final long DEFAULT_TIMEOUT = 15000;
+
+    // Attempt states
+    private static final int CONNECTING = 0;
+    private static final int CONNECTED = 1;
+    private static final int TIMED_OUT = 2;
+
+    private final TransportFactory mFactory;
+    private final ConnectionDefault mConnection;
+    private final int mParallelism;
+    private final long mTimeout;
+
+    public PeerConnector(TransportFactory factory, ConnectionDefault connection) {
+        this(factory, connection, DEFAULT_PARALLELISM, DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * Creates a connector with the given limits
+     *
+     * @param factory     Factory of the transports to the robots
+     * @param connection  Connection the connected peers are added to
+     * @param parallelism Maximum number of connections opened at once
+     * @param timeout     Maximum time a single connect may take, in milliseconds
+     */
+    public PeerConnector(TransportFactory factory, ConnectionDefault connection, int parallelism, long timeout) {
+        this.mFactory = factory;
+        this.mConnection = connection;
+        this.mParallelism = Math.max(1, parallelism);
+        this.mTimeout = timeout;
+    }
+
+    /**
+     * Connects the given robots, and waits until every attempt has succeeded, failed or timed out
+     *
+     * @param btAddresses Robot addresses
+     * @param listener    Listener of every attempt result as soon as it is known. May be null
+     * @return IndexedMap with two entries:
+     * * key: "success", value: Array of addresses of the peers successfully connected
+     * * key: "error",   value: Array of addresses of the peers which the connection couldn't be established
+     */
+    public IndexedMap connect(String[] btAddresses, ConnectListener listener) {
+        final ArrayList<String> success = new ArrayList<String>();
+        final ArrayList<String> error = new ArrayList<String>();
+        final CountDownLatch done = new CountDownLatch(btAddresses.length);
+
+        ExecutorService workers = Executors.newFixedThreadPool(Math.min(mParallelism, Math.max(1, btAddresses.length)),
+                new NamedThreadFactory("PeerConnector"));
+        ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(
+                new NamedThreadFactory("PeerConnector-watchdog"));
+        try {
+            for (int i = 0; i < btAddresses.length; i++) {
+                workers.execute(new Attempt(btAddresses[i], watchdog, success, error, listener, done));
+            }
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            workers.shutdownNow();
+            watchdog.shutdownNow();
+        }
+
+        IndexedMap connectionResult = new IndexedMap();
+        synchronized (success) {
+            connectionResult.put("success", success.toArray(new String[success.size()]));
+        }
+        synchronized (error) {
+            connectionResult.put("error", error.toArray(new String[error.size()]));
+        }
+        return connectionResult;
+    }
+
+    /**
+     * Connection attempt to a single robot
+     */
+    private class Attempt implements Runnable {
+
+        private final String mAddress;
+        private final ScheduledExecutorService mWatchdog;
+        private final ArrayList<String> mSuccess;
+        private final ArrayList<String> mError;
+        private final ConnectListener mListener;
+        private final CountDownLatch mDone;
+        private final AtomicInteger mState = new AtomicInteger(CONNECTING);
+
+        Attempt(String address, ScheduledExecutorService watchdog, ArrayList<String> success, ArrayList<String> error,
+                ConnectListener listener, CountDownLatch done) {
+            this.mAddress = address;
+            this.mWatchdog = watchdog;
+            this.mSuccess = success;
+            this.mError = error;
+            this.mListener = listener;
+            this.mDone = done;
+        }
+
+        public void run() {
+            try {
+                if (open()) {
+                    synchronized (mSuccess) {
+                        mSuccess.add(mAddress);
+                    }
+                    if (mListener != null) {
+                        mListener.onConnected(mAddress);
+                    }
+                } else {
+                    synchronized (mError) {
+                        mError.add(mAddress);
+                    }
+                    if (mListener != null) {
+                        mListener.onFailed(mAddress);
+                    }
+                }
+            } finally {
+                mDone.countDown();
+            }
+        }
+
+        private boolean open() {
+            final Transport transport;
+            try {
+                transport = mFactory.create(mAddress);
+            } catch (IOException e) {
+                return false;
+            }
+            ScheduledFuture<?> timeout = mWatchdog.schedule(new Runnable() {
+                public void run() {
+                    if (mState.compareAndSet(CONNECTING, TIMED_OUT)) {
+                        close(transport);
+                    }
+                }
+            }, mTimeout, TimeUnit.MILLISECONDS);
+
+            BluetoothPeer peer = new BluetoothPeer(transport, mConnection.getFramePool());
+            try {
+                peer.connect();
+            } catch (IOException e) {
+                timeout.cancel(false);
+                close(transport);
+                return false;
+            }
+            timeout.cancel(false);
+            if (!mState.compareAndSet(CONNECTING, CONNECTED)) {
+                // The watchdog closed it right as the connect completed
+                return false;
+            }
+            mConnection.addConnectedPeer(peer);
+            return true;
+        }
+
+        private void close(Transport transport) {
+            try {
+                transport.close();
+            } catch (IOException e) {
+                // The attempt has failed anyway
+            }
+        }
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+
+        private final String mName;
+        private int mCount = 0;
+
+        NamedThreadFactory(String name) {
+            this.mName = name;
+        }
+
+        public synchronized Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, mName + "-" + (mCount++));
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package net.kaisoz.droidstorm.bluetooth.base;
+
+import net.kaisoz.droidstorm.bluetooth.exception.BluetoothException;
+import net.kaisoz.droidstorm.bluetooth.transport.Transport;
+import net.kaisoz.droidstorm.bluetooth.transport.TransportFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opens again, in the background, the links to robots which have been lost.
+ * Attempts are retried with an exponential backoff until the robot answers or a time limit is reached. Before the
+ * new peer is handed to the connection, the last output state of every motor port is replayed to the robot, so it
+ * keeps moving (and the IR emitter of a follower keeps shining) as it did before the link was lost.
+ * Callers of the connection meanwhile wait for the new peer instead of failing
+ */
+public class PeerReconnector {
+
+    private static final long FIRST_DELAY = 250;
+    private static final long MAX_DELAY = 8000;
+    private static final long GIVE_UP_TIME = 60000;
+    private static final int THREADS = 2;
+
+    private final TransportFactory mFactory;
+    private final ConnectionDefault mConnection;
+    private final ScheduledExecutorService mExecutor;
+
+    /**
+     * Creates a reconnector for the peers of the given connection
+     *
+     * @param factory    Factory of the transports to the robots
+     * @param connection Connection whose lost peers are replaced
+     */
+    public PeerReconnector(TransportFactory factory, ConnectionDefault connection) {
+        this.mFactory = factory;
+        this.mConnection = connection;
+        this.mExecutor = Executors.newScheduledThreadPool(THREADS, new ThreadFactory() {
+            private int mCount = 0;
+
+            public synchronized Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "PeerReconnector-" + (mCount++));
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Starts replacing a peer whose link has been lost. Returns right away
+     *
+     * @param lost Lost peer. It is closed before the first attempt
+     */
+    void reconnect(BluetoothPeer lost) {
+        mExecutor.execute(new Attempt(lost));
+    }
+
+    /**
+     * Reconnection of a single robot, scheduled again after every failed attempt
+     */
+    private class Attempt implements Runnable {
+
+        private final BluetoothPeer mLost;
+        private final long mStarted = System.currentTimeMillis();
+        private long mDelay = FIRST_DELAY;
+        private boolean mClosed = false;
+
+        Attempt(BluetoothPeer lost) {
+            this.mLost = lost;
+        }
+
+        public void run() {
+            if (!mClosed) {
+                mClosed = true;
+                close(mLost);
+            }
+            if (!mConnection.isConnectedPeer(mLost)) {
+                // Disconnected meanwhile
+                return;
+            }
+            BluetoothPeer replacement = open();
+            if (replacement != null) {
+                if (!mConnection.replacePeer(mLost, replacement)) {
+                    close(replacement);
+                }
+                return;
+            }
+            if (System.currentTimeMillis() - mStarted + mDelay > GIVE_UP_TIME) {
+                mConnection.giveUpPeer(mLost);
+                return;
+            }
+            mExecutor.schedule(this, mDelay, TimeUnit.MILLISECONDS);
+            mDelay = Math.min(MAX_DELAY, mDelay * 2);
+        }
+
+        /**
+         * Connects to the robot again and restores its output states
+         *
+         * @return New peer, or null if the robot couldn't be reached
+         */
+        private BluetoothPeer open() {
+            Transport transport;
+            try {
+                transport = mFactory.create(mLost.getAddress());
+            } catch (IOException e) {
+                return null;
+            }
+            BluetoothPeer peer = new BluetoothPeer(transport, mConnection.getFramePool());
+            try {
+                peer.connect();
+            } catch (IOException e) {
+                close(peer);
+                return null;
+            }
+            ByteBuffer[] states = mLost.getOutputStates();
+            try {
+                for (int i = 0; i < states.length; i++) {
+                    peer.send(states[i]);
+                }
+            } catch (BluetoothException e) {
+                close(peer);
+                return null;
+            }
+            return peer;
+        }
+
+        private void close(BluetoothPeer peer) {
+            try {
+                peer.disconnect();
+            } catch (IOException e) {
+                // The link is gone anyway
+            }
+        }
+    }
+}
@@ -7,7 +7,9 @@ import android.content.IntentFilter;
 import android.util.Log;
 
 import net.kaisoz.droidstorm.bluetooth.BluetoothOperations;
+import net.kaisoz.droidstorm.bluetooth.ConnectListener;
 import net.kaisoz.droidstorm.bluetooth.Connection;
+import net.kaisoz.droidstorm.bluetooth.DiscoveryListener;
 import net.kaisoz.droidstorm.bluetooth.exception.BluetoothException;
 import net.kaisoz.droidstorm.util.IndexedMap;
 
@@ -114,6 +116,44 @@ public class BluetoothWrapperLegacy implements BluetoothOperations {
         return new ConnectionLegacy(btAddress);
     }
 
+    /**
+     * The native layer connects the robots one after another, so the results are reported once all of them are known
+     */
+    public IndexedMap connect(String[] btAddresses, ConnectListener listener) {
+        IndexedMap connectionResult = connect(btAddresses);
+        if (listener != null) {
+            String[] success = (String[]) connectionResult.get("success");
+            String[] error = (String[]) connectionResult.get("error");
+            for (int i = 0; success != null && i < success.length; i++) {
+                listener.onConnected(success[i]);
+            }
+            for (int i = 0; error != null && i < error.length; i++) {
+                listener.onFailed(error[i]);
+            }
+        }
+        return connectionResult;
+    }
+
+    /**
+     * The native layer only returns the devices once the inquiry has finished, so they are reported then
+     */
+    public IndexedMap discoverDevices(DiscoveryListener listener) throws BluetoothException {
+        IndexedMap found = discoverDevices();
+        if (listener != null && found != null) {
+            for (int i = 0; i < found.size(); i++) {
+                listener.onDeviceFound((String) found.getKey(i), (String) found.getValue(i));
+            }
+        }
+        return found;
+    }
+
+    /**
+     * The native layer doesn't keep track of known devices. They must be discovered
+     */
+    public IndexedMap getKnownDevices() {
+        return new IndexedMap();
+    }
+
     /**
      * Native functions
      ***/
@@ -1,17 +1,37 @@
 package net.kaisoz.droidstorm.bluetooth.legacy;
 
+import net.kaisoz.droidstorm.bluetooth.BroadcastResult;
+import net.kaisoz.droidstorm.bluetooth.CommandBatch;
 import net.kaisoz.droidstorm.bluetooth.ConnectionBase;
+import net.kaisoz.droidstorm.bluetooth.FrameDecoder;
+import net.kaisoz.droidstorm.bluetooth.FramePool;
 import net.kaisoz.droidstorm.bluetooth.exception.BluetoothException;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
 /**
- * Wrapper for ConnectionLegacy.c file. Sends and retrieves messages to/from the robots and listens to follower
+ * Wrapper for Connection.c file. Sends and retrieves messages to/from the robots and listens to follower
  * messages.
+ * Frames are handed to the native layer in direct buffers owned by this connection: it writes them to the socket and
+ * reads the replies without allocating nor copying them. Only one command is in the native layer at a time.
+ * Waits for messages poll the robot and sleep between polls without holding the native layer, so commands sent
+ * meanwhile, such as the motor commands of a leader, are never held back by a silent follower
  *
  * @author Tomás Tormo Franco
  */
 
 public class ConnectionLegacy extends ConnectionBase {
 
+    // Waits just for the messages already received
+    private static final long POLL = -1;
+    // Time between polls of a robot while waiting for its messages, in milliseconds
+    private static final long MESSAGE_POLL_INTERVAL = 10;
+
+    private final Object mNativeLock = new Object();
+    private final ByteBuffer mTxBuffer = ByteBuffer.allocateDirect(FramePool.MAX_FRAME_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private final ByteBuffer mRxBuffer = ByteBuffer.allocateDirect(FramePool.MAX_FRAME_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
     public ConnectionLegacy() {
         super();
     }
@@ -21,24 +41,176 @@ public class ConnectionLegacy extends ConnectionBase {
     }
 
     public char[] sendSingleCommand(String btAddr, char[] values, boolean response) throws BluetoothException {
-        return sendSingleCommandNative(btAddr, values, response);
+        ByteBuffer frame = FrameDecoder.fromValues(values, mFramePool);
+        try {
+            return toValues(sendSingleFrame(btAddr, frame, response));
+        } finally {
+            mFramePool.release(frame);
+        }
     }
 
 
     public char[] broadcastCommand(char[] values, boolean response) throws BluetoothException {
-        return broadcastCommandNative(values, response);
+        ByteBuffer frame = FrameDecoder.fromValues(values, mFramePool);
+        try {
+            return toValues(broadcastFrame(frame, response));
+        } finally {
+            mFramePool.release(frame);
+        }
     }
 
+    /**
+     * Only returns the messages already received: the native layer polls the robot
+     */
     public char[] waitForMessage(String btAddr) throws BluetoothException {
-        return waitForMessageNative(btAddr);
+        return waitForMessage(btAddr, POLL);
+    }
+
+    @Override
+    public char[] waitForMessage(String btAddr, long timeout) throws BluetoothException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (true) {
+            char[] message = pollMessage(btAddr);
+            if (message != null || timeout == POLL) {
+                return message;
+            }
+            long wait = MESSAGE_POLL_INTERVAL;
+            if (timeout > 0) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return null;
+                }
+                wait = Math.min(wait, remaining);
+            }
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new BluetoothException("Interrupted while waiting for a message from " + btAddr);
+            }
+        }
+    }
+
+    /**
+     * Reads a message the robot has already sent, if any
+     */
+    private char[] pollMessage(String btAddr) throws BluetoothException {
+        synchronized (mNativeLock) {
+            return toValues(fromReply(receiveFrameNative(btAddr, mRxBuffer, POLL)));
+        }
+    }
+
+    public ByteBuffer sendSingleFrame(String btAddr, ByteBuffer frame, boolean response) throws BluetoothException {
+        synchronized (mNativeLock) {
+            int length = toNative(frame);
+            return fromReply(sendFrameNative(btAddr, mTxBuffer, length, mRxBuffer, response));
+        }
+    }
+
+    public ByteBuffer broadcastFrame(ByteBuffer frame, boolean response) throws BluetoothException {
+        synchronized (mNativeLock) {
+            int length = toNative(frame);
+            return fromReply(broadcastFrameNative(mTxBuffer, length, mRxBuffer, response));
+        }
+    }
+
+    /**
+     * The native layer broadcasts on its own and doesn't report which robots it reached, so the result holds no
+     * robot. Replies can't be gathered
+     */
+    public BroadcastResult scatterFrame(ByteBuffer frame, boolean response, long timeout) throws BluetoothException {
+        broadcastFrame(frame, false);
+        return new BroadcastResult(new String[0], mFramePool);
+    }
+
+    public BroadcastResult scatterBatch(CommandBatch batch, long timeout) throws BluetoothException {
+        broadcastBatch(batch);
+        return new BroadcastResult(new String[0], mFramePool);
+    }
+
+    /**
+     * The native layer waits for each reply before sending the next command, so frames are not pipelined
+     */
+    public void sendSingleFrames(String btAddr, ByteBuffer[] frames, ByteBuffer[] responses, int count) throws BluetoothException {
+        for (int i = 0; i < count; i++) {
+            responses[i] = sendSingleFrame(btAddr, frames[i], true);
+        }
+    }
+
+    public void broadcastFrames(ByteBuffer[] frames, ByteBuffer[] responses, int count) throws BluetoothException {
+        for (int i = 0; i < count; i++) {
+            broadcastFrame(frames[i], false);
+            responses[i] = null;
+        }
+    }
+
+    /**
+     * The native layer writes a command at a time, so batched frames are sent one after another
+     */
+    public void sendSingleBatch(String btAddr, CommandBatch batch) throws BluetoothException {
+        for (int i = 0; i < batch.getFrameCount(); i++) {
+            sendSingleFrame(btAddr, batch.getFrame(i), false);
+        }
+    }
+
+    public void broadcastBatch(CommandBatch batch) throws BluetoothException {
+        for (int i = 0; i < batch.getFrameCount(); i++) {
+            broadcastFrame(batch.getFrame(i), false);
+        }
+    }
+
+    /**
+     * Copies a frame to the buffer the native layer sends from. The frame is not consumed
+     *
+     * @return Frame size, length prefix included
+     */
+    private int toNative(ByteBuffer frame) {
+        int position = frame.position();
+        mTxBuffer.clear();
+        mTxBuffer.put(frame);
+        frame.position(position);
+        return mTxBuffer.position();
+    }
+
+    /**
+     * Copies the reply the native layer has read to a pooled frame
+     *
+     * @param length Reply size, length prefix included. 0 if there is no reply
+     * @return Pooled frame, or null if there is no reply
+     */
+    private ByteBuffer fromReply(int length) {
+        if (length <= 0) {
+            return null;
+        }
+        mRxBuffer.clear();
+        mRxBuffer.limit(length);
+        ByteBuffer reply = mFramePool.acquire();
+        reply.put(mRxBuffer);
+        reply.flip();
+        return reply;
+    }
+
+    /**
+     * Translates a reply to the char array format, and gives it back to the pool
+     */
+    private char[] toValues(ByteBuffer reply) {
+        if (reply == null) {
+            return null;
+        }
+        try {
+            return FrameDecoder.toValues(reply);
+        } finally {
+            mFramePool.release(reply);
+        }
     }
 
     /**
-     * Native functions
+     * Native functions. Frames and replies are direct buffers, length prefix included. They return the reply size,
+     * or 0 if there is none
      **/
-    private native char[] sendSingleCommandNative(String btAddr, char[] values, boolean response) throws BluetoothException;
+    private native int sendFrameNative(String btAddr, ByteBuffer frame, int length, ByteBuffer reply, boolean response) throws BluetoothException;
 
-    private native char[] broadcastCommandNative(char[] values, boolean response) throws BluetoothException;
+    private native int broadcastFrameNative(ByteBuffer frame, int length, ByteBuffer reply, boolean response) throws BluetoothException;
 
-    private native char[] waitForMessageNative(String response) throws BluetoothException;
+    private native int receiveFrameNative(String btAddr, ByteBuffer reply, long timeout) throws BluetoothException;
 }
@@ -0,0 +1,87 @@
+package net.kaisoz.droidstorm.bluetooth.reactor;
+
+import net.kaisoz.droidstorm.bluetooth.transport.ChannelTransport;
+import net.kaisoz.droidstorm.bluetooth.transport.Transport;
+
+import java.io.IOException;
+
+/**
+ * Serves the reads and writes of every connected robot from a bounded number of threads.
+ * Links backed by a selectable channel (TCP) are multiplexed by a single selector thread: they are read when they
+ * become readable, and a write which doesn't fit in the socket buffer is completed once the link is writable again.
+ * Blocking streams, such as RFCOMM sockets, can't be selected, so each one is read by its own thread, which sleeps
+ * until the robot sends bytes or the link is closed.
+ */
+public class IoReactor {
+
+    private SelectorLoop mSelectorLoop = null;
+
+    private IoReactor() {
+    }
+
+    /**
+     * SingletonHolder is loaded on the first execution of Singleton.getInstance()
+     * or the first access to SingletonHolder.INSTANCE, not before.
+     */
+    private static class ReactorHolder {
+        public static final IoReactor INSTANCE = new IoReactor();
+    }
+
+    public static IoReactor getInstance() {
+        return ReactorHolder.INSTANCE;
+    }
+
+    /**
+     * Receives the bytes read from a link. Called from a reactor thread, so it must not block
+     */
+    public interface Listener {
+
+        /**
+         * Called with the bytes just read from the link
+         *
+         * @param data   Array holding the bytes. It is reused once this method returns
+         * @param offset Offset of the first byte
+         * @param length Number of bytes read
+         */
+        void onData(byte[] data, int offset, int length);
+
+        /**
+         * Called once when the link is found closed or broken. The link is no longer served
+         *
+         * @param cause Reason why the link can't be read anymore
+         */
+        void onClosed(IOException cause);
+    }
+
+    /**
+     * Starts serving a connected link. Its bytes will be handed to the listener as they arrive, and the link must be
+     * written through the returned registration from now on
+     *
+     * @param transport Connected link
+     * @param listener  Listener of the bytes read from the link
+     * @return
+     * @throws IOException if the link can't be served
+     */
+    public synchronized Registration register(Transport transport, Listener listener) throws IOException {
+        if (transport instanceof ChannelTransport) {
+            if (mSelectorLoop == null || !mSelectorLoop.isRunning()) {
+                mSelectorLoop = new SelectorLoop();
+            }
+            return mSelectorLoop.register(((ChannelTransport) transport).getChannel(), listener);
+        }
+        return new StreamReader(transport, listener);
+    }
+
+    /**
+     * Starts serving a connected link from a thread of its own blocked reading it, whatever its transport. Used for
+     * links which have to be read with a deadline but couldn't be registered
+     *
+     * @param transport Connected link
+     * @param listener  Listener of the bytes read from the link
+     * @return
+     * @throws IOException if the streams of the link can't be opened
+     */
+    public Registration registerStream(Transport transport, Listener listener) throws IOException {
+        return new StreamReader(transport, listener);
+    }
+}
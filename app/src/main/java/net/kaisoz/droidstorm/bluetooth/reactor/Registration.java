@@ -0,0 +1,21 @@
+package net.kaisoz.droidstorm.bluetooth.reactor;
+
+import java.io.OutputStream;
+
+/**
+ * Link served by the I/O reactor
+ */
+public abstract class Registration {
+
+    /**
+     * Returns the stream the bytes to the robot must be written to while the link is served
+     *
+     * @return
+     */
+    public abstract OutputStream getOutputStream();
+
+    /**
+     * Stops serving the link. The link itself is not closed. Writes still blocked on it fail
+     */
+    public abstract void cancel();
+}
@@ -0,0 +1,250 @@
+package net.kaisoz.droidstorm.bluetooth.reactor;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Serves many socket channels from a single thread, reading and writing them as they become ready.
+ * Keys are only touched from the selector thread: other threads queue tasks and wake the selector up.
+ * A link whose listener fails is closed on its own. If the selector itself fails, every link is closed and the loop
+ * stops, so the reactor starts a new one for the next links
+ */
+class SelectorLoop implements Runnable {
+
+    private static final int READ_BUFFER = 512;
+
+    private final Selector mSelector;
+    private final ConcurrentLinkedQueue<Runnable> mTasks = new ConcurrentLinkedQueue<Runnable>();
+    private final ByteBuffer mReadBuffer = ByteBuffer.allocate(READ_BUFFER);
+    private volatile boolean mRunning = true;
+
+    SelectorLoop() throws IOException {
+        mSelector = Selector.open();
+        Thread thread = new Thread(this, "IoReactor-selector");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Returns false once the selector has failed. Links can't be registered anymore
+     *
+     * @return
+     */
+    boolean isRunning() {
+        return mRunning;
+    }
+
+    Registration register(SocketChannel channel, IoReactor.Listener listener) throws IOException {
+        channel.configureBlocking(false);
+        final ChannelRegistration registration = new ChannelRegistration(channel, listener);
+        execute(new Runnable() {
+            public void run() {
+                registration.open();
+            }
+        });
+        return registration;
+    }
+
+    private void execute(Runnable task) {
+        mTasks.add(task);
+        mSelector.wakeup();
+    }
+
+    public void run() {
+        try {
+            while (true) {
+                mSelector.select();
+                Runnable task = mTasks.poll();
+                while (task != null) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        // Tasks close their own link if they fail to serve it. The others go on
+                    }
+                    task = mTasks.poll();
+                }
+                Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    ChannelRegistration registration = (ChannelRegistration) key.attachment();
+                    try {
+                        if (key.isValid() && key.isWritable()) {
+                            registration.onWritable();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            registration.onReadable();
+                        }
+                    } catch (RuntimeException e) {
+                        registration.close(failure(e));
+                    }
+                }
+            }
+        } catch (Throwable e) {
+            mRunning = false;
+            IOException cause = (e instanceof IOException) ? (IOException) e : failure(e);
+            for (SelectionKey key : mSelector.keys()) {
+                try {
+                    ((ChannelRegistration) key.attachment()).close(cause);
+                } catch (RuntimeException ignored) {
+                    // The other links are closed anyway
+                }
+            }
+            try {
+                mSelector.close();
+            } catch (IOException ignored) {
+                // Nothing else can be done with it
+            }
+            if (e instanceof Error) {
+                throw (Error) e;
+            }
+        }
+    }
+
+    private static IOException failure(Throwable e) {
+        IOException error = new IOException("Error serving the link: " + e);
+        error.initCause(e);
+        return error;
+    }
+
+    private class ChannelRegistration extends Registration {
+
+        private final SocketChannel mChannel;
+        private final IoReactor.Listener mListener;
+        // Only used from the selector thread
+        private SelectionKey mKey = null;
+        private final Object mWriteLock = new Object();
+        private boolean mWritable = true;
+        private boolean mClosed = false;
+
+        private final OutputStream mOut = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                ChannelRegistration.this.write(b, off, len);
+            }
+        };
+
+        private final Runnable mWatchWritable = new Runnable() {
+            public void run() {
+                if (mKey != null && mKey.isValid()) {
+                    mKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                }
+            }
+        };
+
+        ChannelRegistration(SocketChannel channel, IoReactor.Listener listener) {
+            this.mChannel = channel;
+            this.mListener = listener;
+        }
+
+        void open() {
+            try {
+                mKey = mChannel.register(mSelector, SelectionKey.OP_READ, this);
+            } catch (ClosedChannelException e) {
+                close(e);
+            } catch (RuntimeException e) {
+                close(failure(e));
+            }
+        }
+
+        /**
+         * Writes as much as the socket buffer takes right away, and waits for the selector to report the link
+         * writable again for the rest
+         */
+        private void write(byte[] data, int offset, int length) throws IOException {
+            ByteBuffer src = ByteBuffer.wrap(data, offset, length);
+            synchronized (mWriteLock) {
+                while (true) {
+                    if (mClosed) {
+                        throw new IOException("Link is no longer served");
+                    }
+                    mChannel.write(src);
+                    if (!src.hasRemaining()) {
+                        return;
+                    }
+                    mWritable = false;
+                    execute(mWatchWritable);
+                    while (!mWritable && !mClosed) {
+                        try {
+                            mWriteLock.wait();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new InterruptedIOException();
+                        }
+                    }
+                }
+            }
+        }
+
+        void onWritable() {
+            mKey.interestOps(SelectionKey.OP_READ);
+            synchronized (mWriteLock) {
+                mWritable = true;
+                mWriteLock.notifyAll();
+            }
+        }
+
+        void onReadable() {
+            mReadBuffer.clear();
+            int read;
+            try {
+                read = mChannel.read(mReadBuffer);
+            } catch (IOException e) {
+                close(e);
+                return;
+            }
+            if (read < 0) {
+                close(new IOException("Connection closed by the robot"));
+            } else if (read > 0) {
+                mListener.onData(mReadBuffer.array(), mReadBuffer.arrayOffset(), read);
+            }
+        }
+
+        void close(IOException cause) {
+            if (mKey != null) {
+                mKey.cancel();
+            }
+            synchronized (mWriteLock) {
+                if (mClosed) {
+                    return;
+                }
+                mClosed = true;
+                mWriteLock.notifyAll();
+            }
+            mListener.onClosed(cause);
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return mOut;
+        }
+
+        @Override
+        public void cancel() {
+            synchronized (mWriteLock) {
+                mClosed = true;
+                mWriteLock.notifyAll();
+            }
+            execute(new Runnable() {
+                public void run() {
+                    if (mKey != null) {
+                        mKey.cancel();
+                    }
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package net.kaisoz.droidstorm.bluetooth.reactor;
+
+import net.kaisoz.droidstorm.bluetooth.transport.Transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Serves a blocking stream from its own thread.
+ * The thread stays blocked reading the stream, so it only wakes up when the robot sends bytes, and a link closed by
+ * either end is noticed right away. A Bluetooth piconet holds seven robots at most, so these threads stay few.
+ * Once cancelled the thread hands nothing more to the listener, and ends as soon as its read returns. Links should be
+ * closed once cancelled: bytes the robot sends until then are dropped
+ */
+class StreamReader extends Registration implements Runnable {
+
+    private static final int READ_BUFFER = 512;
+
+    private final InputStream mIn;
+    private final OutputStream mOut;
+    private final IoReactor.Listener mListener;
+    private final byte[] mBuffer = new byte[READ_BUFFER];
+    private volatile boolean mCancelled = false;
+
+    StreamReader(Transport transport, IoReactor.Listener listener) throws IOException {
+        this.mIn = transport.getInputStream();
+        this.mOut = transport.getOutputStream();
+        this.mListener = listener;
+        Thread thread = new Thread(this, "IoReactor-reader-" + transport.getAddress());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void run() {
+        IOException cause;
+        try {
+            while (true) {
+                int read = mIn.read(mBuffer, 0, mBuffer.length);
+                if (mCancelled) {
+                    return;
+                }
+                if (read < 0) {
+                    cause = new IOException("Connection closed by the robot");
+                    break;
+                }
+                try {
+                    mListener.onData(mBuffer, 0, read);
+                } catch (RuntimeException e) {
+                    // The bytes are lost, so the link can't be trusted anymore
+                    cause = new IOException("Error handling the bytes read: " + e);
+                    cause.initCause(e);
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            cause = e;
+        }
+        if (!mCancelled) {
+            mCancelled = true;
+            mListener.onClosed(cause);
+        }
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return mOut;
+    }
+
+    @Override
+    public void cancel() {
+        mCancelled = true;
+    }
+}
@@ -0,0 +1,19 @@
+package net.kaisoz.droidstorm.bluetooth.transport;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Transport backed by a selectable channel, so its reads and writes can be multiplexed with those of other robots
+ * instead of parking a thread on each link
+ */
+public interface ChannelTransport extends Transport {
+
+    /**
+     * Returns the channel of the link. Only valid once connected
+     *
+     * @return
+     * @throws IOException if the link is not open
+     */
+    public SocketChannel getChannel() throws IOException;
+}
@@ -0,0 +1,132 @@
+package net.kaisoz.droidstorm.bluetooth.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Transport over a pair of in-memory pipes, used to run the protocol stack against a stand-in robot in the same
+ * process, without any socket.
+ * Transports are created in pairs: what is written to one end is read from the other. Closing either end closes
+ * the link for both
+ */
+public class InMemoryTransport implements Transport {
+
+    // Bytes buffered in each direction. About what the NXT Bluetooth chip buffers
+    private static final int DEFAULT_BUFFER_SIZE = 512;
+
+    private final String mAddress;
+    private final MemoryPipe mIn;
+    private final MemoryPipe mOut;
+    private InMemoryTransport mRemote;
+    private Listener mListener = null;
+
+    private InMemoryTransport(String address, MemoryPipe in, MemoryPipe out) {
+        this.mAddress = address;
+        this.mIn = in;
+        this.mOut = out;
+    }
+
+    /**
+     * Receives the remote end of a link once the local end is connected
+     */
+    public interface Listener {
+        void onConnect(InMemoryTransport remote);
+    }
+
+    /**
+     * Creates both ends of a link
+     *
+     * @param address Address both ends report, which identifies the stand-in robot
+     * @return Local end and remote end, in this order
+     */
+    public static InMemoryTransport[] pair(String address) {
+        return pair(address, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Creates both ends of a link whose pipes buffer the given number of bytes
+     *
+     * @param address    Address both ends report, which identifies the stand-in robot
+     * @param bufferSize Bytes buffered in each direction before writes block
+     * @return Local end and remote end, in this order
+     */
+    public static InMemoryTransport[] pair(String address, int bufferSize) {
+        MemoryPipe toRemote = new MemoryPipe(bufferSize);
+        MemoryPipe toLocal = new MemoryPipe(bufferSize);
+        InMemoryTransport local = new InMemoryTransport(address, toLocal, toRemote);
+        InMemoryTransport remote = new InMemoryTransport(address, toRemote, toLocal);
+        local.mRemote = remote;
+        remote.mRemote = local;
+        return new InMemoryTransport[]{local, remote};
+    }
+
+    /**
+     * Creates the factory of in-memory transports. Every created transport hands its remote end to the listener
+     * when connected, so the stand-in robot can start serving it
+     *
+     * @param listener Receives the remote end of every link
+     * @return
+     */
+    public static TransportFactory factory(final Listener listener) {
+        return new TransportFactory() {
+            public Transport create(String address) {
+                InMemoryTransport local = pair(address)[0];
+                local.mListener = listener;
+                return local;
+            }
+        };
+    }
+
+    /**
+     * Returns the other end of this link
+     *
+     * @return
+     */
+    public InMemoryTransport getRemote() {
+        return mRemote;
+    }
+
+    /**
+     * Sets the task run every time bytes can be read from this end, or the link is closed.
+     * It runs on the thread which wrote the bytes, so it must not block. This lets a stand-in robot serve many links
+     * from a few threads instead of blocking a thread on every read
+     *
+     * @param listener Task to run, or null
+     */
+    public void setReadListener(Runnable listener) {
+        mIn.setListener(listener);
+    }
+
+    /**
+     * Returns true once either end has been closed
+     *
+     * @return
+     */
+    public boolean isClosed() {
+        return mIn.isClosed() || mOut.isClosed();
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public void connect() {
+        if (mListener != null) {
+            mListener.onConnect(mRemote);
+        }
+    }
+
+    public InputStream getInputStream() {
+        return mIn.getInputStream();
+    }
+
+    public OutputStream getOutputStream() {
+        return mOut.getOutputStream();
+    }
+
+    public void close() throws IOException {
+        mIn.close();
+        mOut.close();
+    }
+}
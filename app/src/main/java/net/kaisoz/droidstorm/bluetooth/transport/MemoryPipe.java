@@ -0,0 +1,156 @@
+package net.kaisoz.droidstorm.bluetooth.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * One direction of an in-memory link: a bounded ring buffer with a blocking stream at each end.
+ * Unlike piped streams, it is not bound to the threads which use it, so any executor thread can read or write.
+ * Writes block while the buffer is full, as socket writes do when the remote end doesn't keep up
+ */
+class MemoryPipe {
+
+    private final byte[] mBuffer;
+    private int mHead = 0;
+    private int mCount = 0;
+    private boolean mClosed = false;
+    private volatile Runnable mListener = null;
+
+    private final InputStream mInput = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return (MemoryPipe.this.read(one, 0, 1) < 0) ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return MemoryPipe.this.read(b, off, len);
+        }
+
+        @Override
+        public int available() {
+            return MemoryPipe.this.available();
+        }
+
+        @Override
+        public void close() {
+            MemoryPipe.this.close();
+        }
+    };
+
+    private final OutputStream mOutput = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            MemoryPipe.this.write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            MemoryPipe.this.write(b, off, len);
+        }
+
+        @Override
+        public void close() {
+            MemoryPipe.this.close();
+        }
+    };
+
+    MemoryPipe(int capacity) {
+        mBuffer = new byte[capacity];
+    }
+
+    /**
+     * Sets the task run, on the writing thread, every time bytes are written or the pipe is closed
+     */
+    void setListener(Runnable listener) {
+        mListener = listener;
+    }
+
+    InputStream getInputStream() {
+        return mInput;
+    }
+
+    OutputStream getOutputStream() {
+        return mOutput;
+    }
+
+    synchronized int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (mCount == 0 && !mClosed) {
+            await();
+        }
+        if (mCount == 0) {
+            return -1;
+        }
+        int read = 0;
+        while (read < len && mCount > 0) {
+            int chunk = Math.min(Math.min(len - read, mCount), mBuffer.length - mHead);
+            System.arraycopy(mBuffer, mHead, b, off + read, chunk);
+            mHead = (mHead + chunk) % mBuffer.length;
+            mCount -= chunk;
+            read += chunk;
+        }
+        notifyAll();
+        return read;
+    }
+
+    void write(byte[] b, int off, int len) throws IOException {
+        writeLocked(b, off, len);
+        notifyListener();
+    }
+
+    private synchronized void writeLocked(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            while (mCount == mBuffer.length && !mClosed) {
+                await();
+            }
+            if (mClosed) {
+                throw new IOException("Pipe closed");
+            }
+            int tail = (mHead + mCount) % mBuffer.length;
+            int chunk = Math.min(Math.min(len, mBuffer.length - mCount), mBuffer.length - tail);
+            System.arraycopy(b, off, mBuffer, tail, chunk);
+            mCount += chunk;
+            off += chunk;
+            len -= chunk;
+            notifyAll();
+        }
+    }
+
+    synchronized boolean isClosed() {
+        return mClosed;
+    }
+
+    synchronized int available() {
+        return mCount;
+    }
+
+    void close() {
+        synchronized (this) {
+            mClosed = true;
+            notifyAll();
+        }
+        notifyListener();
+    }
+
+    private void notifyListener() {
+        Runnable listener = mListener;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    private void await() throws InterruptedIOException {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package net.kaisoz.droidstorm.bluetooth.transport;
+
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+
+import net.kaisoz.droidstorm.bluetooth.KnownRobot;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.UUID;
+
+/**
+ * Transport over an Android RFCOMM socket, using the serial port profile the NXT exposes.
+ * When the channel a robot used last time is known, it is opened directly, which skips the SDP lookup of the
+ * serial port service. If that fails, the service is looked up as usual
+ */
+@TargetApi(5)
+public class RfcommTransport implements Transport {
+
+    private static final UUID SERIAL_PORT_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+
+    private final BluetoothDevice mDevice;
+    private final int mChannelHint;
+    private volatile BluetoothSocket mSocket;
+    private volatile boolean mClosed = false;
+    private int mChannel = KnownRobot.UNKNOWN_CHANNEL;
+
+    public RfcommTransport(BluetoothDevice device) {
+        this(device, KnownRobot.UNKNOWN_CHANNEL);
+    }
+
+    /**
+     * Creates a transport which tries the given channel first
+     *
+     * @param device  Robot
+     * @param channel RFCOMM channel the last connection used, or KnownRobot.UNKNOWN_CHANNEL
+     */
+    public RfcommTransport(BluetoothDevice device, int channel) {
+        this.mDevice = device;
+        this.mChannelHint = channel;
+    }
+
+    public String getAddress() {
+        return mDevice.getAddress();
+    }
+
+    /**
+     * Returns the RFCOMM channel of the connection
+     *
+     * @return Channel, or KnownRobot.UNKNOWN_CHANNEL if it couldn't be found out
+     */
+    public int getChannel() {
+        return mChannel;
+    }
+
+    public void connect() throws IOException {
+        if (mChannelHint > 0) {
+            try {
+                mSocket = createSocket(mChannelHint);
+                mSocket.connect();
+                mChannel = mChannelHint;
+                return;
+            } catch (IOException e) {
+                // The robot may have moved the service to another channel. It is looked up below
+                closeSocket();
+            }
+        }
+        if (mClosed) {
+            throw new IOException("Connection to " + getAddress() + " aborted");
+        }
+        mSocket = mDevice.createRfcommSocketToServiceRecord(SERIAL_PORT_UUID);
+        mSocket.connect();
+        mChannel = readChannel(mSocket);
+    }
+
+    /**
+     * Creates a socket to the given channel, through the method the platform hides
+     */
+    private BluetoothSocket createSocket(int channel) throws IOException {
+        try {
+            Method createRfcommSocket = mDevice.getClass().getMethod("createRfcommSocket", int.class);
+            return (BluetoothSocket) createRfcommSocket.invoke(mDevice, channel);
+        } catch (Exception e) {
+            throw new IOException("RFCOMM channels can't be opened directly");
+        }
+    }
+
+    /**
+     * Finds out the channel a connected socket uses, from the field the platform hides
+     */
+    private static int readChannel(BluetoothSocket socket) {
+        try {
+            Field port = BluetoothSocket.class.getDeclaredField("mPort");
+            port.setAccessible(true);
+            return port.getInt(socket);
+        } catch (Exception e) {
+            return KnownRobot.UNKNOWN_CHANNEL;
+        }
+    }
+
+    public InputStream getInputStream() throws IOException {
+        return socket().getInputStream();
+    }
+
+    public OutputStream getOutputStream() throws IOException {
+        return socket().getOutputStream();
+    }
+
+    public void close() throws IOException {
+        mClosed = true;
+        if (mSocket != null) {
+            mSocket.close();
+        }
+    }
+
+    private void closeSocket() {
+        try {
+            if (mSocket != null) {
+                mSocket.close();
+            }
+        } catch (IOException e) {
+            // Replaced anyway
+        }
+        mSocket = null;
+    }
+
+    private BluetoothSocket socket() throws IOException {
+        if (mSocket == null) {
+            throw new IOException(getAddress() + " is not connected");
+        }
+        return mSocket;
+    }
+}
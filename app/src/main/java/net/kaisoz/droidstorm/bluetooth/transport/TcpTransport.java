@@ -0,0 +1,101 @@
+package net.kaisoz.droidstorm.bluetooth.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Transport over a TCP socket, used to reach a stand-in robot (such as a simulator) from a development machine.
+ * Frames are carried exactly as over RFCOMM. Nagle's algorithm is disabled so small frames are not held back.
+ * The socket is opened through a channel, so the link can be served by the I/O reactor once connected
+ */
+public class TcpTransport implements ChannelTransport {
+
+    private static final int CONNECT_TIMEOUT = 5000;
+
+    private final String mHost;
+    private final int mPort;
+    private SocketChannel mChannel;
+
+    public TcpTransport(String host, int port) {
+        this.mHost = host;
+        this.mPort = port;
+    }
+
+    /**
+     * Creates the factory of TCP transports whose addresses are "host:port" strings
+     *
+     * @return
+     */
+    public static TransportFactory factory() {
+        return new TransportFactory() {
+            public Transport create(String address) throws IOException {
+                int separator = address.lastIndexOf(':');
+                if (separator <= 0) {
+                    throw new IOException("Not a host:port address: " + address);
+                }
+                try {
+                    return new TcpTransport(address.substring(0, separator),
+                            Integer.parseInt(address.substring(separator + 1)));
+                } catch (NumberFormatException e) {
+                    throw new IOException("Not a host:port address: " + address);
+                }
+            }
+        };
+    }
+
+    public String getAddress() {
+        return mHost + ":" + mPort;
+    }
+
+    public void connect() throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            Socket socket = channel.socket();
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(mHost, mPort), CONNECT_TIMEOUT);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        mChannel = channel;
+    }
+
+    public SocketChannel getChannel() throws IOException {
+        if (mChannel == null) {
+            throw new IOException(getAddress() + " is not connected");
+        }
+        return mChannel;
+    }
+
+    /**
+     * Returns the stream the robot bytes are read from. It can only be read while the channel is in blocking mode,
+     * that is, while the link is not served by the I/O reactor
+     *
+     * @return
+     * @throws IOException if the link is not open
+     */
+    public InputStream getInputStream() throws IOException {
+        return getChannel().socket().getInputStream();
+    }
+
+    /**
+     * Returns the stream the bytes to the robot are written to. It can only be written while the channel is in
+     * blocking mode, that is, while the link is not served by the I/O reactor
+     *
+     * @return
+     * @throws IOException if the link is not open
+     */
+    public OutputStream getOutputStream() throws IOException {
+        return getChannel().socket().getOutputStream();
+    }
+
+    public void close() throws IOException {
+        if (mChannel != null) {
+            mChannel.close();
+        }
+    }
+}
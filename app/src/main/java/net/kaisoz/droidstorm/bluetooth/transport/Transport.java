@@ -0,0 +1,50 @@
+package net.kaisoz.droidstorm.bluetooth.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Byte stream link to a single robot.
+ * Peers exchange length-prefixed NXT frames over it, whatever carries the bytes: an RFCOMM socket on the device, or
+ * a TCP socket or an in-memory pipe to a stand-in robot when the protocol stack runs off-device
+ */
+public interface Transport {
+
+    /**
+     * Returns the address of the remote end, which identifies the robot
+     *
+     * @return
+     */
+    public String getAddress();
+
+    /**
+     * Opens the link. Blocks until it is established
+     *
+     * @throws IOException if the link couldn't be established
+     */
+    public void connect() throws IOException;
+
+    /**
+     * Returns the stream the robot bytes are read from. Only valid once connected
+     *
+     * @return
+     * @throws IOException if the link is not open
+     */
+    public InputStream getInputStream() throws IOException;
+
+    /**
+     * Returns the stream the bytes to the robot are written to. Only valid once connected
+     *
+     * @return
+     * @throws IOException if the link is not open
+     */
+    public OutputStream getOutputStream() throws IOException;
+
+    /**
+     * Closes the link. Any blocked read or write fails
+     *
+     * @throws IOException if the link couldn't be closed cleanly
+     */
+    public void close() throws IOException;
+}
@@ -0,0 +1,18 @@
+package net.kaisoz.droidstorm.bluetooth.transport;
+
+import java.io.IOException;
+
+/**
+ * Creates the transport which reaches the robot with a given address
+ */
+public interface TransportFactory {
+
+    /**
+     * Creates a transport to the given robot. It is not connected yet
+     *
+     * @param address Robot address
+     * @return
+     * @throws IOException if the address can't be reached by this kind of transport
+     */
+    public Transport create(String address) throws IOException;
+}
@@ -0,0 +1,127 @@
+package net.kaisoz.droidstorm.bluetooth.transport;
+
+import net.kaisoz.droidstorm.bluetooth.BluetoothOperations;
+import net.kaisoz.droidstorm.bluetooth.ConnectListener;
+import net.kaisoz.droidstorm.bluetooth.Connection;
+import net.kaisoz.droidstorm.bluetooth.DiscoveryListener;
+import net.kaisoz.droidstorm.bluetooth.base.BluetoothPeer;
+import net.kaisoz.droidstorm.bluetooth.base.ConnectionDefault;
+import net.kaisoz.droidstorm.bluetooth.base.PeerConnector;
+import net.kaisoz.droidstorm.bluetooth.base.PeerReconnector;
+import net.kaisoz.droidstorm.util.IndexedMap;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Bluetooth operations over any transport, so the controllers and interfaces can drive stand-in robots (through
+ * TCP or in-memory transports) exactly as they drive real ones.
+ * There is no adapter to enable. Discovery reports the robots registered with addDevice()
+ * Lost links are reconnected in the background
+ */
+public class TransportWrapper implements BluetoothOperations {
+
+    private final TransportFactory mFactory;
+    private final ConnectionDefault mConnection;
+    private final IndexedMap mKnownDevices = new IndexedMap();
+
+    public TransportWrapper(TransportFactory factory) {
+        this.mFactory = factory;
+        this.mConnection = new ConnectionDefault();
+        this.mConnection.setReconnector(new PeerReconnector(factory, mConnection));
+    }
+
+    /**
+     * Registers a robot reachable through the transport, to be reported by discoverDevices()
+     *
+     * @param name    Robot name
+     * @param address Robot address, as understood by the transport factory
+     */
+    public void addDevice(String name, String address) {
+        synchronized (mKnownDevices) {
+            mKnownDevices.put(name, address);
+        }
+    }
+
+    public Connection getConnection() {
+        return mConnection;
+    }
+
+    public Connection getConnection(String btAddress) {
+        return mConnection.getPeerConnection(btAddress);
+    }
+
+    public boolean enable() {
+        return true;
+    }
+
+    public boolean isEnabled() {
+        return true;
+    }
+
+    public IndexedMap connect(String[] btAddresses) {
+        return connect(btAddresses, null);
+    }
+
+    public IndexedMap connect(String[] btAddresses, ConnectListener listener) {
+        return new PeerConnector(mFactory, mConnection).connect(btAddresses, listener);
+    }
+
+    public IndexedMap disconnect(String[] btAddresses) {
+        IndexedMap disconnectionResult = new IndexedMap();
+        ArrayList<String> success = new ArrayList<String>();
+        ArrayList<String> error = new ArrayList<String>();
+
+        for (int i = 0; i < btAddresses.length; i++) {
+            BluetoothPeer peer = mConnection.getBluetoothPeer(btAddresses[i]);
+            if (peer == null) {
+                error.add(btAddresses[i]);
+                continue;
+            }
+            try {
+                peer.disconnect();
+                success.add(btAddresses[i]);
+            } catch (IOException e) {
+                error.add(btAddresses[i]);
+            } finally {
+                mConnection.removeConnectedPeer(peer);
+            }
+        }
+
+        disconnectionResult.put("success", success.toArray(new String[success.size()]));
+        disconnectionResult.put("error", error.toArray(new String[error.size()]));
+        return disconnectionResult;
+    }
+
+    public IndexedMap discoverDevices() {
+        return discoverDevices(null);
+    }
+
+    public IndexedMap discoverDevices(DiscoveryListener listener) {
+        IndexedMap found = new IndexedMap();
+        synchronized (mKnownDevices) {
+            found.putAll(mKnownDevices);
+        }
+        if (listener != null) {
+            for (int i = 0; i < found.size(); i++) {
+                listener.onDeviceFound((String) found.getKey(i), (String) found.getValue(i));
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Robots registered with addDevice() are always known
+     */
+    public IndexedMap getKnownDevices() {
+        IndexedMap known = new IndexedMap();
+        synchronized (mKnownDevices) {
+            known.putAll(mKnownDevices);
+        }
+        return known;
+    }
+
+    public boolean isConnected() {
+        return mConnection.getConnectedCount() > 0;
+    }
+}
@@ -6,6 +6,10 @@ import java.util.Locale;
 
 import net.kaisoz.droidstorm.R;
 import net.kaisoz.droidstorm.bluetooth.BluetoothManager;
+import net.kaisoz.droidstorm.bluetooth.ConnectListener;
+import net.kaisoz.droidstorm.bluetooth.Connection;
+import net.kaisoz.droidstorm.bluetooth.DiscoveryListener;
+import net.kaisoz.droidstorm.bluetooth.LinkStatus;
 import net.kaisoz.droidstorm.bluetooth.exception.BluetoothException;
 import net.kaisoz.droidstorm.util.DroidStormApp;
 import net.kaisoz.droidstorm.util.IndexedMap;
@@ -18,6 +22,7 @@ import android.content.Intent;
 import android.content.res.Configuration;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
@@ -29,6 +34,8 @@ import android.widget.Toast;
  * This activity manages all the connection and disconnection user interface
  * It shows two lists. The first one holds discovered robots and the other one connected robots.
  * It holds a map with all found robots. Connected robots are hold by BluetoothManager object which this activity uses
+ * The battery level and round trip time of every connected robot are shown next to it, and refreshed while the
+ * activity is visible
  * <p>
  * Also, it has three async classes which perform the following asynchronous tasks:
  * - Discover devices
@@ -46,11 +53,20 @@ public class ConnectionManagerActivity extends ExpandableListActivity {
     private static final String TAG = "ConnManagerActivity";
     private static final int mConnection = 1;
     private static final int mDisconnection = 2;
+    // Period of the link status refresh, in milliseconds
+    private static final long LINK_STATUS_PERIOD = 2000;
     private DevicesAdapter mDevicesAdapter;
     private IndexedMap mDevFound;
     private BluetoothManager mManager;
     private Button mConnectButton = null;
     private Button mDisconnectButton = null;
+    private Handler mHandler = new Handler();
+    private final Runnable mLinkStatusRefresh = new Runnable() {
+        public void run() {
+            refreshLinkStatus();
+            mHandler.postDelayed(this, LINK_STATUS_PERIOD);
+        }
+    };
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -99,12 +115,20 @@ public class ConnectionManagerActivity extends ExpandableListActivity {
             mDevicesAdapter.loadFromCollectableData(data);
             this.getExpandableListView().expandGroup(0);
             this.getExpandableListView().expandGroup(1);
+        } else {
+            // Robots connected before, or bonded with the phone, are offered right away. Searching is only needed
+            // for new ones
+            IndexedMap known = mManager.getKnownDevices();
+            if (known.size() > 0) {
+                onDevicesFound(known);
+            }
         }
     }
 
     @Override
     protected void onResume() {
         super.onResume();
+        mHandler.post(mLinkStatusRefresh);
         DroidStormApp app = (DroidStormApp) getApplication();
         if (app.isLocaleChanged()) {
             app.setLocaleChanged(false);
@@ -214,8 +238,22 @@ public class ConnectionManagerActivity extends ExpandableListActivity {
         }
     }
 
+    /**
+     * Adds a robot to the found devices
+     * Callback called by the searching task as soon as a robot is found
+     */
+    public void onDeviceFound(String name, String address) {
+        if (name == null) {
+            name = address;
+        }
+        mDevFound.put(name, address);
+        mDevicesAdapter.addFoundDevice(name);
+        refreshView(DevicesAdapter.GROUP_FOUND);
+    }
+
     @Override
     protected void onPause() {
+        mHandler.removeCallbacks(mLinkStatusRefresh);
         DroidStormApp app = ((DroidStormApp) getApplication());
         app.remove(TAG + "_adapter_data");
         app.remove(TAG + "_devFound");
@@ -248,6 +286,36 @@ public class ConnectionManagerActivity extends ExpandableListActivity {
         refreshView(DevicesAdapter.GROUP_ALL);
     }
 
+    /**
+     * Shows the link status of every connected robot, as measured by the link prober
+     */
+    private void refreshLinkStatus() {
+        String[] names = mDevicesAdapter.getConnectedNames();
+        if (names.length == 0) {
+            return;
+        }
+        Connection connection = mManager.getConnection();
+        IndexedMap devices = mManager.getMapByNames(names);
+        Object[] connected = devices.getAllKeys();
+        for (int i = 0; i < connected.length; i++) {
+            LinkStatus status = connection.getLinkStatus((String) devices.get(connected[i]));
+            mDevicesAdapter.setLinkStatus((String) connected[i], (status != null) ? formatLinkStatus(status) : null);
+        }
+        this.getExpandableListView().invalidateViews();
+    }
+
+    /**
+     * Returns the battery level and round trip time of a link, as shown next to its robot
+     */
+    private String formatLinkStatus(LinkStatus status) {
+        int battery = status.getBatteryLevel();
+        long rtt = status.getRtt() / 1000000;
+        String batteryStr = (battery == LinkStatus.UNKNOWN) ? "-" : String.valueOf(battery / 1000) + "."
+                + String.valueOf((battery % 1000) / 100);
+        String rttStr = (rtt == 0) ? "-" : String.valueOf(rtt);
+        return getString(R.string.connMan_linkStatus, batteryStr, rttStr);
+    }
+
     /**
      * Refreshes list view data
      *
@@ -384,19 +452,26 @@ public class ConnectionManagerActivity extends ExpandableListActivity {
     /**
      * Nested class used to search for devices in background
      */
-    private class SearchTask extends AsyncTask<Object, Void, Object> {
+    private class SearchTask extends AsyncTask<Object, String, Object> {
         private AlertDialog alert = null;
         BluetoothManager manager = mManager;
+        // Robots found by this search
+        private int found = 0;
 
         protected void onPreExecute() {
             String title = (String) ConnectionManagerActivity.this.getText(R.string.bt_alert_title_search);
             String msg = (String) ConnectionManagerActivity.this.getText(R.string.bt_alert_msg_searching);
+            mDevFound = new IndexedMap();
             alert = ProgressDialog.show(ConnectionManagerActivity.this, title, msg, true);
         }
 
         protected Object doInBackground(Object... devices) {
             try {
-                return manager.discoverDevices();
+                return manager.discoverDevices(new DiscoveryListener() {
+                    public void onDeviceFound(String name, String btAddress) {
+                        publishProgress(name, btAddress);
+                    }
+                });
             } catch (BluetoothException e) {
                 e.printStackTrace();
                 new AlertDialog.Builder(ConnectionManagerActivity.this)
@@ -405,11 +480,20 @@ public class ConnectionManagerActivity extends ExpandableListActivity {
             }
         }
 
+        protected void onProgressUpdate(String... device) {
+            // Robots can be selected, and connected, as soon as the first one is found, while the inquiry goes on
+            if (found++ == 0) {
+                alert.dismiss();
+            }
+            onDeviceFound(device[0], device[1]);
+        }
+
         protected void onPostExecute(Object result) {
-            alert.dismiss();
+            if (found == 0) {
+                alert.dismiss();
+            }
             if (result != null) {
-                IndexedMap convResult = (IndexedMap) result;
-                if (convResult.size() == 0) {
+                if (found == 0) {
                     AlertDialog.Builder noDevicesDialog = new AlertDialog.Builder(ConnectionManagerActivity.this);
                     noDevicesDialog.setPositiveButton(R.string.alert_button_positive, new DialogInterface.OnClickListener() {
                         public void onClick(DialogInterface dialog, int which) {
@@ -418,8 +502,6 @@ public class ConnectionManagerActivity extends ExpandableListActivity {
                     });
                     noDevicesDialog.setTitle(R.string.bt_alert_title_search).setMessage(R.string.bt_alert_msg_noDevicesFound)
                             .create().show();
-                } else {
-                    onDevicesFound(convResult);
                 }
             }
         }
@@ -428,10 +510,12 @@ public class ConnectionManagerActivity extends ExpandableListActivity {
     /*
     * Nested class used to connect to devices in background
     */
-    private class ConnectTask extends AsyncTask<Void, Void, IndexedMap> {
+    private class ConnectTask extends AsyncTask<Void, String, IndexedMap> {
         private AlertDialog alert = null;
         BluetoothManager manager = mManager;
         private IndexedMap devices;
+        // Dialog message, with a line per robot whose connection has already finished
+        private StringBuilder progress = null;
 
         public ConnectTask(IndexedMap devices) {
             this.devices = devices;
@@ -440,12 +524,30 @@ public class ConnectionManagerActivity extends ExpandableListActivity {
         protected void onPreExecute() {
             String title = (String) ConnectionManagerActivity.this.getText(R.string.bt_alert_title_deviceConnection);
             String msg = (String) ConnectionManagerActivity.this.getText(R.string.bt_alert_msg_connectingTo);
+            progress = new StringBuilder(msg);
             alert = ProgressDialog.show(ConnectionManagerActivity.this, title, msg, true);
         }
 
         protected IndexedMap doInBackground(Void... voids) {
             Object[] addresses = devices.getAllValues();
-            return manager.connect(Arrays.asList(addresses).toArray(new String[addresses.length]));
+            final String connected = (String) ConnectionManagerActivity.this.getText(R.string.devAdapter_connectedString);
+            final String failed = (String) ConnectionManagerActivity.this.getText(R.string.bt_alert_msg_connectionError);
+            return manager.connect(Arrays.asList(addresses).toArray(new String[addresses.length]), new ConnectListener() {
+                public void onConnected(String btAddress) {
+                    publishProgress(btAddress, connected);
+                }
+
+                public void onFailed(String btAddress) {
+                    publishProgress(btAddress, failed);
+                }
+            });
+        }
+
+        protected void onProgressUpdate(String... result) {
+            Object[] names = devices.getKeysFromValues(new String[]{result[0]});
+            String name = (names != null && names.length > 0) ? (String) names[0] : result[0];
+            progress.append('\n').append(name).append(": ").append(result[1]);
+            alert.setMessage(progress.toString());
         }
 
         protected void onPostExecute(IndexedMap result) {
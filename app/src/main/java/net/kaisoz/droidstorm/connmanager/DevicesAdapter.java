@@ -2,6 +2,7 @@ package net.kaisoz.droidstorm.connmanager;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 
@@ -30,6 +31,8 @@ public class DevicesAdapter extends BaseExpandableListAdapter {
     private IndexedMap mData = null;
     private HashSet<Object> mFoundSelected = null;
     private HashSet<Object> mConnectedSelected = null;
+    // Link status shown next to every connected device, by name
+    private HashMap<String, String> mLinkStatus = new HashMap<String, String>();
     private String mFoundStr;
     private String mDevStr;
     private String mConnStr;
@@ -176,6 +179,21 @@ public class DevicesAdapter extends BaseExpandableListAdapter {
         mData.replaceKey(GROUP_FOUND, "Found " + devicesAsList.size() + " devices");
     }
 
+    /**
+     * Adds a found device name to the "found" group, unless it is already listed or connected
+     *
+     * @param device Device name
+     */
+    public void addFoundDevice(String device) {
+        ArrayList foundGrp = (ArrayList) mData.getValue(GROUP_FOUND);
+        ArrayList connGrp = (ArrayList) mData.getValue(GROUP_CONNECTED);
+        if (foundGrp.contains(device) || (connGrp != null && connGrp.contains(device))) {
+            return;
+        }
+        foundGrp.add(device);
+        mData.replaceKey(GROUP_FOUND, "Found " + foundGrp.size() + " devices");
+    }
+
     /**
      * Sets the connected devices names in the "connected" group
      *
@@ -198,6 +216,20 @@ public class DevicesAdapter extends BaseExpandableListAdapter {
     }
 
 
+    /**
+     * Sets the link status shown next to a connected device
+     *
+     * @param devName Device name
+     * @param status  Text describing the link, or null to show nothing
+     */
+    public void setLinkStatus(String devName, String status) {
+        if (status == null) {
+            mLinkStatus.remove(devName);
+        } else {
+            mLinkStatus.put(devName, status);
+        }
+    }
+
     /**
      * Empties "found" group
      */
@@ -239,6 +271,7 @@ public class DevicesAdapter extends BaseExpandableListAdapter {
         if (connected != null) {
             connected.removeAll(namesAsList);
             mData.put(GROUP_CONNECTED, connected);
+            mLinkStatus.keySet().removeAll(namesAsList);
             if (mConnectedSelected != null) mConnectedSelected.removeAll(namesAsList);
         }
     }
@@ -273,6 +306,8 @@ public class DevicesAdapter extends BaseExpandableListAdapter {
             CheckBox cb = (CheckBox) v.findViewById(R.id.check);
             cb.setClickable(false);
             TextView bdaddr = (TextView) v.findViewById(R.id.bdaddr);
+            String status = (groupPosition == GROUP_CONNECTED) ? mLinkStatus.get(devName) : null;
+            bdaddr.setText((status != null) ? status : "");
             if (mFoundSelected.contains(devName) || mConnectedSelected.contains(devName)) {
                 cb.setChecked(true);
             } else {
@@ -1,124 +1,206 @@
 package net.kaisoz.droidstorm.nxt.Interface;
 
+import net.kaisoz.droidstorm.bluetooth.CommandBatch;
 import net.kaisoz.droidstorm.bluetooth.Connection;
+import net.kaisoz.droidstorm.bluetooth.FramePool;
 import net.kaisoz.droidstorm.bluetooth.exception.BluetoothException;
 import net.kaisoz.droidstorm.nxt.message.CloseHandleResponse;
+import net.kaisoz.droidstorm.nxt.message.CommandEncoder;
 import net.kaisoz.droidstorm.nxt.message.FindFileResponse;
 import net.kaisoz.droidstorm.nxt.message.GenericResponse;
+import net.kaisoz.droidstorm.nxt.message.MessageReadResponse;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Future;
 
 /**
- * Class which exposes system functions to interact with the robot such as program starting or program searching
+ * Class which exposes system functions to interact with the robot such as program starting or program searching.
+ * Programs running on the robots exchange data with the phone through their mailboxes: the phone writes to inboxes
+ * 0-9 and reads the answers from inboxes 10-19
  *
  * @author Tomás Tormo Franco
  */
 
 public class MiscInterface extends NXTInterface {
 
+    private final Connection connect;
+    private final CommandEncoder mEncoder;
 
-    /***
-     * Singleton
-     ***/
-    private MiscInterface() {
+    /**
+     * Creates an interface bound to the given connection for its whole life, so nobody else can point it at another
+     * robot
+     *
+     * @param connection Connection the commands are sent through
+     */
+    public MiscInterface(Connection connection) {
+        this.connect = connection;
+        this.mEncoder = new CommandEncoder(connection.getFramePool());
     }
 
-    private Connection connect = null;
+    /**
+     * Plays a tone through the robot speaker.
+     * For parameters mValues, see Bluetooth developer kit at http://mindstorms.lego.com/en-us/support/files/default.aspx
+     *
+     * @param frequency   Frequency of the tone
+     * @param tone        tone type
+     * @param messageType If a response should be expected from the robot (RESPONSE or NO_RESPONSE)
+     * @return
+     * @throws Exception if the operation fails
+     */
+    public GenericResponse playTone(int frequency, int tone, char messageType) throws Exception {
+        return sendGeneric(mEncoder.playTone(frequency, tone, messageType), messageType);
+    }
 
     /**
-     * SingletonHolder is loaded on the first execution of Singleton.getInstance()
-     * or the first access to SingletonHolder.INSTANCE, not before.
+     * Starts a program in the NXT device
+     *
+     * @param name        Name of the program to start
+     * @param messageType If a response should be expected from the robot (RESPONSE or NO_RESPONSE)
+     * @return
+     * @throws Exception
      */
-    private static class miscHolder {
-        public static final MiscInterface INSTANCE = new MiscInterface();
+    public GenericResponse startProgram(String name, char messageType) throws BluetoothException {
+        return sendGeneric(mEncoder.startProgram(name, messageType), messageType);
     }
 
     /**
-     * Returns an instance of a MiscInterface
+     * Writes a message to an inbox of the robot program
      *
+     * @param inbox       Inbox, from 0 to 9
+     * @param message     Array holding the message
+     * @param offset      Offset of the first byte of the message
+     * @param length      Message size, up to MAILBOX_MESSAGE_MAX_SIZE bytes
+     * @param messageType If a response should be expected from the robot (RESPONSE or NO_RESPONSE)
      * @return
+     * @throws BluetoothException If the operation fails
      */
-    public static MiscInterface getInstance() {
-        return miscHolder.INSTANCE;
+    public GenericResponse messageWrite(int inbox, byte[] message, int offset, int length, char messageType) throws BluetoothException {
+        return sendGeneric(mEncoder.messageWrite(inbox, message, offset, length, messageType), messageType);
     }
 
     /**
-     * Sets a Bluetooth connection for this interface
+     * Adds a message for an inbox of the robot program to a batch instead of sending it, so several messages, or
+     * messages and motor commands, travel in a single write. No response is requested
      *
-     * @param connection
+     * @param batch   Batch to add the message to
+     * @param inbox   Inbox, from 0 to 9
+     * @param message Array holding the message
+     * @param offset  Offset of the first byte of the message
+     * @param length  Message size, up to MAILBOX_MESSAGE_MAX_SIZE bytes
      */
-    public void setConnection(Connection connection) {
-        connect = connection;
+    public void messageWrite(CommandBatch batch, int inbox, byte[] message, int offset, int length) {
+        ByteBuffer frame = mEncoder.messageWrite(inbox, message, offset, length, MESSAGETYPE_NORESPONSE);
+        try {
+            batch.add(frame);
+        } finally {
+            mEncoder.release(frame);
+        }
     }
 
     /**
-     * Plays a tone through the robot speaker.
-     * For parameters mValues, see Bluetooth developer kit at http://mindstorms.lego.com/en-us/support/files/default.aspx
+     * Adds a tone to a batch instead of sending it. No response is requested
      *
-     * @param frequency   Frequency of the tone
-     * @param tone        tone type
-     * @param messageType If a response should be expected from the robot (RESPONSE or NO_RESPONSE)
-     * @return
-     * @throws Exception if the operation fails
+     * @param batch     Batch to add the tone to
+     * @param frequency Frequency of the tone
+     * @param tone      tone type
      */
-    public GenericResponse playTone(int frequency, int tone, char messageType) throws Exception {
-        char[] message = new char[3];
-        COMMAND_BYTE = 0x0003;
-        message[0] = (char) (messageType | COMMAND_BYTE);
-
-        message[1] = (char) (frequency & 0x00FF);
-        message[1] = (char) (message[1] << 8);
-        frequency = frequency << 8;
-        message[1] = (char) (message[1] | frequency);
-
-        message[2] = (char) (tone & 0x00FF);
-        message[2] = (char) (message[2] << 8);
-        tone = tone << 8;
-        message[2] = (char) (message[2] | tone);
-
-        if (messageType == MESSAGETYPE_NORESPONSE) {
-            connect.sendCommand(message, false);
-            return null;
-        } else {
-            char[] response = connect.sendCommand(message, true);
-            return new GenericResponse(response);
+    public void playTone(CommandBatch batch, int frequency, int tone) {
+        ByteBuffer frame = mEncoder.playTone(frequency, tone, MESSAGETYPE_NORESPONSE);
+        try {
+            batch.add(frame);
+        } finally {
+            mEncoder.release(frame);
         }
     }
 
     /**
-     * Starts a program in the NXT device
+     * Sends every command of a batch to the robot/s in a single write
      *
-     * @param name        Name of the program to start
+     * @param batch Commands to send
+     * @throws BluetoothException if the operation fails
+     */
+    public void sendBatch(CommandBatch batch) throws BluetoothException {
+        connect.sendBatch(batch);
+    }
+
+    /**
+     * Writes a text message to an inbox of the robot program
+     *
+     * @param inbox       Inbox, from 0 to 9
+     * @param message     Message, up to MAILBOX_MESSAGE_MAX_SIZE characters
      * @param messageType If a response should be expected from the robot (RESPONSE or NO_RESPONSE)
      * @return
-     * @throws Exception
+     * @throws BluetoothException If the operation fails
      */
-    public GenericResponse startProgram(String name, char messageType) throws BluetoothException {
-        int messageSize = Math.round(name.length() / 2) + 2;
-        char[] message = new char[messageSize];
-        COMMAND_BYTE = 0x0000;
-        message[0] = (char) (messageType | COMMAND_BYTE);
-
-        int i = 0;
-        int j = 1;
-        while (i < name.length() && j < messageSize) {
-            message[j] = name.charAt(i);
-            message[j] = (char) (message[j] << 8);
-            i++;
-            if (i < name.length()) {
-                message[j] = (char) (message[j] | name.charAt(i));
-                i++;
-            }
-            j++;
+    public GenericResponse messageWrite(int inbox, String message, char messageType) throws BluetoothException {
+        byte[] data = new byte[message.length()];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) message.charAt(i);
         }
+        return messageWrite(inbox, data, 0, data.length, messageType);
+    }
 
-        message[message.length - 1] = (char) (message[message.length - 1] & 0xFF00);
+    /**
+     * Reads the oldest message of a mailbox of the robot
+     *
+     * @param remoteInbox Inbox to read, from 0 to 19. The robot program writes to the phone in inboxes 10-19
+     * @param localInbox  Inbox number echoed by the response, from 0 to 9
+     * @param remove      If the message should be removed from the inbox once read
+     * @return Response holding the message. Its status is RESPONSE_MAILBOX_EMPTY if there was none
+     * @throws BluetoothException If the operation fails
+     */
+    public MessageReadResponse messageRead(int remoteInbox, int localInbox, boolean remove) throws BluetoothException {
+        ByteBuffer frame = mEncoder.messageRead(remoteInbox, localInbox, remove);
+        try {
+            ByteBuffer response = connect.sendFrame(frame, true);
+            return MessageReadResponse.obtain(response, connect.getFramePool());
+        } finally {
+            mEncoder.release(frame);
+        }
+    }
 
-        if (messageType == MESSAGETYPE_NORESPONSE) {
-            connect.sendCommand(message, false);
-            return null;
-        } else {
-            char[] response = connect.sendCommand(message, true);
-            return new GenericResponse(response);
+    /**
+     * Reads a mailbox of several robots, or several mailboxes of a robot, at once.
+     * Every MESSAGEREAD is sent before any reply is waited for, so the whole poll takes about one round trip, and no
+     * thread waits on each robot
+     *
+     * @param btAddrs  Robot every mailbox belongs to
+     * @param inboxes  Mailbox read from each robot, from 0 to 19
+     * @param remove   If the messages should be removed from the inboxes once read
+     * @param messages Array the messages are stored in. Mailboxes which were empty, or couldn't be read, are left
+     *                 null. Every response must be recycled once read
+     * @return Number of messages read
+     * @throws BluetoothException If the calling thread is interrupted
+     */
+    public int pollMailboxes(String[] btAddrs, int[] inboxes, boolean remove, MessageReadResponse[] messages) throws BluetoothException {
+        int count = btAddrs.length;
+        ByteBuffer[] frames = new ByteBuffer[count];
+        ByteBuffer[] responses = new ByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            frames[i] = mEncoder.messageRead(inboxes[i], inboxes[i] % MAILBOX_COUNT, remove);
+        }
+        int read = 0;
+        try {
+            connect.sendFramesTo(btAddrs, frames, responses, count);
+        } finally {
+            for (int i = 0; i < count; i++) {
+                mEncoder.release(frames[i]);
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            messages[i] = null;
+            if (responses[i] == null) {
+                continue;
+            }
+            MessageReadResponse message = MessageReadResponse.obtain(responses[i], connect.getFramePool());
+            if (message.getStatus() == RESPONSE_SUCCESS) {
+                messages[i] = message;
+                read++;
+            } else {
+                message.recycle();
+            }
         }
+        return read;
     }
 
     /**
@@ -129,27 +211,13 @@ public class MiscInterface extends NXTInterface {
      * @throws BluetoothException If the operation fails
      */
     public FindFileResponse findFirst(String name) throws BluetoothException {
-        int messageSize = Math.round(name.length() / 2) + 2;
-        char[] message = new char[messageSize];
-        COMMAND_BYTE = 0x0186;
-        message[0] = COMMAND_BYTE;
-        int i = 0;
-        int j = 1;
-        while (i < name.length() && j < messageSize) {
-            message[j] = name.charAt(i);
-            message[j] = (char) (message[j] << 8);
-            i++;
-            if (i < name.length()) {
-                message[j] = (char) (message[j] | name.charAt(i));
-                i++;
-            }
-            j++;
+        ByteBuffer frame = mEncoder.findFirst(name);
+        try {
+            ByteBuffer response = connect.sendFrame(frame, true);
+            return FindFileResponse.obtain(response, connect.getFramePool());
+        } finally {
+            mEncoder.release(frame);
         }
-
-        message[message.length - 1] = (char) (message[message.length - 1] & 0xFF00);
-        char[] response = connect.sendCommand(message, true);
-        return new FindFileResponse(response);
-
     }
 
     /**
@@ -160,14 +228,13 @@ public class MiscInterface extends NXTInterface {
      * @throws BluetoothException If the operation fails
      */
     public FindFileResponse findNext(int handle) throws BluetoothException {
-        char handleByte = (char) (handle & 0x00FF);
-
-        char[] message = new char[2];
-        COMMAND_BYTE = 0x0187;
-        message[0] = COMMAND_BYTE;
-        message[1] = (char) (handleByte << 8);
-        char[] response = connect.sendCommand(message, true);
-        return new FindFileResponse(response);
+        ByteBuffer frame = mEncoder.findNext(handle);
+        try {
+            ByteBuffer response = connect.sendFrame(frame, true);
+            return FindFileResponse.obtain(response, connect.getFramePool());
+        } finally {
+            mEncoder.release(frame);
+        }
     }
 
     /**
@@ -178,13 +245,110 @@ public class MiscInterface extends NXTInterface {
      * @throws BluetoothException If the operation fails
      */
     public CloseHandleResponse closeHandle(int handle) throws BluetoothException {
-        char handleByte = (char) (handle & 0x00FF);
-
-        char[] message = new char[2];
-        COMMAND_BYTE = 0x0184;
-        message[0] = COMMAND_BYTE;
-        message[1] = (char) (handleByte << 8);
-        char[] response = connect.sendCommand(message, true);
-        return new CloseHandleResponse(response);
+        ByteBuffer frame = mEncoder.closeHandle(handle);
+        try {
+            ByteBuffer response = connect.sendFrame(frame, true);
+            return CloseHandleResponse.obtain(response, connect.getFramePool());
+        } finally {
+            mEncoder.release(frame);
+        }
+    }
+
+    /**
+     * Plays a tone through the robot speaker without blocking the calling thread
+     *
+     * @param frequency   Frequency of the tone
+     * @param tone        tone type
+     * @param messageType If a response should be expected from the robot (RESPONSE or NO_RESPONSE)
+     * @return Future holding the robot response, or null if no response was requested
+     */
+    public Future<GenericResponse> playToneAsync(int frequency, int tone, char messageType) {
+        return genericTask(mEncoder.playTone(frequency, tone, messageType), messageType).submit();
+    }
+
+    /**
+     * Starts a program in the NXT device without blocking the calling thread
+     *
+     * @param name        Name of the program to start
+     * @param messageType If a response should be expected from the robot (RESPONSE or NO_RESPONSE)
+     * @return Future holding the robot response, or null if no response was requested
+     */
+    public Future<GenericResponse> startProgramAsync(String name, char messageType) {
+        return genericTask(mEncoder.startProgram(name, messageType), messageType).submit();
+    }
+
+    /**
+     * Finds the first file name which name matches "name" pattern without blocking the calling thread
+     *
+     * @param name Pattern that the file name should match
+     * @return Future holding the robot response
+     */
+    public Future<FindFileResponse> findFirstAsync(String name) {
+        return findFileTask(mEncoder.findFirst(name)).submit();
+    }
+
+    /**
+     * Finds the next file name that matches the pattern passed in findFirst method without blocking the calling thread
+     *
+     * @param handle file handler returned by findFirst method
+     * @return Future holding the robot response
+     */
+    public Future<FindFileResponse> findNextAsync(int handle) {
+        return findFileTask(mEncoder.findNext(handle)).submit();
+    }
+
+    /**
+     * Closes a file handler without blocking the calling thread
+     *
+     * @param handle Handler that should be closed
+     * @return Future holding the robot response
+     */
+    public Future<CloseHandleResponse> closeHandleAsync(int handle) {
+        return new FrameTask<CloseHandleResponse>(connect, mEncoder.closeHandle(handle), true) {
+            @Override
+            protected CloseHandleResponse wrap(ByteBuffer response, FramePool pool) {
+                return CloseHandleResponse.obtain(response, pool);
+            }
+        }.submit();
+    }
+
+    private FrameTask<GenericResponse> genericTask(ByteBuffer frame, char messageType) {
+        return new FrameTask<GenericResponse>(connect, frame, messageType != MESSAGETYPE_NORESPONSE) {
+            @Override
+            protected GenericResponse wrap(ByteBuffer response, FramePool pool) {
+                return GenericResponse.obtain(response, pool);
+            }
+        };
+    }
+
+    private FrameTask<FindFileResponse> findFileTask(ByteBuffer frame) {
+        return new FrameTask<FindFileResponse>(connect, frame, true) {
+            @Override
+            protected FindFileResponse wrap(ByteBuffer response, FramePool pool) {
+                return FindFileResponse.obtain(response, pool);
+            }
+        };
+    }
+
+    /**
+     * Sends an encoded frame and, if requested, wraps the robot response
+     *
+     * @param frame       Frame to send. It is released once sent
+     * @param messageType If a response should be expected from the robot (RESPONSE or NO_RESPONSE)
+     * @return
+     * @throws BluetoothException If the operation fails
+     */
+    private GenericResponse sendGeneric(ByteBuffer frame, char messageType) throws BluetoothException {
+        try {
+            if (messageType == MESSAGETYPE_NORESPONSE) {
+                connect.sendFrame(frame, false);
+                return null;
+            } else {
+                ByteBuffer response = connect.sendFrame(frame, true);
+                return GenericResponse.obtain(response, connect.getFramePool());
+            }
+        } finally {
+            mEncoder.release(frame);
+        }
     }
 }
@@ -1,11 +1,18 @@
 package net.kaisoz.droidstorm.nxt.Interface;
 
+import net.kaisoz.droidstorm.bluetooth.BroadcastResult;
+import net.kaisoz.droidstorm.bluetooth.CommandBatch;
 import net.kaisoz.droidstorm.bluetooth.Connection;
+import net.kaisoz.droidstorm.bluetooth.FramePool;
 import net.kaisoz.droidstorm.bluetooth.exception.BluetoothException;
+import net.kaisoz.droidstorm.nxt.message.CommandEncoder;
 import net.kaisoz.droidstorm.nxt.message.GenericResponse;
 import net.kaisoz.droidstorm.nxt.message.MotorMessage;
 import net.kaisoz.droidstorm.nxt.message.motorStateResponse;
 
+import java.nio.ByteBuffer;
+import java.util.concurrent.Future;
+
 /**
  * Exposes motor commands methods, such as setOutputState (the one used to send a command to a motor) or
  * getMotorState (used to get the state of a motor)
@@ -18,35 +25,18 @@ public class MotorInterface extends NXTInterface {
     private static char mWheel2 = 0x00;
     private static boolean mWheelsReady = false;
 
-    private MotorInterface() {
-    }
-
-    private Connection connect = null;
-
-    /**
-     * SingletonHolder is loaded on the first execution of Singleton.getInstance()
-     * or the first access to SingletonHolder.INSTANCE, not before.
-     */
-    private static class MotorHolder {
-        public static final MotorInterface INSTANCE = new MotorInterface();
-    }
-
-    /**
-     * Returns an instance of a MotorInterface
-     *
-     * @return
-     */
-    public static MotorInterface getInstance() {
-        return MotorHolder.INSTANCE;
-    }
+    private final Connection connect;
+    private final CommandEncoder mEncoder;
 
     /**
-     * Sets a Bluetooth connection for this interface
+     * Creates an interface bound to the given connection for its whole life, so nobody else can point it at another
+     * robot. Every controller or screen talking to a robot should use its own
      *
-     * @param connection
+     * @param connection Connection the commands are sent through
      */
-    public void setConnection(Connection connection) {
-        connect = connection;
+    public MotorInterface(Connection connection) {
+        this.connect = connection;
+        this.mEncoder = new CommandEncoder(connection.getFramePool());
     }
 
     /**
@@ -115,18 +105,52 @@ public class MotorInterface extends NXTInterface {
      * @throws BluetoothException if the operation fails
      */
     public GenericResponse setOutputState(MotorMessage message) throws BluetoothException {
-        COMMAND_BYTE = 0x0004;
-        message.setCommandByte(COMMAND_BYTE);
-
         if (message.getMessageType() == MESSAGETYPE_NORESPONSE) {
-            connect.sendCommand(message.getCommandValues(), false);
+            connect.sendFrame(message.getFrame(), false);
             return null;
         } else {
-            char[] response = connect.sendCommand(message.getCommandValues(), true);
-            return new GenericResponse(response);
+            ByteBuffer response = connect.sendFrame(message.getFrame(), true);
+            return GenericResponse.obtain(response, connect.getFramePool());
+        }
+    }
+
+    /**
+     * Adds a motor command to a batch instead of sending it.
+     * The message must not request a response
+     *
+     * @param batch   Batch to add the command to
+     * @param message Message to send
+     */
+    public void setOutputState(CommandBatch batch, MotorMessage message) {
+        batch.add(message.getFrame());
+    }
+
+    /**
+     * Adds a motor counter reset to a batch instead of sending it. No response is requested
+     *
+     * @param batch      Batch to add the command to
+     * @param motor      Motor port to reset
+     * @param isrelative if the reset should be relative to the last movement or absolute
+     */
+    public void resetMotorPosition(CommandBatch batch, char motor, boolean isrelative) {
+        ByteBuffer frame = mEncoder.resetMotorPosition(motor, isrelative, MESSAGETYPE_NORESPONSE);
+        try {
+            batch.add(frame);
+        } finally {
+            mEncoder.release(frame);
         }
     }
 
+    /**
+     * Sends every command of a batch to the robot/s in a single write
+     *
+     * @param batch Commands to send
+     * @throws BluetoothException if the operation fails
+     */
+    public void sendBatch(CommandBatch batch) throws BluetoothException {
+        connect.sendBatch(batch);
+    }
+
     /**
      * Resets motor internal counter
      *
@@ -137,21 +161,17 @@ public class MotorInterface extends NXTInterface {
      * @throws BluetoothException if the operation fails
      */
     public GenericResponse resetMotorPosition(char motor, boolean isrelative, char messageType) throws BluetoothException {
-        char[] message = new char[2];
-        message[0] = (char) (messageType | 0x0A);
-
-        if (!isrelative) {
-            message[1] = motor;
-        } else {
-            message[1] = (char) (0x0001 | motor);
-        }
-
-        if (messageType == MESSAGETYPE_NORESPONSE) {
-            connect.sendCommand(message, false);
-            return null;
-        } else {
-            char[] response = connect.sendCommand(message, true);
-            return new GenericResponse(response);
+        ByteBuffer frame = mEncoder.resetMotorPosition(motor, isrelative, messageType);
+        try {
+            if (messageType == MESSAGETYPE_NORESPONSE) {
+                connect.sendFrame(frame, false);
+                return null;
+            } else {
+                ByteBuffer response = connect.sendFrame(frame, true);
+                return GenericResponse.obtain(response, connect.getFramePool());
+            }
+        } finally {
+            mEncoder.release(frame);
         }
     }
 
@@ -159,20 +179,112 @@ public class MotorInterface extends NXTInterface {
      * Gets the motor state for the given motor port
      *
      * @param motor Motor port
-     * @return
+     * @return Motor state. It should be recycled once read
      * @throws BluetoothException if the operation fails
      */
     public motorStateResponse getOutputState(char motor) throws BluetoothException {
-        COMMAND_BYTE = 0x0006;
+        ByteBuffer frame = mEncoder.getOutputState(motor);
+        try {
+            ByteBuffer response = connect.sendFrame(frame, true);
+            return motorStateResponse.obtain(response, connect.getFramePool());
+        } finally {
+            mEncoder.release(frame);
+        }
+    }
 
-        char[] message = new char[2];
+    /**
+     * Gets the motor state for the given motor port of every connected robot at once.
+     * Each robot reply can be wrapped with motorStateResponse.obtain(result.takeReply(i), connect.getFramePool())
+     *
+     * @param motor   Motor port
+     * @param timeout Maximum time to wait for the replies in milliseconds. 0 waits for all of them
+     * @return Per robot result. It should be released once read
+     * @throws BluetoothException if the operation fails
+     */
+    public BroadcastResult getOutputStateAll(char motor, long timeout) throws BluetoothException {
+        ByteBuffer frame = mEncoder.getOutputState(motor);
+        try {
+            return connect.scatterFrame(frame, true, timeout);
+        } finally {
+            mEncoder.release(frame);
+        }
+    }
 
-        message[0] = COMMAND_BYTE;
-        message[1] = motor;
+    /**
+     * Gets the motor state for several motor ports at once.
+     * Every query is sent before waiting for the first reply, so all of them cost about a single round trip
+     *
+     * @param motors Motor ports
+     * @param states Array which the motor states will be stored in, in the same order as the ports. They should be
+     *               recycled once read
+     * @throws BluetoothException if the operation fails
+     */
+    public void getOutputStates(char[] motors, motorStateResponse[] states) throws BluetoothException {
+        ByteBuffer[] frames = new ByteBuffer[motors.length];
+        ByteBuffer[] responses = new ByteBuffer[motors.length];
+        try {
+            for (int i = 0; i < motors.length; i++) {
+                frames[i] = mEncoder.getOutputState(motors[i]);
+            }
+            connect.sendFrames(frames, responses, motors.length);
+            for (int i = 0; i < motors.length; i++) {
+                states[i] = (responses[i] != null) ? motorStateResponse.obtain(responses[i], connect.getFramePool()) : null;
+            }
+        } finally {
+            for (int i = 0; i < motors.length; i++) {
+                mEncoder.release(frames[i]);
+            }
+        }
+    }
 
-        char[] response = connect.sendCommand(message, true);
-        return new motorStateResponse(response);
+    /**
+     * Sends a command to the robot/s without blocking the calling thread.
+     * The message frame is copied, so the message can be changed as soon as this method returns
+     *
+     * @param message Message to send
+     * @return Future holding the robot response, or null if no response was requested
+     */
+    public Future<GenericResponse> setOutputStateAsync(MotorMessage message) {
+        ByteBuffer frame = connect.getFramePool().acquire();
+        frame.put(message.getFrame());
+        frame.flip();
+        return genericTask(frame, message.getMessageType() != MESSAGETYPE_NORESPONSE).submit();
     }
 
+    /**
+     * Resets motor internal counter without blocking the calling thread
+     *
+     * @param motor       Motor port to reset
+     * @param isrelative  if the reset should be relative to the last movement or absolute
+     * @param messageType If a response should be expected from the robot or not (RESPONSE or NO_RESPONSE)
+     * @return Future holding the robot response, or null if no response was requested
+     */
+    public Future<GenericResponse> resetMotorPositionAsync(char motor, boolean isrelative, char messageType) {
+        ByteBuffer frame = mEncoder.resetMotorPosition(motor, isrelative, messageType);
+        return genericTask(frame, messageType != MESSAGETYPE_NORESPONSE).submit();
+    }
+
+    /**
+     * Gets the motor state for the given motor port without blocking the calling thread
+     *
+     * @param motor Motor port
+     * @return Future holding the motor state. It should be recycled once read
+     */
+    public Future<motorStateResponse> getOutputStateAsync(char motor) {
+        return new FrameTask<motorStateResponse>(connect, mEncoder.getOutputState(motor), true) {
+            @Override
+            protected motorStateResponse wrap(ByteBuffer response, FramePool pool) {
+                return motorStateResponse.obtain(response, pool);
+            }
+        }.submit();
+    }
 
+    private FrameTask<GenericResponse> genericTask(ByteBuffer frame, boolean response) {
+        return new FrameTask<GenericResponse>(connect, frame, response) {
+            @Override
+            protected GenericResponse wrap(ByteBuffer response, FramePool pool) {
+                return GenericResponse.obtain(response, pool);
+            }
+        };
+    }
 }
@@ -1,5 +1,13 @@
 package net.kaisoz.droidstorm.nxt.Interface;
 
+import net.kaisoz.droidstorm.bluetooth.Connection;
+import net.kaisoz.droidstorm.bluetooth.FramePool;
+import net.kaisoz.droidstorm.bluetooth.exception.BluetoothException;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
 /**
  * Holds NXT interaction constants
  *
@@ -11,8 +19,36 @@ public class NXTInterface {
     public static final char MESSAGETYPE_RESPONSE = 0x0000;
     public static final char MESSAGETYPE_NORESPONSE = 0x8000;
     public static final char RESPONSE_SUCCESS = 0x0000;
-    protected static char COMMAND_BYTE = 0xFFFF;
 
+    // Telegram types (first byte of every telegram)
+    public static final int TELEGRAM_DIRECT = 0x00;
+    public static final int TELEGRAM_SYSTEM = 0x01;
+    public static final int TELEGRAM_REPLY = 0x02;
+    public static final int TELEGRAM_NO_REPLY = 0x80;
+
+    // Direct command bytes
+    public static final int COMMAND_STARTPROGRAM = 0x00;
+    public static final int COMMAND_PLAYTONE = 0x03;
+    public static final int COMMAND_SETOUTPUTSTATE = 0x04;
+    public static final int COMMAND_GETOUTPUTSTATE = 0x06;
+    public static final int COMMAND_MESSAGEWRITE = 0x09;
+    public static final int COMMAND_RESETMOTORPOSITION = 0x0A;
+    public static final int COMMAND_GETBATTERYLEVEL = 0x0B;
+    public static final int COMMAND_KEEPALIVE = 0x0D;
+    public static final int COMMAND_MESSAGEREAD = 0x13;
+
+    // System command bytes
+    public static final int COMMAND_CLOSE = 0x84;
+    public static final int COMMAND_FINDFIRST = 0x86;
+    public static final int COMMAND_FINDNEXT = 0x87;
+
+    // Mailbox constants. Inboxes 0-9 hold the messages written to the robot program. The program answers through
+    // inboxes 10-19, which the phone reads as it is the master of the link
+    public static final int MAILBOX_COUNT = 10;
+    public static final int MAILBOX_OUTBOX_OFFSET = 10;
+    // Longest message, without its null terminator
+    public static final int MAILBOX_MESSAGE_MAX_SIZE = 58;
+    public static final char RESPONSE_MAILBOX_EMPTY = 0x0040;
 
     // MotorInterface Constants */
     public static final char NO_MOTOR = 0x0300;
@@ -48,4 +84,54 @@ public class NXTInterface {
     public static final char MOTOR_RUNSTATE_RAMPUP = 0x0010;
     public static final char MOTOR_RUNSTATE_RUNNING = 0x0020;
     public static final char MOTOR_RUNSTATE_RAMPDOWN = 0x0002;
+
+    /**
+     * Command which sends an encoded frame on the command executor of its connection and wraps the robot response
+     *
+     * @param <T> Response type
+     */
+    protected static abstract class FrameTask<T> implements Callable<T> {
+
+        private final Connection mConnection;
+        private final ByteBuffer mFrame;
+        private final boolean mResponse;
+
+        /**
+         * @param connection Connection to send the frame through
+         * @param frame      Frame taken from the connection pool. It is released once sent
+         * @param response   If a response should be expected from the robot
+         */
+        protected FrameTask(Connection connection, ByteBuffer frame, boolean response) {
+            this.mConnection = connection;
+            this.mFrame = frame;
+            this.mResponse = response;
+        }
+
+        public T call() throws BluetoothException {
+            try {
+                ByteBuffer response = mConnection.sendFrame(mFrame, mResponse);
+                return (response != null) ? wrap(response, mConnection.getFramePool()) : null;
+            } finally {
+                mConnection.getFramePool().release(mFrame);
+            }
+        }
+
+        /**
+         * Submits this command to the executor of its connection
+         *
+         * @return Future holding the robot response, or null if no response was requested
+         */
+        public Future<T> submit() {
+            return mConnection.getCommandExecutor().submit(this);
+        }
+
+        /**
+         * Wraps a response frame
+         *
+         * @param response Response frame
+         * @param pool     Pool which the frame belongs to
+         * @return
+         */
+        protected abstract T wrap(ByteBuffer response, FramePool pool);
+    }
 }
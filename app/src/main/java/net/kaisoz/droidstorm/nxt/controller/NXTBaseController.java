@@ -1,17 +1,28 @@
 package net.kaisoz.droidstorm.nxt.controller;
 
+import net.kaisoz.droidstorm.bluetooth.CommandBatch;
+import net.kaisoz.droidstorm.bluetooth.CommandExecutors;
 import net.kaisoz.droidstorm.bluetooth.Connection;
+import net.kaisoz.droidstorm.bluetooth.OutboundQueue;
 import net.kaisoz.droidstorm.bluetooth.exception.BluetoothException;
 import net.kaisoz.droidstorm.nxt.Interface.MotorInterface;
 import net.kaisoz.droidstorm.nxt.message.MotorMessage;
 import net.kaisoz.droidstorm.nxt.message.motorStateResponse;
-import net.kaisoz.droidstorm.util.DatabaseHelper;
+import net.kaisoz.droidstorm.util.DemoRecorder;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
  * Base class for the controllers.
  * Exposes the main robot movement methods as well as methods to get motor states.
  * It also exposes methods to control the IR emitter
  * This base class must be extended by all controllers in order to use the basic movement functions
+ * A controller reuses its message templates and batches for every command, so it must only be used by one thread at
+ * a time. Actions run through submit() never overlap, since they run on the command executor of the robot one after
+ * another, so callers which must not block, such as UI handlers, should use it. A thread driving the controller
+ * directly, such as a demo player, must be the only user of the controller meanwhile
  *
  * @author Tomás Tormo Franco
  */
@@ -25,9 +36,17 @@ public class NXTBaseController {
     protected static char mRightWheel = MotorInterface.NO_MOTOR;
     protected char mIRport = MotorInterface.NO_MOTOR;
     protected int mPower = 0;
-    protected MotorMessage mMessage = null;
+    // Pre-encoded SETOUTPUTSTATE frames. Only port, power, turn ratio and tacho limit are patched before sending
+    protected MotorMessage mDriveMessage = null;
+    protected MotorMessage mBrakeMessage = null;
+    protected MotorMessage mIRMessage = null;
+    // Commands issued by a single call are sent in one write
+    protected final CommandBatch mBatch = new CommandBatch();
+    // Brakes overtake any drive command still queued for the robot
+    protected final CommandBatch mStopBatch = new CommandBatch();
     protected MotorInterface mMotorInterface = null;
-    protected DatabaseHelper mDbHelper = null;
+    protected Connection mConnection = null;
+    protected DemoRecorder mDbHelper = null;
     protected boolean mRecording = false;
     protected long mTimeExec = 0;
     protected static int mPrevPower = 0;
@@ -35,20 +54,44 @@ public class NXTBaseController {
     protected static final int STRAIGHT_ANGLE = 0;
 
     public NXTBaseController() {
-        mMessage = new MotorMessage();
-        mMotorInterface = MotorInterface.getInstance();
-        mMessage.setMessageType(MotorInterface.MESSAGETYPE_NORESPONSE);
+        prepareMessages();
+        mStopBatch.setPriority(OutboundQueue.PRIORITY_HIGH);
     }
 
     public NXTBaseController(char lWheel, char rWheel) {
-        mMessage = new MotorMessage();
-        mMotorInterface = MotorInterface.getInstance();
-        mMessage.setMessageType(MotorInterface.MESSAGETYPE_NORESPONSE);
+        prepareMessages();
+        mStopBatch.setPriority(OutboundQueue.PRIORITY_HIGH);
 
         mLeftWheel = lWheel;
         mRightWheel = rWheel;
     }
 
+    /**
+     * Builds the message templates used to move, stop and drive the IR emitter.
+     * Fields which never change between commands are set once here
+     */
+    private void prepareMessages() {
+        mDriveMessage = new MotorMessage();
+        mDriveMessage.setMessageType(MotorInterface.MESSAGETYPE_NORESPONSE);
+        mDriveMessage.setMode(MotorInterface.MOTOR_MODE_ON_REGULATED_BRAKE);
+        mDriveMessage.setRegulationMode(MotorInterface.MOTOR_REGULATION_MOTORSYNC);
+        mDriveMessage.setRunState(MotorInterface.MOTOR_RUNSTATE_RUNNING);
+
+        mBrakeMessage = new MotorMessage();
+        mBrakeMessage.setMessageType(MotorInterface.MESSAGETYPE_NORESPONSE);
+        mBrakeMessage.setMode(MotorInterface.MOTOR_MODE_BRAKE);
+        mBrakeMessage.setPower(0);
+        mBrakeMessage.setTurnRatio(0);
+        mBrakeMessage.setTachoLimit(0L);
+        mBrakeMessage.setRegulationMode(MotorInterface.MOTOR_REGULATION_IDLE);
+        mBrakeMessage.setRunState(MotorInterface.MOTOR_RUNSTATE_IDLE);
+
+        mIRMessage = new MotorMessage();
+        mIRMessage.setMessageType(MotorInterface.MESSAGETYPE_NORESPONSE);
+        mIRMessage.setTurnRatio(0);
+        mIRMessage.setRegulationMode(MotorInterface.MOTOR_REGULATION_IDLE);
+    }
+
     /** Setters **/
 
 
@@ -82,12 +125,39 @@ public class NXTBaseController {
     }
 
     /**
-     * Sets a connection object
+     * Sets a connection object. The controller gets its own motor interface bound to it, so binding another
+     * controller, or another screen, to a different robot never redirects this one
      *
      * @param conn ConnectionLegacy object
      */
     public void setConnection(Connection conn) {
-        mMotorInterface.setConnection(conn);
+        mConnection = conn;
+        mMotorInterface = new MotorInterface(conn);
+    }
+
+    /**
+     * Runs an action on the command executor of the current connection, so the calling thread never waits for the
+     * robot. Actions run one after another, in the order they were submitted
+     *
+     * @param action Action to run. It may use any method of this controller
+     * @return Future which completes once the action has run. Its get() method throws the action failure, if any
+     */
+    public Future<Void> submit(final Action action) {
+        ExecutorService executor = (mConnection != null) ? mConnection.getCommandExecutor()
+                : CommandExecutors.getInstance().get(CommandExecutors.BROADCAST);
+        return executor.submit(new Callable<Void>() {
+            public Void call() throws BluetoothException {
+                action.run();
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Controller operation to be run through submit()
+     */
+    public interface Action {
+        void run() throws BluetoothException;
     }
 
     /**
@@ -116,39 +186,39 @@ public class NXTBaseController {
      *
      * @throws BluetoothException If the operation fails
      */
-    public void turnIREmitterOn() throws BluetoothException {
-        mMessage.setMode(MotorInterface.MOTOR_MODE_ON);
-        mMessage.setTurnRatio(0);
-        mMessage.setMotorNum(mIRport);
-        mMessage.setPower(100);
-        mMessage.setRegulationMode(MotorInterface.MOTOR_REGULATION_IDLE);
-        mMessage.setRunState(MotorInterface.MOTOR_RUNSTATE_RUNNING);
-        mMotorInterface.setOutputState(mMessage);
-
+    public synchronized void turnIREmitterOn() throws BluetoothException {
+        mIRMessage.setMode(MotorInterface.MOTOR_MODE_ON);
+        mIRMessage.setMotorNum(mIRport);
+        mIRMessage.setPower(100);
+        mIRMessage.setRunState(MotorInterface.MOTOR_RUNSTATE_RUNNING);
+        mBatch.clear();
+        mMotorInterface.setOutputState(mBatch, mIRMessage);
+        mMotorInterface.sendBatch(mBatch);
     }
 
     /**
-     * Turns the IR Emitter off
+     * Turns the IR Emitter off, ahead of any command still queued
      *
      * @throws BluetoothException If the operation fails
      */
-    public void turnIREmitterOff() throws BluetoothException {
-        mMessage.setMode(MotorInterface.MOTOR_MODE_BRAKE);
-        mMessage.setMotorNum(mIRport);
-        mMessage.setPower(0);
-        mMessage.setRegulationMode(MotorInterface.MOTOR_REGULATION_IDLE);
-        mMessage.setRunState(MotorInterface.MOTOR_RUNSTATE_IDLE);
-        mMotorInterface.setOutputState(mMessage);
+    public synchronized void turnIREmitterOff() throws BluetoothException {
+        mIRMessage.setMode(MotorInterface.MOTOR_MODE_BRAKE);
+        mIRMessage.setMotorNum(mIRport);
+        mIRMessage.setPower(0);
+        mIRMessage.setRunState(MotorInterface.MOTOR_RUNSTATE_IDLE);
+        mStopBatch.clear();
+        mMotorInterface.setOutputState(mStopBatch, mIRMessage);
+        mMotorInterface.sendBatch(mStopBatch);
     }
 
     /**
-     * Stops the robot
+     * Stops the robot, ahead of any drive command still queued
      * Also, if recording mode is enabled, previous movement is saved in database, otherwilse, last movement would
      * not be recorded
      *
      * @throws BluetoothException If the operation fails
      */
-    public void stop() throws BluetoothException {
+    public synchronized void stop() throws BluetoothException {
 
         if (mRecording) {
             if (mTimeExec == 0) {
@@ -160,16 +230,12 @@ public class NXTBaseController {
             mPrevAngle = 0;
         }
 
-        mMessage.setMode(MotorInterface.MOTOR_MODE_BRAKE);
-        mMessage.setMotorNum(mLeftWheel);
-        mMessage.setPower(0);
-        mMessage.setTurnRatio(0);
-        mMessage.setTachoLimit(0L);
-        mMessage.setRegulationMode(MotorInterface.MOTOR_REGULATION_IDLE);
-        mMessage.setRunState(MotorInterface.MOTOR_RUNSTATE_IDLE);
-        mMotorInterface.setOutputState(mMessage);
-        mMessage.setMotorNum(mRightWheel);
-        mMotorInterface.setOutputState(mMessage);
+        mStopBatch.clear();
+        mBrakeMessage.setMotorNum(mLeftWheel);
+        mMotorInterface.setOutputState(mStopBatch, mBrakeMessage);
+        mBrakeMessage.setMotorNum(mRightWheel);
+        mMotorInterface.setOutputState(mStopBatch, mBrakeMessage);
+        mMotorInterface.sendBatch(mStopBatch);
 
     }
 
@@ -184,7 +250,7 @@ public class NXTBaseController {
      * @param tachoLimit  Travel distance in degrees. If 0, means "no limit"
      * @throws BluetoothException If the operation fails
      */
-    public void move(char masterWheel, char slaveWheel, int turnRatio, int power, long tachoLimit) throws BluetoothException {
+    public synchronized void move(char masterWheel, char slaveWheel, int turnRatio, int power, long tachoLimit) throws BluetoothException {
 
         if (mRecording) {
             if (mTimeExec == 0) {
@@ -196,19 +262,18 @@ public class NXTBaseController {
             mPrevAngle = turnRatio;
         }
 
-        mMotorInterface.resetMotorPosition(masterWheel, true, MotorInterface.MESSAGETYPE_NORESPONSE);
-        mMotorInterface.resetMotorPosition(slaveWheel, true, MotorInterface.MESSAGETYPE_NORESPONSE);
+        mBatch.clear();
+        mMotorInterface.resetMotorPosition(mBatch, masterWheel, true);
+        mMotorInterface.resetMotorPosition(mBatch, slaveWheel, true);
 
-        mMessage.setTachoLimit(tachoLimit);
-        mMessage.setMode(MotorInterface.MOTOR_MODE_ON_REGULATED_BRAKE);
-        mMessage.setTurnRatio(turnRatio);
-        mMessage.setMotorNum(masterWheel);
-        mMessage.setPower(power);
-        mMessage.setRegulationMode(MotorInterface.MOTOR_REGULATION_MOTORSYNC);
-        mMessage.setRunState(MotorInterface.MOTOR_RUNSTATE_RUNNING);
-        mMotorInterface.setOutputState(mMessage);
-        mMessage.setMotorNum(slaveWheel);
-        mMotorInterface.setOutputState(mMessage);
+        mDriveMessage.setTachoLimit(tachoLimit);
+        mDriveMessage.setTurnRatio(turnRatio);
+        mDriveMessage.setMotorNum(masterWheel);
+        mDriveMessage.setPower(power);
+        mMotorInterface.setOutputState(mBatch, mDriveMessage);
+        mDriveMessage.setMotorNum(slaveWheel);
+        mMotorInterface.setOutputState(mBatch, mDriveMessage);
+        mMotorInterface.sendBatch(mBatch);
 
     }
 
@@ -251,6 +316,18 @@ public class NXTBaseController {
         return mMotorInterface.getOutputState(motorQuery);
     }
 
+    /**
+     * Returns the state of both wheels, querying them in a single round trip
+     *
+     * @return Left and right wheel states, in this order. They should be recycled once read
+     * @throws BluetoothException if the operation fails
+     */
+    public motorStateResponse[] getWheelStates() throws BluetoothException {
+        motorStateResponse[] states = new motorStateResponse[2];
+        mMotorInterface.getOutputStates(new char[]{mLeftWheel, mRightWheel}, states);
+        return states;
+    }
+
     /**
      * Gets the motor state for the default master wheel (leftwheel)
      *
@@ -288,9 +365,9 @@ public class NXTBaseController {
     /**
      * Starts movement recording in the database
      *
-     * @param db Reference to the database object handler
+     * @param db Recorder the movements are written to, usually the database object handler
      */
-    public void startRecording(DatabaseHelper db) {
+    public void startRecording(DemoRecorder db) {
         this.mDbHelper = db;
         this.mDbHelper.startDemoActionTransaction();
         this.mRecording = true;
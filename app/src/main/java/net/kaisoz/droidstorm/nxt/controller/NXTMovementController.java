@@ -29,7 +29,7 @@ public class NXTMovementController extends NXTBaseController {
      * @param distance Distance of the polar coordinates calculated previously. Will be used as the power
      * @param angle    Angle of the polar coordinates calculated previously. Will be used as the turn ratio
      */
-    public void moveNXT(int distance, int angle) throws BluetoothException {
+    public synchronized void moveNXT(int distance, int angle) throws BluetoothException {
 
         // Check if the mValues are different from the previous ones
         if (distance != mPrevPower || angle != mPrevAngle) {
@@ -62,7 +62,7 @@ public class NXTMovementController extends NXTBaseController {
      * @throws BluetoothException If the operation fails
      */
     @Override
-    public void stop() throws BluetoothException {
+    public synchronized void stop() throws BluetoothException {
         super.stop();
         mPrevPower = 0;
         mPrevAngle = 0;
@@ -81,6 +81,7 @@ public class FileSelectActivity extends Activity {
         private FindFileResponse response = null;
         private int handle = 0;
         private int nextHandle = 0;
+        private int status = 0;
 
         protected void onPreExecute() {
             String title = (String) FileSelectActivity.this.getText(R.string.robotComm_alert_title);
@@ -91,20 +92,23 @@ public class FileSelectActivity extends Activity {
         protected Boolean doInBackground(String... address) {
             try {
                 Connection conn = mManager.getConnection(address[0]);
-                MiscInterface fileReader = MiscInterface.getInstance();
-                fileReader.setConnection(conn);
+                MiscInterface fileReader = new MiscInterface(conn);
 
                 response = fileReader.findFirst("*.rxe");
                 mFileNames.add(response.getFileName());
                 handle = (int) response.getHandle();
-                while (response.getStatus() != FindFileResponse.FILE_NOT_FOUND) {
+                status = response.getStatus();
+                response.recycle();
+                while (status != FindFileResponse.FILE_NOT_FOUND) {
                     response = fileReader.findNext(handle);
                     nextHandle = (int) response.getHandle();
                     mFileNames.add(response.getFileName());
-                    fileReader.closeHandle(handle);
+                    status = response.getStatus();
+                    response.recycle();
+                    fileReader.closeHandle(handle).recycle();
                     handle = nextHandle;
                 }
-                fileReader.closeHandle(handle);
+                fileReader.closeHandle(handle).recycle();
                 return true;
             } catch (BluetoothException e) {
                 e.printStackTrace();
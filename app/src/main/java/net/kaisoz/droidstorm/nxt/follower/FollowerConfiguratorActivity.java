@@ -3,12 +3,12 @@ package net.kaisoz.droidstorm.nxt.follower;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import net.kaisoz.droidstorm.R;
 import net.kaisoz.droidstorm.bluetooth.BluetoothManager;
-import net.kaisoz.droidstorm.bluetooth.Connection;
 import net.kaisoz.droidstorm.bluetooth.ConnectionBase;
-import net.kaisoz.droidstorm.bluetooth.exception.BluetoothException;
 import net.kaisoz.droidstorm.nxt.Interface.MiscInterface;
 import net.kaisoz.droidstorm.nxt.message.GenericResponse;
 
@@ -28,6 +28,8 @@ import android.widget.AdapterView.OnItemClickListener;
 
 /**
  * This activity allows the user to select which one of both connected robots will be the follower.
+ * When more than two robots are connected, the user selects the leader instead, and the rest of them make a convoy
+ * which follows it.
  * When the user has selected the follower, it starts FileSelectActivity in order to allow him or she to select which program
  * installed in the follower should be started
  * Once the user has selected the program in FileSelectActivity, it passes the name back to this activity which will start it
@@ -43,7 +45,7 @@ public class FollowerConfiguratorActivity extends Activity {
     private BluetoothManager mManager;
     private ListView mNXTRobots;
     private String mLeaderAddr;
-    private String mFollowerAddr;
+    private String[] mFollowerAddrs;
     private List<String> mAdapterData;
 
     @Override
@@ -57,22 +59,29 @@ public class FollowerConfiguratorActivity extends Activity {
         mAdapterData.addAll(Arrays.asList(mManager.getAllNames()));
         ArrayAdapter<String> adapter = new ArrayAdapter<String>(this, android.R.layout.simple_list_item_1, mAdapterData);
         mNXTRobots.setAdapter(adapter);
-        Toast.makeText(FollowerConfiguratorActivity.this, R.string.followerConf_toast_selectFollower, Toast.LENGTH_LONG).show();
+        final boolean convoy = mAdapterData.size() > 2;
+        Toast.makeText(FollowerConfiguratorActivity.this, convoy ? R.string.followerConf_toast_selectLeader
+                : R.string.followerConf_toast_selectFollower, Toast.LENGTH_LONG).show();
 
         mNXTRobots.setOnItemClickListener(new OnItemClickListener() {
             @Override
             public void onItemClick(AdapterView<?> adapter, View view, int position, long id) {
 
-                // Get follower address
-                mFollowerAddr = (String) mNXTRobots.getItemAtPosition(position);
-                mAdapterData.remove(mFollowerAddr);
-                mFollowerAddr = mManager.getAddressesByNames(new String[]{mFollowerAddr})[0];
-                // Get leader address
-                mLeaderAddr = (String) mAdapterData.get(0);
-                mLeaderAddr = mManager.getAddressesByNames(new String[]{mLeaderAddr})[0];
+                String selected = (String) mNXTRobots.getItemAtPosition(position);
+                List<String> others = new ArrayList<String>(mAdapterData);
+                others.remove(selected);
+                if (convoy) {
+                    // The selected robot leads the rest
+                    mLeaderAddr = mManager.getAddressesByNames(new String[]{selected})[0];
+                    mFollowerAddrs = mManager.getAddressesByNames(others.toArray(new String[others.size()]));
+                } else {
+                    mFollowerAddrs = mManager.getAddressesByNames(new String[]{selected});
+                    mLeaderAddr = mManager.getAddressesByNames(new String[]{others.get(0)})[0];
+                }
 
+                // Every follower runs the program selected from the first one
                 Intent i = new Intent(FollowerConfiguratorActivity.this, net.kaisoz.droidstorm.nxt.follower.FileSelectActivity.class);
-                i.putExtra("followerAddr", mFollowerAddr);
+                i.putExtra("followerAddr", mFollowerAddrs[0]);
                 i.putExtra("leaderAddr", mLeaderAddr);
                 FollowerConfiguratorActivity.this.startActivityForResult(i, FILE_SELECT_ACTIVITY);
 
@@ -87,7 +96,7 @@ public class FollowerConfiguratorActivity extends Activity {
                 if (resultCode == RESULT_OK) {
                     int fileMode = (Integer) data.getExtras().get("fileUploadMode");
                     Intent i = new Intent(FollowerConfiguratorActivity.this, net.kaisoz.droidstorm.nxt.follower.FileSelectActivity.class);
-                    i.putExtra("followerAddr", mFollowerAddr);
+                    i.putExtra("followerAddr", mFollowerAddrs[0]);
                     FollowerConfiguratorActivity.this.startActivityForResult(i, FILE_SELECT_ACTIVITY);
                 }
                 break;
@@ -95,7 +104,7 @@ public class FollowerConfiguratorActivity extends Activity {
             default:
                 if (resultCode == RESULT_OK) {
                     String selectedFile = (String) data.getExtras().get("selectedFile");
-                    new StartTask(selectedFile).execute(mFollowerAddr);
+                    new StartTask(selectedFile).execute(mFollowerAddrs);
                 }
                 break;
         }
@@ -103,7 +112,7 @@ public class FollowerConfiguratorActivity extends Activity {
 
 
     /**
-     * Nested class used to start a program remotelly in the follower robot
+     * Nested class used to start a program remotelly in the follower robots
      * It's implemented as an asyncTask in order to assure that the program flow doesn't get blocked
      *
      * @author root
@@ -123,22 +132,54 @@ public class FollowerConfiguratorActivity extends Activity {
             mAlert = ProgressDialog.show(FollowerConfiguratorActivity.this, title, msg, true);
         }
 
+        /**
+         * Starts the program in every given robot. Every robot starts it on its own command executor, so all of them
+         * start at once instead of one after another
+         *
+         * @return The response of the first robot which didn't start it, or of the last one if all of them did
+         */
         protected GenericResponse doInBackground(String... args) {
-            try {
-                Connection conn = mManager.getConnection(args[0]);
-                MiscInterface starter = MiscInterface.getInstance();
-                starter.setConnection(conn);
-                return starter.startProgram(mFileName, MiscInterface.MESSAGETYPE_RESPONSE);
-            } catch (BluetoothException e) {
-                e.printStackTrace();
-                return null;
+            List<Future<GenericResponse>> started = new ArrayList<Future<GenericResponse>>(args.length);
+            for (int i = 0; i < args.length; i++) {
+                MiscInterface starter = new MiscInterface(mManager.getConnection(args[i]));
+                started.add(starter.startProgramAsync(mFileName, MiscInterface.MESSAGETYPE_RESPONSE));
+            }
+            GenericResponse response = null;
+            boolean failed = false;
+            for (int i = 0; i < started.size(); i++) {
+                GenericResponse next;
+                try {
+                    next = started.get(i).get();
+                } catch (ExecutionException e) {
+                    e.getCause().printStackTrace();
+                    failed = true;
+                    continue;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    failed = true;
+                    break;
+                }
+                if (failed || (response != null && response.getStatus() != MiscInterface.RESPONSE_SUCCESS)) {
+                    next.recycle();
+                } else {
+                    if (response != null)
+                        response.recycle();
+                    response = next;
+                }
+            }
+            if (failed && response != null) {
+                response.recycle();
+                response = null;
             }
+            return response;
         }
 
         protected void onPostExecute(GenericResponse response) {
             mAlert.dismiss();
             if (response != null) {
-                if (response.getStatus() == MiscInterface.RESPONSE_SUCCESS) {
+                char status = response.getStatus();
+                response.recycle();
+                if (status == MiscInterface.RESPONSE_SUCCESS) {
                     showSuccessDialog();
                 } else {
                     showErrorDialog();
@@ -170,7 +211,8 @@ public class FollowerConfiguratorActivity extends Activity {
                 public void onClick(DialogInterface dialog, int which) {
                     Intent data = new Intent();
                     data.putExtra("leaderAddr", mLeaderAddr);
-                    data.putExtra("followerAddr", mFollowerAddr);
+                    data.putExtra("followerAddr", mFollowerAddrs[0]);
+                    data.putExtra("followerAddrs", mFollowerAddrs);
                     FollowerConfiguratorActivity.this.setResult(RESULT_OK, data);
                     FollowerConfiguratorActivity.this.finish();
                     return;
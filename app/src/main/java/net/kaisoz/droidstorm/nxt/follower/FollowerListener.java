@@ -0,0 +1,320 @@
+package net.kaisoz.droidstorm.nxt.follower;
+
+import net.kaisoz.droidstorm.bluetooth.Connection;
+import net.kaisoz.droidstorm.bluetooth.MessageBuffer;
+import net.kaisoz.droidstorm.bluetooth.exception.BluetoothException;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Listens to the "Leader lost protocol" messages of the followers of a convoy and delivers them as events.
+ * A single thread reads the messages of every follower, waiting with a timeout, so stop() ends it promptly even if
+ * the followers stay silent, and convoys of any size take no more threads.
+ * Events are handed over latest-wins: while one is waiting to be delivered, newer states replace the ones of their
+ * followers, so repeated LEADER_SEARCH messages are merged and chatty followers never queue work behind the leader.
+ * Every delivery reports the state of the whole convoy, so the leader recovers once for all the followers which lost it
+ */
+public class FollowerListener implements Runnable {
+
+    /**
+     * Follower Mode messages
+     **/
+    public static final int READY = 0;
+    public static final int INITIALIZING = 1;
+    public static final int LEADER_LOST = 2;
+    public static final int LEADER_SEARCH = 3;
+    public static final int LEADER_FOUND = 4;
+
+    // Longest wait for a message before checking whether the listener has been stopped
+    private static final long READ_TIMEOUT = 250;
+    private static final int NO_STATE = -1;
+
+    /**
+     * Receives the convoy states
+     */
+    public interface Callback {
+
+        /**
+         * Called on the delivery executor with the latest state of the convoy: the state of the follower which needs
+         * the leader the most. Until a follower reports, it counts as INITIALIZING
+         *
+         * @param state     Convoy state: READY, INITIALIZING, LEADER_LOST, LEADER_SEARCH or LEADER_FOUND
+         * @param direction Direction the leader should make itself visible in, for LEADER_SEARCH
+         * @param repeated  True if the state and direction are the same as the ones delivered last time
+         * @throws BluetoothException if the leader couldn't be moved. The listener stops then
+         */
+        void onStateChanged(int state, int direction, boolean repeated) throws BluetoothException;
+
+        /**
+         * Called once if the followers can't be listened to anymore. The listener is stopped
+         *
+         * @param error Failure
+         */
+        void onError(BluetoothException error);
+    }
+
+    private final Connection mConnection;
+    private final String[] mFollowers;
+    private final char[][] mMessages;
+    private final Executor mExecutor;
+    private final Callback mCallback;
+    private final MessageBuffer mBuffer = new MessageBuffer();
+    private volatile boolean mRunning = false;
+    private Thread mThread = null;
+
+    // Latest state of every follower not delivered yet
+    private final Object mLock = new Object();
+    private boolean mPending = false;
+    private final boolean[] mFresh;
+    private final int[] mPendingStates;
+    private final int[] mPendingDirections;
+    private volatile int mCoalesced = 0;
+    // Only touched by the delivery, which never runs twice at once
+    private final int[] mStates;
+    private final int[] mDirections;
+    // Order in which the followers started searching for the leader
+    private final long[] mSearchSince;
+    private long mSearches = 0;
+    private int mLastState = NO_STATE;
+    private int mLastDirection = 0;
+
+    private final Runnable mDelivery = new Runnable() {
+        public void run() {
+            synchronized (mLock) {
+                for (int i = 0; i < mFollowers.length; i++) {
+                    if (mFresh[i]) {
+                        mFresh[i] = false;
+                        if (mPendingStates[i] == LEADER_SEARCH && mStates[i] != LEADER_SEARCH) {
+                            mSearchSince[i] = ++mSearches;
+                        }
+                        mStates[i] = mPendingStates[i];
+                        mDirections[i] = mPendingDirections[i];
+                    }
+                }
+                mPending = false;
+            }
+            if (!mRunning) {
+                return;
+            }
+            int state = getConvoyState();
+            int direction = (state == LEADER_SEARCH) ? getSearchDirection() : 0;
+            boolean repeated = (state == mLastState && direction == mLastDirection);
+            mLastState = state;
+            mLastDirection = direction;
+            try {
+                mCallback.onStateChanged(state, direction, repeated);
+            } catch (BluetoothException e) {
+                fail(e);
+            }
+        }
+    };
+
+    /**
+     * Creates a listener of the given followers
+     *
+     * @param connection Connection to every robot
+     * @param followers  BT Addresses of the followers
+     * @param executor   Executor the events are delivered on, usually the command executor of the leader
+     * @param callback   Receiver of the events
+     */
+    public FollowerListener(Connection connection, String[] followers, Executor executor, Callback callback) {
+        this.mConnection = connection;
+        this.mFollowers = followers.clone();
+        this.mMessages = new char[followers.length][];
+        this.mExecutor = executor;
+        this.mCallback = callback;
+        this.mFresh = new boolean[followers.length];
+        this.mPendingStates = new int[followers.length];
+        this.mPendingDirections = new int[followers.length];
+        this.mStates = new int[followers.length];
+        this.mDirections = new int[followers.length];
+        this.mSearchSince = new long[followers.length];
+        for (int i = 0; i < followers.length; i++) {
+            mStates[i] = INITIALIZING;
+        }
+    }
+
+    /**
+     * Starts listening to the followers
+     */
+    public synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        mRunning = true;
+        mThread = new Thread(this, "FollowerListener");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Stops listening. No event is delivered from now on, and the reading thread ends within the read timeout, or
+     * right away if it is waiting for a message
+     */
+    public synchronized void stop() {
+        mRunning = false;
+        if (mThread != null) {
+            mThread.interrupt();
+            mThread = null;
+        }
+    }
+
+    /**
+     * Returns true until the listener is stopped, or fails
+     *
+     * @return
+     */
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    /**
+     * Returns the number of messages replaced by a newer one of the same follower before being delivered
+     *
+     * @return
+     */
+    public int getCoalesced() {
+        return mCoalesced;
+    }
+
+    public void run() {
+        try {
+            while (mRunning) {
+                if (mConnection.waitForMessages(mFollowers, mMessages, READ_TIMEOUT) == 0 || !mRunning) {
+                    continue;
+                }
+                boolean received = false;
+                for (int i = 0; i < mFollowers.length; i++) {
+                    if (mMessages[i] != null) {
+                        received |= offer(i, mMessages[i]);
+                        mMessages[i] = null;
+                    }
+                }
+                if (received) {
+                    schedule();
+                }
+            }
+        } catch (BluetoothException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Keeps the state sent by a follower, replacing the one not delivered yet, if any
+     *
+     * @return false if the message is not a "Leader lost protocol" one
+     */
+    private boolean offer(int follower, char[] msg) {
+        char[] message;
+        try {
+            mBuffer.setMessage(msg);
+            message = mBuffer.getMessage();
+        } catch (IndexOutOfBoundsException e) {
+            return false;
+        }
+        if (message.length == 0) {
+            return false;
+        }
+        synchronized (mLock) {
+            if (mFresh[follower]) {
+                mCoalesced++;
+            }
+            mFresh[follower] = true;
+            mPendingStates[follower] = message[0];
+            mPendingDirections[follower] = (message.length > 1) ? message[1] : 0;
+        }
+        return true;
+    }
+
+    /**
+     * Hands the kept states over to the delivery executor, unless a delivery is already waiting there
+     */
+    private void schedule() {
+        synchronized (mLock) {
+            if (mPending) {
+                return;
+            }
+            mPending = true;
+        }
+        try {
+            mExecutor.execute(mDelivery);
+        } catch (RejectedExecutionException e) {
+            // The leader is being disconnected
+            synchronized (mLock) {
+                mPending = false;
+            }
+        }
+    }
+
+    /**
+     * Returns the state of the follower which needs the leader the most
+     */
+    private int getConvoyState() {
+        int state = READY;
+        for (int i = 0; i < mStates.length; i++) {
+            if (getUrgency(mStates[i]) > getUrgency(state)) {
+                state = mStates[i];
+            }
+        }
+        return state;
+    }
+
+    private static int getUrgency(int state) {
+        switch (state) {
+            case READY:
+                return 0;
+            case LEADER_FOUND:
+                return 2;
+            case LEADER_LOST:
+                return 3;
+            case LEADER_SEARCH:
+                return 4;
+            default:
+                return 1;
+        }
+    }
+
+    /**
+     * Chooses the direction the leader makes itself visible in when several followers search for it: the one most of
+     * them ask for and, between equally asked ones, the one asked by the follower which has been searching the longest
+     */
+    private int getSearchDirection() {
+        int best = -1;
+        int bestVotes = 0;
+        long bestSince = Long.MAX_VALUE;
+        for (int i = 0; i < mStates.length; i++) {
+            if (mStates[i] != LEADER_SEARCH) {
+                continue;
+            }
+            int votes = 0;
+            long since = Long.MAX_VALUE;
+            for (int j = 0; j < mStates.length; j++) {
+                if (mStates[j] == LEADER_SEARCH && mDirections[j] == mDirections[i]) {
+                    votes++;
+                    since = Math.min(since, mSearchSince[j]);
+                }
+            }
+            if (votes > bestVotes || (votes == bestVotes && since < bestSince)) {
+                best = i;
+                bestVotes = votes;
+                bestSince = since;
+            }
+        }
+        return mDirections[best];
+    }
+
+    /**
+     * Stops the listener and reports the failure, unless it was stopped on purpose
+     */
+    private void fail(BluetoothException error) {
+        synchronized (this) {
+            if (!mRunning) {
+                return;
+            }
+            mRunning = false;
+            mThread = null;
+        }
+        mCallback.onError(error);
+    }
+}
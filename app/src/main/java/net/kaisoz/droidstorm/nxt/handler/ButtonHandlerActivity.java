@@ -3,6 +3,7 @@ package net.kaisoz.droidstorm.nxt.handler;
 
 import net.kaisoz.droidstorm.R;
 import net.kaisoz.droidstorm.bluetooth.exception.BluetoothException;
+import net.kaisoz.droidstorm.nxt.controller.NXTBaseController;
 import net.kaisoz.droidstorm.nxt.controller.NXTButtonController;
 
 import android.content.res.Configuration;
@@ -32,6 +33,11 @@ public class ButtonHandlerActivity extends NXTHandlerBaseActivity implements See
     private ImageButton mGoLeft;
     private ImageButton mGoRight;
     private ImageButton mStop;
+    private final NXTBaseController.Action mStopAction = new NXTBaseController.Action() {
+        public void run() throws BluetoothException {
+            mController.stop();
+        }
+    };
 
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -58,11 +64,7 @@ public class ButtonHandlerActivity extends NXTHandlerBaseActivity implements See
         mGoForward = (ImageButton) findViewById(R.id.butt_handler_forward);
         mGoForward.setOnClickListener(new View.OnClickListener() {
             public void onClick(View v) {
-                try {
-                    ((NXTButtonController) mController).goForward();
-                } catch (Exception e) {
-                    handleException(e);
-                }
+                runAction(FORWARD);
                 CURRENT_ACTION = FORWARD;
             }
         });
@@ -70,11 +72,7 @@ public class ButtonHandlerActivity extends NXTHandlerBaseActivity implements See
         mGoBackwards = (ImageButton) findViewById(R.id.butt_handler_back);
         mGoBackwards.setOnClickListener(new View.OnClickListener() {
             public void onClick(View v) {
-                try {
-                    ((NXTButtonController) mController).goBackwards();
-                } catch (Exception e) {
-                    handleException(e);
-                }
+                runAction(BACKWARDS);
                 CURRENT_ACTION = BACKWARDS;
             }
         });
@@ -82,11 +80,7 @@ public class ButtonHandlerActivity extends NXTHandlerBaseActivity implements See
         mGoLeft = (ImageButton) findViewById(R.id.butt_handler_left);
         mGoLeft.setOnClickListener(new View.OnClickListener() {
             public void onClick(View v) {
-                try {
-                    ((NXTButtonController) mController).goLeft();
-                } catch (Exception e) {
-                    handleException(e);
-                }
+                runAction(LEFT);
                 CURRENT_ACTION = LEFT;
             }
         });
@@ -94,11 +88,7 @@ public class ButtonHandlerActivity extends NXTHandlerBaseActivity implements See
         mGoRight = (ImageButton) findViewById(R.id.butt_handler_right);
         mGoRight.setOnClickListener(new View.OnClickListener() {
             public void onClick(View v) {
-                try {
-                    ((NXTButtonController) mController).goRight();
-                } catch (Exception e) {
-                    handleException(e);
-                }
+                runAction(RIGHT);
                 CURRENT_ACTION = RIGHT;
             }
         });
@@ -106,11 +96,7 @@ public class ButtonHandlerActivity extends NXTHandlerBaseActivity implements See
         mStop = (ImageButton) findViewById(R.id.butt_handler_stop);
         mStop.setOnClickListener(new View.OnClickListener() {
             public void onClick(View v) {
-                try {
-                    mController.stop();
-                } catch (Exception e) {
-                    handleException(e);
-                }
+                runOnController(mStopAction);
                 CURRENT_ACTION = -1;
             }
         });
@@ -119,6 +105,36 @@ public class ButtonHandlerActivity extends NXTHandlerBaseActivity implements See
     }
 
 
+    /**
+     * Runs the movement bound to the given action on the robot command executor
+     *
+     * @param action Action to run (FORWARD, BACKWARDS, LEFT or RIGHT). Any other value is ignored
+     */
+    private void runAction(final int action) {
+        if (action != FORWARD && action != BACKWARDS && action != LEFT && action != RIGHT)
+            return;
+
+        runOnController(new NXTBaseController.Action() {
+            public void run() throws BluetoothException {
+                NXTButtonController controller = (NXTButtonController) mController;
+                switch (action) {
+                    case FORWARD:
+                        controller.goForward();
+                        break;
+                    case BACKWARDS:
+                        controller.goBackwards();
+                        break;
+                    case LEFT:
+                        controller.goLeft();
+                        break;
+                    case RIGHT:
+                        controller.goRight();
+                        break;
+                }
+            }
+        });
+    }
+
     @Override
     public void onConfigurationChanged(Configuration newConfig) {
         setLocale(R.string.activity_label_butthandler);
@@ -132,24 +148,7 @@ public class ButtonHandlerActivity extends NXTHandlerBaseActivity implements See
         TextView powerText = (TextView) findViewById(R.id.butt_handler_pow);
         powerText.setText(String.valueOf(progress));
 
-        try {
-            switch (CURRENT_ACTION) {
-                case FORWARD:
-                    ((NXTButtonController) mController).goForward();
-                    break;
-                case BACKWARDS:
-                    ((NXTButtonController) mController).goBackwards();
-                    break;
-                case LEFT:
-                    ((NXTButtonController) mController).goLeft();
-                    break;
-                case RIGHT:
-                    ((NXTButtonController) mController).goRight();
-                    break;
-            }
-        } catch (BluetoothException e) {
-            handleException(e);
-        }
+        runAction(CURRENT_ACTION);
 
     }
 
@@ -169,11 +168,7 @@ public class ButtonHandlerActivity extends NXTHandlerBaseActivity implements See
         mGoLeft.setEnabled(false);
         mGoRight.setEnabled(false);
         mStop.setEnabled(false);
-        try {
-            mController.stop();
-        } catch (Exception e) {
-            handleException(e);
-        }
+        runOnController(mStopAction);
         return true;
     }
 
@@ -29,7 +29,7 @@ import android.widget.Toast;
  * In case of XML loading, the thread reads an array list of DemoActions prepared previously from the XML file reading.
  * <p>
  * Both loading modes have been implemented as a thread because they need to be interruptable for follower mode. When a new message from the
- * follower is received, the running thread is interrupted and robot control passes to the followerListener async task, which will move the leader
+ * follower is received, the running thread is interrupted and robot control passes to the follower listener, which will move the leader
  * to make it visible. Once the follower is ready, the thread is notified and it continues moving the robot
  *
  * @author Tomás Tormo Franco
@@ -54,7 +54,7 @@ public class DemoHandlerActivity extends NXTHandlerBaseActivity {
     private ArrayList<DemoAction> mDemoActions;
     private Handler mHandler = new Handler();
     private String mLeaderAddr;
-    private String mFollowerAddr;
+    private String[] mFollowerAddrs;
     private static int mDemoDataSource = -1;
     private static final Object mThreadLock = new Object();
     private XMLDemoStarter mXMLStarter;
@@ -81,9 +81,9 @@ public class DemoHandlerActivity extends NXTHandlerBaseActivity {
                 if (mMode == MODE_FOLLOW) {
                     if (mThreadState == THREAD_NOINIT) {
                         mThreadState = THREAD_STOPPED;
-                        enableFollowerMode(mLeaderAddr, mFollowerAddr);
+                        enableFollowerMode(mLeaderAddr, mFollowerAddrs);
                     } else {
-                        runListener(mFollowerAddr);
+                        runListener(mFollowerAddrs);
                         enableHandler();
                     }
                 } else {
@@ -170,7 +170,7 @@ public class DemoHandlerActivity extends NXTHandlerBaseActivity {
                 if (resultCode == RESULT_OK) {
                     mMode = MODE_FOLLOW;
                     mLeaderAddr = (String) data.getExtras().get("leaderAddr");
-                    mFollowerAddr = (String) data.getExtras().get("followerAddr");
+                    mFollowerAddrs = getFollowers(data);
                 }
                 break;
             case DEMOSELECTOR_ACTIVITY:
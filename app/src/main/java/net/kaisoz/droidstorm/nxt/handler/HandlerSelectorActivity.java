@@ -3,8 +3,6 @@ package net.kaisoz.droidstorm.nxt.handler;
 import java.util.Locale;
 
 import net.kaisoz.droidstorm.R;
-import net.kaisoz.droidstorm.bluetooth.BluetoothManager;
-import net.kaisoz.droidstorm.nxt.Interface.MotorInterface;
 import net.kaisoz.droidstorm.util.DroidStormApp;
 
 import android.app.Activity;
@@ -110,12 +108,9 @@ public class HandlerSelectorActivity extends Activity {
     }
 
     /**
-     * Sets the connection object and launches the handler
+     * Launches the handler. Its controller binds itself to the connection
      */
     private void launchHandler(int handler) {
-        MotorInterface motor = MotorInterface.getInstance();
-        motor.setConnection(BluetoothManager.getInstance().getConnection());
-
         if (handler == MOVEMENT_HANDLER_ACTIVITY) {
             launchMovementHandler();
         } else {
@@ -5,8 +5,9 @@ import java.util.List;
 
 import net.kaisoz.droidstorm.R;
 import net.kaisoz.droidstorm.bluetooth.exception.BluetoothException;
+import net.kaisoz.droidstorm.nxt.controller.NXTBaseController;
 import net.kaisoz.droidstorm.nxt.controller.NXTMovementController;
-import net.kaisoz.droidstorm.util.SensorAverageDamper;
+import net.kaisoz.droidstorm.util.TiltCalculator;
 
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
@@ -30,30 +31,32 @@ import android.widget.Toast;
 
 public class MovementHandlerActivity extends NXTHandlerBaseActivity implements SensorEventListener {
 
-    private static final double TILT_MAGNIFIER = 1.5;
     static Sensor mAcceleratorSensor = null;
     static Sensor mMagneticSensor = null;
     static Sensor mOrientationSensor = null;
     static SensorManager mSensorManager = null;
     private SensorArrowView mSensorArrowView;
-    final int mMatrix_size = 16;
-    float[] Rarray = new float[mMatrix_size];
-    float[] mOutR = new float[mMatrix_size];
-    float[] mLarray = new float[mMatrix_size];
-    private float mOrientationValues[] = new float[3];
     float[] mMags = new float[3];
     float[] mAccels = new float[3];
     boolean mIsReady = false;
-    private SensorAverageDamper mDamper = null;
+    private TiltCalculator mTiltCalculator = null;
     private boolean mStopRequested = false;
-    int mAngle = 0;
-    int mTilt = 0;
+    // Latest values to be sent. Sensor events which arrive while a movement is queued just update them
+    private volatile int mPendingTilt = 0;
+    private volatile int mPendingAngle = 0;
+    private volatile boolean mMovePending = false;
+    private final NXTBaseController.Action mMoveAction = new NXTBaseController.Action() {
+        public void run() throws BluetoothException {
+            mMovePending = false;
+            ((NXTMovementController) mController).moveNXT(mPendingTilt, mPendingAngle);
+        }
+    };
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setLocale(R.string.activity_label_movhandler);
-        mDamper = new SensorAverageDamper(6, false, true, true);
+        mTiltCalculator = new TiltCalculator();
 
         mSensorArrowView = new SensorArrowView(this);
         setContentView(mSensorArrowView);
@@ -123,51 +126,25 @@ public class MovementHandlerActivity extends NXTHandlerBaseActivity implements S
                 if (mMags != null && mAccels != null && mIsReady) {
                     mIsReady = false;
                     // Remap and calculate polar coordinates
-                    translateCoordenates();
+                    if (!mTiltCalculator.calculate(mAccels, mMags)) {
+                        return;
+                    }
                     // Pass results to sensor arrow view in order to print the arrow
-                    mSensorArrowView.setData(this.mOrientationValues, this.mTilt, -this.mAngle);
+                    mSensorArrowView.setData(mTiltCalculator.getOrientation(), mTiltCalculator.getTilt(),
+                            -mTiltCalculator.getAngle());
                     mSensorArrowView.calcArrowAngle();
                     mSensorArrowView.invalidate();
 
-                    if (mOrientationValues[1] < 0) mTilt *= -1;
-                    try {
-                        // Send values to the robot
-                        Log.d("MOV", "onSensorChanged: sending to the robot");
-                        ((NXTMovementController) mController).moveNXT(mTilt, mAngle);
-                    } catch (BluetoothException e) {
-                        handleException(e);
+                    // Send values to the robot
+                    Log.d("MOV", "onSensorChanged: sending to the robot");
+                    mPendingTilt = mTiltCalculator.getPower();
+                    mPendingAngle = mTiltCalculator.getAngle();
+                    if (!mMovePending) {
+                        mMovePending = true;
+                        runOnController(mMoveAction);
                     }
                 }
             }
         }
     }
-
-
-    /**
-     * Remaps coordinates system and translates sensors values to polar coordinates
-     */
-    private void translateCoordenates() {
-        /** Remap coordinates to landscape mValues **/
-        SensorManager.getRotationMatrix(Rarray, mLarray, mAccels, mMags);
-        SensorManager.remapCoordinateSystem(Rarray, SensorManager.AXIS_Y, SensorManager.AXIS_MINUS_X, mOutR);
-        SensorManager.getOrientation(mOutR, mOrientationValues);
-
-        // Filter mValues 
-        mOrientationValues = mDamper.damp(mOrientationValues);
-
-        // Convert radians to degrees
-        for (int i = 0; i < mOrientationValues.length; i++) {
-            mOrientationValues[i] = (float) Math.toDegrees(mOrientationValues[i]);
-        }
-        if (mOrientationValues[2] == 0) return;
-
-        // Rectangular coordinates to polar coordinates conversion
-        mAngle = (int) (Math.toDegrees(
-                Math.atan(mOrientationValues[2] / mOrientationValues[1])));
-        mTilt = (int) Math.sqrt((
-                Math.pow(mOrientationValues[2], 2))
-                + (Math.pow(mOrientationValues[1], 2)));
-        mTilt *= TILT_MAGNIFIER;
-        if (mTilt > 100) mTilt = 100;
-    }
 }
@@ -1,14 +1,14 @@
 package net.kaisoz.droidstorm.nxt.handler;
 
 import java.util.Locale;
+import java.util.concurrent.Executor;
 
 import net.kaisoz.droidstorm.R;
 import net.kaisoz.droidstorm.bluetooth.BluetoothManager;
-import net.kaisoz.droidstorm.bluetooth.Connection;
-import net.kaisoz.droidstorm.bluetooth.MessageBuffer;
 import net.kaisoz.droidstorm.bluetooth.exception.BluetoothException;
 import net.kaisoz.droidstorm.connmanager.ConnectionManagerActivity;
 import net.kaisoz.droidstorm.nxt.controller.NXTBaseController;
+import net.kaisoz.droidstorm.nxt.follower.FollowerListener;
 import net.kaisoz.droidstorm.util.DatabaseHelper;
 import net.kaisoz.droidstorm.util.DroidStormApp;
 
@@ -20,7 +20,6 @@ import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.res.Configuration;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Vibrator;
 import android.preference.PreferenceManager;
@@ -37,8 +36,8 @@ import android.widget.Toast;
  * Manages preferences change as well as follower mode enabling.
  * When follower mode is selected, it launches the FollowerConfiguratorActivity in order to allow the user select which robot will
  * be the follower and which the leader.
- * It also has a netsted async class which handles all "Leader lost protocol". When a new message is received, this class takes the control
- * of the leader and moves it to make it visible for the follower.
+ * It also listens to the follower messages of the "Leader lost protocol". When a new message is received, the leader is moved on its
+ * command executor to make it visible for the follower.
  * Finally, it starts and stops recording mode.
  * This base class must be extended by all handlers in order to use follower mode.
  *
@@ -56,17 +55,17 @@ public abstract class NXTHandlerBaseActivity extends Activity {
     /**
      * Follower Mode messages
      **/
-    protected static final int READY = 0;
-    protected static final int INITIALIZING = 1;
-    protected static final int LEADER_LOST = 2;
-    protected static final int LEADER_SEARCH = 3;
-    protected static final int LEADER_FOUND = 4;
+    protected static final int READY = FollowerListener.READY;
+    protected static final int INITIALIZING = FollowerListener.INITIALIZING;
+    protected static final int LEADER_LOST = FollowerListener.LEADER_LOST;
+    protected static final int LEADER_SEARCH = FollowerListener.LEADER_SEARCH;
+    protected static final int LEADER_FOUND = FollowerListener.LEADER_FOUND;
 
     boolean mNXTReady = false;
     public int mMode = MODE_SYNCH;
-    protected followerListener mFollowerListener;
+    protected FollowerListener mFollowerListener;
+    protected ProgressDialog mFollowerAlert;
     protected NXTBaseController mController;
-    protected MessageBuffer mBuffer;
     protected BluetoothManager mConnManager;
     protected SharedPreferences mSp;
     protected DroidStormApp app;
@@ -150,18 +149,17 @@ public abstract class NXTHandlerBaseActivity extends Activity {
         disableHandler();
 
         if (mNXTReady) {
-            try {
-                mController.stop();
-                if (mRecording) mController.stopRecording();
-                if (mMode == MODE_FOLLOW) {
-                    mController.turnIREmitterOff();
-                    if (mFollowerListener != null) {
-                        mFollowerListener.finishListener();
-                        mFollowerListener = null;
-                    }
+            final boolean recording = mRecording;
+            final boolean following = (mMode == MODE_FOLLOW);
+            runOnController(new NXTBaseController.Action() {
+                public void run() throws BluetoothException {
+                    mController.stop();
+                    if (recording) mController.stopRecording();
+                    if (following) mController.turnIREmitterOff();
                 }
-            } catch (BluetoothException e) {
-                handleException(e);
+            });
+            if (following) {
+                finishListener();
             }
         }
     }
@@ -198,12 +196,25 @@ public abstract class NXTHandlerBaseActivity extends Activity {
             if (resultCode == RESULT_OK) {
                 mMode = MODE_FOLLOW;
                 String leaderAddr = (String) data.getExtras().get("leaderAddr");
-                String followerAddr = (String) data.getExtras().get("followerAddr");
-                enableFollowerMode(leaderAddr, followerAddr);
+                enableFollowerMode(leaderAddr, getFollowers(data));
             }
         }
     }
 
+    /**
+     * Returns the followers selected in FollowerConfiguratorActivity
+     *
+     * @param data Result of FollowerConfiguratorActivity
+     * @return BT Addresses of the followers
+     */
+    protected static String[] getFollowers(Intent data) {
+        String[] followerAddrs = data.getExtras().getStringArray("followerAddrs");
+        if (followerAddrs == null) {
+            followerAddrs = new String[]{(String) data.getExtras().get("followerAddr")};
+        }
+        return followerAddrs;
+    }
+
     /**
      * Handles a native (Bluetooth) Exception
      *
@@ -218,34 +229,83 @@ public abstract class NXTHandlerBaseActivity extends Activity {
         this.startActivity(i);
     }
 
+    /**
+     * Runs a controller action on the robot command executor, so the UI thread never waits for the robot.
+     * If the action fails, or throws an unchecked exception, the exception is handled back on the UI thread
+     *
+     * @param action Action to run
+     */
+    protected void runOnController(final NXTBaseController.Action action) {
+        mController.submit(new NXTBaseController.Action() {
+            public void run() throws BluetoothException {
+                try {
+                    action.run();
+                } catch (BluetoothException e) {
+                    reportOnUiThread(e);
+                    throw e;
+                } catch (RuntimeException e) {
+                    reportOnUiThread(e);
+                    throw e;
+                }
+            }
+        });
+    }
+
+    /**
+     * Handles an exception thrown by a controller action on the UI thread
+     */
+    private void reportOnUiThread(final Exception e) {
+        runOnUiThread(new Runnable() {
+            public void run() {
+                handleException(e);
+            }
+        });
+    }
+
     /**
      * Enables follower mode.
      * Creates the follower and leader connection objects and turns the IR on.
-     * Also, it starts a listener that will listen to follower messages
+     * Also, it starts a listener that will listen to follower messages.
+     * Several followers make a convoy, where every follower shadows the leader
      *
-     * @param leaderAddr   Leader BT Address
-     * @param followerAddr Follower BT Address
+     * @param leaderAddr    Leader BT Address
+     * @param followerAddrs Followers BT Addresses
      */
-    protected void enableFollowerMode(String leaderAddr, String followerAddr) {
+    protected void enableFollowerMode(String leaderAddr, String[] followerAddrs) {
         disableHandler();
         //Set the mottor connection to the leader and turn the IREmitter On
         mController.setConnection(mConnManager.getConnection(leaderAddr));
         enableIR();
         // Start the listener thread
-        mBuffer = new MessageBuffer();
-        runListener(followerAddr);
+        runListener(followerAddrs);
         mMode = MODE_FOLLOW;
     }
 
     /**
      * Starts the follower listener
      *
-     * @param followerAddr BT Address of the follower robot which the listener will listen to
+     * @param followerAddrs BT Addresses of the follower robots which the listener will listen to
      */
-    protected void runListener(String followerAddr) {
+    protected void runListener(String[] followerAddrs) {
         mNXTReady = true;
-        mFollowerListener = new followerListener(this);
-        mFollowerListener.execute(mConnManager.getConnection(followerAddr));
+        finishListener();
+        mFollowerAlert = new ProgressDialog(this);
+        mFollowerAlert.setTitle(this.getText(R.string.handler_alert_title_waitForFollower));
+        mFollowerAlert.setMessage(this.getText(R.string.handler_alert_msg_waitForFollower));
+        mFollowerAlert.show();
+        // Leader moves are queued on the leader executor, behind nothing but the commands already sent to it
+        Executor leaderExecutor = new Executor() {
+            public void execute(final Runnable command) {
+                runOnController(new NXTBaseController.Action() {
+                    public void run() {
+                        command.run();
+                    }
+                });
+            }
+        };
+        mFollowerListener = new FollowerListener(mConnManager.getConnection(), followerAddrs, leaderExecutor,
+                new FollowerCallback());
+        mFollowerListener.start();
     }
 
     /**
@@ -253,10 +313,43 @@ public abstract class NXTHandlerBaseActivity extends Activity {
      */
     protected void stopListener() {
         mNXTReady = false;
+        finishListener();
+    }
+
+    /**
+     * Stops the follower listener, if any, and hides its dialog
+     */
+    private void finishListener() {
         if (mFollowerListener != null) {
-            mFollowerListener.finishListener();
+            mFollowerListener.stop();
             mFollowerListener = null;
         }
+        if (mFollowerAlert != null) {
+            mFollowerAlert.dismiss();
+            mFollowerAlert = null;
+        }
+    }
+
+    /**
+     * Updates the user interface to a new follower state. Called on the UI thread
+     *
+     * @param state Follower state
+     */
+    private void onFollowerState(int state) {
+        if (mFollowerListener == null) {
+            // Stopped while the update was on its way
+            return;
+        }
+        if (state == READY) {
+            enableHandler();
+            if (mFollowerAlert.isShowing())
+                mFollowerAlert.dismiss();
+        } else {
+            disableHandler();
+            ((Vibrator) getSystemService(Context.VIBRATOR_SERVICE)).vibrate(300);
+            if (!mFollowerAlert.isShowing())
+                mFollowerAlert.show();
+        }
     }
 
     /**
@@ -269,7 +362,13 @@ public abstract class NXTHandlerBaseActivity extends Activity {
             dbHelper = new DatabaseHelper(this);
             mTempDemoID = dbHelper.createDemo();
             Toast.makeText(this, "Recording...", Toast.LENGTH_SHORT).show();
-            mController.startRecording(dbHelper);
+            // The recording transaction must be started in the same thread the movements are recorded from
+            final DatabaseHelper db = dbHelper;
+            runOnController(new NXTBaseController.Action() {
+                public void run() {
+                    mController.startRecording(db);
+                }
+            });
             enableHandler();
             mRecording = true;
         }
@@ -279,15 +378,15 @@ public abstract class NXTHandlerBaseActivity extends Activity {
      * Stops recording mode
      */
     public void stopRecording() {
-        try {
-            disableHandler();
-            mController.stop();
-            mController.stopRecording();
-            mRecording = false;
-            nameDialog();
-        } catch (BluetoothException ex) {
-            handleException(ex);
-        }
+        disableHandler();
+        runOnController(new NXTBaseController.Action() {
+            public void run() throws BluetoothException {
+                mController.stop();
+                mController.stopRecording();
+            }
+        });
+        mRecording = false;
+        nameDialog();
     }
 
     /**
@@ -332,11 +431,11 @@ public abstract class NXTHandlerBaseActivity extends Activity {
     protected void enableIR() {
         int irportInt = Integer.valueOf(mSp.getString((String) this.getText(R.string.prf_irPort_id), "-1")).intValue();
         mController.setIRPort((char) irportInt);
-        try {
-            mController.turnIREmitterOn();
-        } catch (BluetoothException e) {
-            handleException(e);
-        }
+        runOnController(new NXTBaseController.Action() {
+            public void run() throws BluetoothException {
+                mController.turnIREmitterOn();
+            }
+        });
         Toast.makeText(this, this.getText(R.string.handler_toast_followmeModeOn) + mController.getPortString((char) irportInt), Toast.LENGTH_LONG).show();
     }
 
@@ -383,94 +482,42 @@ public abstract class NXTHandlerBaseActivity extends Activity {
     protected abstract boolean disableHandler();
 
     /**
-     * Nested class that will listen to follower messages.
-     * First, when it receives a message, it disables the user interaction and processes the message using a MessageBuffer
-     * Depending on the message type and the direction received, it moves the leader to make it visible
-     * When a READY message is received, it enables user interaction
-     * Due to it has to be listening all the time, it is implemented as an AsyncTask, which ensures that the main thread
-     * won't get blocked
-     *
-     * @author root
+     * Receives the convoy states.
+     * Depending on the state and the direction received, it moves the leader to make it visible, once for all the
+     * followers which lost it. It runs on the leader command executor, so the leader reacts right after the command
+     * it is running. The user interface is only updated when the state changes
      */
-    protected class followerListener extends AsyncTask<Connection, Boolean, Void> {
-
-        private AlertDialog mAlert = null;
-        String mTitle = null;
-        String mMsg = null;
-        boolean mRunning = false;
-        private MessageBuffer mBuffer = null;
-
-        public followerListener(Context ctx) {
-            mTitle = (String) NXTHandlerBaseActivity.this.getText(R.string.handler_alert_title_waitForFollower);
-            mMsg = (String) NXTHandlerBaseActivity.this.getText(R.string.handler_alert_msg_waitForFollower);
-            mRunning = true;
-            mBuffer = new MessageBuffer();
-            mAlert = new ProgressDialog(ctx);
-            mAlert.setTitle(mTitle);
-            mAlert.setMessage(mMsg);
-        }
-
-        /**
-         * Stops the listener
-         */
-        public void finishListener() {
-            mRunning = false;
-        }
-
-        @Override
-        protected void onProgressUpdate(Boolean... enable) {
-            if (enable[0]) {
-                if (!mAlert.isShowing())
-                    mAlert.show();
-            } else {
-                mAlert.dismiss();
+    private class FollowerCallback implements FollowerListener.Callback {
+
+        public void onStateChanged(final int state, int direction, boolean repeated) throws BluetoothException {
+            if (!repeated) {
+                // Posted first, so user interaction is disabled as soon as possible
+                runOnUiThread(new Runnable() {
+                    public void run() {
+                        onFollowerState(state);
+                    }
+                });
+            }
+            switch (state) {
+                case LEADER_LOST:
+                case LEADER_FOUND:
+                    mController.stop();
+                    break;
+                case LEADER_SEARCH:
+                    mController.stop();
+                    mController.beVisible(direction);
+                    break;
+                default:
+                    break;
             }
         }
 
-        @Override
-        protected Void doInBackground(Connection... conn) {
-            int state;
-            char[] msg;
-            Connection connection = conn[0];
-            Vibrator v = (Vibrator) getSystemService(Context.VIBRATOR_SERVICE);
-            publishProgress(true);
-
-            try {
-                while (mRunning) {
-                    msg = connection.initBTListener();
-
-                    if (msg != null) {
-                        disableHandler();
-                        v.vibrate(300);
-                        publishProgress(true);
-                        mBuffer.setMessage(msg);
-                        msg = mBuffer.getMessage();
-                        state = (int) msg[0];
-                        switch (state) {
-                            case LEADER_LOST:
-                                mController.stop();
-                                break;
-                            case LEADER_SEARCH:
-                                int direction = (int) msg[1];
-                                mController.stop();
-                                mController.beVisible(direction);
-                                break;
-                            case LEADER_FOUND:
-                                mController.stop();
-                                break;
-                            case READY:
-                                enableHandler();
-                                publishProgress(false);
-                                break;
-                            default:
-                                break;
-                        }
-                    }
+        public void onError(final BluetoothException error) {
+            runOnUiThread(new Runnable() {
+                public void run() {
+                    handleException(error);
                 }
-            } catch (BluetoothException ex) {
-                handleException(ex);
-            }
-            return null;
+            });
         }
     }
 }
@@ -1,20 +1,45 @@
 package net.kaisoz.droidstorm.nxt.message;
 
-public class CloseHandleResponse {
+import net.kaisoz.droidstorm.bluetooth.FramePool;
 
-    protected char[] values;
+import java.nio.ByteBuffer;
 
-    public CloseHandleResponse(char[] values) {
-        this.values = values;
+/**
+ * Abstracts a response received when a file handler is closed
+ *
+ * @author Tomás Tormo Franco
+ */
+public class CloseHandleResponse extends GenericResponse {
+
+    private static final int HANDLE = 3;
+
+    private static final ResponsePool<CloseHandleResponse> sPool = new ResponsePool<CloseHandleResponse>(2) {
+        @Override
+        protected CloseHandleResponse create() {
+            return new CloseHandleResponse();
+        }
+    };
+
+    protected CloseHandleResponse() {
     }
 
     /**
-     * Gets operation status
+     * Returns a response view over the given frame
      *
+     * @param frame Length-prefixed frame received from the robot
+     * @param pool  Pool which the frame will be released to when the response is recycled. May be null
      * @return
      */
-    public char getStatus() {
-        return (char) ((values[1] & 0xFF00) >> 8);
+    public static CloseHandleResponse obtain(ByteBuffer frame, FramePool pool) {
+        CloseHandleResponse response = sPool.obtain();
+        response.wrap(frame, pool);
+        return response;
+    }
+
+    @Override
+    public void recycle() {
+        clear();
+        sPool.recycle(this);
     }
 
     /**
@@ -23,6 +48,6 @@ public class CloseHandleResponse {
      * @return
      */
     public char getHandle() {
-        return (char) (values[1] & 0x00FF);
+        return (char) getUByte(HANDLE);
     }
 }
@@ -0,0 +1,204 @@
+package net.kaisoz.droidstorm.nxt.message;
+
+import net.kaisoz.droidstorm.bluetooth.FramePool;
+import net.kaisoz.droidstorm.nxt.Interface.NXTInterface;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes NXT direct and system commands straight into length-prefixed frames.
+ * Frames are taken from the FramePool of the connection they will be sent through, and must be released once sent.
+ * The encoder keeps no state between calls, so a single instance can be used from several threads at once.
+ * See Bluetooth developer kit at http://mindstorms.lego.com/en-us/support/files/default.aspx for the telegram formats
+ */
+public class CommandEncoder {
+
+    // File names are sent as fixed size ASCIIZ strings (15.3 characters plus null terminator)
+    public static final int FILENAME_SIZE = 20;
+
+    private final FramePool mPool;
+
+    public CommandEncoder(FramePool pool) {
+        this.mPool = pool;
+    }
+
+    /**
+     * Encodes a RESETMOTORPOSITION command
+     *
+     * @param motor       Motor port to reset
+     * @param isrelative  if the reset should be relative to the last movement or absolute
+     * @param messageType If a response should be expected from the robot or not (RESPONSE or NO_RESPONSE)
+     * @return Frame ready to be sent
+     */
+    public ByteBuffer resetMotorPosition(char motor, boolean isrelative, char messageType) {
+        ByteBuffer frame = begin(directTelegram(messageType), NXTInterface.COMMAND_RESETMOTORPOSITION);
+        frame.put(portByte(motor));
+        frame.put((byte) (isrelative ? 1 : 0));
+        return end(frame);
+    }
+
+    /**
+     * Encodes a GETOUTPUTSTATE command. A response is always requested
+     *
+     * @param motor Motor port
+     * @return Frame ready to be sent
+     */
+    public ByteBuffer getOutputState(char motor) {
+        ByteBuffer frame = begin(NXTInterface.TELEGRAM_DIRECT, NXTInterface.COMMAND_GETOUTPUTSTATE);
+        frame.put(portByte(motor));
+        return end(frame);
+    }
+
+    /**
+     * Encodes a PLAYTONE command
+     *
+     * @param frequency   Frequency of the tone
+     * @param tone        Duration of the tone
+     * @param messageType If a response should be expected from the robot (RESPONSE or NO_RESPONSE)
+     * @return Frame ready to be sent
+     */
+    public ByteBuffer playTone(int frequency, int tone, char messageType) {
+        ByteBuffer frame = begin(directTelegram(messageType), NXTInterface.COMMAND_PLAYTONE);
+        frame.putShort((short) frequency);
+        frame.putShort((short) tone);
+        return end(frame);
+    }
+
+    /**
+     * Encodes a STARTPROGRAM command
+     *
+     * @param name        Name of the program to start
+     * @param messageType If a response should be expected from the robot (RESPONSE or NO_RESPONSE)
+     * @return Frame ready to be sent
+     */
+    public ByteBuffer startProgram(String name, char messageType) {
+        ByteBuffer frame = begin(directTelegram(messageType), NXTInterface.COMMAND_STARTPROGRAM);
+        putFileName(frame, name);
+        return end(frame);
+    }
+
+    /**
+     * Encodes a MESSAGEWRITE command. The message is null terminated, and cut to MAILBOX_MESSAGE_MAX_SIZE bytes
+     *
+     * @param inbox       Inbox of the robot program, from 0 to 9
+     * @param message     Array holding the message
+     * @param offset      Offset of the first byte of the message
+     * @param length      Message size
+     * @param messageType If a response should be expected from the robot (RESPONSE or NO_RESPONSE)
+     * @return Frame ready to be sent
+     */
+    public ByteBuffer messageWrite(int inbox, byte[] message, int offset, int length, char messageType) {
+        length = Math.min(length, NXTInterface.MAILBOX_MESSAGE_MAX_SIZE);
+        ByteBuffer frame = begin(directTelegram(messageType), NXTInterface.COMMAND_MESSAGEWRITE);
+        frame.put((byte) inbox);
+        frame.put((byte) (length + 1));
+        frame.put(message, offset, length);
+        frame.put((byte) 0);
+        return end(frame);
+    }
+
+    /**
+     * Encodes a MESSAGEREAD command. A response is always requested
+     *
+     * @param remoteInbox Inbox to read, from 0 to 19. The robot program writes to the phone in inboxes 10-19
+     * @param localInbox  Inbox number echoed by the response, from 0 to 9
+     * @param remove      If the message should be removed from the inbox once read
+     * @return Frame ready to be sent
+     */
+    public ByteBuffer messageRead(int remoteInbox, int localInbox, boolean remove) {
+        ByteBuffer frame = begin(NXTInterface.TELEGRAM_DIRECT, NXTInterface.COMMAND_MESSAGEREAD);
+        frame.put((byte) remoteInbox);
+        frame.put((byte) localInbox);
+        frame.put((byte) (remove ? 1 : 0));
+        return end(frame);
+    }
+
+    /**
+     * Encodes a FINDFIRST system command. A response is always requested
+     *
+     * @param name Pattern that the file name should match
+     * @return Frame ready to be sent
+     */
+    public ByteBuffer findFirst(String name) {
+        ByteBuffer frame = begin(NXTInterface.TELEGRAM_SYSTEM, NXTInterface.COMMAND_FINDFIRST);
+        putFileName(frame, name);
+        return end(frame);
+    }
+
+    /**
+     * Encodes a FINDNEXT system command. A response is always requested
+     *
+     * @param handle file handler returned by findFirst
+     * @return Frame ready to be sent
+     */
+    public ByteBuffer findNext(int handle) {
+        ByteBuffer frame = begin(NXTInterface.TELEGRAM_SYSTEM, NXTInterface.COMMAND_FINDNEXT);
+        frame.put((byte) handle);
+        return end(frame);
+    }
+
+    /**
+     * Encodes a CLOSE system command. A response is always requested
+     *
+     * @param handle Handler that should be closed
+     * @return Frame ready to be sent
+     */
+    public ByteBuffer closeHandle(int handle) {
+        ByteBuffer frame = begin(NXTInterface.TELEGRAM_SYSTEM, NXTInterface.COMMAND_CLOSE);
+        frame.put((byte) handle);
+        return end(frame);
+    }
+
+    /**
+     * Gives a frame returned by this encoder back to the pool
+     *
+     * @param frame Frame already sent
+     */
+    public void release(ByteBuffer frame) {
+        mPool.release(frame);
+    }
+
+    /**
+     * Returns the telegram type byte for a direct command with the given message type
+     *
+     * @param messageType RESPONSE or NO_RESPONSE
+     * @return Telegram type byte
+     */
+    public static int directTelegram(char messageType) {
+        return (messageType >> 8) & 0xFF;
+    }
+
+    /**
+     * Returns the port byte of a motor port constant (MOTOR_A, MOTOR_B, MOTOR_C or MOTOR_ALL)
+     *
+     * @param motor Motor port
+     * @return Port byte as sent to the robot
+     */
+    public static byte portByte(char motor) {
+        return (byte) (motor >> 8);
+    }
+
+    private ByteBuffer begin(int telegramType, int command) {
+        ByteBuffer frame = mPool.acquire();
+        frame.position(FramePool.HEADER_SIZE);
+        frame.put((byte) telegramType);
+        frame.put((byte) command);
+        return frame;
+    }
+
+    private ByteBuffer end(ByteBuffer frame) {
+        frame.putShort(0, (short) (frame.position() - FramePool.HEADER_SIZE));
+        frame.flip();
+        return frame;
+    }
+
+    private void putFileName(ByteBuffer frame, String name) {
+        int length = Math.min(name.length(), FILENAME_SIZE - 1);
+        for (int i = 0; i < length; i++) {
+            frame.put((byte) name.charAt(i));
+        }
+        for (int i = length; i < FILENAME_SIZE; i++) {
+            frame.put((byte) 0);
+        }
+    }
+}
@@ -1,29 +1,59 @@
 package net.kaisoz.droidstorm.nxt.message;
 
+import net.kaisoz.droidstorm.bluetooth.FramePool;
+
+import java.nio.ByteBuffer;
+
 /**
  * Abstracts a response received when a file searched.
  * Contains the opened file handler and the name of the file found
  *
  * @author Tomás Tormo Franco
  */
-public class FindFileResponse {
+public class FindFileResponse extends GenericResponse {
 
-    protected char[] mValues;
     public static final char NO_MORE_FILES = 0x0083;
     public static final char NO_MORE_HANDLES = 0x0081;
     public static final char FILE_NOT_FOUND = 0x0087;
 
-    public FindFileResponse(char[] values) {
-        this.mValues = values;
+    private static final int HANDLE = 3;
+    private static final int FILENAME = 4;
+
+    private static final ResponsePool<FindFileResponse> sPool = new ResponsePool<FindFileResponse>(2) {
+        @Override
+        protected FindFileResponse create() {
+            return new FindFileResponse();
+        }
+    };
+
+    private String mFileName;
+
+    protected FindFileResponse() {
     }
 
     /**
-     * Returns operation status
+     * Returns a response view over the given frame
      *
+     * @param frame Length-prefixed frame received from the robot
+     * @param pool  Pool which the frame will be released to when the response is recycled. May be null
      * @return
      */
-    public char getStatus() {
-        return (char) ((mValues[1] & 0xFF00) >> 8);
+    public static FindFileResponse obtain(ByteBuffer frame, FramePool pool) {
+        FindFileResponse response = sPool.obtain();
+        response.wrap(frame, pool);
+        return response;
+    }
+
+    @Override
+    public void recycle() {
+        clear();
+        sPool.recycle(this);
+    }
+
+    @Override
+    protected void clear() {
+        super.clear();
+        mFileName = null;
     }
 
     /**
@@ -32,30 +62,27 @@ public class FindFileResponse {
      * @return
      */
     public char getHandle() {
-        return (char) (mValues[1] & 0x00FF);
+        return (char) getUByte(HANDLE);
     }
 
     /**
-     * Returns the found file name
+     * Returns the found file name.
+     * The name is decoded the first time it is requested and kept until the response is recycled
      *
      * @return
      */
     public String getFileName() {
-        StringBuilder builder = null;
-        if (mValues != null) {
-            builder = new StringBuilder();
-            int i = 2;
-            while (i <= 11) {
-                char fLetter = (char) ((mValues[i] & 0xFF00) >> 8);
-                if (fLetter == ' ') break;
-                builder.append(fLetter);
-                char sLetter = (char) (mValues[i] & 0x00FF);
-                if (sLetter == ' ') break;
-                builder.append(sLetter);
-                i++;
+        if (mFileName == null && mFrame != null) {
+            int length = 0;
+            while (length < CommandEncoder.FILENAME_SIZE && getUByte(FILENAME + length) != 0) {
+                length++;
+            }
+            char[] name = new char[length];
+            for (int i = 0; i < length; i++) {
+                name[i] = (char) getUByte(FILENAME + i);
             }
-            return builder.toString().trim();
+            mFileName = new String(name).trim();
         }
-        return null;
+        return mFileName;
     }
 }
@@ -1,17 +1,82 @@
 package net.kaisoz.droidstorm.nxt.message;
 
+import net.kaisoz.droidstorm.bluetooth.FramePool;
+
+import java.nio.ByteBuffer;
+
 /**
  * Abstracts a generic response received from the robot
  * Contains the result of the operation amongst other things
+ * <p>
+ * Responses are views over the received frame: fields are read straight from the frame bytes when requested.
+ * Views are taken from a pool through obtain() and must be given back with recycle() once read, which also releases
+ * the frame they wrap. A recycled response must not be used anymore.
  *
  * @author Tomás Tormo Franco
  */
 public class GenericResponse {
 
-    protected char[] values;
+    // Telegram field offsets
+    protected static final int TYPE = 0;
+    protected static final int COMMAND = 1;
+    protected static final int STATUS = 2;
+
+    private static final ResponsePool<GenericResponse> sPool = new ResponsePool<GenericResponse>(8) {
+        @Override
+        protected GenericResponse create() {
+            return new GenericResponse();
+        }
+    };
+
+    protected ByteBuffer mFrame;
+    private FramePool mFramePool;
+    private int mOffset;
+
+    protected GenericResponse() {
+    }
+
+    /**
+     * Returns a response view over the given frame
+     *
+     * @param frame Length-prefixed frame received from the robot
+     * @param pool  Pool which the frame will be released to when the response is recycled. May be null
+     * @return
+     */
+    public static GenericResponse obtain(ByteBuffer frame, FramePool pool) {
+        GenericResponse response = sPool.obtain();
+        response.wrap(frame, pool);
+        return response;
+    }
+
+    /**
+     * Binds this view to a frame
+     *
+     * @param frame Length-prefixed frame received from the robot
+     * @param pool  Pool which the frame will be released to when the response is recycled. May be null
+     */
+    protected void wrap(ByteBuffer frame, FramePool pool) {
+        this.mFrame = frame;
+        this.mFramePool = pool;
+        this.mOffset = frame.position() + FramePool.HEADER_SIZE;
+    }
+
+    /**
+     * Releases the wrapped frame and gives this view back to its pool
+     */
+    public void recycle() {
+        clear();
+        sPool.recycle(this);
+    }
 
-    public GenericResponse(char[] values) {
-        this.values = values;
+    /**
+     * Releases the wrapped frame and forgets any decoded value
+     */
+    protected void clear() {
+        if (mFramePool != null) {
+            mFramePool.release(mFrame);
+        }
+        mFrame = null;
+        mFramePool = null;
     }
 
     /**
@@ -20,7 +85,7 @@ public class GenericResponse {
      * @return
      */
     public char getFromCommand() {
-        return (char) (values[0] & 0x00FF);
+        return (char) getUByte(COMMAND);
     }
 
     /**
@@ -31,6 +96,46 @@ public class GenericResponse {
      * @return
      */
     public char getStatus() {
-        return (char) ((values[1] & 0xFF00) >> 8);
+        return (char) getUByte(STATUS);
+    }
+
+    /**
+     * Returns the unsigned byte at the given telegram offset
+     *
+     * @param index Offset from the start of the telegram
+     * @return
+     */
+    protected int getUByte(int index) {
+        return mFrame.get(mOffset + index) & 0xFF;
+    }
+
+    /**
+     * Returns the signed byte at the given telegram offset
+     *
+     * @param index Offset from the start of the telegram
+     * @return
+     */
+    protected int getSByte(int index) {
+        return mFrame.get(mOffset + index);
+    }
+
+    /**
+     * Returns the little-endian signed 32 bit value at the given telegram offset
+     *
+     * @param index Offset from the start of the telegram
+     * @return
+     */
+    protected int getSLong(int index) {
+        return getUByte(index) | (getUByte(index + 1) << 8) | (getUByte(index + 2) << 16) | (getUByte(index + 3) << 24);
+    }
+
+    /**
+     * Returns the little-endian unsigned 32 bit value at the given telegram offset
+     *
+     * @param index Offset from the start of the telegram
+     * @return
+     */
+    protected long getULong(int index) {
+        return getSLong(index) & 0xFFFFFFFFL;
     }
 }
@@ -0,0 +1,105 @@
+package net.kaisoz.droidstorm.nxt.message;
+
+import net.kaisoz.droidstorm.bluetooth.FramePool;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Abstracts a response received when a mailbox is read.
+ * If the mailbox was empty, the status is RESPONSE_MAILBOX_EMPTY and the response holds no message
+ */
+public class MessageReadResponse extends GenericResponse {
+
+    private static final int INBOX = 3;
+    private static final int SIZE = 4;
+    private static final int MESSAGE = 5;
+
+    private static final ResponsePool<MessageReadResponse> sPool = new ResponsePool<MessageReadResponse>(8) {
+        @Override
+        protected MessageReadResponse create() {
+            return new MessageReadResponse();
+        }
+    };
+
+    protected MessageReadResponse() {
+    }
+
+    /**
+     * Returns a response view over the given frame
+     *
+     * @param frame Length-prefixed frame received from the robot
+     * @param pool  Pool which the frame will be released to when the response is recycled. May be null
+     * @return
+     */
+    public static MessageReadResponse obtain(ByteBuffer frame, FramePool pool) {
+        MessageReadResponse response = sPool.obtain();
+        response.wrap(frame, pool);
+        return response;
+    }
+
+    @Override
+    public void recycle() {
+        clear();
+        sPool.recycle(this);
+    }
+
+    /**
+     * Returns the local inbox number requested in the MESSAGEREAD command
+     *
+     * @return
+     */
+    public int getInbox() {
+        return getUByte(INBOX);
+    }
+
+    /**
+     * Returns the message size as sent by the robot, which counts the null terminator of text messages
+     *
+     * @return
+     */
+    public int getMessageSize() {
+        int available = mFrame.remaining() - FramePool.HEADER_SIZE - MESSAGE;
+        if (available <= 0) {
+            return 0;
+        }
+        return Math.min(getUByte(SIZE), available);
+    }
+
+    /**
+     * Copies the message to the given array
+     *
+     * @param dst    Destination array
+     * @param offset Offset the message is copied to
+     * @return Number of bytes copied
+     */
+    public int getMessage(byte[] dst, int offset) {
+        int size = Math.min(getMessageSize(), dst.length - offset);
+        for (int i = 0; i < size; i++) {
+            dst[offset + i] = (byte) getUByte(MESSAGE + i);
+        }
+        return size;
+    }
+
+    /**
+     * Returns the message as text, up to its null terminator
+     *
+     * @return
+     */
+    public String getMessageString() {
+        int size = getMessageSize();
+        StringBuilder text = new StringBuilder(size);
+        for (int i = 0; i < size && getUByte(MESSAGE + i) != 0; i++) {
+            text.append((char) getUByte(MESSAGE + i));
+        }
+        return text.toString();
+    }
+
+    /**
+     * Returns the message as a number, as NXT programs write them: a little-endian signed 32 bit value
+     *
+     * @return
+     */
+    public int getMessageInt() {
+        return (getMessageSize() >= 4) ? getSLong(MESSAGE) : 0;
+    }
+}
@@ -1,22 +1,42 @@
-
 package net.kaisoz.droidstorm.nxt.message;
 
+import net.kaisoz.droidstorm.bluetooth.FramePool;
 import net.kaisoz.droidstorm.nxt.Interface.MotorInterface;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
 /**
  * Class that abstracts a motor command.
  * Allow to set parameters such as power, turn ratio or tacho limit
+ * The message is kept as a pre-encoded SETOUTPUTSTATE frame, so every setter just patches its own bytes and the
+ * frame can be sent as it is, without any further translation
  *
  * @author Tomás Tormo Franco
  */
 public class MotorMessage {
 
-    private char[] mValues = null;
+    // Telegram size (without the length prefix)
+    private static final int TELEGRAM_SIZE = 12;
+
+    // Byte offsets inside the frame
+    private static final int TYPE = FramePool.HEADER_SIZE;
+    private static final int COMMAND = TYPE + 1;
+    private static final int PORT = TYPE + 2;
+    private static final int POWER = TYPE + 3;
+    private static final int MODE = TYPE + 4;
+    private static final int REGULATION = TYPE + 5;
+    private static final int TURN_RATIO = TYPE + 6;
+    private static final int RUN_STATE = TYPE + 7;
+    private static final int TACHO_LIMIT = TYPE + 8;
+
+    private final byte[] mFrame = new byte[FramePool.HEADER_SIZE + TELEGRAM_SIZE];
+    private final ByteBuffer mBuffer = ByteBuffer.wrap(mFrame).order(ByteOrder.LITTLE_ENDIAN);
 
 
     public MotorMessage() {
-        mValues = new char[7];
-        mValues[0] = 0x0000; /* Command byte. Will be set by the method */
+        mBuffer.putShort(0, (short) TELEGRAM_SIZE);
+        mFrame[COMMAND] = (byte) MotorInterface.COMMAND_SETOUTPUTSTATE;
     }
 
     /**
@@ -25,7 +45,7 @@ public class MotorMessage {
      * @return
      */
     public char getMessageType() {
-        return (char) (mValues[0] & 0xFF00);
+        return (char) ((mFrame[TYPE] & 0xFF) << 8);
     }
 
     /**
@@ -34,8 +54,7 @@ public class MotorMessage {
      * @param messageType
      */
     public void setMessageType(char messageType) {
-        mValues[0] = (char) (mValues[0] & 0x00FF);
-        mValues[0] = (char) (mValues[0] | messageType);
+        mFrame[TYPE] = (byte) (messageType >> 8);
     }
 
 
@@ -45,7 +64,7 @@ public class MotorMessage {
      * @return
      */
     public char getCommandByte() {
-        return (char) (mValues[0] & 0xFF00);
+        return (char) (mFrame[COMMAND] & 0xFF);
     }
 
     /**
@@ -54,8 +73,7 @@ public class MotorMessage {
      * @param commandByte
      */
     public void setCommandByte(char commandByte) {
-        mValues[0] = (char) (mValues[0] & 0xFF00);
-        mValues[0] = (char) (mValues[0] | commandByte);
+        mFrame[COMMAND] = (byte) (commandByte & 0xFF);
     }
 
     /**
@@ -64,7 +82,7 @@ public class MotorMessage {
      * @return
      */
     public char getMotorNum() {
-        return (char) (mValues[1] & 0xFF00);
+        return (char) ((mFrame[PORT] & 0xFF) << 8);
     }
 
     /**
@@ -73,8 +91,7 @@ public class MotorMessage {
      * @param motorPort
      */
     public void setMotorNum(char motorPort) {
-        mValues[1] = (char) (mValues[1] & 0x00FF);
-        mValues[1] = (char) (mValues[1] | motorPort);
+        mFrame[PORT] = CommandEncoder.portByte(motorPort);
     }
 
     /**
@@ -83,7 +100,7 @@ public class MotorMessage {
      * @return
      */
     public int getPower() {
-        return Integer.valueOf((int) (mValues[1] & 0x00FF));
+        return mFrame[POWER];
     }
 
     /**
@@ -92,8 +109,7 @@ public class MotorMessage {
      * @param power
      */
     public void setPower(int power) {
-        mValues[1] = (char) (mValues[1] & 0xFF00);
-        mValues[1] = (char) (mValues[1] | (Integer.valueOf(power).byteValue() & 0xFF));
+        mFrame[POWER] = (byte) power;
     }
 
     /**
@@ -102,7 +118,7 @@ public class MotorMessage {
      * @return
      */
     public char getMode() {
-        return (char) (mValues[2] & 0xFF00);
+        return (char) ((mFrame[MODE] & 0xFF) << 8);
     }
 
     /**
@@ -111,8 +127,7 @@ public class MotorMessage {
      * @param mode
      */
     public void setMode(char mode) {
-        mValues[2] = (char) (mValues[2] & 0x00FF);
-        mValues[2] = (char) (mValues[2] | mode);
+        mFrame[MODE] = (byte) (mode >> 8);
     }
 
     /**
@@ -121,7 +136,7 @@ public class MotorMessage {
      * @return
      */
     public char getRegulationMode() {
-        return (char) (mValues[2] & 0x00FF);
+        return (char) (mFrame[REGULATION] & 0xFF);
     }
 
     /**
@@ -130,15 +145,14 @@ public class MotorMessage {
      * @param regulationMode
      */
     public void setRegulationMode(char regulationMode) {
-        mValues[2] = (char) (mValues[2] & 0xFF00);
-        mValues[2] = (char) (mValues[2] | regulationMode);
+        mFrame[REGULATION] = (byte) regulationMode;
     }
 
     /**
      * Return the turn ratio field to be applied to the motor
      */
     public int getTurnRatio() {
-        return (int) (mValues[3] & 0xFF00);
+        return mFrame[TURN_RATIO];
     }
 
     /**
@@ -147,17 +161,14 @@ public class MotorMessage {
      * @param turnRatio
      */
     public void setTurnRatio(int turnRatio) {
-        mValues[3] = (char) (mValues[3] & 0x00FF);
-        char bTurnRatio = (char) (Integer.valueOf(turnRatio).byteValue() & 0xFF);
-        bTurnRatio = (char) (bTurnRatio << 8);
-        mValues[3] = (char) (mValues[3] | bTurnRatio);
+        mFrame[TURN_RATIO] = (byte) turnRatio;
     }
 
     /**
      * Returns the run state to be applied to the motor
      */
     public char getRunState() {
-        return (char) (mValues[3] & 0x00FF);
+        return (char) (mFrame[RUN_STATE] & 0xFF);
     }
 
     /**
@@ -166,8 +177,7 @@ public class MotorMessage {
      * @param runState
      */
     public void setRunState(char runState) {
-        mValues[3] = (char) (mValues[3] & 0xFF00);
-        mValues[3] = (char) (mValues[3] | runState);
+        mFrame[RUN_STATE] = (byte) runState;
     }
 
     /**
@@ -176,46 +186,31 @@ public class MotorMessage {
      * @return
      */
     public long getTachoLimit() {
-        long tacholimit = 0;
-        tacholimit = tacholimit | mValues[5];
-        tacholimit = tacholimit << 16;
-        tacholimit = tacholimit | mValues[6];
-        return tacholimit;
+        return mBuffer.getInt(TACHO_LIMIT) & 0xFFFFFFFFL;
     }
 
     /**
      * Sets tachoLimit to apply to the robot
      *
-     * @param runState
+     * @param tachoLimit
      */
     public void setTachoLimit(long tachoLimit) {
-        mValues[4] = (char) (mValues[4] & 0x0000);
-        mValues[5] = (char) (mValues[5] & 0x0000);
-        mValues[6] = (char) (mValues[6] & 0x0000);
-
         if (tachoLimit > MotorInterface.TACHO_MAX_VALUE) {
             tachoLimit = MotorInterface.TACHO_MAX_VALUE;
         } else if (tachoLimit < MotorInterface.TACHO_MIN_VALUE) {
             tachoLimit = MotorInterface.TACHO_MIN_VALUE;
         }
-
-        mValues[4] = (char) (tachoLimit & 0x000000FF);
-        mValues[4] = (char) (mValues[4] << 8);
-        tachoLimit = tachoLimit >> 8;
-        mValues[4] = (char) (mValues[4] | (tachoLimit & 0x000000FF));
-        tachoLimit = tachoLimit >> 8;
-
-        mValues[5] = (char) (tachoLimit & 0x0000FFFF);
-        tachoLimit = tachoLimit >> 16;
-        mValues[6] = (char) (tachoLimit & 0x0000FFFF);
+        mBuffer.putInt(TACHO_LIMIT, (int) tachoLimit);
     }
 
     /**
-     * Gets the char array with all the command mValues
+     * Returns the encoded frame of this message, ready to be sent.
+     * The returned buffer is backed by this message, so it reflects any later change made through the setters
      *
-     * @return char[]
+     * @return Frame buffer
      */
-    public char[] getCommandValues() {
-        return mValues;
+    public ByteBuffer getFrame() {
+        mBuffer.clear();
+        return mBuffer;
     }
 }
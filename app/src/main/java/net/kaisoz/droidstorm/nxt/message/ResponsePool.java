@@ -0,0 +1,47 @@
+package net.kaisoz.droidstorm.nxt.message;
+
+/**
+ * Keeps recycled response views so they can be reused for the next reply instead of allocating new ones
+ */
+abstract class ResponsePool<T extends GenericResponse> {
+
+    private final Object[] mFree;
+    private int mCount = 0;
+
+    ResponsePool(int capacity) {
+        mFree = new Object[capacity];
+    }
+
+    /**
+     * Creates a new view when the pool is empty
+     *
+     * @return
+     */
+    protected abstract T create();
+
+    /**
+     * Returns an idle view, or a new one if there is none
+     *
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    synchronized T obtain() {
+        if (mCount > 0) {
+            T response = (T) mFree[--mCount];
+            mFree[mCount] = null;
+            return response;
+        }
+        return create();
+    }
+
+    /**
+     * Keeps the given view for later reuse. If the pool is full, the view is dropped
+     *
+     * @param response
+     */
+    synchronized void recycle(T response) {
+        if (mCount < mFree.length) {
+            mFree[mCount++] = response;
+        }
+    }
+}
@@ -1,5 +1,9 @@
 package net.kaisoz.droidstorm.nxt.message;
 
+import net.kaisoz.droidstorm.bluetooth.FramePool;
+
+import java.nio.ByteBuffer;
+
 /**
  * Abstracts a response received when the state of a motor is requested
  *
@@ -7,9 +11,45 @@ package net.kaisoz.droidstorm.nxt.message;
  */
 public class motorStateResponse extends GenericResponse {
 
+    // Telegram field offsets
+    private static final int PORT = 3;
+    private static final int POWER = 4;
+    private static final int MODE = 5;
+    private static final int REGULATION = 6;
+    private static final int TURN_RATIO = 7;
+    private static final int RUN_STATE = 8;
+    private static final int TACHO_LIMIT = 9;
+    private static final int TACHO_COUNT = 13;
+    private static final int BLOCK_TACHO_COUNT = 17;
+    private static final int ROTATION_COUNT = 21;
+
+    private static final ResponsePool<motorStateResponse> sPool = new ResponsePool<motorStateResponse>(8) {
+        @Override
+        protected motorStateResponse create() {
+            return new motorStateResponse();
+        }
+    };
+
+    protected motorStateResponse() {
+    }
+
+    /**
+     * Returns a response view over the given frame
+     *
+     * @param frame Length-prefixed frame received from the robot
+     * @param pool  Pool which the frame will be released to when the response is recycled. May be null
+     * @return
+     */
+    public static motorStateResponse obtain(ByteBuffer frame, FramePool pool) {
+        motorStateResponse response = sPool.obtain();
+        response.wrap(frame, pool);
+        return response;
+    }
 
-    public motorStateResponse(char[] values) {
-        super(values);
+    @Override
+    public void recycle() {
+        clear();
+        sPool.recycle(this);
     }
 
     /**
@@ -18,7 +58,7 @@ public class motorStateResponse extends GenericResponse {
      * @return
      */
     public char getMotorNum() {
-        return (char) ((values[1] & 0x00FF) << 8);
+        return (char) (getUByte(PORT) << 8);
     }
 
     /**
@@ -27,7 +67,7 @@ public class motorStateResponse extends GenericResponse {
      * @return
      */
     public int getPower() {
-        return Integer.valueOf((int) ((values[2] & 0xFF00) >> 8));
+        return getSByte(POWER);
     }
 
     /**
@@ -36,7 +76,7 @@ public class motorStateResponse extends GenericResponse {
      * @return
      */
     public char getMode() {
-        return (char) ((values[2] & 0x00FF) << 8);
+        return (char) (getUByte(MODE) << 8);
     }
 
     /**
@@ -45,7 +85,7 @@ public class motorStateResponse extends GenericResponse {
      * @return
      */
     public char getRegulationMode() {
-        return (char) ((values[3] & 0xFF00) >> 8);
+        return (char) getUByte(REGULATION);
     }
 
     /**
@@ -54,7 +94,7 @@ public class motorStateResponse extends GenericResponse {
      * @return
      */
     public int getTurnRatio() {
-        return (int) ((values[3] & 0xFF00) >> 8);
+        return getSByte(TURN_RATIO);
     }
 
     /**
@@ -63,7 +103,7 @@ public class motorStateResponse extends GenericResponse {
      * @return
      */
     public char getRunState() {
-        return (char) ((values[4] & 0xFF00) >> 8);
+        return (char) getUByte(RUN_STATE);
     }
 
     /**
@@ -72,11 +112,7 @@ public class motorStateResponse extends GenericResponse {
      * @return
      */
     public long getTachoLimit() {
-        long tacholimit = 0;
-        tacholimit = (tacholimit | (values[4] & 0xFF)) << 24;
-        tacholimit = (tacholimit | values[5]) << 16;
-        tacholimit = tacholimit | ((values[6] & 0xFF00) >> 8);
-        return tacholimit;
+        return getULong(TACHO_LIMIT);
     }
 
     /**
@@ -85,11 +121,7 @@ public class motorStateResponse extends GenericResponse {
      * @return
      */
     public long getTachoCount() {
-        long tachoCount = 0;
-        tachoCount = (tachoCount | (values[6] & 0xFF)) << 24;
-        tachoCount = (tachoCount | values[7]) << 16;
-        tachoCount = tachoCount | ((values[8] & 0xFF00) >> 8);
-        return tachoCount;
+        return getSLong(TACHO_COUNT);
     }
 
     /**
@@ -98,11 +130,7 @@ public class motorStateResponse extends GenericResponse {
      * @return
      */
     public long getBlockTachoCount() {
-        long blockTachoCount = 0;
-        blockTachoCount = (blockTachoCount | (values[8] & 0xFF)) << 24;
-        blockTachoCount = (blockTachoCount | values[9]) << 16;
-        blockTachoCount = blockTachoCount | ((values[10] & 0xFF00) >> 8);
-        return blockTachoCount;
+        return getSLong(BLOCK_TACHO_COUNT);
     }
 
     /**
@@ -111,10 +139,6 @@ public class motorStateResponse extends GenericResponse {
      * @return
      */
     public long getRotationCount() {
-        long rotationCount = 0;
-        rotationCount = (rotationCount | (values[10] & 0xFF)) << 24;
-        rotationCount = (rotationCount | values[11]) << 16;
-        rotationCount = rotationCount | ((values[12] & 0xFF00) >> 8);
-        return rotationCount;
+        return getSLong(ROTATION_COUNT);
     }
 }
@@ -0,0 +1,244 @@
+package net.kaisoz.droidstorm.simulator;
+
+import net.kaisoz.droidstorm.bluetooth.FrameDecoder;
+import net.kaisoz.droidstorm.bluetooth.FramePool;
+import net.kaisoz.droidstorm.bluetooth.transport.InMemoryTransport;
+import net.kaisoz.droidstorm.bluetooth.transport.TransportWrapper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Headless fleet of simulated NXT bricks, reached through in-memory transports.
+ * Bricks don't own any thread: a link is served by the shared scheduler only when the application writes to it, and
+ * replies are written back once the configured latency has elapsed. Hundreds of bricks can then run on a few threads.
+ * Usage:
+ * <pre>
+ * BrickSimulator simulator = new BrickSimulator(2);
+ * TransportWrapper wrapper = simulator.createWrapper();
+ * wrapper.connect(new String[]{"sim-1", "sim-2"});
+ * </pre>
+ */
+public class BrickSimulator implements InMemoryTransport.Listener {
+
+    private final ScheduledExecutorService mScheduler;
+    private final HashMap<String, VirtualBrick> mBricks = new HashMap<String, VirtualBrick>();
+    private final Random mRandom = new Random();
+    private volatile long mLatency = 0;
+    private volatile long mJitter = 0;
+
+    /**
+     * Creates a simulator running on the given number of threads
+     *
+     * @param threads Threads shared by every brick
+     */
+    public BrickSimulator(int threads) {
+        mScheduler = Executors.newScheduledThreadPool(threads, new ThreadFactory() {
+            private int mCount = 0;
+
+            public synchronized Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "BrickSimulator-" + (mCount++));
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Sets how long bricks take to reply. Every reply is delayed by the latency plus a random time up to the jitter,
+     * but replies of a brick are never reordered
+     *
+     * @param latency Minimum reply delay in microseconds
+     * @param jitter  Maximum extra reply delay in microseconds
+     */
+    public void setLatency(long latency, long jitter) {
+        mLatency = Math.max(0, latency);
+        mJitter = Math.max(0, jitter);
+    }
+
+    /**
+     * Creates Bluetooth operations whose connections reach the bricks of this simulator
+     *
+     * @return
+     */
+    public TransportWrapper createWrapper() {
+        return new TransportWrapper(InMemoryTransport.factory(this));
+    }
+
+    /**
+     * Returns the brick with the given address, creating it if needed
+     *
+     * @param address Brick address
+     * @return
+     */
+    public VirtualBrick getBrick(String address) {
+        synchronized (mBricks) {
+            VirtualBrick brick = mBricks.get(address);
+            if (brick == null) {
+                brick = new VirtualBrick(address);
+                mBricks.put(address, brick);
+            }
+            return brick;
+        }
+    }
+
+    /**
+     * Stops serving every link
+     */
+    public void shutdown() {
+        mScheduler.shutdownNow();
+    }
+
+    public void onConnect(InMemoryTransport remote) {
+        Session session = new Session(remote, getBrick(remote.getAddress()));
+        remote.setReadListener(session);
+    }
+
+    private long nextDelay() {
+        long jitter = mJitter;
+        return mLatency + ((jitter > 0) ? (long) (mRandom.nextDouble() * jitter) : 0);
+    }
+
+    /**
+     * Link between the application and a brick.
+     * Runs as the read listener of the link: every write schedules a pass which executes the whole frames received
+     * so far and queues their replies
+     */
+    private class Session implements Runnable {
+
+        private final InMemoryTransport mLink;
+        private final VirtualBrick mBrick;
+        private final FramePool mPool = new FramePool(4);
+        private final FrameDecoder mDecoder = new FrameDecoder(mPool);
+        private final byte[] mReply = new byte[VirtualBrick.MAX_REPLY_SIZE];
+        // Replies waiting for their delay, oldest first, and the time the newest one is due
+        private final LinkedList<byte[]> mReplies = new LinkedList<byte[]>();
+        private final LinkedList<Long> mDueTimes = new LinkedList<Long>();
+        private long mLastDue = 0;
+        private final AtomicBoolean mScheduled = new AtomicBoolean(false);
+        // Taken by reply writers only. Reply writes may block, so they must not hold any lock the application waits on
+        private final Object mWriteLock = new Object();
+
+        private final Runnable mServe = new Runnable() {
+            public void run() {
+                serve();
+            }
+        };
+
+        private final Runnable mWriteReplies = new Runnable() {
+            public void run() {
+                writeReplies();
+            }
+        };
+
+        Session(InMemoryTransport link, VirtualBrick brick) {
+            this.mLink = link;
+            this.mBrick = brick;
+        }
+
+        public void run() {
+            if (!mScheduled.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                mScheduler.execute(mServe);
+            } catch (RejectedExecutionException e) {
+                // The simulator has been shut down. Frames are no longer read, as if the brick was off
+            }
+        }
+
+        private synchronized void serve() {
+            mScheduled.set(false);
+            if (mLink.isClosed()) {
+                return;
+            }
+            try {
+                InputStream in = mLink.getInputStream();
+                while (in.available() > 0) {
+                    mDecoder.fill(in);
+                    while (mDecoder.hasFrame()) {
+                        ByteBuffer frame = mDecoder.nextFrame();
+                        try {
+                            execute(frame);
+                        } finally {
+                            mPool.release(frame);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                mDecoder.reset();
+            }
+        }
+
+        private void execute(ByteBuffer frame) {
+            int telegram = frame.arrayOffset() + frame.position() + FramePool.HEADER_SIZE;
+            int size = mBrick.execute(frame.array(), telegram, frame.remaining() - FramePool.HEADER_SIZE, mReply);
+            if (size == 0 || mBrick.takeDroppedReply()) {
+                return;
+            }
+            long delay = nextDelay() + mBrick.takeReplyDelay();
+            byte[] reply = new byte[FramePool.HEADER_SIZE + size];
+            reply[0] = (byte) size;
+            reply[1] = (byte) (size >> 8);
+            System.arraycopy(mReply, 0, reply, FramePool.HEADER_SIZE, size);
+
+            long now = System.nanoTime();
+            long due;
+            synchronized (mReplies) {
+                due = Math.max(now + delay * 1000L, mLastDue);
+                mLastDue = due;
+                mReplies.addLast(reply);
+                mDueTimes.addLast(due);
+            }
+            try {
+                mScheduler.schedule(mWriteReplies, due - now, TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException e) {
+                // The simulator has been shut down. The reply is never sent, as if the brick was off
+            }
+        }
+
+        /**
+         * Writes, in order, every reply whose delay has elapsed
+         */
+        private void writeReplies() {
+            long now = System.nanoTime();
+            synchronized (mWriteLock) {
+                try {
+                    OutputStream out = mLink.getOutputStream();
+                    byte[] reply = nextReply(now);
+                    while (reply != null) {
+                        out.write(reply);
+                        reply = nextReply(now);
+                    }
+                } catch (IOException e) {
+                    // The application closed the link. Nobody waits for these replies anymore
+                    synchronized (mReplies) {
+                        mReplies.clear();
+                        mDueTimes.clear();
+                    }
+                }
+            }
+        }
+
+        private byte[] nextReply(long now) {
+            synchronized (mReplies) {
+                if (mReplies.isEmpty() || mDueTimes.getFirst() > now) {
+                    return null;
+                }
+                mDueTimes.removeFirst();
+                return mReplies.removeFirst();
+            }
+        }
+    }
+}
@@ -0,0 +1,512 @@
+package net.kaisoz.droidstorm.simulator;
+
+import net.kaisoz.droidstorm.nxt.Interface.NXTInterface;
+import net.kaisoz.droidstorm.nxt.message.CommandEncoder;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+
+/**
+ * Simulated NXT brick.
+ * Decodes the direct and system commands the application sends and answers them as a brick would: motors turn
+ * according to their output state (synchronized pairs honour their turn ratio), tones are counted, programs are
+ * started from the files the brick holds and those files can be listed through FINDFIRST, FINDNEXT and CLOSE.
+ * Mailboxes hold the messages exchanged with the program of the brick, which tests play through postMessage() and
+ * takeMessage().
+ * Motors are moved lazily, up to the time of every command, so an idle brick costs nothing
+ */
+public class VirtualBrick {
+
+    public static final int MOTOR_COUNT = 3;
+    // Largest reply telegram: MESSAGEREAD
+    public static final int MAX_REPLY_SIZE = 64;
+    public static final int MAILBOX_COUNT = 20;
+    private static final int FILE_REPLY_SIZE = 28;
+    // Messages a mailbox holds. Once full, the oldest one is dropped
+    private static final int MAILBOX_DEPTH = 5;
+    private static final int MESSAGE_SIZE = 59;
+
+    // Status bytes
+    private static final int SUCCESS = 0x00;
+    private static final int MAILBOX_EMPTY = 0x40;
+    private static final int NO_MORE_HANDLES = 0x81;
+    private static final int FILE_NOT_FOUND = 0x87;
+    private static final int HANDLE_CLOSED = 0x88;
+    private static final int REQUEST_FAILED = 0xBD;
+    private static final int UNKNOWN_COMMAND = 0xBE;
+    private static final int OUT_OF_RANGE = 0xC0;
+
+    private static final int PORT_ALL = 0xFF;
+    private static final int MAX_HANDLES = 16;
+    // Sleep time limit reported by KEEPALIVE, in milliseconds. The brick default is ten minutes
+    private static final int SLEEP_TIME_LIMIT = 10 * 60 * 1000;
+
+    private final String mAddress;
+    private final VirtualMotor[] mMotors = new VirtualMotor[MOTOR_COUNT];
+    private final ArrayList<String> mFileNames = new ArrayList<String>();
+    private final ArrayList<Integer> mFileSizes = new ArrayList<Integer>();
+    // Search pattern and index of the last file found, per open handle
+    private final String[] mHandlePatterns = new String[MAX_HANDLES];
+    private final int[] mHandlePositions = new int[MAX_HANDLES];
+    private long mLastAdvance = 0;
+    private int mToneCount = 0;
+    private String mRunningProgram = null;
+    private long mCommandCount = 0;
+    private int mBatteryLevel = 8000;
+    private final ArrayList<LinkedList<byte[]>> mMailboxes = new ArrayList<LinkedList<byte[]>>(MAILBOX_COUNT);
+    // Link faults: replies to lose and extra delay of the next reply, in microseconds
+    private int mDroppedReplies = 0;
+    private long mReplyDelay = 0;
+
+    public VirtualBrick(String address) {
+        this.mAddress = address;
+        for (int i = 0; i < MOTOR_COUNT; i++) {
+            mMotors[i] = new VirtualMotor();
+        }
+        for (int i = 0; i < MAILBOX_COUNT; i++) {
+            mMailboxes.add(new LinkedList<byte[]>());
+        }
+    }
+
+    /**
+     * Queues a message in a mailbox, as the program of the brick does when it writes to the phone
+     *
+     * @param mailbox Mailbox, from 0 to 19. Programs write to the phone in mailboxes 10-19
+     * @param message Message, null terminator included for text messages
+     */
+    public synchronized void postMessage(int mailbox, byte[] message) {
+        LinkedList<byte[]> queue = mMailboxes.get(mailbox);
+        if (queue.size() == MAILBOX_DEPTH) {
+            queue.removeFirst();
+        }
+        queue.addLast(message.clone());
+    }
+
+    /**
+     * Takes the oldest message of a mailbox, as the program of the brick does when it reads the phone messages
+     *
+     * @param mailbox Mailbox, from 0 to 19
+     * @return Message, or null if the mailbox is empty
+     */
+    public synchronized byte[] takeMessage(int mailbox) {
+        LinkedList<byte[]> queue = mMailboxes.get(mailbox);
+        return queue.isEmpty() ? null : queue.removeFirst();
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    /**
+     * Adds a file to the brick, to be found by FINDFIRST and started by STARTPROGRAM
+     *
+     * @param name File name, up to 15.3 characters
+     * @param size File size in bytes
+     */
+    public synchronized void addFile(String name, int size) {
+        mFileNames.add(name);
+        mFileSizes.add(size);
+    }
+
+    /**
+     * Returns the motor at the given port, moved up to now
+     *
+     * @param port Port index, from 0 (A) to 2 (C)
+     * @return
+     */
+    public synchronized VirtualMotor getMotor(int port) {
+        advance(System.nanoTime());
+        return mMotors[port];
+    }
+
+    /**
+     * Returns the number of tones played
+     *
+     * @return
+     */
+    public synchronized int getToneCount() {
+        return mToneCount;
+    }
+
+    /**
+     * Returns the name of the last program started, or null
+     *
+     * @return
+     */
+    public synchronized String getRunningProgram() {
+        return mRunningProgram;
+    }
+
+    /**
+     * Sets the voltage reported by GETBATTERYLEVEL
+     *
+     * @param millivolts Battery voltage in millivolts
+     */
+    public synchronized void setBatteryLevel(int millivolts) {
+        mBatteryLevel = millivolts;
+    }
+
+    /**
+     * Loses the next replies, as a noisy link does. Their commands are executed anyway
+     *
+     * @param count Number of replies to lose
+     */
+    public synchronized void dropReplies(int count) {
+        mDroppedReplies = count;
+    }
+
+    /**
+     * Delays the next reply, on top of the latency of the simulator. Later replies wait behind it
+     *
+     * @param delay Extra delay in microseconds
+     */
+    public synchronized void delayNextReply(long delay) {
+        mReplyDelay = delay;
+    }
+
+    /**
+     * Returns true if the reply just built has to be lost
+     */
+    synchronized boolean takeDroppedReply() {
+        if (mDroppedReplies == 0) {
+            return false;
+        }
+        mDroppedReplies--;
+        return true;
+    }
+
+    /**
+     * Returns the extra delay of the reply just built, in microseconds
+     */
+    synchronized long takeReplyDelay() {
+        long delay = mReplyDelay;
+        mReplyDelay = 0;
+        return delay;
+    }
+
+    /**
+     * Returns the number of commands handled
+     *
+     * @return
+     */
+    public synchronized long getCommandCount() {
+        return mCommandCount;
+    }
+
+    /**
+     * Executes a telegram received from the application
+     *
+     * @param data   Array holding the telegram, without its length prefix
+     * @param offset Offset of the telegram type byte
+     * @param length Telegram size
+     * @param reply  Array the reply telegram is written to, at least MAX_REPLY_SIZE long
+     * @return Reply telegram size, or 0 if no reply was requested
+     */
+    public synchronized int execute(byte[] data, int offset, int length, byte[] reply) {
+        advance(System.nanoTime());
+        mCommandCount++;
+        if (length < 2) {
+            return 0;
+        }
+        int type = data[offset] & 0xFF;
+        int command = data[offset + 1] & 0xFF;
+        reply[0] = (byte) NXTInterface.TELEGRAM_REPLY;
+        reply[1] = (byte) command;
+        reply[2] = (byte) SUCCESS;
+        int size = 3;
+
+        if ((type & ~NXTInterface.TELEGRAM_NO_REPLY) == NXTInterface.TELEGRAM_SYSTEM) {
+            switch (command) {
+                case NXTInterface.COMMAND_FINDFIRST:
+                    size = findFirst(readName(data, offset + 2, length - 2), reply);
+                    break;
+                case NXTInterface.COMMAND_FINDNEXT:
+                    size = findNext(byteAt(data, offset, length, 2), reply);
+                    break;
+                case NXTInterface.COMMAND_CLOSE:
+                    size = close(byteAt(data, offset, length, 2), reply);
+                    break;
+                default:
+                    reply[2] = (byte) UNKNOWN_COMMAND;
+            }
+        } else {
+            switch (command) {
+                case NXTInterface.COMMAND_SETOUTPUTSTATE:
+                    reply[2] = (byte) setOutputState(data, offset, length);
+                    break;
+                case NXTInterface.COMMAND_GETOUTPUTSTATE:
+                    size = getOutputState(byteAt(data, offset, length, 2), reply);
+                    break;
+                case NXTInterface.COMMAND_RESETMOTORPOSITION:
+                    reply[2] = (byte) resetMotorPosition(byteAt(data, offset, length, 2), byteAt(data, offset, length, 3));
+                    break;
+                case NXTInterface.COMMAND_PLAYTONE:
+                    mToneCount++;
+                    break;
+                case NXTInterface.COMMAND_STARTPROGRAM:
+                    reply[2] = (byte) startProgram(readName(data, offset + 2, length - 2));
+                    break;
+                case NXTInterface.COMMAND_GETBATTERYLEVEL:
+                    reply[3] = (byte) mBatteryLevel;
+                    reply[4] = (byte) (mBatteryLevel >> 8);
+                    size = 5;
+                    break;
+                case NXTInterface.COMMAND_KEEPALIVE:
+                    writeLong(reply, 3, SLEEP_TIME_LIMIT);
+                    size = 7;
+                    break;
+                case NXTInterface.COMMAND_MESSAGEWRITE:
+                    reply[2] = (byte) messageWrite(data, offset, length);
+                    break;
+                case NXTInterface.COMMAND_MESSAGEREAD:
+                    size = messageRead(byteAt(data, offset, length, 2), byteAt(data, offset, length, 3),
+                            byteAt(data, offset, length, 4), reply);
+                    break;
+                default:
+                    reply[2] = (byte) UNKNOWN_COMMAND;
+            }
+        }
+        return ((type & NXTInterface.TELEGRAM_NO_REPLY) != 0) ? 0 : size;
+    }
+
+    /**
+     * Moves every running motor up to the given time.
+     * A pair of motors synchronized with MOTORSYNC turns as a unit: the turn ratio of the first one slows down (or
+     * reverses, beyond 50) the second one for positive ratios, and the first one for negative ratios
+     */
+    private void advance(long now) {
+        if (mLastAdvance == 0) {
+            mLastAdvance = now;
+            return;
+        }
+        double seconds = (now - mLastAdvance) / 1e9;
+        mLastAdvance = now;
+
+        VirtualMotor first = null;
+        VirtualMotor second = null;
+        for (int i = 0; i < MOTOR_COUNT; i++) {
+            if (mMotors[i].getRegulation() == VirtualMotor.REGULATION_SYNC && mMotors[i].isRunning()) {
+                if (first == null) {
+                    first = mMotors[i];
+                } else if (second == null) {
+                    second = mMotors[i];
+                }
+            }
+        }
+        double ratio = (first != null && second != null) ? first.getTurnRatio() / 50.0 : 0;
+        for (int i = 0; i < MOTOR_COUNT; i++) {
+            double factor = 1;
+            if (mMotors[i] == first && ratio < 0) {
+                factor = 1 + ratio;
+            } else if (mMotors[i] == second && ratio > 0) {
+                factor = 1 - ratio;
+            }
+            mMotors[i].advance(seconds, factor);
+        }
+    }
+
+    private int setOutputState(byte[] data, int offset, int length) {
+        if (length < 12) {
+            return OUT_OF_RANGE;
+        }
+        int port = data[offset + 2] & 0xFF;
+        int power = data[offset + 3];
+        int mode = data[offset + 4] & 0xFF;
+        int regulation = data[offset + 5] & 0xFF;
+        int turnRatio = data[offset + 6];
+        int runState = data[offset + 7] & 0xFF;
+        long tachoLimit = readULong(data, offset + 8);
+        if (port == PORT_ALL) {
+            for (int i = 0; i < MOTOR_COUNT; i++) {
+                mMotors[i].setOutputState(power, mode, regulation, turnRatio, runState, tachoLimit);
+            }
+        } else if (port < MOTOR_COUNT) {
+            mMotors[port].setOutputState(power, mode, regulation, turnRatio, runState, tachoLimit);
+        } else {
+            return OUT_OF_RANGE;
+        }
+        return SUCCESS;
+    }
+
+    private int getOutputState(int port, byte[] reply) {
+        if (port < 0 || port >= MOTOR_COUNT) {
+            reply[2] = (byte) OUT_OF_RANGE;
+            return 3;
+        }
+        VirtualMotor motor = mMotors[port];
+        reply[3] = (byte) port;
+        reply[4] = (byte) motor.getPower();
+        reply[5] = (byte) motor.getMode();
+        reply[6] = (byte) motor.getRegulation();
+        reply[7] = (byte) motor.getTurnRatio();
+        reply[8] = (byte) motor.getRunState();
+        writeLong(reply, 9, (int) motor.getTachoLimit());
+        writeLong(reply, 13, motor.getTachoCount());
+        writeLong(reply, 17, motor.getBlockTachoCount());
+        writeLong(reply, 21, motor.getRotationCount());
+        return 25;
+    }
+
+    private int resetMotorPosition(int port, int relative) {
+        if (port == PORT_ALL) {
+            for (int i = 0; i < MOTOR_COUNT; i++) {
+                mMotors[i].resetPosition(relative != 0);
+            }
+        } else if (port >= 0 && port < MOTOR_COUNT) {
+            mMotors[port].resetPosition(relative != 0);
+        } else {
+            return OUT_OF_RANGE;
+        }
+        return SUCCESS;
+    }
+
+    private int startProgram(String name) {
+        if (!mFileNames.contains(name)) {
+            return REQUEST_FAILED;
+        }
+        mRunningProgram = name;
+        return SUCCESS;
+    }
+
+    private int messageWrite(byte[] data, int offset, int length) {
+        int inbox = byteAt(data, offset, length, 2);
+        int size = byteAt(data, offset, length, 3);
+        if (inbox < 0 || inbox >= MAILBOX_COUNT || size < 0 || size > MESSAGE_SIZE || 4 + size > length) {
+            return OUT_OF_RANGE;
+        }
+        byte[] message = new byte[size];
+        System.arraycopy(data, offset + 4, message, 0, size);
+        postMessage(inbox, message);
+        return SUCCESS;
+    }
+
+    /**
+     * Fills a MESSAGEREAD reply: local inbox, message size and the message, padded to its fixed size
+     */
+    private int messageRead(int remoteInbox, int localInbox, int remove, byte[] reply) {
+        reply[3] = (byte) localInbox;
+        reply[4] = 0;
+        for (int i = 0; i < MESSAGE_SIZE; i++) {
+            reply[5 + i] = 0;
+        }
+        if (remoteInbox < 0 || remoteInbox >= MAILBOX_COUNT) {
+            reply[2] = (byte) OUT_OF_RANGE;
+            return MAX_REPLY_SIZE;
+        }
+        LinkedList<byte[]> queue = mMailboxes.get(remoteInbox);
+        if (queue.isEmpty()) {
+            reply[2] = (byte) MAILBOX_EMPTY;
+            return MAX_REPLY_SIZE;
+        }
+        byte[] message = (remove > 0) ? queue.removeFirst() : queue.getFirst();
+        reply[4] = (byte) message.length;
+        System.arraycopy(message, 0, reply, 5, message.length);
+        return MAX_REPLY_SIZE;
+    }
+
+    private int findFirst(String pattern, byte[] reply) {
+        int handle = -1;
+        for (int i = 0; i < MAX_HANDLES && handle < 0; i++) {
+            if (mHandlePatterns[i] == null) {
+                handle = i;
+            }
+        }
+        if (handle < 0) {
+            reply[2] = (byte) NO_MORE_HANDLES;
+            return fileReply(reply, 0, -1);
+        }
+        int index = nextMatch(pattern, 0);
+        if (index < 0) {
+            reply[2] = (byte) FILE_NOT_FOUND;
+            return fileReply(reply, 0, -1);
+        }
+        mHandlePatterns[handle] = pattern;
+        mHandlePositions[handle] = index;
+        return fileReply(reply, handle, index);
+    }
+
+    private int findNext(int handle, byte[] reply) {
+        if (handle < 0 || handle >= MAX_HANDLES || mHandlePatterns[handle] == null) {
+            reply[2] = (byte) HANDLE_CLOSED;
+            return fileReply(reply, Math.max(0, handle), -1);
+        }
+        int index = nextMatch(mHandlePatterns[handle], mHandlePositions[handle] + 1);
+        if (index < 0) {
+            mHandlePatterns[handle] = null;
+            reply[2] = (byte) FILE_NOT_FOUND;
+            return fileReply(reply, handle, -1);
+        }
+        mHandlePositions[handle] = index;
+        return fileReply(reply, handle, index);
+    }
+
+    private int close(int handle, byte[] reply) {
+        if (handle < 0 || handle >= MAX_HANDLES || mHandlePatterns[handle] == null) {
+            reply[2] = (byte) HANDLE_CLOSED;
+        }
+        if (handle >= 0 && handle < MAX_HANDLES) {
+            mHandlePatterns[handle] = null;
+        }
+        reply[3] = (byte) Math.max(0, handle);
+        return 4;
+    }
+
+    /**
+     * Fills a FINDFIRST or FINDNEXT reply: handle, ASCIIZ file name and file size
+     */
+    private int fileReply(byte[] reply, int handle, int index) {
+        reply[3] = (byte) handle;
+        String name = (index >= 0) ? mFileNames.get(index) : "";
+        for (int i = 0; i < CommandEncoder.FILENAME_SIZE; i++) {
+            reply[4 + i] = (i < name.length() && i < CommandEncoder.FILENAME_SIZE - 1) ? (byte) name.charAt(i) : 0;
+        }
+        writeLong(reply, 4 + CommandEncoder.FILENAME_SIZE, (index >= 0) ? mFileSizes.get(index) : 0);
+        return FILE_REPLY_SIZE;
+    }
+
+    private int nextMatch(String pattern, int from) {
+        for (int i = from; i < mFileNames.size(); i++) {
+            if (matches(pattern, mFileNames.get(i))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Matches a file name against a pattern as the brick does: "*.*", "*.ext", "name.*" or a whole name
+     */
+    private static boolean matches(String pattern, String name) {
+        int dot = pattern.lastIndexOf('.');
+        String base = (dot < 0) ? pattern : pattern.substring(0, dot);
+        String ext = (dot < 0) ? "" : pattern.substring(dot + 1);
+        int nameDot = name.lastIndexOf('.');
+        String nameBase = (nameDot < 0) ? name : name.substring(0, nameDot);
+        String nameExt = (nameDot < 0) ? "" : name.substring(nameDot + 1);
+        return (base.equals("*") || base.equalsIgnoreCase(nameBase)) && (ext.equals("*") || ext.equalsIgnoreCase(nameExt));
+    }
+
+    private static int byteAt(byte[] data, int offset, int length, int index) {
+        return (index < length) ? data[offset + index] & 0xFF : -1;
+    }
+
+    private static String readName(byte[] data, int offset, int length) {
+        StringBuilder name = new StringBuilder();
+        for (int i = 0; i < length && i < CommandEncoder.FILENAME_SIZE && data[offset + i] != 0; i++) {
+            name.append((char) (data[offset + i] & 0xFF));
+        }
+        return name.toString();
+    }
+
+    private static long readULong(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) | ((data[offset + 1] & 0xFF) << 8) | ((data[offset + 2] & 0xFF) << 16)
+                | ((long) (data[offset + 3] & 0xFF) << 24));
+    }
+
+    private static void writeLong(byte[] data, int offset, int value) {
+        data[offset] = (byte) value;
+        data[offset + 1] = (byte) (value >> 8);
+        data[offset + 2] = (byte) (value >> 16);
+        data[offset + 3] = (byte) (value >> 24);
+    }
+}
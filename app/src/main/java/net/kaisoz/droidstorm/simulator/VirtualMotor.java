@@ -0,0 +1,143 @@
+package net.kaisoz.droidstorm.simulator;
+
+/**
+ * Simulated NXT servo motor.
+ * Keeps the output state last set through SETOUTPUTSTATE and the three tacho counters the brick reports through
+ * GETOUTPUTSTATE. The motor turns at a speed proportional to its power while it is on and running, and stops once
+ * the tacho limit of the current command has been travelled
+ */
+public class VirtualMotor {
+
+    // Mode bits
+    public static final int MODE_ON = 0x01;
+    public static final int MODE_BRAKE = 0x02;
+    public static final int MODE_REGULATED = 0x04;
+
+    // Regulation modes
+    public static final int REGULATION_IDLE = 0x00;
+    public static final int REGULATION_SPEED = 0x01;
+    public static final int REGULATION_SYNC = 0x02;
+
+    // Run states
+    public static final int RUNSTATE_IDLE = 0x00;
+    public static final int RUNSTATE_RUNNING = 0x20;
+
+    // Degrees per second at full power. An NXT servo runs at about 170 rpm unloaded
+    private static final double MAX_SPEED = 1000;
+
+    private int mPower = 0;
+    private int mMode = 0;
+    private int mRegulation = REGULATION_IDLE;
+    private int mTurnRatio = 0;
+    private int mRunState = RUNSTATE_IDLE;
+    private long mTachoLimit = 0;
+    // Counters are kept as fractions of a degree so slow motors still move between short steps
+    private double mTachoCount = 0;
+    private double mBlockTachoCount = 0;
+    private double mRotationCount = 0;
+    // Tacho count when the current command started, which its tacho limit is measured from
+    private double mLimitStart = 0;
+
+    /**
+     * Applies a SETOUTPUTSTATE command
+     *
+     * @param power      Power, from -100 to 100
+     * @param mode       Mode bits
+     * @param regulation Regulation mode
+     * @param turnRatio  Turn ratio, from -100 to 100
+     * @param runState   Run state
+     * @param tachoLimit Degrees to travel, 0 for no limit
+     */
+    public void setOutputState(int power, int mode, int regulation, int turnRatio, int runState, long tachoLimit) {
+        mPower = Math.max(-100, Math.min(100, power));
+        mMode = mode;
+        mRegulation = regulation;
+        mTurnRatio = Math.max(-100, Math.min(100, turnRatio));
+        mRunState = runState;
+        mTachoLimit = tachoLimit;
+        mLimitStart = mTachoCount;
+    }
+
+    /**
+     * Applies a RESETMOTORPOSITION command
+     *
+     * @param relative If true, the position relative to the last movement is reset. Otherwise the absolute one is
+     */
+    public void resetPosition(boolean relative) {
+        if (relative) {
+            mBlockTachoCount = 0;
+            mTachoCount = 0;
+            mLimitStart = 0;
+        } else {
+            mRotationCount = 0;
+        }
+    }
+
+    /**
+     * Returns true if the motor is turning
+     *
+     * @return
+     */
+    public boolean isRunning() {
+        return (mMode & MODE_ON) != 0 && mRunState != RUNSTATE_IDLE && mPower != 0;
+    }
+
+    /**
+     * Turns the motor for the given time
+     *
+     * @param seconds Elapsed time
+     * @param factor  Fraction of the power applied, from -1 to 1, as set by motor synchronization
+     */
+    void advance(double seconds, double factor) {
+        if (!isRunning()) {
+            return;
+        }
+        double delta = MAX_SPEED * mPower / 100.0 * factor * seconds;
+        if (mTachoLimit > 0) {
+            double left = mTachoLimit - Math.abs(mTachoCount - mLimitStart);
+            if (Math.abs(delta) >= left) {
+                delta = Math.signum(delta) * Math.max(0, left);
+                mRunState = RUNSTATE_IDLE;
+            }
+        }
+        mTachoCount += delta;
+        mBlockTachoCount += delta;
+        mRotationCount += delta;
+    }
+
+    public int getPower() {
+        return mPower;
+    }
+
+    public int getMode() {
+        return mMode;
+    }
+
+    public int getRegulation() {
+        return mRegulation;
+    }
+
+    public int getTurnRatio() {
+        return mTurnRatio;
+    }
+
+    public int getRunState() {
+        return mRunState;
+    }
+
+    public long getTachoLimit() {
+        return mTachoLimit;
+    }
+
+    public int getTachoCount() {
+        return (int) mTachoCount;
+    }
+
+    public int getBlockTachoCount() {
+        return (int) mBlockTachoCount;
+    }
+
+    public int getRotationCount() {
+        return (int) mRotationCount;
+    }
+}
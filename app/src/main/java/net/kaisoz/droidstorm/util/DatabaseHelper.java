@@ -16,7 +16,7 @@ import android.database.sqlite.SQLiteOpenHelper;
  *
  * @author Tomás Tormo Franco
  */
-public class DatabaseHelper extends SQLiteOpenHelper {
+public class DatabaseHelper extends SQLiteOpenHelper implements DemoRecorder {
 
     private static final String DBNAME = "demoActionsDB";
     private static final String DEMO_TABLE = "demo";
@@ -0,0 +1,29 @@
+package net.kaisoz.droidstorm.util;
+
+/**
+ * Destination of the movements recorded by a controller while a demo is being recorded.
+ * Keeps the controllers free of any storage, so they can also run where no database is available
+ */
+public interface DemoRecorder {
+
+    /**
+     * Prepares the recorder to receive several actions
+     * Actions won't be stored until finishDemoActionTransaction is called
+     */
+    public void startDemoActionTransaction();
+
+    /**
+     * Records a new action of the demo being recorded
+     *
+     * @param power
+     * @param turnRatio
+     * @param tachoLimit
+     * @param duration
+     */
+    public void insertDemoAction(int power, int turnRatio, long tachoLimit, long duration);
+
+    /**
+     * Stores every action recorded since startDemoActionTransaction was called
+     */
+    public void finishDemoActionTransaction();
+}
@@ -0,0 +1,84 @@
+package net.kaisoz.droidstorm.util;
+
+import java.util.ArrayList;
+
+import net.kaisoz.droidstorm.bluetooth.KnownRobot;
+import net.kaisoz.droidstorm.bluetooth.RobotRegistry;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+/**
+ * Data source class used to persist the robots the phone has been connected to
+ */
+public class RobotDatabaseHelper extends SQLiteOpenHelper implements RobotRegistry.Store {
+
+    private static final String DBNAME = "knownRobotsDB";
+    private static final String ROBOT_TABLE = "robot";
+    private static final String COL_ADDRESS = "address";
+    private static final String COL_NAME = "name";
+    private static final String COL_CHANNEL = "channel";
+    private static final String COL_LAST_SEEN = "lastSeen";
+
+    public RobotDatabaseHelper(Context context) {
+        super(context, DBNAME, null, 1);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + ROBOT_TABLE + " (" + COL_ADDRESS + " TEXT PRIMARY KEY , " + COL_NAME + " TEXT , " +
+                COL_CHANNEL + " INTEGER , " + COL_LAST_SEEN + " INTEGER )");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+    }
+
+    /**
+     * Returns every stored robot
+     *
+     * @return
+     */
+    public ArrayList<KnownRobot> loadRobots() {
+        SQLiteDatabase db = this.getReadableDatabase();
+        ArrayList<KnownRobot> robots = new ArrayList<KnownRobot>();
+        String[] columns = new String[]{COL_NAME, COL_ADDRESS, COL_CHANNEL, COL_LAST_SEEN};
+        Cursor c = db.query(ROBOT_TABLE, columns, null, new String[]{}, null, null, null);
+        while (c.moveToNext()) {
+            robots.add(new KnownRobot(c.getString(0), c.getString(1), c.getInt(2), c.getLong(3), false));
+        }
+        c.close();
+        db.close();
+        return robots;
+    }
+
+    /**
+     * Stores a robot, replacing the one with the same address if any
+     *
+     * @param robot
+     */
+    public void saveRobot(KnownRobot robot) {
+        SQLiteDatabase db = this.getWritableDatabase();
+        ContentValues cv = new ContentValues();
+        cv.put(COL_ADDRESS, robot.getAddress());
+        cv.put(COL_NAME, robot.getName());
+        cv.put(COL_CHANNEL, robot.getChannel());
+        cv.put(COL_LAST_SEEN, robot.getLastSeen());
+        db.replace(ROBOT_TABLE, null, cv);
+        db.close();
+    }
+
+    /**
+     * Deletes the robot with the given address
+     *
+     * @param btAddress
+     */
+    public void deleteRobot(String btAddress) {
+        SQLiteDatabase db = this.getWritableDatabase();
+        db.delete(ROBOT_TABLE, COL_ADDRESS + "=?", new String[]{btAddress});
+        db.close();
+    }
+}
@@ -0,0 +1,159 @@
+package net.kaisoz.droidstorm.util;
+
+/**
+ * Turns accelerometer and magnetometer samples into the tilt and angle which drive the robot.
+ * Samples are combined into the orientation of the phone held in landscape, the orientation is damped to avoid
+ * jitter, and its pitch and roll are converted from rectangular to polar coordinates: the distance is the tilt and the
+ * angle is the turn ratio.
+ * The rotation matrix, remapping and orientation math are the ones of android.hardware.SensorManager, written out
+ * here so they don't depend on the platform
+ */
+public class TiltCalculator {
+
+    private static final double TILT_MAGNIFIER = 1.5;
+    private static final int MAX_TILT = 100;
+    // Below this, the magnetic field is nearly parallel to gravity and the phone heading can't be worked out
+    private static final float MIN_HORIZONTAL_FIELD = 0.1f;
+
+    private final float[] mRotation = new float[9];
+    private final float[] mRemapped = new float[9];
+    private float[] mOrientation = new float[3];
+    private final SensorAverageDamper mDamper;
+    private int mTilt = 0;
+    private int mAngle = 0;
+
+    public TiltCalculator() {
+        this(new SensorAverageDamper(6, false, true, true));
+    }
+
+    /**
+     * Creates a calculator which damps the orientation with the given damper
+     *
+     * @param damper Damper applied to the orientation, in radians
+     */
+    public TiltCalculator(SensorAverageDamper damper) {
+        this.mDamper = damper;
+    }
+
+    /**
+     * Works out the tilt and angle for a pair of samples
+     *
+     * @param accels Accelerometer sample
+     * @param mags   Magnetometer sample
+     * @return false if the samples can't give an orientation, in which case tilt and angle keep their previous values
+     */
+    public boolean calculate(float[] accels, float[] mags) {
+        if (!getRotationMatrix(accels, mags)) {
+            return false;
+        }
+        remapToLandscape();
+        computeOrientation();
+
+        mOrientation = mDamper.damp(mOrientation);
+        for (int i = 0; i < mOrientation.length; i++) {
+            mOrientation[i] = (float) Math.toDegrees(mOrientation[i]);
+        }
+        if (mOrientation[2] == 0) return true;
+
+        mAngle = (int) (Math.toDegrees(Math.atan(mOrientation[2] / mOrientation[1])));
+        mTilt = (int) Math.sqrt(Math.pow(mOrientation[2], 2) + Math.pow(mOrientation[1], 2));
+        mTilt *= TILT_MAGNIFIER;
+        if (mTilt > MAX_TILT) mTilt = MAX_TILT;
+        return true;
+    }
+
+    /**
+     * Returns the damped orientation: azimuth, pitch and roll, in degrees
+     *
+     * @return
+     */
+    public float[] getOrientation() {
+        return mOrientation;
+    }
+
+    /**
+     * Returns the tilt, from 0 to 100
+     *
+     * @return
+     */
+    public int getTilt() {
+        return mTilt;
+    }
+
+    /**
+     * Returns the tilt signed by the pitch, which tells forward from backward, to be used as power
+     *
+     * @return
+     */
+    public int getPower() {
+        return (mOrientation[1] < 0) ? -mTilt : mTilt;
+    }
+
+    /**
+     * Returns the angle, in degrees
+     *
+     * @return
+     */
+    public int getAngle() {
+        return mAngle;
+    }
+
+    /**
+     * Computes the rotation matrix from the device coordinate system to the world one, as
+     * SensorManager.getRotationMatrix() does
+     */
+    private boolean getRotationMatrix(float[] gravity, float[] geomagnetic) {
+        float ax = gravity[0], ay = gravity[1], az = gravity[2];
+        float ex = geomagnetic[0], ey = geomagnetic[1], ez = geomagnetic[2];
+        float hx = ey * az - ez * ay;
+        float hy = ez * ax - ex * az;
+        float hz = ex * ay - ey * ax;
+        float normH = (float) Math.sqrt(hx * hx + hy * hy + hz * hz);
+        if (normH < MIN_HORIZONTAL_FIELD) {
+            return false;
+        }
+        float invH = 1.0f / normH;
+        hx *= invH;
+        hy *= invH;
+        hz *= invH;
+        float invA = 1.0f / (float) Math.sqrt(ax * ax + ay * ay + az * az);
+        ax *= invA;
+        ay *= invA;
+        az *= invA;
+        float mx = ay * hz - az * hy;
+        float my = az * hx - ax * hz;
+        float mz = ax * hy - ay * hx;
+        mRotation[0] = hx;
+        mRotation[1] = hy;
+        mRotation[2] = hz;
+        mRotation[3] = mx;
+        mRotation[4] = my;
+        mRotation[5] = mz;
+        mRotation[6] = ax;
+        mRotation[7] = ay;
+        mRotation[8] = az;
+        return true;
+    }
+
+    /**
+     * Remaps the rotation matrix for a phone held in landscape, as
+     * SensorManager.remapCoordinateSystem(AXIS_Y, AXIS_MINUS_X) does: the new X axis is the old Y one, and the new Y
+     * axis is the old X one reversed
+     */
+    private void remapToLandscape() {
+        for (int row = 0; row < 9; row += 3) {
+            mRemapped[row] = -mRotation[row + 1];
+            mRemapped[row + 1] = mRotation[row];
+            mRemapped[row + 2] = mRotation[row + 2];
+        }
+    }
+
+    /**
+     * Computes azimuth, pitch and roll from the remapped matrix, as SensorManager.getOrientation() does
+     */
+    private void computeOrientation() {
+        mOrientation[0] = (float) Math.atan2(mRemapped[1], mRemapped[4]);
+        mOrientation[1] = (float) Math.asin(-mRemapped[7]);
+        mOrientation[2] = (float) Math.atan2(-mRemapped[6], mRemapped[8]);
+    }
+}
@@ -1,9 +1,10 @@
 /*
  * Connection.c
  *
- *	Contains functions to translates java messages to native messages and the other
- *	way round. Also, sends and retrieves messages to/from the robots and listens to follower
- *	messages.
+ *	Sends and retrieves frames to/from the robots and listens to follower messages.
+ *	Frames are exchanged through direct buffers owned by the java connection: commands are written to the socket
+ *	straight from them and replies are read straight into them, so nothing is allocated nor copied while talking
+ *	to the robots.
  *
  *  Author: Tomás Tormo Franco
  */
@@ -13,349 +14,323 @@
 #include <string.h>
 #include <unistd.h>
 #include <errno.h>
-#include <time.h>
+#include <sys/select.h>
 
 #include "AndroidLogging.h"
 #include "DevicesManager.h"
 #include "Connection.h"
 #include "Exception.h"
 
-// Message translation return values
+// Frame exchange return values
 #define OK 0
 #define ERROR_SENDING_COMMAND -1
 #define ERROR_RETRIEVING_MESSAGE -2
 #define ERROR_WHOLE_MSG_NOT_RETRIEVED -3
-#define ERROR_TRANSLATING_RESPONSE -4
+#define ERROR_NO_RESPONSE -4
+
+// Size of the length prefix of every frame
+#define HEADER_SIZE 2
+// "00:11:22:33:44:55" plus the terminator
+#define BT_ADDR_SIZE 18
+// Active slaves of a Bluetooth piconet
+#define MAX_SOCKETS 7
+// Wait for a reply to a command
+#define RESPONSE_TIMEOUT_SEC 1
+#define RESPONSE_TIMEOUT_USEC 2
+// Wait for a follower message when no timeout is given
+#define MESSAGE_POLL_USEC 2
 
 /**
- * Translates a java command to a C command. The java char array is translated to a unsigned char array
+ * Reads exactly the given number of bytes
  */
-int translateToNative(JNIEnv *env, jobject *values, unsigned char **commandOut, int *cmLenOut) {
-
-    unsigned char *wBuf = NULL;
-    unsigned char *command = NULL;
-    int cmdLen = 0;
-    int i = 0;
-    int j = 0;
-    jchar value;
-
-    //Get the Array size
-    jint lenArgArray = (*env)->GetArrayLength(env, values);
-    if ((*env)->ExceptionCheck(env) || lenArgArray <= 0) {
-        (*env)->ExceptionDescribe(env);
-        (*env)->ExceptionClear(env);
-        return -1;
-    }
-
-    cmdLen = lenArgArray * 2;
-    //Reserve memory for the command array
-    command = (unsigned char *) malloc(sizeof(unsigned char) * (cmdLen));
+static int readFully(int socket, unsigned char *buffer, int length) {
+    int total = 0;
+    ssize_t readB;
 
-    for (i = 0; i < lenArgArray; i++) {
-        (*env)->GetCharArrayRegion(env, values, i, 1, &value);
-        if ((*env)->ExceptionCheck(env)) {
-            (*env)->ExceptionDescribe(env);
-            (*env)->ExceptionClear(env);
+    while (total < length) {
+        readB = read(socket, buffer + total, length - total);
+        if (readB == -1) {
+            if (errno == EINTR || errno == EAGAIN)
+                continue;
             return -1;
         }
-
-        //Mask the char in order to get the least significant byte and put it in the next field
-        command[j + 1] = (unsigned char) (value & 0xFF);
-        //Right sift the value in order to get the most significant byte
-        value = value >> 8;
-        //Mask the char in order to get the most significant byte
-        command[j] = (unsigned char) (value & 0xFF);
-        j = j + 2;
+        if (readB == 0)
+            return -1;
+        total += readB;
     }
+    return total;
+}
 
-    *cmLenOut = cmdLen;
-    *commandOut = command;
-    return 0;
+/**
+ * Writes a whole length-prefixed frame
+ */
+static int writeFrame(int socket, const unsigned char *frame, int frameLen) {
+    int total = 0;
+    ssize_t writtenB;
+
+    while (total < frameLen) {
+        writtenB = write(socket, frame + total, frameLen - total);
+        if (writtenB == -1) {
+            if (errno == EINTR || errno == EAGAIN)
+                continue;
+            LOGE("Error sending command to: %d. Error: %s", socket, strerror(errno));
+            return ERROR_SENDING_COMMAND;
+        }
+        total += writtenB;
+    }
+    return OK;
 }
 
 /**
- * Translates a C command to a java command. The unsigned char array is translated to a java char array
+ * Waits for the next frame and reads it, length prefix included, into the given buffer.
+ * A NULL timeout waits forever
  */
-int translateToJava(JNIEnv *env, unsigned char *response, int respLen, jcharArray *jResponse) {
+static int readFrame(int socket, struct timeval *timeout, unsigned char *reply, int capacity, int *replyLen) {
+    fd_set set;
+    int rtn;
+    int rlength;
 
-    jchar value;
-    jcharArray translation;
-    int i = 0;
-    int j = 0;
-    jsize jArraySize = 0;
+    FD_ZERO(&set);
+    FD_SET(socket, &set);
 
-    if (respLen % 2 != 0) {
-        jArraySize = (respLen / 2) + 1;
-    } else {
-        jArraySize = (respLen / 2);
+    rtn = select(socket + 1, &set, NULL, NULL, timeout);
+    if (rtn < 0) {
+        LOGE("Error waiting for %d: %s", socket, strerror(errno));
+        return ERROR_RETRIEVING_MESSAGE;
     }
-
-    translation = (*env)->NewCharArray(env, jArraySize);
-    if ((*env)->ExceptionCheck(env)) {
-        return ERROR_TRANSLATING_RESPONSE;
+    if (rtn == 0 || !FD_ISSET(socket, &set)) {
+        return ERROR_NO_RESPONSE;
     }
 
-    for (i = 0; i < respLen; i = i + 2) {
-        value = response[i] & 0xFF;
-        value = value << 8;
-        if (i != respLen - 1)
-            value = value | (response[i + 1] & 0xFF);
-
-        (*env)->SetCharArrayRegion(env, translation, j, 1, &value);
-        if ((*env)->ExceptionCheck(env)) {
-            return ERROR_TRANSLATING_RESPONSE;
-        }
-        j++;
+    // First two bytes hold the message size, little-endian
+    if (readFully(socket, reply, HEADER_SIZE) != HEADER_SIZE) {
+        LOGE("Error retrieving response message from %d: %s", socket, strerror(errno));
+        return ERROR_RETRIEVING_MESSAGE;
+    }
+    rlength = reply[0] | (reply[1] << 8);
+    if (rlength > capacity - HEADER_SIZE) {
+        LOGE("Message from %d doesn't fit: %d bytes", socket, rlength);
+        return ERROR_WHOLE_MSG_NOT_RETRIEVED;
     }
 
-    *jResponse = translation;
+    // Read the rest of the message
+    if (readFully(socket, reply + HEADER_SIZE, rlength) != rlength) {
+        LOGE("Couldn't recieve the whole message from %d. Expected %d bytes", socket, rlength);
+        return ERROR_WHOLE_MSG_NOT_RETRIEVED;
+    }
 
+    *replyLen = rlength + HEADER_SIZE;
     return OK;
 }
 
-/**
- * Waits for a follower message. The message will be waited at the jBtAddress
+/*
+ * Sends a frame to the robot and, if requested, reads its reply
  */
-JNIEXPORT jcharArray JNICALL Java_net_kaisoz_droidstorm_bluetooth_Connection_waitForMessage
-        (JNIEnv *env, jclass obj, jstring jBtAddr) {
+static int doCommand(int socket, int waitForResponse, const unsigned char *frame, int frameLen,
+                     unsigned char *reply, int capacity, int *replyLen) {
 
-    struct timeval timeout = {0, 2};
+    struct timeval timeout = {RESPONSE_TIMEOUT_SEC, RESPONSE_TIMEOUT_USEC};
     int rtn;
-    int socket;
-    unsigned char rBuf[1024];
-    ssize_t readB;
-    unsigned short int tamRet = 0;
-    const char *btAddr;
 
-    // Socket descriptors. Since we are just interested in one socket, it doesn't have to be initialized
-    fd_set set;
-    jboolean iscopy;
-    jcharArray jResponse = NULL;
+    rtn = writeFrame(socket, frame, frameLen);
+    if (rtn != OK || !waitForResponse) {
+        return rtn;
+    }
 
-    btAddr = (*env)->GetStringUTFChars(env, jBtAddr, &iscopy);
-    if (btAddr == NULL || (*env)->ExceptionCheck(env)) {
-        throwBluetoothException(env, "Error retrieving bt address");
+    rtn = readFrame(socket, &timeout, reply, capacity, replyLen);
+    if (rtn == ERROR_NO_RESPONSE) {
+        LOGE("No response recieved");
+        *replyLen = 0;
+        return OK;
     }
+    return rtn;
+}
 
-    // Get the socket associated to the given Bluetooth address
-    if (getSocketByBTAddr(&socket, btAddr) == -1) {
-        throwBluetoothException(env, "Error retrieving socket");
+/**
+ * Throws the BluetoothException matching the given frame exchange error
+ */
+static void throwCommandError(JNIEnv *env, int rtn) {
+    switch (rtn) {
+        case ERROR_SENDING_COMMAND:
+            throwBluetoothException(env, "Error sending command to device");
+            break;
+        case ERROR_RETRIEVING_MESSAGE:
+            throwBluetoothException(env, "Error retrieving response message from device");
+            break;
+        case ERROR_WHOLE_MSG_NOT_RETRIEVED:
+            throwBluetoothException(env, "Couldn't recieve the whole message");
+            break;
     }
+}
 
-    FD_ZERO(&set);
-    FD_SET(socket, &set);
+/**
+ * Copies the given Bluetooth address into a caller buffer, without allocating
+ */
+static int getBtAddr(JNIEnv *env, jstring jBtAddr, char *btAddr) {
+    jsize len;
 
-    // Wait during 2 ms. If nothing received, return
-    rtn = select(socket + 1, &set, NULL, NULL, &timeout);
-    if (rtn < 0)
-        return NULL;
-
-    if (FD_ISSET(socket, &set)) {
-
-        // Read first two bytes which will be the message size
-        while ((readB = read(socket, &rBuf, 2)) == -1) { }
-
-        if (readB != 2) {
-            LOGE("Error retrieving response message from %d: %s", socket, strerror(errno));
-            throwBluetoothException(env, "Error retrieving message");
-        } else {
-            // Get message size
-            memcpy(&tamRet, &rBuf[0], 2);
-            int rlength = (int) tamRet;
-
-            // Read the rest of the message
-            while ((readB = read(socket, &rBuf, rlength)) == -1) { }
-            LOGD("Read %d bytes", readB);
-
-            // We couln't receive the whole message. Throw an error
-            if (readB != rlength) {
-                LOGE("Couldn't recieve the whole message from %d. Got mismatch of %d and %d\n",
-                     socket, readB, rlength);
-                throwBluetoothException(env, "Error retrieving message");
-            }
-
-            LOGD("Return buffer size: %d", rlength);
-            translateToJava(env, rBuf, rlength, &jResponse);
-        }
+    if (jBtAddr == NULL) {
+        return -1;
     }
-
-    // Return robot response
-    return jResponse;
+    len = (*env)->GetStringLength(env, jBtAddr);
+    if (len >= BT_ADDR_SIZE) {
+        return -1;
+    }
+    (*env)->GetStringUTFRegion(env, jBtAddr, 0, len, btAddr);
+    if ((*env)->ExceptionCheck(env)) {
+        return -1;
+    }
+    btAddr[len] = '\0';
+    return 0;
 }
 
-
-/*
- * Sends a command to the robot
+/**
+ * Returns the address and capacity of a direct buffer
  */
-int doCommand(int socket, int waitForResponse, unsigned char *command, int cmdLen,
-              unsigned char **response, int *respLen) {
-
-    unsigned char rBuf[1024];
-    unsigned char *wBuf = NULL;
-    struct timeval timeout = {1, 2};
-    ssize_t writtenB, readB;
-    fd_set set;
-    unsigned short int tamRet = 0;
-    // Bluetooth headers size
-    unsigned short int si = 0;
-    int rtn = 0;
-    int i = 0;
+static int getDirectBuffer(JNIEnv *env, jobject buffer, unsigned char **address, int *capacity) {
+    *address = (unsigned char *) (*env)->GetDirectBufferAddress(env, buffer);
+    if (*address == NULL) {
+        return -1;
+    }
+    *capacity = (int) (*env)->GetDirectBufferCapacity(env, buffer);
+    return 0;
+}
 
-    wBuf = (unsigned char *) malloc((cmdLen + 2) * sizeof(char));
-    si = (short int) cmdLen;
+/**
+ * Waits for a follower message at the given robot, and reads it into the reply buffer.
+ * A negative timeout polls the robot, and 0 waits forever. Returns the frame size, or 0 if nothing was received
+ */
+JNIEXPORT jint JNICALL Java_net_kaisoz_droidstorm_bluetooth_legacy_ConnectionLegacy_receiveFrameNative
+        (JNIEnv *env, jobject obj, jstring jBtAddr, jobject jReply, jlong timeoutMillis) {
+
+    char btAddr[BT_ADDR_SIZE];
+    struct timeval timeout;
+    struct timeval *wait = &timeout;
+    unsigned char *reply;
+    int capacity;
+    int socket;
+    int replyLen = 0;
+    int rtn;
 
-    memcpy(&wBuf[0], &si, 2);
-    memcpy(&wBuf[2], command, cmdLen);
+    if (getBtAddr(env, jBtAddr, btAddr) == -1) {
+        throwBluetoothException(env, "Error retrieving bt address");
+        return -1;
+    }
+    if (getDirectBuffer(env, jReply, &reply, &capacity) == -1) {
+        throwBluetoothException(env, "Reply buffer is not direct");
+        return -1;
+    }
 
-    writtenB = write(socket, wBuf, cmdLen + 2);
-    if (writtenB == -1) {
-        LOGE("Error sending command to: %d. Error: %s", socket, strerror(errno));
-        return ERROR_SENDING_COMMAND;
+    // Get the socket associated to the given Bluetooth address
+    if (getSocketByBTAddr(&socket, btAddr) == -1) {
+        throwBluetoothException(env, "Error retrieving socket");
+        return -1;
     }
 
-    if (waitForResponse) {
-        FD_ZERO(&set);
-        FD_SET(socket, &set);
-
-        // If a response is requested, wait for it
-        rtn = select(socket + 1, &set, NULL, NULL, &timeout);
-        if (rtn > 0) {
-            while ((readB = read(socket, &rBuf, 2)) == -1) { }
-
-            if (readB != 2) {
-                LOGE("Error retrieving response message from %d: %s", socket, strerror(errno));
-                return ERROR_RETRIEVING_MESSAGE;
-            } else {
-                memcpy(&tamRet, &rBuf[0], 2);
-                int rlength = (int) tamRet;
-                while ((readB = read(socket, &rBuf, rlength)) == -1) { }
-                LOGD("Read %d bytes", readB);
-
-                if (readB != rlength) {
-                    LOGE("Couldn't recieve the whole message from %d. Got mismatch of %d and %d\n",
-                         socket, readB, rlength);
-                    return ERROR_WHOLE_MSG_NOT_RETRIEVED;
-                }
-
-                if (response != NULL && respLen != NULL) {
-                    *response = rBuf;
-                    *respLen = rlength;
-                }
-            }
-        } else {
-            LOGE("No response recieved");
-        }
+    if (timeoutMillis < 0) {
+        timeout.tv_sec = 0;
+        timeout.tv_usec = MESSAGE_POLL_USEC;
+    } else if (timeoutMillis > 0) {
+        timeout.tv_sec = timeoutMillis / 1000;
+        timeout.tv_usec = (timeoutMillis % 1000) * 1000;
+    } else {
+        wait = NULL;
     }
 
-    return OK;
+    rtn = readFrame(socket, wait, reply, capacity, &replyLen);
+    if (rtn == ERROR_NO_RESPONSE) {
+        return 0;
+    }
+    if (rtn != OK) {
+        throwBluetoothException(env, "Error retrieving message");
+        return -1;
+    }
+    LOGD("Return buffer size: %d", replyLen);
+    return replyLen;
 }
 
 /**
- * Sends a command to all connected robots
+ * Sends a frame to all connected robots. The reply, only read when there is a single robot, is stored in the reply
+ * buffer. Returns the reply size, or 0 if there is none
  */
-JNIEXPORT jcharArray JNICALL Java_net_kaisoz_droidstorm_bluetooth_Connection_broadcastCommand
-        (JNIEnv *env, jclass obj, jobject data, jboolean response) {
+JNIEXPORT jint JNICALL Java_net_kaisoz_droidstorm_bluetooth_legacy_ConnectionLegacy_broadcastFrameNative
+        (JNIEnv *env, jobject obj, jobject jFrame, jint frameLen, jobject jReply, jboolean response) {
 
+    int sockets[MAX_SOCKETS];
     int connectedDevices = 0;
-    int *sockets = NULL;
-    unsigned char *command = NULL;
-    unsigned char *responseData = NULL;
-    int respLen = 0;
-    int cmLen = 0;
+    unsigned char *frame;
+    unsigned char *reply;
+    int frameCapacity;
+    int capacity;
+    int replyLen = 0;
     int rtn = 0;
     int i = 0;
-    jcharArray jResponse = NULL;
 
-    LOGI("Broadcast command");
-    // Translate the command to native C
-    translateToNative(env, data, &command, &cmLen);
+    if (getDirectBuffer(env, jFrame, &frame, &frameCapacity) == -1
+            || getDirectBuffer(env, jReply, &reply, &capacity) == -1 || frameLen > frameCapacity) {
+        throwBluetoothException(env, "Frame buffers are not direct");
+        return -1;
+    }
 
     // Get sockets from all connected devices
-    if (getSocketFromConnDevices(&sockets, &connectedDevices) == -1) {
+    if (copySocketsFromConnDevices(sockets, MAX_SOCKETS, &connectedDevices) == -1) {
         throwBluetoothException(env, "Error retrieving sockets");
+        return -1;
     }
 
     if (response == JNI_TRUE && connectedDevices != 1) {
         response = JNI_FALSE;
     }
 
-    // Send the command
+    // Send the frame
     for (i = 0; i < connectedDevices; i++) {
-        rtn = doCommand(sockets[i], response, command, cmLen, &responseData, &respLen);
-        if (rtn != 0) {
-            switch (rtn) {
-                case ERROR_SENDING_COMMAND:
-                    throwBluetoothException(env, "Error sending command to device");
-                    break;
-                case ERROR_RETRIEVING_MESSAGE:
-                    throwBluetoothException(env, "Error retrieving response message from device");
-                    break;
-                case ERROR_WHOLE_MSG_NOT_RETRIEVED:
-                    throwBluetoothException(env, "Couldn't recieve the whole message");
-                    break;
-            }
+        rtn = doCommand(sockets[i], response, frame, frameLen, reply, capacity, &replyLen);
+        if (rtn != OK) {
+            throwCommandError(env, rtn);
+            return -1;
         }
     }
 
-    if (response == JNI_TRUE) {
-        // If response requested, translate it to java
-        translateToJava(env, responseData, respLen, &jResponse);
-    }
-    return jResponse;
+    return (response == JNI_TRUE) ? replyLen : 0;
 }
 
 /**
- * Sends a command to a single robot
+ * Sends a frame to a single robot. The reply, if requested, is stored in the reply buffer.
+ * Returns the reply size, or 0 if there is none
  */
-JNIEXPORT jcharArray JNICALL Java_net_kaisoz_droidstorm_bluetooth_Connection_sendSingleCommand
-        (JNIEnv *env, jclass obj, jstring jbtAddr, jobject data, jboolean response) {
-
-    LOGI("sendSingleCommand");
-    int connectedDevices = 0;
+JNIEXPORT jint JNICALL Java_net_kaisoz_droidstorm_bluetooth_legacy_ConnectionLegacy_sendFrameNative
+        (JNIEnv *env, jobject obj, jstring jBtAddr, jobject jFrame, jint frameLen, jobject jReply, jboolean response) {
+
+    char btAddr[BT_ADDR_SIZE];
+    unsigned char *frame;
+    unsigned char *reply;
+    int frameCapacity;
+    int capacity;
     int socket;
-    const char *btAddr;
-    jboolean iscopy;
-    jcharArray jResponse = NULL;
-    unsigned char *command = NULL;
-    unsigned char *responseData = NULL;
-    int cmLen = 0;
-    int respLen = 0;
+    int replyLen = 0;
     int rtn = 0;
-    int i = 0;
 
-    btAddr = (*env)->GetStringUTFChars(env, jbtAddr, &iscopy);
-    if (btAddr == NULL || (*env)->ExceptionCheck(env)) {
+    if (getBtAddr(env, jBtAddr, btAddr) == -1) {
         throwBluetoothException(env, "Error retrieving bt address");
+        return -1;
+    }
+    if (getDirectBuffer(env, jFrame, &frame, &frameCapacity) == -1
+            || getDirectBuffer(env, jReply, &reply, &capacity) == -1 || frameLen > frameCapacity) {
+        throwBluetoothException(env, "Frame buffers are not direct");
+        return -1;
     }
-
-
-    // Translate the command to native
-    translateToNative(env, data, &command, &cmLen);
 
     // Get the socket associated to the given address
     if (getSocketByBTAddr(&socket, btAddr) == -1) {
         throwBluetoothException(env, "Error retrieving socket");
+        return -1;
     }
 
-    rtn = doCommand(socket, response, command, cmLen, &responseData, &respLen);
-    if (rtn != 0) {
-        switch (rtn) {
-            case ERROR_SENDING_COMMAND:
-                throwBluetoothException(env, "Error sending command to device");
-                break;
-            case ERROR_RETRIEVING_MESSAGE:
-                throwBluetoothException(env, "Error retrieving response message from device");
-                break;
-            case ERROR_WHOLE_MSG_NOT_RETRIEVED:
-                throwBluetoothException(env, "Couldn't recieve the whole message");
-                break;
-        }
-    }
-
-    if (response == JNI_TRUE) {
-        // If response requested, translate it to java
-        translateToJava(env, responseData, respLen, &jResponse);
+    rtn = doCommand(socket, response, frame, frameLen, reply, capacity, &replyLen);
+    if (rtn != OK) {
+        throwCommandError(env, rtn);
+        return -1;
     }
 
-    return jResponse;
+    return (response == JNI_TRUE) ? replyLen : 0;
 }
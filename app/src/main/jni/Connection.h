@@ -8,13 +8,13 @@
 #ifndef CONNECTION_H_
 #define CONNECTION_H_
 
-JNIEXPORT jcharArray JNICALL Java_net_kaisoz_droidstorm_bluetooth_Connection_sendSingleCommand
-        (JNIEnv *, jclass, jstring, jobject, jboolean);
+JNIEXPORT jint JNICALL Java_net_kaisoz_droidstorm_bluetooth_legacy_ConnectionLegacy_sendFrameNative
+        (JNIEnv *, jobject, jstring, jobject, jint, jobject, jboolean);
 
-JNIEXPORT jcharArray JNICALL Java_net_kaisoz_droidstorm_bluetooth_Connection_broadcastCommand
-        (JNIEnv *, jclass, jobject, jboolean);
+JNIEXPORT jint JNICALL Java_net_kaisoz_droidstorm_bluetooth_legacy_ConnectionLegacy_broadcastFrameNative
+        (JNIEnv *, jobject, jobject, jint, jobject, jboolean);
 
-JNIEXPORT jcharArray JNICALL Java_net_kaisoz_droidstorm_bluetooth_Connection_waitForMessage
-        (JNIEnv *, jclass, jstring);
+JNIEXPORT jint JNICALL Java_net_kaisoz_droidstorm_bluetooth_legacy_ConnectionLegacy_receiveFrameNative
+        (JNIEnv *, jobject, jstring, jobject, jlong);
 
 #endif /* CONNECTION_H_ */
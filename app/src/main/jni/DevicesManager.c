@@ -152,6 +152,28 @@ int getSocketFromConnDevices(int **sockets, int *length) {
     return 0;
 }
 
+/**
+ * Copies the sockets of the connected devices into the given array, up to its capacity, without allocating
+ */
+int copySocketsFromConnDevices(int *sockets, int capacity, int *length) {
+    if (connectedDevices == 0) {
+        return -1;
+    }
+
+    int i = 0;
+    deviceDescriptor *aux = head;
+    while (aux != NULL && i < capacity) {
+        if (aux->connected == TRUE) {
+            sockets[i] = aux->socket;
+            i++;
+        }
+        aux = aux->next;
+    }
+
+    *length = i;
+    return 0;
+}
+
 /**
  * Returns the socket associated to the given Bluetooth address
  */
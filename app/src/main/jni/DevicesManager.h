@@ -21,6 +21,8 @@ int delDevice(const char *btAddr);
 
 int getSocketFromConnDevices(int **sockets, int *length);
 
+int copySocketsFromConnDevices(int *sockets, int capacity, int *length);
+
 int getSocketByBTAddr(int *socket, const char *btAddress);
 
 int isConnected();
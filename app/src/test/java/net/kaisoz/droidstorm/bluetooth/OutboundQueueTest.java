@@ -0,0 +1,158 @@
+package net.kaisoz.droidstorm.bluetooth;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Conflation, lane order and shedding of queued motor frames
+ */
+public class OutboundQueueTest {
+
+    private static final int SETOUTPUTSTATE = 0x04;
+    private static final int PLAYTONE = 0x03;
+    private static final int ALL = 0xFF;
+    private static final int CAPACITY = 4;
+
+    private OutboundQueue mQueue;
+
+    @Before
+    public void setUp() {
+        mQueue = new OutboundQueue(new FramePool(), CAPACITY);
+    }
+
+    @Test
+    public void latestFrameOfAPortWins() {
+        offer(motor(0, 10), OutboundQueue.PRIORITY_NORMAL);
+        offer(motor(1, 20), OutboundQueue.PRIORITY_NORMAL);
+        offer(motor(0, 30), OutboundQueue.PRIORITY_NORMAL);
+
+        CommandBatch batch = drain();
+        assertEquals(2, batch.getFrameCount());
+        assertMotor(batch, 0, 0, 30);
+        assertMotor(batch, 1, 1, 20);
+    }
+
+    @Test
+    public void allPortsFrameReplacesPortFrames() {
+        offer(motor(0, 10), OutboundQueue.PRIORITY_NORMAL);
+        offer(tone(), OutboundQueue.PRIORITY_NORMAL);
+        offer(motor(1, 20), OutboundQueue.PRIORITY_NORMAL);
+        offer(motor(ALL, 0), OutboundQueue.PRIORITY_NORMAL);
+        offer(motor(1, 40), OutboundQueue.PRIORITY_NORMAL);
+
+        // The later port frame is written after the one for every port, so it isn't overwritten
+        CommandBatch batch = drain();
+        assertEquals(3, batch.getFrameCount());
+        assertCommand(batch, 0, PLAYTONE);
+        assertMotor(batch, 1, ALL, 0);
+        assertMotor(batch, 2, 1, 40);
+    }
+
+    @Test
+    public void portFrameDoesNotOvertakeAllPortsFrame() {
+        offer(motor(ALL, 0), OutboundQueue.PRIORITY_NORMAL);
+        offer(tone(), OutboundQueue.PRIORITY_NORMAL);
+        offer(motor(2, 50), OutboundQueue.PRIORITY_HIGH);
+
+        CommandBatch batch = drain();
+        assertEquals(3, batch.getFrameCount());
+        assertMotor(batch, 0, ALL, 0);
+        assertMotor(batch, 1, 2, 50);
+        assertCommand(batch, 2, PLAYTONE);
+    }
+
+    @Test
+    public void lanesAreWrittenHighFirst() {
+        offer(motor(0, 10), OutboundQueue.PRIORITY_LOW);
+        offer(motor(1, 20), OutboundQueue.PRIORITY_NORMAL);
+        offer(motor(2, 30), OutboundQueue.PRIORITY_HIGH);
+
+        CommandBatch batch = drain();
+        assertEquals(3, batch.getFrameCount());
+        assertMotor(batch, 0, 2, 30);
+        assertMotor(batch, 1, 1, 20);
+        assertMotor(batch, 2, 0, 10);
+    }
+
+    @Test
+    public void replacingFrameMovesToItsLane() {
+        offer(motor(1, 20), OutboundQueue.PRIORITY_NORMAL);
+        offer(motor(0, 10), OutboundQueue.PRIORITY_NORMAL);
+        offer(motor(0, 0), OutboundQueue.PRIORITY_HIGH);
+
+        CommandBatch batch = drain();
+        assertEquals(2, batch.getFrameCount());
+        assertMotor(batch, 0, 0, 0);
+        assertMotor(batch, 1, 1, 20);
+    }
+
+    @Test
+    public void lowPriorityFramesAreShedWhenCongested() {
+        offer(tone(), OutboundQueue.PRIORITY_NORMAL);
+        offer(tone(), OutboundQueue.PRIORITY_NORMAL);
+        assertTrue(mQueue.isCongested());
+
+        assertTrue(mQueue.offer(ByteBuffer.wrap(motor(0, 10)), OutboundQueue.PRIORITY_LOW));
+        assertEquals(2, mQueue.size());
+    }
+
+    @Test
+    public void fullQueueDropsOldestLowFrameForHigherLane() {
+        offer(motor(0, 10), OutboundQueue.PRIORITY_LOW);
+        offer(motor(1, 20), OutboundQueue.PRIORITY_LOW);
+        offer(tone(), OutboundQueue.PRIORITY_NORMAL);
+        offer(tone(), OutboundQueue.PRIORITY_NORMAL);
+
+        offer(motor(2, 30), OutboundQueue.PRIORITY_HIGH);
+        CommandBatch batch = drain();
+        assertEquals(CAPACITY, batch.getFrameCount());
+        assertMotor(batch, 0, 2, 30);
+        assertMotor(batch, 3, 1, 20);
+    }
+
+    @Test
+    public void fullQueueRefusesFrameWithoutLowOnes() {
+        for (int i = 0; i < CAPACITY; i++) {
+            offer(tone(), OutboundQueue.PRIORITY_NORMAL);
+        }
+        assertFalse(mQueue.offer(ByteBuffer.wrap(tone()), OutboundQueue.PRIORITY_NORMAL));
+        assertEquals(CAPACITY, mQueue.size());
+    }
+
+    private void offer(byte[] frame, int priority) {
+        assertTrue(mQueue.offer(frame, 0, frame.length, priority));
+    }
+
+    private CommandBatch drain() {
+        CommandBatch batch = new CommandBatch(CAPACITY);
+        mQueue.drainTo(batch);
+        assertTrue(mQueue.isEmpty());
+        return batch;
+    }
+
+    private static void assertCommand(CommandBatch batch, int index, int command) {
+        ByteBuffer frame = batch.getFrame(index);
+        assertEquals(command, frame.get(frame.position() + 3) & 0xFF);
+    }
+
+    private static void assertMotor(CommandBatch batch, int index, int port, int power) {
+        assertCommand(batch, index, SETOUTPUTSTATE);
+        ByteBuffer frame = batch.getFrame(index);
+        assertEquals(port, frame.get(frame.position() + 4) & 0xFF);
+        assertEquals(power, frame.get(frame.position() + 5));
+    }
+
+    private static byte[] motor(int port, int power) {
+        return new byte[]{12, 0, (byte) 0x80, SETOUTPUTSTATE, (byte) port, (byte) power, 0x01, 0, 0, 0x20, 0, 0, 0, 0};
+    }
+
+    private static byte[] tone() {
+        return new byte[]{6, 0, (byte) 0x80, PLAYTONE, (byte) 0xB8, 0x01, (byte) 0xF4, 0x01};
+    }
+}
@@ -0,0 +1,163 @@
+package net.kaisoz.droidstorm.bluetooth.base;
+
+import net.kaisoz.droidstorm.bluetooth.PendingReply;
+import net.kaisoz.droidstorm.bluetooth.exception.BluetoothException;
+import net.kaisoz.droidstorm.bluetooth.reactor.IoReactor;
+import net.kaisoz.droidstorm.bluetooth.transport.InMemoryTransport;
+import net.kaisoz.droidstorm.simulator.BrickSimulator;
+import net.kaisoz.droidstorm.simulator.VirtualBrick;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Reply routing of a peer talking to a simulated brick which loses or delays replies.
+ * Every sequence runs both with inline reads and with the peer served by the reactor
+ */
+public class BluetoothPeerTest {
+
+    private static final String ADDRESS = "sim-1";
+    private static final int GETBATTERYLEVEL = 0x0B;
+    private static final int KEEPALIVE = 0x0D;
+    private static final int GETOUTPUTSTATE = 0x06;
+    private static final long SHORT_TIMEOUT = 200;
+    private static final long LONG_TIMEOUT = 2000;
+
+    private BrickSimulator mSimulator;
+    private VirtualBrick mBrick;
+    private BluetoothPeer mPeer;
+
+    @Before
+    public void setUp() {
+        mSimulator = new BrickSimulator(1);
+        mBrick = mSimulator.getBrick(ADDRESS);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (mPeer != null) {
+            mPeer.disconnect();
+        }
+        mSimulator.shutdown();
+    }
+
+    @Test
+    public void lostReplyDoesNotHoldBackLaterReplies() throws Exception {
+        for (int mode = 0; mode < 2; mode++) {
+            connect(mode == 1);
+            mBrick.dropReplies(1);
+            PendingReply lost = mPeer.request(command(GETBATTERYLEVEL));
+            assertTimesOut(lost);
+
+            // Every later request gets its own reply, whatever its command
+            for (int i = 0; i < 3; i++) {
+                assertReply(GETBATTERYLEVEL, mPeer.request(command(GETBATTERYLEVEL)));
+                assertReply(KEEPALIVE, mPeer.request(command(KEEPALIVE)));
+            }
+        }
+    }
+
+    @Test
+    public void lateReplyIsDropped() throws Exception {
+        for (int mode = 0; mode < 2; mode++) {
+            connect(mode == 1);
+            mBrick.delayNextReply(SHORT_TIMEOUT * 2 * 1000);
+            PendingReply late = mPeer.request(command(GETBATTERYLEVEL));
+            assertTimesOut(late);
+
+            // The late reply arrives first, and is taken by the cancelled request
+            assertReply(KEEPALIVE, mPeer.request(command(KEEPALIVE)));
+            assertReply(GETBATTERYLEVEL, mPeer.request(command(GETBATTERYLEVEL)));
+            assertEquals(0, mPeer.getDiscardedReplies());
+        }
+    }
+
+    @Test
+    public void lateReplyIsNotTakenByQueryOfAnotherPort() throws Exception {
+        for (int mode = 0; mode < 2; mode++) {
+            connect(mode == 1);
+            mBrick.delayNextReply(SHORT_TIMEOUT * 2 * 1000);
+            PendingReply late = mPeer.request(query(GETOUTPUTSTATE, 0));
+            assertTimesOut(late);
+
+            // The late reply for port 0 arrives first, and is taken by the cancelled request
+            assertPort(1, mPeer.request(query(GETOUTPUTSTATE, 1)));
+            assertPort(2, mPeer.request(query(GETOUTPUTSTATE, 2)));
+            assertEquals(0, mPeer.getDiscardedReplies());
+        }
+    }
+
+    @Test
+    public void cancelledRequestKeepsLaterRepliesInOrder() throws Exception {
+        mSimulator.setLatency(50 * 1000, 0);
+        for (int mode = 0; mode < 2; mode++) {
+            connect(mode == 1);
+            PendingReply cancelled = mPeer.request(command(GETBATTERYLEVEL));
+            PendingReply next = mPeer.request(command(KEEPALIVE));
+            assertTrue(cancelled.cancel(new BluetoothException("Cancelled")));
+
+            assertReply(KEEPALIVE, next);
+            try {
+                mPeer.awaitReply(cancelled, SHORT_TIMEOUT);
+                fail("Cancelled request completed");
+            } catch (BluetoothException e) {
+                assertEquals("Cancelled", e.getMessage());
+            }
+            assertReply(GETBATTERYLEVEL, mPeer.request(command(GETBATTERYLEVEL)));
+        }
+    }
+
+    private void connect(boolean reactor) throws Exception {
+        if (mPeer != null) {
+            mPeer.disconnect();
+        }
+        mPeer = new BluetoothPeer(InMemoryTransport.factory(mSimulator).create(ADDRESS));
+        mPeer.connect();
+        if (reactor) {
+            mPeer.startReading(IoReactor.getInstance());
+        }
+    }
+
+    private void assertTimesOut(PendingReply reply) {
+        try {
+            mPeer.awaitReply(reply, SHORT_TIMEOUT);
+            fail("Reply to command " + reply.getCommand() + " received");
+        } catch (BluetoothException e) {
+            assertTrue(reply.isCancelled());
+        }
+    }
+
+    private void assertReply(int command, PendingReply reply) throws BluetoothException {
+        ByteBuffer frame = mPeer.awaitReply(reply, LONG_TIMEOUT);
+        try {
+            assertEquals(command, frame.get(frame.position() + 3) & 0xFF);
+        } finally {
+            mPeer.getFramePool().release(frame);
+        }
+    }
+
+    private void assertPort(int port, PendingReply reply) throws BluetoothException {
+        ByteBuffer frame = mPeer.awaitReply(reply, LONG_TIMEOUT);
+        try {
+            assertEquals(GETOUTPUTSTATE, frame.get(frame.position() + 3) & 0xFF);
+            assertEquals(port, frame.get(frame.position() + 5) & 0xFF);
+        } finally {
+            mPeer.getFramePool().release(frame);
+        }
+    }
+
+    private static ByteBuffer query(int command, int port) {
+        return ByteBuffer.wrap(new byte[]{3, 0, 0x00, (byte) command, (byte) port});
+    }
+
+    private static ByteBuffer command(int command) {
+        return ByteBuffer.wrap(new byte[]{2, 0, 0x00, (byte) command});
+    }
+}
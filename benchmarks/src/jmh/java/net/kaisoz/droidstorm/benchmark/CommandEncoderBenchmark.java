@@ -0,0 +1,42 @@
+package net.kaisoz.droidstorm.benchmark;
+
+import net.kaisoz.droidstorm.bluetooth.FramePool;
+import net.kaisoz.droidstorm.nxt.Interface.NXTInterface;
+import net.kaisoz.droidstorm.nxt.message.CommandEncoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encoding of the commands built on the fly by the interfaces, such as the file name packing of STARTPROGRAM
+ */
+@State(Scope.Thread)
+public class CommandEncoderBenchmark {
+
+    private final CommandEncoder mEncoder = new CommandEncoder(new FramePool());
+
+    @Benchmark
+    public void startProgram(Blackhole blackhole) {
+        ByteBuffer frame = mEncoder.startProgram("follower.rxe", NXTInterface.MESSAGETYPE_RESPONSE);
+        blackhole.consume(frame.get(FramePool.HEADER_SIZE + 2));
+        mEncoder.release(frame);
+    }
+
+    @Benchmark
+    public void getOutputState(Blackhole blackhole) {
+        ByteBuffer frame = mEncoder.getOutputState(NXTInterface.MOTOR_B);
+        blackhole.consume(frame.get(FramePool.HEADER_SIZE + 2));
+        mEncoder.release(frame);
+    }
+
+    @Benchmark
+    public void resetMotorPosition(Blackhole blackhole) {
+        ByteBuffer frame = mEncoder.resetMotorPosition(NXTInterface.MOTOR_A, true, NXTInterface.MESSAGETYPE_NORESPONSE);
+        blackhole.consume(frame.get(FramePool.HEADER_SIZE + 2));
+        mEncoder.release(frame);
+    }
+}
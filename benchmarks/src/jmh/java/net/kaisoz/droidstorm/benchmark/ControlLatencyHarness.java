@@ -0,0 +1,335 @@
+package net.kaisoz.droidstorm.benchmark;
+
+import net.kaisoz.droidstorm.bluetooth.Connection;
+import net.kaisoz.droidstorm.bluetooth.exception.BluetoothException;
+import net.kaisoz.droidstorm.bluetooth.transport.InMemoryTransport;
+import net.kaisoz.droidstorm.bluetooth.transport.Transport;
+import net.kaisoz.droidstorm.bluetooth.transport.TransportFactory;
+import net.kaisoz.droidstorm.bluetooth.transport.TransportWrapper;
+import net.kaisoz.droidstorm.nxt.Interface.NXTInterface;
+import net.kaisoz.droidstorm.nxt.controller.NXTBaseController;
+import net.kaisoz.droidstorm.nxt.controller.NXTMovementController;
+import net.kaisoz.droidstorm.simulator.BrickSimulator;
+import net.kaisoz.droidstorm.util.TiltCalculator;
+
+import org.HdrHistogram.Histogram;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Control latency from sensor sample to bytes on the wire.
+ * Synthetic accelerometer and magnetometer samples, tilting the phone back and forth, go through the same path the
+ * movement handler uses: the tilt math, the latest-wins hand off to the controller executor, moveNXT and the
+ * connection layer, down to a simulated robot. Every sample is timestamped at each stage:
+ * <ul>
+ * <li>sensor math: from the sample to its tilt and angle</li>
+ * <li>controller queue: waiting for the command executor of the robot</li>
+ * <li>moveNXT: encoding the command and queueing it to the robot</li>
+ * <li>transport: pacing and draining the queue, until the write carrying the command, or a newer one which
+ * replaced it, returns</li>
+ * </ul>
+ * Samples overwritten before the controller took them, and samples which didn't change the command, never reach the
+ * wire and are only counted.
+ * Run it with: ./gradlew :benchmarks:controlLatency [-PlatencyArgs="rate samples maxP99"]
+ * where rate is the sensor rate in Hz, samples the number of measured samples, and maxP99 the end to end p99, in
+ * microseconds, above which the run fails
+ */
+public class ControlLatencyHarness {
+
+    private static final String ROBOT = "latency-robot";
+    private static final int DEFAULT_RATE = 100;
+    private static final int DEFAULT_SAMPLES = 5000;
+    // Samples run before measuring, so the JIT and the send rate settle
+    private static final int WARMUP_SAMPLES = 1000;
+    private static final long HIGHEST_LATENCY = TimeUnit.SECONDS.toNanos(10);
+    private static final float GRAVITY = 9.81f;
+
+    private static final int SAMPLED = 0;
+    private static final int CALCULATED = 1;
+    private static final int DISPATCHED = 2;
+    private static final int ENQUEUED = 3;
+    private static final int WRITTEN = 4;
+    private static final String[] STAGES = {"sensor math", "controller queue", "moveNXT", "transport"};
+
+    private final Histogram[] mStages = new Histogram[STAGES.length];
+    private final Histogram mEndToEnd = new Histogram(HIGHEST_LATENCY, 3);
+    private final TiltCalculator mCalculator = new TiltCalculator();
+    private final Random mRandom = new Random(42);
+    private ProbedController mController;
+
+    // Latest-wins hand off to the controller, as the movement handler does it
+    private volatile Sample mPending = null;
+    private final AtomicBoolean mMovePending = new AtomicBoolean(false);
+    // Sample moveNXT is running for, and samples whose command waits in the queue of the robot
+    private volatile Sample mCurrent = null;
+    private final ConcurrentLinkedQueue<Sample> mAwaitingWrite = new ConcurrentLinkedQueue<Sample>();
+    private volatile int mSent = 0;
+    private volatile int mUnchanged = 0;
+
+    private final NXTBaseController.Action mMoveAction = new NXTBaseController.Action() {
+        public void run() throws BluetoothException {
+            mMovePending.set(false);
+            move(mPending);
+        }
+    };
+
+    public ControlLatencyHarness() {
+        for (int i = 0; i < STAGES.length; i++) {
+            mStages[i] = new Histogram(HIGHEST_LATENCY, 3);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int rate = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_RATE;
+        int samples = (args.length > 1) ? Integer.parseInt(args[1]) : DEFAULT_SAMPLES;
+        long maxP99 = (args.length > 2) ? Long.parseLong(args[2]) : 0;
+
+        ControlLatencyHarness harness = new ControlLatencyHarness();
+        BrickSimulator simulator = new BrickSimulator(1);
+        harness.connect(simulator);
+        harness.run(rate, samples);
+        simulator.shutdown();
+
+        long p99 = harness.report(samples);
+        if (maxP99 > 0 && p99 > maxP99) {
+            System.out.println("FAILED: end to end p99 " + p99 + " us is above " + maxP99 + " us");
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    private void connect(BrickSimulator simulator) {
+        TransportWrapper wrapper = new TransportWrapper(new ProbedFactory(InMemoryTransport.factory(simulator)));
+        wrapper.connect(new String[]{ROBOT});
+        Connection connection = wrapper.getConnection(ROBOT);
+        mController = new ProbedController();
+        mController.setWheels(NXTInterface.MOTOR_B, NXTInterface.MOTOR_C);
+        mController.setConnection(connection);
+    }
+
+    /**
+     * Feeds samples at the given rate, as the sensor thread would
+     */
+    private void run(int rate, int samples) throws Exception {
+        long period = TimeUnit.SECONDS.toNanos(1) / rate;
+        float[] accels = new float[3];
+        float[] mags = new float[3];
+        long next = System.nanoTime();
+        for (int i = 0; i < WARMUP_SAMPLES + samples; i++) {
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            next += period;
+            synthesize(i / (double) rate, accels, mags);
+
+            Sample sample = new Sample(i >= WARMUP_SAMPLES);
+            sample.mTimes[SAMPLED] = System.nanoTime();
+            if (!mCalculator.calculate(accels, mags)) {
+                continue;
+            }
+            sample.mPower = mCalculator.getPower();
+            sample.mAngle = mCalculator.getAngle();
+            sample.mTimes[CALCULATED] = System.nanoTime();
+
+            mPending = sample;
+            if (mMovePending.compareAndSet(false, true)) {
+                mController.submit(mMoveAction);
+            }
+        }
+        // Waits for the last command to reach the wire
+        mController.submit(new NXTBaseController.Action() {
+            public void run() {
+            }
+        }).get();
+        Thread.sleep(500);
+    }
+
+    /**
+     * Simulates a phone tilted back and forth and sideways, with some sensor noise
+     */
+    private void synthesize(double time, float[] accels, float[] mags) {
+        double pitch = 0.6 * Math.sin(2 * Math.PI * 0.25 * time);
+        double roll = 0.5 * Math.sin(2 * Math.PI * 0.4 * time);
+        accels[0] = (float) (GRAVITY * Math.sin(pitch) + noise(0.05));
+        accels[1] = (float) (GRAVITY * Math.sin(roll) * Math.cos(pitch) + noise(0.05));
+        accels[2] = (float) (GRAVITY * Math.cos(roll) * Math.cos(pitch) + noise(0.05));
+        mags[0] = (float) noise(0.5);
+        mags[1] = (float) (20 + noise(0.5));
+        mags[2] = (float) (-45 + noise(0.5));
+    }
+
+    private double noise(double amplitude) {
+        return (mRandom.nextDouble() * 2 - 1) * amplitude;
+    }
+
+    /**
+     * Runs on the command executor of the robot
+     */
+    private void move(Sample sample) throws BluetoothException {
+        sample.mTimes[DISPATCHED] = System.nanoTime();
+        mCurrent = sample;
+        mController.mIssued = false;
+        try {
+            mController.moveNXT(sample.mPower, sample.mAngle);
+        } finally {
+            mCurrent = null;
+        }
+        sample.mTimes[ENQUEUED] = System.nanoTime();
+        if (!mController.mIssued) {
+            if (sample.mMeasured) {
+                mUnchanged++;
+            }
+        } else if (sample.mTimes[WRITTEN] != 0) {
+            // Brakes are written right away, before moveNXT returns
+            record(sample);
+        } else {
+            mAwaitingWrite.add(sample);
+        }
+    }
+
+    /**
+     * Called once a write to the robot has returned
+     */
+    private void onWritten() {
+        long now = System.nanoTime();
+        Sample current = mCurrent;
+        if (current != null) {
+            current.mTimes[WRITTEN] = now;
+        }
+        Sample sample = mAwaitingWrite.poll();
+        while (sample != null) {
+            sample.mTimes[WRITTEN] = now;
+            record(sample);
+            sample = mAwaitingWrite.poll();
+        }
+    }
+
+    private void record(Sample sample) {
+        if (!sample.mMeasured) {
+            return;
+        }
+        mSent++;
+        long[] times = sample.mTimes;
+        for (int i = 0; i < STAGES.length; i++) {
+            mStages[i].recordValue(Math.max(0, times[i + 1] - times[i]));
+        }
+        mEndToEnd.recordValue(times[WRITTEN] - times[SAMPLED]);
+    }
+
+    /**
+     * Prints the percentiles of every stage
+     *
+     * @return End to end p99, in microseconds
+     */
+    private long report(int samples) {
+        System.out.println(samples + " samples measured, " + mSent + " commands written, " + mUnchanged
+                + " samples left the command unchanged, the rest were overwritten before being taken");
+        System.out.println(String.format("%-18s %8s %10s %10s %10s %10s",
+                "stage", "count", "p50 (us)", "p99 (us)", "p99.9 (us)", "max (us)"));
+        for (int i = 0; i < STAGES.length; i++) {
+            print(STAGES[i], mStages[i]);
+        }
+        print("end to end", mEndToEnd);
+        return TimeUnit.NANOSECONDS.toMicros(mEndToEnd.getValueAtPercentile(99));
+    }
+
+    private void print(String stage, Histogram histogram) {
+        System.out.println(String.format("%-18s %8d %10.1f %10.1f %10.1f %10.1f", stage, histogram.getTotalCount(),
+                histogram.getValueAtPercentile(50) / 1000.0, histogram.getValueAtPercentile(99) / 1000.0,
+                histogram.getValueAtPercentile(99.9) / 1000.0, histogram.getMaxValue() / 1000.0));
+    }
+
+    private static class Sample {
+        final long[] mTimes = new long[WRITTEN + 1];
+        final boolean mMeasured;
+        int mPower;
+        int mAngle;
+
+        Sample(boolean measured) {
+            this.mMeasured = measured;
+        }
+    }
+
+    /**
+     * Movement controller which tells whether the last moveNXT sent any command
+     */
+    private static class ProbedController extends NXTMovementController {
+
+        volatile boolean mIssued = false;
+
+        @Override
+        public void move(int turnRatio, int power) throws BluetoothException {
+            mIssued = true;
+            super.move(turnRatio, power);
+        }
+
+        @Override
+        public synchronized void stop() throws BluetoothException {
+            mIssued = true;
+            super.stop();
+        }
+    }
+
+    /**
+     * Transports whose writes are timestamped once they return
+     */
+    private class ProbedFactory implements TransportFactory {
+
+        private final TransportFactory mFactory;
+
+        ProbedFactory(TransportFactory factory) {
+            this.mFactory = factory;
+        }
+
+        public Transport create(String address) throws IOException {
+            final Transport transport = mFactory.create(address);
+            return new Transport() {
+                private final OutputStream mOut = new OutputStream() {
+                    @Override
+                    public void write(int b) throws IOException {
+                        write(new byte[]{(byte) b}, 0, 1);
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        transport.getOutputStream().write(b, off, len);
+                        onWritten();
+                    }
+
+                    @Override
+                    public void flush() throws IOException {
+                        transport.getOutputStream().flush();
+                    }
+                };
+
+                public String getAddress() {
+                    return transport.getAddress();
+                }
+
+                public void connect() throws IOException {
+                    transport.connect();
+                }
+
+                public InputStream getInputStream() throws IOException {
+                    return transport.getInputStream();
+                }
+
+                public OutputStream getOutputStream() {
+                    return mOut;
+                }
+
+                public void close() throws IOException {
+                    transport.close();
+                }
+            };
+        }
+    }
+}
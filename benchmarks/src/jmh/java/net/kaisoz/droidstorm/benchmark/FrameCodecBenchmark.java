@@ -0,0 +1,63 @@
+package net.kaisoz.droidstorm.benchmark;
+
+import net.kaisoz.droidstorm.bluetooth.FrameDecoder;
+import net.kaisoz.droidstorm.bluetooth.FramePool;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Framing of the byte stream: splitting received bytes into frames, and the translation between frames and the
+ * char array format of the original connection API
+ */
+@State(Scope.Thread)
+public class FrameCodecBenchmark {
+
+    // Four GETOUTPUTSTATE replies back to back, as read from the socket after a pipelined query
+    private final byte[] mStream = new byte[4 * 27];
+    private final char[] mValues = new char[]{0x8004, 0x0064, 0x0702, 0x0020, 0x0000, 0x0000};
+    private FramePool mPool;
+    private FrameDecoder mDecoder;
+    private ByteBuffer mFrame;
+
+    @Setup
+    public void setUp() {
+        for (int i = 0; i < 4; i++) {
+            mStream[i * 27] = 25;
+            mStream[i * 27 + 2] = 0x02;
+            mStream[i * 27 + 3] = 0x06;
+        }
+        mPool = new FramePool();
+        mDecoder = new FrameDecoder(mPool);
+        mFrame = FrameDecoder.fromValues(mValues, mPool);
+    }
+
+    @Benchmark
+    public void decodeStream(Blackhole blackhole) throws IOException {
+        mDecoder.feed(mStream, 0, mStream.length);
+        ByteBuffer frame = mDecoder.nextFrame();
+        while (frame != null) {
+            blackhole.consume(frame.get(FramePool.HEADER_SIZE + 1));
+            mPool.release(frame);
+            frame = mDecoder.nextFrame();
+        }
+    }
+
+    @Benchmark
+    public void fromValues(Blackhole blackhole) {
+        ByteBuffer frame = FrameDecoder.fromValues(mValues, mPool);
+        blackhole.consume(frame.get(FramePool.HEADER_SIZE));
+        mPool.release(frame);
+    }
+
+    @Benchmark
+    public char[] toValues() {
+        return FrameDecoder.toValues(mFrame);
+    }
+}
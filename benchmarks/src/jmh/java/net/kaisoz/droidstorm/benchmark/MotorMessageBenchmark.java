@@ -0,0 +1,50 @@
+package net.kaisoz.droidstorm.benchmark;
+
+import net.kaisoz.droidstorm.nxt.Interface.MotorInterface;
+import net.kaisoz.droidstorm.nxt.message.MotorMessage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Patching of the pre-encoded SETOUTPUTSTATE frame, as the controllers do on every movement
+ */
+@State(Scope.Thread)
+public class MotorMessageBenchmark {
+
+    private MotorMessage mMessage;
+    private int mTick = 0;
+
+    @Setup
+    public void setUp() {
+        mMessage = new MotorMessage();
+        mMessage.setMessageType(MotorInterface.MESSAGETYPE_NORESPONSE);
+        mMessage.setMode(MotorInterface.MOTOR_MODE_ON_REGULATED_BRAKE);
+        mMessage.setRegulationMode(MotorInterface.MOTOR_REGULATION_MOTORSYNC);
+        mMessage.setRunState(MotorInterface.MOTOR_RUNSTATE_RUNNING);
+    }
+
+    @Benchmark
+    public ByteBuffer setters() {
+        int tick = mTick++;
+        mMessage.setMotorNum((tick & 1) == 0 ? MotorInterface.MOTOR_A : MotorInterface.MOTOR_B);
+        mMessage.setPower(tick % 100);
+        mMessage.setTurnRatio(tick % 200 - 100);
+        return mMessage.getFrame();
+    }
+
+    @Benchmark
+    public ByteBuffer setTachoLimit() {
+        mMessage.setTachoLimit((mTick++ * 37L) & 0xFFFFFFFFL);
+        return mMessage.getFrame();
+    }
+
+    @Benchmark
+    public long getters() {
+        return mMessage.getPower() + mMessage.getTurnRatio() + mMessage.getTachoLimit() + mMessage.getMotorNum();
+    }
+}
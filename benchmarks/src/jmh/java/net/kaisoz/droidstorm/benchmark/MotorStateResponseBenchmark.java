@@ -0,0 +1,44 @@
+package net.kaisoz.droidstorm.benchmark;
+
+import net.kaisoz.droidstorm.nxt.message.motorStateResponse;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Decoding of a GETOUTPUTSTATE reply through the pooled response view
+ */
+@State(Scope.Thread)
+public class MotorStateResponseBenchmark {
+
+    private ByteBuffer mFrame;
+
+    @Setup
+    public void setUp() {
+        mFrame = ByteBuffer.allocate(27).order(ByteOrder.LITTLE_ENDIAN);
+        mFrame.putShort((short) 25);
+        mFrame.put((byte) 0x02).put((byte) 0x06).put((byte) 0x00);
+        mFrame.put((byte) 1).put((byte) 75).put((byte) 0x07).put((byte) 0x02).put((byte) -20).put((byte) 0x20);
+        mFrame.putInt(360).putInt(1234).putInt(-56).putInt(98765);
+        mFrame.flip();
+    }
+
+    @Benchmark
+    public long decode() {
+        // No frame pool is given, so recycling leaves the frame alone for the next invocation
+        motorStateResponse response = motorStateResponse.obtain(mFrame, null);
+        try {
+            return response.getStatus() + response.getMotorNum() + response.getPower() + response.getMode()
+                    + response.getRegulationMode() + response.getTurnRatio() + response.getRunState()
+                    + response.getTachoLimit() + response.getTachoCount() + response.getBlockTachoCount()
+                    + response.getRotationCount();
+        } finally {
+            response.recycle();
+        }
+    }
+}